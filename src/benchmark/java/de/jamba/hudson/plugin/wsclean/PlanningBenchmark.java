@@ -0,0 +1,220 @@
+package de.jamba.hudson.plugin.wsclean;
+
+import static org.mockito.Matchers.anyString;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+import static org.mockito.Mockito.withSettings;
+
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.lang.reflect.Field;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Pattern;
+
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import com.google.common.collect.Multimap;
+import com.google.common.collect.Sets;
+
+import de.jamba.hudson.plugin.wsclean.CommonConfig.NodeSelection;
+import hudson.FilePath;
+import hudson.model.AbstractBuild;
+import hudson.model.AbstractProject;
+import hudson.model.BuildListener;
+import hudson.model.Label;
+import hudson.model.Node;
+import hudson.model.TopLevelItem;
+import hudson.remoting.VirtualChannel;
+import hudson.util.RunList;
+import jenkins.model.Jenkins;
+
+/**
+ * Measures how long it takes to work out what to clean, using mock Jenkins,
+ * nodes and builds that represent a large installation.
+ * <p>
+ * Run this using <code>mvn -P benchmark verify</code>. Results are written to
+ * <code>target/jmh-result.json</code>; the "gc" profiler is enabled so
+ * allocation rates are reported alongside throughput.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class PlanningBenchmark {
+    private static final String WORKSPACE = "/workspaces/benchmarkJob";
+    private static final String CURRENT_NODE_NAME = "node0";
+
+    @Param({ "2000" })
+    public int nodeCount;
+
+    @Param({ "500" })
+    public int skipRegexCount;
+
+    @Param({ "10000" })
+    public int historicalBuildCount;
+
+    @Param({ "LABEL_ONLY", "HISTORY_ONLY", "LABEL_AND_HISTORY" })
+    public NodeSelection nodeSelection;
+
+    private Jenkins jenkins;
+    private AbstractBuild<?, ?> currentBuild;
+    private BuildListener listener;
+    private Set<String> nodeNames;
+    private Pattern[] nodeNamesToSkip;
+    private final PrePostClean instance = new PrePostClean();
+
+    @Setup(Level.Trial)
+    public void setUp() throws Exception {
+        final AbstractProject<?, ?> project = mock(AbstractProject.class,
+                withSettings().stubOnly().extraInterfaces(TopLevelItem.class));
+        jenkins = mockNode(Jenkins.class, "", project);
+        final List<Node> nodes = Lists.newArrayListWithCapacity(nodeCount);
+        final Map<String, Node> nodesByName = Maps.newHashMap();
+        nodeNames = Sets.newTreeSet();
+        for (int i = 0; i < nodeCount; i++) {
+            final String nodeName = "node" + i;
+            final Node node = mockNode(Node.class, nodeName, project);
+            if (i % 10 == 9) {
+                when(node.getNodeProperty(DisablePrePostCleanNodeProperty.class))
+                        .thenReturn(new DisablePrePostCleanNodeProperty());
+            }
+            nodes.add(node);
+            nodesByName.put(nodeName, node);
+            nodeNames.add(nodeName);
+        }
+        when(jenkins.getNodes()).thenReturn(nodes);
+        when(jenkins.getMode()).thenReturn(Node.Mode.NORMAL);
+        when(jenkins.getNode(anyString())).thenAnswer(new Answer<Node>() {
+            @Override
+            public Node answer(InvocationOnMock invocation) throws Throwable {
+                return nodesByName.get(invocation.getArguments()[0]);
+            }
+        });
+        final Label label = mock(Label.class, withSettings().stubOnly());
+        when(label.getNodes()).thenReturn(Sets.newHashSet(nodes));
+        when(label.getExpression()).thenReturn("benchmark");
+        final List<AbstractBuild<?, ?>> history = Lists.newArrayListWithCapacity(historicalBuildCount);
+        final Field wsField = AbstractBuild.class.getDeclaredField("workspace");
+        wsField.setAccessible(true);
+        for (int i = historicalBuildCount; i > 0; i--) {
+            final Node builtOn = nodes.get(i % nodes.size());
+            final AbstractBuild<?, ?> b = mock(AbstractBuild.class, withSettings().stubOnly());
+            wsField.set(b, WORKSPACE + (i % 3 == 0 ? "@2" : ""));
+            when(b.getBuiltOn()).thenReturn(builtOn);
+            when(b.getBuiltOnStr()).thenReturn(builtOn.getNodeName());
+            when(b.getNumber()).thenReturn(i);
+            history.add(b);
+        }
+        doReturnBuilds(project, history);
+        doReturnLabel(project, label);
+        currentBuild = mock(AbstractBuild.class, withSettings().stubOnly());
+        when(currentBuild.getBuiltOnStr()).thenReturn(CURRENT_NODE_NAME);
+        doReturnProject(currentBuild, project);
+        listener = mock(BuildListener.class, withSettings().stubOnly());
+        when(listener.getLogger()).thenReturn(new PrintStream(new OutputStream() {
+            @Override
+            public void write(int b) {
+                // discard
+            }
+        }));
+        nodeNamesToSkip = new Pattern[skipRegexCount];
+        for (int i = 0; i < skipRegexCount; i++) {
+            nodeNamesToSkip[i] = Pattern.compile("cloud-" + i + "-.*");
+        }
+        // build the workspace index now, so we measure its use, not its creation
+        instance.calculateWssForRemoval(jenkins, currentBuild, listener, NodeSelection.HISTORY_ONLY, false,
+                new CleanupReport.Recorder());
+    }
+
+    @Benchmark
+    public Multimap<String, String> calculateWssForRemoval() {
+        return instance.calculateWssForRemoval(jenkins, currentBuild, listener, nodeSelection, false,
+                new CleanupReport.Recorder());
+    }
+
+    @Benchmark
+    public List<String> getNodesToSkipDueToTheirName() {
+        return NodeEligibilityIndex.get().getNodesToSkipDueToTheirName(nodeNames, nodeNamesToSkip);
+    }
+
+    @Benchmark
+    public List<String> getNodesToSkipDueToTheirNameUncached() {
+        NodeEligibilityIndex.get().patternsChanged();
+        return NodeEligibilityIndex.get().getNodesToSkipDueToTheirName(nodeNames, nodeNamesToSkip);
+    }
+
+    @Benchmark
+    public List<String> getNodesWithDisableProperty() {
+        return NodeEligibilityIndex.get().getNodesWithDisableProperty(nodeNames, jenkins);
+    }
+
+    @Benchmark
+    public List<String> getNodesWithDisablePropertyUncached() {
+        NodeEligibilityIndex.get().nodesChanged();
+        return NodeEligibilityIndex.get().getNodesWithDisableProperty(nodeNames, jenkins);
+    }
+
+    @Benchmark
+    public Set<Node> getAllNonexclusiveNodes() {
+        return NodeCache.get().getAllNonexclusiveNodes(jenkins);
+    }
+
+    @Benchmark
+    public Set<Node> getAllNonexclusiveNodesUncached() {
+        NodeCache.get().invalidate();
+        return NodeCache.get().getAllNonexclusiveNodes(jenkins);
+    }
+
+    private static <T extends Node> T mockNode(Class<T> type, String nodeName, AbstractProject<?, ?> project) {
+        final T m = mock(type, withSettings().stubOnly());
+        final VirtualChannel channel = type == Jenkins.class ? null
+                : mock(VirtualChannel.class, withSettings().stubOnly());
+        when(m.getNodeName()).thenReturn(nodeName);
+        when(m.getMode()).thenReturn(Node.Mode.NORMAL);
+        when(m.createPath(anyString())).thenAnswer(new Answer<FilePath>() {
+            @Override
+            public FilePath answer(InvocationOnMock invocation) throws Throwable {
+                return new FilePath(channel, (String) invocation.getArguments()[0]);
+            }
+        });
+        when(m.getWorkspaceFor((TopLevelItem) project)).thenReturn(new FilePath(channel, WORKSPACE));
+        return m;
+    }
+
+    // The following avoid the compiler's generics getting in the way of stubbing.
+
+    @SuppressWarnings({ "rawtypes", "unchecked" })
+    private static void doReturnBuilds(AbstractProject project, List history) {
+        when(project.getBuilds()).thenReturn(RunList.fromRuns(history));
+    }
+
+    @SuppressWarnings("rawtypes")
+    private static void doReturnLabel(AbstractProject project, Label label) {
+        when(project.getAssignedLabel()).thenReturn(label);
+    }
+
+    @SuppressWarnings({ "rawtypes", "unchecked" })
+    private static void doReturnProject(AbstractBuild build, AbstractProject project) {
+        when(build.getProject()).thenReturn(project);
+    }
+}
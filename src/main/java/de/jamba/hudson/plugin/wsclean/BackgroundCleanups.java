@@ -0,0 +1,101 @@
+package de.jamba.hudson.plugin.wsclean;
+
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.annotation.CheckForNull;
+import javax.annotation.Nonnull;
+
+import org.kohsuke.accmod.Restricted;
+import org.kohsuke.accmod.restrictions.NoExternalUse;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.common.collect.Maps;
+import com.google.common.util.concurrent.ListenableFuture;
+
+import hudson.Extension;
+import hudson.model.Run;
+import hudson.model.listeners.RunListener;
+
+/**
+ * Keeps track of the cleans started by the <code>cleanOldWorkspaces</code>
+ * Pipeline step, so that <code>waitForWorkspaceClean</code> can find them
+ * again. We only remember them until the build that started them has
+ * finished, as nothing else can wait for them, and we forget them all if
+ * Jenkins is restarted.
+ */
+public final class BackgroundCleanups {
+    private static final Logger LOGGER = LoggerFactory.getLogger(BackgroundCleanups.class);
+    private static final BackgroundCleanups INSTANCE = new BackgroundCleanups();
+
+    private final ConcurrentMap<String, ListenableFuture<Boolean>> cleanups = Maps.newConcurrentMap();
+    private final AtomicLong lastId = new AtomicLong();
+
+    BackgroundCleanups() {
+    }
+
+    /** @return the singleton instance */
+    static @Nonnull BackgroundCleanups get() {
+        return INSTANCE;
+    }
+
+    /**
+     * Remembers a clean started by a build.
+     *
+     * @param run       The build that started it.
+     * @param cleanup   The clean, which completes with true if it finished within
+     *                  its timeout.
+     * @param nodeCount How many nodes are being cleaned.
+     * @return A handle the build can use to find the clean again.
+     */
+    @Nonnull
+    WorkspaceCleanHandle register(@Nonnull Run<?, ?> run, @Nonnull ListenableFuture<Boolean> cleanup,
+            int nodeCount) {
+        final String id = getIdPrefixFor(run) + lastId.incrementAndGet();
+        cleanups.put(id, cleanup);
+        LOGGER.debug("register({},,{}): id={}", run, nodeCount, id);
+        return new WorkspaceCleanHandle(id, nodeCount);
+    }
+
+    /**
+     * Finds a clean we were told about.
+     *
+     * @param handle What {@link #register(Run, ListenableFuture, int)} returned.
+     * @return The clean, or null if we've forgotten about it.
+     */
+    @CheckForNull
+    ListenableFuture<Boolean> lookup(@Nonnull WorkspaceCleanHandle handle) {
+        return cleanups.get(handle.getId());
+    }
+
+    /**
+     * Forgets the cleans started by a build. This does not stop them.
+     *
+     * @param run The build.
+     */
+    void forget(@Nonnull Run<?, ?> run) {
+        final String prefix = getIdPrefixFor(run);
+        for (final Iterator<String> i = cleanups.keySet().iterator(); i.hasNext();) {
+            if (i.next().startsWith(prefix)) {
+                i.remove();
+            }
+        }
+    }
+
+    private static String getIdPrefixFor(Run<?, ?> run) {
+        return run.getExternalizableId() + '/';
+    }
+
+    /** Forgets a build's cleans once it's finished. */
+    @Restricted(NoExternalUse.class)
+    @Extension
+    @SuppressWarnings("rawtypes")
+    public static final class RunListenerImpl extends RunListener<Run> {
+        @Override
+        public void onFinalized(Run r) {
+            get().forget(r);
+        }
+    }
+}
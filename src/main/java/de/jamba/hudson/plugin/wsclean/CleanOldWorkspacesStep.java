@@ -0,0 +1,317 @@
+package de.jamba.hudson.plugin.wsclean;
+
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.Set;
+import java.util.regex.Pattern;
+
+import javax.annotation.CheckForNull;
+import javax.annotation.Nonnull;
+
+import org.jenkinsci.plugins.workflow.steps.Step;
+import org.jenkinsci.plugins.workflow.steps.StepContext;
+import org.jenkinsci.plugins.workflow.steps.StepDescriptor;
+import org.jenkinsci.plugins.workflow.steps.StepExecution;
+import org.jenkinsci.plugins.workflow.steps.SynchronousNonBlockingStepExecution;
+import org.kohsuke.accmod.Restricted;
+import org.kohsuke.accmod.restrictions.NoExternalUse;
+import org.kohsuke.stapler.DataBoundConstructor;
+import org.kohsuke.stapler.DataBoundSetter;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.common.collect.ImmutableMultimap;
+import com.google.common.collect.ImmutableSet;
+import com.google.common.collect.Multimap;
+import com.google.common.collect.TreeMultimap;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+
+import de.jamba.hudson.plugin.wsclean.CleanupMetrics.Phase;
+import de.jamba.hudson.plugin.wsclean.CleanupReport.SkipReason;
+import hudson.Extension;
+import hudson.FilePath;
+import hudson.Util;
+import hudson.model.Computer;
+import hudson.model.Executor;
+import hudson.model.Job;
+import hudson.model.Label;
+import hudson.model.Node;
+import hudson.model.Queue;
+import hudson.model.Run;
+import hudson.model.TaskListener;
+import hudson.model.TopLevelItem;
+import hudson.model.queue.WorkUnit;
+import jenkins.model.Jenkins;
+
+/**
+ * Pipeline step that does what {@link PrePostClean} does for freestyle builds,
+ * but in the background. It works out which of this job's workspaces on other
+ * nodes can be cleaned, starts cleaning them and returns straight away with a
+ * {@link WorkspaceCleanHandle} that the Pipeline can give to
+ * {@link WaitForWorkspaceCleanStep} later on (or ignore), so the clean can
+ * overlap with the rest of the build.
+ * <p>
+ * Pipelines don't have a label of their own, so we look at the nodes matching
+ * {@link #getLabel()} if that's set, otherwise at every node that any build
+ * could use. The node we're running on (if we're inside a <code>node</code>
+ * block) is left alone, as are nodes where any build of this job (including
+ * other <code>parallel</code> branches of this one) is running, and nodes that
+ * {@link CommonConfig} tells us to skip. While we're cleaning a node, this
+ * job's <code>node</code> blocks can't start on it (see
+ * {@link WorkspaceDeletionBarrier}). Everything else (how things are deleted, timeouts, etc.) is as set in
+ * {@link CommonConfig}, except that the step can set its own globs.
+ */
+public class CleanOldWorkspacesStep extends Step {
+    private static final Logger LOGGER = LoggerFactory.getLogger(CleanOldWorkspacesStep.class);
+
+    private String label;
+    private String keepGlobs;
+    private String deleteGlobs;
+
+    @DataBoundConstructor
+    public CleanOldWorkspacesStep() {
+    }
+
+    /**
+     * If set, only nodes matching this label expression are cleaned.
+     * 
+     * @return A label expression, or null.
+     */
+    public @CheckForNull String getLabel() {
+        return label;
+    }
+
+    @DataBoundSetter
+    public void setLabel(String label) {
+        this.label = Util.fixEmptyAndTrim(label);
+    }
+
+    /**
+     * If set (or if {@link #getDeleteGlobs()} is), these are used instead of
+     * {@link CommonConfig#getKeepGlobs()}.
+     * 
+     * @return Globs, one per line, or null.
+     */
+    public @CheckForNull String getKeepGlobs() {
+        return keepGlobs;
+    }
+
+    @DataBoundSetter
+    public void setKeepGlobs(String keepGlobs) {
+        this.keepGlobs = Util.fixEmptyAndTrim(keepGlobs);
+    }
+
+    /**
+     * If set (or if {@link #getKeepGlobs()} is), these are used instead of
+     * {@link CommonConfig#getDeleteGlobs()}.
+     * 
+     * @return Globs, one per line, or null.
+     */
+    public @CheckForNull String getDeleteGlobs() {
+        return deleteGlobs;
+    }
+
+    @DataBoundSetter
+    public void setDeleteGlobs(String deleteGlobs) {
+        this.deleteGlobs = Util.fixEmptyAndTrim(deleteGlobs);
+    }
+
+    @Override
+    public StepExecution start(StepContext context) throws Exception {
+        return new Execution(this, context);
+    }
+
+    /**
+     * Works out what to clean and starts cleaning it in the background.
+     * 
+     * @param jenkins         Maps node names to nodes.
+     * @param executor        Means of running multiple threads in parallel.
+     * @param run             The build this is for.
+     * @param listener        The build output log we can append to.
+     * @param currentNodeName The name of the node the build is running on at the
+     *                        moment, or null if it's not using one.
+     * @return A handle on the clean.
+     */
+    @Restricted(NoExternalUse.class) // package-level for Execution
+    WorkspaceCleanHandle cleanInBackground(Jenkins jenkins, CleanupExecutor executor, Run<?, ?> run,
+            TaskListener listener, @CheckForNull String currentNodeName) {
+        final CommonConfig.Snapshot commonConfig = CommonConfig.get().getSnapshot();
+        final Pattern[] nodeNamesToSkip = commonConfig.getNodeNamesToSkipPatterns();
+        final long freeSpaceThreshold = commonConfig.getFreeSpaceThresholdInBytes();
+        final DeletionOptions deletionOptions = getKeepGlobs() == null && getDeleteGlobs() == null
+                ? commonConfig.getDeletionOptions()
+                : commonConfig.getDeletionOptions().withGlobs(CommonConfig.splitGlobs(getKeepGlobs()),
+                        CommonConfig.splitGlobs(getDeleteGlobs()));
+        final CleanupMetrics metrics = CleanupMetrics.get();
+        metrics.recordCleanup();
+        final long planStartTime = CleanupMetrics.startTimer();
+        final CleanupReport.Recorder report = new CleanupReport.Recorder();
+        final Job<?, ?> job = run.getParent();
+        final Multimap<String, String> workspacesFound = findWorkspaces(jenkins, job, listener, currentNodeName,
+                report);
+        // hold off new node blocks before we look at what's running, so nothing
+        // can start using a workspace between us looking and us deleting it
+        final String jobName = job.getFullName();
+        final Set<String> nodeNamesFound = ImmutableSet.copyOf(workspacesFound.keySet());
+        final WorkspaceDeletionBarrier barrier = WorkspaceDeletionBarrier.get();
+        barrier.enter(jobName, nodeNamesFound);
+        try {
+            Queue.withLock(new Runnable() {
+                @Override
+                public void run() {
+                    removeNodesInUse(jenkins, job, workspacesFound, listener, report);
+                }
+            });
+            metrics.recordPhase(Phase.PLAN, planStartTime);
+            LOGGER.debug("cleanInBackground({}): findWorkspaces(,,,{}) less nodes in use={}", run, currentNodeName,
+                    workspacesFound);
+            final Multimap<String, String> workspacesToBeRemoved = PrePostClean.filterAndOrder(jenkins, run,
+                    workspacesFound, nodeNamesToSkip, freeSpaceThreshold, deletionOptions, report);
+            final int nodeCount = workspacesToBeRemoved.keySet().size();
+            final ListenableFuture<Boolean> cleanup;
+            if (nodeCount == 0) {
+                listener.getLogger().println("No old workspaces to clean.");
+                CleanupReportAction.addTo(run, report.toReport(ImmutableMultimap.<String, String>of(),
+                        Collections.<String, NodeOutcome>emptyMap(), false));
+                cleanup = Futures.immediateFuture(true);
+            } else {
+                // the same engine the build wrapper uses when it cleans in the
+                // background; it holds the barrier itself until it's done
+                cleanup = new PrePostClean().deleteInBackground(jenkins, executor, run, workspacesToBeRemoved,
+                        commonConfig.getParallel(), commonConfig.getTimeoutInMilliseconds(), deletionOptions,
+                        report);
+                listener.getLogger().println("Clean of " + nodeCount + " node(s) running in the background.");
+            }
+            return BackgroundCleanups.get().register(run, cleanup, nodeCount);
+        } finally {
+            barrier.exit(jobName, nodeNamesFound);
+        }
+    }
+
+    /**
+     * Works out where the job's workspace would be on each node it could use.
+     * 
+     * @param jenkins         Holds all our nodes.
+     * @param job             The job whose workspaces we want.
+     * @param listener        The build output log we can append to.
+     * @param currentNodeName The name of the node the build is running on at the
+     *                        moment, or null. This node is left out.
+     * @param report          Where we record any nodes we can't get to.
+     * @return A map of node names to workspace locations.
+     */
+    @Restricted(NoExternalUse.class) // package-level for unit-tests
+    Multimap<String, String> findWorkspaces(Jenkins jenkins, Job<?, ?> job, TaskListener listener,
+            @CheckForNull String currentNodeName, CleanupReport.Recorder report) {
+        final Multimap<String, String> result = TreeMultimap.create();
+        if (!(job instanceof TopLevelItem)) {
+            listener.getLogger().println("Job is not TopLevelItem! Cannot determine other workspaces!");
+            return result;
+        }
+        final NodeCache nodeCache = NodeCache.get();
+        final Label assignedLabel = label == null ? null : jenkins.getLabel(label);
+        final Set<Node> nodes = assignedLabel == null ? nodeCache.getAllNonexclusiveNodes(jenkins)
+                : nodeCache.getNodes(assignedLabel);
+        for (final Node node : nodes) {
+            final String nodeName = node.getNodeName();
+            if (nodeName.equals(currentNodeName)) {
+                continue; // we're using it
+            }
+            final FilePath fp = node.getWorkspaceFor((TopLevelItem) job);
+            if (fp == null) {
+                final String normalizedNodeName = "".equals(nodeName) ? "master" : nodeName;
+                listener.getLogger()
+                        .println("No workspace found on " + normalizedNodeName + ". Node is maybe offline.");
+                report.skipped(Collections.singleton(normalizedNodeName), SkipReason.OFFLINE);
+                continue;
+            }
+            result.put(nodeName, fp.getRemote());
+        }
+        return result;
+    }
+
+    /**
+     * Leaves out the nodes where a build of the job is running, i.e. where any
+     * executor is busy with (a <code>node</code> block of) any of its builds.
+     * This should be called with the {@link Queue} locked so that nothing is
+     * half-way to starting.
+     * 
+     * @param jenkins    Maps node names to computers.
+     * @param job        The job whose builds we're looking for.
+     * @param workspaces A map of node names to workspace locations, which we
+     *                   remove the nodes in use from.
+     * @param listener   The build output log we can append to.
+     * @param report     Where we record the nodes we leave out.
+     */
+    @Restricted(NoExternalUse.class) // package-level for unit-tests
+    static void removeNodesInUse(Jenkins jenkins, Job<?, ?> job, Multimap<String, String> workspaces,
+            TaskListener listener, CleanupReport.Recorder report) {
+        for (final Iterator<String> i = workspaces.keySet().iterator(); i.hasNext();) {
+            final String nodeName = i.next();
+            final Computer computer = jenkins.getComputer(nodeName);
+            if (computer != null && isInUseBy(computer, job)) {
+                final String normalizedNodeName = "".equals(nodeName) ? "master" : nodeName;
+                listener.getLogger()
+                        .println("Not cleaning " + normalizedNodeName + " as a build of this job is using it.");
+                report.skipped(Collections.singleton(normalizedNodeName), SkipReason.IN_USE);
+                i.remove();
+            }
+        }
+    }
+
+    private static boolean isInUseBy(Computer computer, Job<?, ?> job) {
+        // we don't look at the one-off executors, as that's where the Pipeline
+        // builds themselves run, and they don't use a workspace
+        for (final Executor executor : computer.getExecutors()) {
+            final Queue.Executable executable = executor.getCurrentExecutable();
+            if (executable != null) {
+                if (executable.getParent().getOwnerTask() == job) {
+                    return true;
+                }
+                continue;
+            }
+            final WorkUnit workUnit = executor.getCurrentWorkUnit();
+            if (workUnit != null && workUnit.work.getOwnerTask() == job) {
+                return true; // it's about to start
+            }
+        }
+        return false;
+    }
+
+    private static final class Execution extends SynchronousNonBlockingStepExecution<WorkspaceCleanHandle> {
+        private static final long serialVersionUID = 1L;
+        private final transient CleanOldWorkspacesStep step;
+
+        Execution(CleanOldWorkspacesStep step, StepContext context) {
+            super(context);
+            this.step = step;
+        }
+
+        @Override
+        protected WorkspaceCleanHandle run() throws Exception {
+            final Run<?, ?> run = getContext().get(Run.class);
+            final TaskListener listener = getContext().get(TaskListener.class);
+            final Computer computer = getContext().get(Computer.class);
+            return step.cleanInBackground(Jenkins.getInstance(), CleanupExecutor.get(), run, listener,
+                    computer == null ? null : computer.getName());
+        }
+    }
+
+    @Extension(optional = true) // Pipeline is optional
+    public static final class DescriptorImpl extends StepDescriptor {
+        @Override
+        public String getFunctionName() {
+            return "cleanOldWorkspaces";
+        }
+
+        @Override
+        public @Nonnull String getDisplayName() {
+            return Messages.CleanOldWorkspacesStep_displayName();
+        }
+
+        @Override
+        public Set<? extends Class<?>> getRequiredContext() {
+            return ImmutableSet.of(Run.class, TaskListener.class);
+        }
+    }
+}
@@ -0,0 +1,277 @@
+package de.jamba.hudson.plugin.wsclean;
+
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+import javax.annotation.CheckForNull;
+import javax.annotation.Nonnull;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.common.collect.Maps;
+
+import hudson.util.DaemonThreadFactory;
+import hudson.util.NamingThreadFactory;
+
+/**
+ * The threads that do our clean-up work. This keeps our work separate from
+ * Jenkins' own remoting thread pool, limits the total number of threads we
+ * use, and limits how many deletions can be in progress on any one node at
+ * once. Work for a node that's already at its limit waits in a queue for that
+ * node until one of the node's deletions finishes.
+ * <p>
+ * Besides the threads that do the deletions, there are threads that run
+ * background cleans and threads that wait (with a timeout) for the deletions
+ * to happen. Each of these is a separate pool, with the same limit as the
+ * deletion threads, so a burst of builds queues up rather than creating
+ * threads without limit. They're separate so that nothing ever waits for a
+ * thread from a pool that's full of threads waiting for it.
+ */
+public class CleanupExecutor {
+    private static final Logger LOGGER = LoggerFactory.getLogger(CleanupExecutor.class);
+    private static CleanupExecutor instance;
+
+    private final ThreadPoolExecutor workers;
+    private final ThreadPoolExecutor coordinators;
+    private final ThreadPoolExecutor backgroundCleans;
+    private volatile int maxThreadsPerNode;
+    /** Per-node state, for nodes with work in progress. Guarded by this. */
+    private final Map<String, NodeQueue> nodeQueues = Maps.newHashMap();
+
+    /** Work for one node. */
+    private static final class NodeQueue {
+        int running;
+        final Deque<Runnable> waiting = new ArrayDeque<>();
+    }
+
+    /**
+     * @param maxThreads        The maximum number of deletions that can be in
+     *                          progress across all nodes.
+     * @param maxThreadsPerNode The maximum number of deletions that can be in
+     *                          progress on any single node.
+     */
+    CleanupExecutor(int maxThreads, int maxThreadsPerNode) {
+        final int n = Math.max(1, maxThreads);
+        workers = newPool(n, "wsclean worker");
+        coordinators = newPool(n, "wsclean coordinator");
+        backgroundCleans = newPool(n, "wsclean background clean");
+        this.maxThreadsPerNode = Math.max(1, maxThreadsPerNode);
+    }
+
+    private static ThreadPoolExecutor newPool(int n, String name) {
+        final ThreadPoolExecutor pool = new ThreadPoolExecutor(n, n, 60L, TimeUnit.SECONDS,
+                new LinkedBlockingQueue<Runnable>(), new NamingThreadFactory(new DaemonThreadFactory(), name));
+        pool.allowCoreThreadTimeOut(true);
+        return pool;
+    }
+
+    /**
+     * Gets our singleton instance, creating it if necessary using the limits from
+     * {@link CommonConfig}.
+     *
+     * @return The executor used for all clean-up work.
+     */
+    static synchronized @Nonnull CleanupExecutor get() {
+        if (instance == null) {
+            final CommonConfig.Snapshot config = CommonConfig.get().getSnapshot();
+            instance = new CleanupExecutor(config.getMaxThreads(), config.getMaxThreadsPerNode());
+        }
+        return instance;
+    }
+
+    /**
+     * Gets our singleton instance, but only if it's already been created.
+     *
+     * @return The executor used for all clean-up work, or null if nothing has
+     *         been cleaned up yet.
+     */
+    static synchronized @CheckForNull CleanupExecutor getIfCreated() {
+        return instance;
+    }
+
+    /**
+     * Changes the limits of the singleton instance, if we have one.
+     *
+     * @param maxThreads        The new maximum number of threads overall.
+     * @param maxThreadsPerNode The new maximum number of threads per node.
+     */
+    static synchronized void reconfigure(int maxThreads, int maxThreadsPerNode) {
+        if (instance != null) {
+            instance.setLimits(maxThreads, maxThreadsPerNode);
+        }
+    }
+
+    private void setLimits(int maxThreads, int newMaxThreadsPerNode) {
+        final int n = Math.max(1, maxThreads);
+        resize(workers, n);
+        resize(coordinators, n);
+        resize(backgroundCleans, n);
+        maxThreadsPerNode = Math.max(1, newMaxThreadsPerNode);
+        LOGGER.debug("setLimits({}, {})", maxThreads, newMaxThreadsPerNode);
+    }
+
+    private static void resize(ThreadPoolExecutor pool, int n) {
+        // core must never exceed max, so the order we change them in matters
+        if (n > pool.getMaximumPoolSize()) {
+            pool.setMaximumPoolSize(n);
+            pool.setCorePoolSize(n);
+        } else {
+            pool.setCorePoolSize(n);
+            pool.setMaximumPoolSize(n);
+        }
+    }
+
+    /**
+     * Runs some work for a node, once that node has capacity and once we have a
+     * thread free.
+     *
+     * @param nodeName The node the work is for.
+     * @param task     The work to be done.
+     * @return The future result of the work, which can be cancelled.
+     */
+    <T> Future<T> submit(@Nonnull String nodeName, @Nonnull Callable<T> task) {
+        final FutureTask<T> futureTask = new FutureTask<>(task);
+        execute(nodeName, futureTask);
+        return futureTask;
+    }
+
+    /**
+     * Runs some work for a node, once that node has capacity and once we have a
+     * thread free.
+     *
+     * @param nodeName The node the work is for.
+     * @param command  The work to be done.
+     */
+    void execute(@Nonnull String nodeName, @Nonnull Runnable command) {
+        synchronized (this) {
+            NodeQueue q = nodeQueues.get(nodeName);
+            if (q == null) {
+                q = new NodeQueue();
+                nodeQueues.put(nodeName, q);
+            }
+            if (q.running >= maxThreadsPerNode) {
+                q.waiting.add(command);
+                return;
+            }
+            q.running++;
+        }
+        dispatch(nodeName, command);
+    }
+
+    /**
+     * Provides an {@link Executor} that runs everything it's given via
+     * {@link #execute(String, Runnable)} for the given node.
+     *
+     * @param nodeName The node the work is for.
+     * @return An {@link Executor} for that node's work.
+     */
+    Executor forNode(@Nonnull final String nodeName) {
+        return new Executor() {
+            @Override
+            public void execute(Runnable command) {
+                CleanupExecutor.this.execute(nodeName, command);
+            }
+        };
+    }
+
+    private void dispatch(final String nodeName, final Runnable command) {
+        try {
+            workers.execute(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        command.run();
+                    } finally {
+                        onFinished(nodeName);
+                    }
+                }
+            });
+        } catch (RejectedExecutionException ex) {
+            onFinished(nodeName);
+            throw ex;
+        }
+    }
+
+    private void onFinished(String nodeName) {
+        final Runnable next;
+        synchronized (this) {
+            final NodeQueue q = nodeQueues.get(nodeName);
+            next = q.waiting.poll();
+            if (next == null) {
+                q.running--;
+                if (q.running == 0) {
+                    nodeQueues.remove(nodeName);
+                }
+            }
+        }
+        if (next != null) {
+            dispatch(nodeName, next);
+        }
+    }
+
+    /**
+     * Provides threads for work that waits for the deletions to happen, rather
+     * than doing any deletion itself. This is kept separate from the deletion
+     * threads so that waiting never stops the deletions from getting a thread.
+     *
+     * @return An executor for coordinating work.
+     */
+    ExecutorService getCoordinator() {
+        return coordinators;
+    }
+
+    /**
+     * Provides threads for cleans that run in the background, i.e. that nobody
+     * waits for. These may themselves use {@link #getCoordinator()}, so they
+     * mustn't share its threads.
+     *
+     * @return An executor for background cleans.
+     */
+    ExecutorService getBackgroundCleans() {
+        return backgroundCleans;
+    }
+
+    /** @return The number of deletions waiting for a thread or for their node. */
+    public synchronized int getQueueDepth() {
+        int result = workers.getQueue().size();
+        for (final NodeQueue q : nodeQueues.values()) {
+            result += q.waiting.size();
+        }
+        return result;
+    }
+
+    /** @return The number of deletions in progress right now. */
+    public int getActiveCount() {
+        return workers.getActiveCount();
+    }
+
+    /**
+     * @return The number of deletions that are in progress (or are waiting only
+     *         for a thread) for each node that has any.
+     */
+    public synchronized Map<String, Integer> getActiveCountsByNode() {
+        final Map<String, Integer> result = Maps.newTreeMap();
+        for (final Map.Entry<String, NodeQueue> e : nodeQueues.entrySet()) {
+            result.put(e.getKey(), e.getValue().running);
+        }
+        return result;
+    }
+
+    /** Stops all our threads. Only used in unit tests. */
+    void shutdownNow() {
+        workers.shutdownNow();
+        coordinators.shutdownNow();
+        backgroundCleans.shutdownNow();
+    }
+}
@@ -0,0 +1,360 @@
+package de.jamba.hudson.plugin.wsclean;
+
+import java.lang.management.ManagementFactory;
+import java.util.Map;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.annotation.CheckForNull;
+import javax.annotation.Nonnull;
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.common.collect.Maps;
+
+import hudson.init.InitMilestone;
+import hudson.init.Initializer;
+import hudson.init.Terminator;
+import net.sf.json.JSONObject;
+
+/**
+ * Records how long our clean-ups take, what they achieve and what goes wrong,
+ * overall and for each node. These figures are available via JMX (see
+ * {@link CleanupMetricsMXBean}) and as JSON (see {@link CleanupMetricsAction}).
+ * Figures are kept in memory since Jenkins was last started.
+ */
+public class CleanupMetrics implements CleanupMetricsMXBean {
+    private static final Logger LOGGER = LoggerFactory.getLogger(CleanupMetrics.class);
+    static final String OBJECT_NAME = "de.jamba.hudson.plugin.wsclean:type=CleanupMetrics";
+    private static final CleanupMetrics INSTANCE = new CleanupMetrics();
+
+    /** The stages of a clean-up that we time. */
+    public static enum Phase {
+        /** Working out which folders on which nodes might need deleting. */
+        PLAN,
+        /** Removing nodes that we've been told to leave alone. */
+        FILTER,
+        /** Waiting for a thread (and for the node to be free) before deleting. */
+        DISPATCH,
+        /** Deleting things on a node. */
+        DELETION;
+    }
+
+    private final Map<Phase, Timer> phases = Maps.newEnumMap(Phase.class);
+    private final ConcurrentMap<String, NodeMetrics> nodes = Maps.newConcurrentMap();
+    private final AtomicLong cleanups = new AtomicLong();
+    private final AtomicLong timeouts = new AtomicLong();
+    private final AtomicLong failures = new AtomicLong();
+    private final AtomicLong retries = new AtomicLong();
+    private final AtomicLong filesDeleted = new AtomicLong();
+    private final AtomicLong bytesDeleted = new AtomicLong();
+
+    CleanupMetrics() {
+        for (final Phase phase : Phase.values()) {
+            phases.put(phase, new Timer());
+        }
+    }
+
+    /** @return the singleton instance */
+    public static @Nonnull CleanupMetrics get() {
+        return INSTANCE;
+    }
+
+    @Initializer(after = InitMilestone.PLUGINS_STARTED)
+    public static void registerMBean() {
+        final MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        try {
+            final ObjectName name = new ObjectName(OBJECT_NAME);
+            if (!server.isRegistered(name)) {
+                server.registerMBean(INSTANCE, name);
+            }
+        } catch (JMException ex) {
+            LOGGER.warn("Unable to register {} with JMX", OBJECT_NAME, ex);
+        }
+    }
+
+    @Terminator
+    public static void unregisterMBean() {
+        final MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        try {
+            final ObjectName name = new ObjectName(OBJECT_NAME);
+            if (server.isRegistered(name)) {
+                server.unregisterMBean(name);
+            }
+        } catch (JMException ex) {
+            LOGGER.warn("Unable to unregister {} from JMX", OBJECT_NAME, ex);
+        }
+    }
+
+    /**
+     * Notes the time, for later passing to one of our record methods.
+     *
+     * @return The current time, for timing purposes.
+     */
+    static long startTimer() {
+        return System.nanoTime();
+    }
+
+    /**
+     * Records that a clean-up has started.
+     */
+    void recordCleanup() {
+        cleanups.incrementAndGet();
+    }
+
+    /**
+     * Records that a clean-up ran out of time.
+     */
+    void recordTimeout() {
+        timeouts.incrementAndGet();
+    }
+
+    /**
+     * Records how long a phase took.
+     *
+     * @param phase     What we were doing.
+     * @param startTime When we started, as returned by {@link #startTimer()}.
+     */
+    void recordPhase(@Nonnull Phase phase, long startTime) {
+        phases.get(phase).record(millisSince(startTime));
+    }
+
+    /**
+     * Records how long a deletion had to wait before it could start.
+     *
+     * @param nodeName  The node the deletion is for.
+     * @param startTime When the deletion was submitted, as returned by
+     *                  {@link #startTimer()}.
+     */
+    void recordQueueWait(@Nonnull String nodeName, long startTime) {
+        final long millis = millisSince(startTime);
+        phases.get(Phase.DISPATCH).record(millis);
+        getNode(nodeName).queueWait.record(millis);
+    }
+
+    /**
+     * Records the outcome of a call to a node to delete folders.
+     *
+     * @param nodeName  The node the deletion was on.
+     * @param startTime When the deletion started, as returned by
+     *                  {@link #startTimer()}.
+     * @param results   What happened to each folder, or null if the call to the
+     *                  node failed completely.
+     */
+    void recordDeletion(@Nonnull String nodeName, long startTime,
+            @CheckForNull Iterable<FolderDeletionResult> results) {
+        final long millis = millisSince(startTime);
+        phases.get(Phase.DELETION).record(millis);
+        final NodeMetrics node = getNode(nodeName);
+        node.deletion.record(millis);
+        if (results == null) {
+            node.failures.incrementAndGet();
+            failures.incrementAndGet();
+            return;
+        }
+        for (final FolderDeletionResult result : results) {
+            node.filesDeleted.addAndGet(result.getFilesDeleted());
+            node.bytesDeleted.addAndGet(result.getBytesDeleted());
+            filesDeleted.addAndGet(result.getFilesDeleted());
+            bytesDeleted.addAndGet(result.getBytesDeleted());
+            if (!result.isSuccess()) {
+                node.failures.incrementAndGet();
+                failures.incrementAndGet();
+            }
+        }
+    }
+
+    /**
+     * Records that a deletion was interrupted before it finished.
+     *
+     * @param nodeName The node the deletion was on.
+     */
+    void recordInterruption(@Nonnull String nodeName) {
+        getNode(nodeName).interruptions.incrementAndGet();
+    }
+
+    /**
+     * Records that a deletion on a node is being tried again.
+     *
+     * @param nodeName The node the deletion is on.
+     */
+    void recordRetry(@Nonnull String nodeName) {
+        getNode(nodeName).retries.incrementAndGet();
+        retries.incrementAndGet();
+    }
+
+    @Override
+    public long getCleanups() {
+        return cleanups.get();
+    }
+
+    @Override
+    public long getTimeouts() {
+        return timeouts.get();
+    }
+
+    @Override
+    public long getFailures() {
+        return failures.get();
+    }
+
+    @Override
+    public long getRetries() {
+        return retries.get();
+    }
+
+    @Override
+    public long getFilesDeleted() {
+        return filesDeleted.get();
+    }
+
+    @Override
+    public long getBytesDeleted() {
+        return bytesDeleted.get();
+    }
+
+    @Override
+    public int getQueueDepth() {
+        final CleanupExecutor executor = CleanupExecutor.getIfCreated();
+        return executor == null ? 0 : executor.getQueueDepth();
+    }
+
+    @Override
+    public int getActiveCount() {
+        final CleanupExecutor executor = CleanupExecutor.getIfCreated();
+        return executor == null ? 0 : executor.getActiveCount();
+    }
+
+    @Override
+    public Map<String, TimerSnapshot> getPhases() {
+        final Map<String, TimerSnapshot> result = Maps.newLinkedHashMap();
+        for (final Map.Entry<Phase, Timer> e : phases.entrySet()) {
+            result.put(e.getKey().name(), e.getValue().snapshot());
+        }
+        return result;
+    }
+
+    @Override
+    public Map<String, NodeMetricsSnapshot> getNodes() {
+        final Map<String, NodeMetricsSnapshot> result = Maps.newTreeMap();
+        for (final Map.Entry<String, NodeMetrics> e : nodes.entrySet()) {
+            result.put(e.getKey(), e.getValue().snapshot());
+        }
+        return result;
+    }
+
+    /**
+     * Gets all our figures as JSON.
+     *
+     * @return A new {@link JSONObject}.
+     */
+    JSONObject toJSON() {
+        final JSONObject result = new JSONObject();
+        result.put("cleanups", getCleanups());
+        result.put("timeouts", getTimeouts());
+        result.put("failures", getFailures());
+        result.put("retries", getRetries());
+        result.put("filesDeleted", getFilesDeleted());
+        result.put("bytesDeleted", getBytesDeleted());
+        result.put("queueDepth", getQueueDepth());
+        result.put("activeCount", getActiveCount());
+        final JSONObject phasesJson = new JSONObject();
+        for (final Map.Entry<String, TimerSnapshot> e : getPhases().entrySet()) {
+            phasesJson.put(e.getKey(), toJSON(e.getValue()));
+        }
+        result.put("phases", phasesJson);
+        final JSONObject nodesJson = new JSONObject();
+        for (final Map.Entry<String, NodeMetricsSnapshot> e : getNodes().entrySet()) {
+            final NodeMetricsSnapshot n = e.getValue();
+            final JSONObject nodeJson = new JSONObject();
+            nodeJson.put("queueWait", toJSON(n.getQueueWait()));
+            nodeJson.put("deletion", toJSON(n.getDeletion()));
+            nodeJson.put("filesDeleted", n.getFilesDeleted());
+            nodeJson.put("bytesDeleted", n.getBytesDeleted());
+            nodeJson.put("failures", n.getFailures());
+            nodeJson.put("interruptions", n.getInterruptions());
+            nodeJson.put("retries", n.getRetries());
+            nodesJson.put(e.getKey(), nodeJson);
+        }
+        result.put("nodes", nodesJson);
+        return result;
+    }
+
+    private static JSONObject toJSON(TimerSnapshot t) {
+        final JSONObject result = new JSONObject();
+        result.put("count", t.getCount());
+        result.put("totalMillis", t.getTotalMillis());
+        result.put("meanMillis", t.getMeanMillis());
+        result.put("maxMillis", t.getMaxMillis());
+        final JSONObject histogram = new JSONObject();
+        for (final Map.Entry<String, Long> e : t.getHistogram().entrySet()) {
+            histogram.put(e.getKey(), e.getValue());
+        }
+        result.put("histogram", histogram);
+        return result;
+    }
+
+    private NodeMetrics getNode(String nodeName) {
+        final NodeMetrics existing = nodes.get(nodeName);
+        if (existing != null) {
+            return existing;
+        }
+        final NodeMetrics created = new NodeMetrics();
+        final NodeMetrics raced = nodes.putIfAbsent(nodeName, created);
+        return raced == null ? created : raced;
+    }
+
+    private static long millisSince(long startTime) {
+        return TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - startTime);
+    }
+
+    /** Counts how long something takes. */
+    private static final class Timer {
+        private static final long[] BUCKET_LIMITS_MS = { 100L, 1000L, 10000L, 60000L, 600000L };
+        private static final String[] BUCKET_NAMES = { "<=100ms", "<=1s", "<=10s", "<=1m", "<=10m", ">10m" };
+        private long count;
+        private long totalMillis;
+        private long maxMillis;
+        private final long[] buckets = new long[BUCKET_NAMES.length];
+
+        synchronized void record(long millis) {
+            count++;
+            totalMillis += millis;
+            maxMillis = Math.max(maxMillis, millis);
+            int i = 0;
+            while (i < BUCKET_LIMITS_MS.length && millis > BUCKET_LIMITS_MS[i]) {
+                i++;
+            }
+            buckets[i]++;
+        }
+
+        synchronized TimerSnapshot snapshot() {
+            final Map<String, Long> histogram = Maps.newLinkedHashMap();
+            for (int i = 0; i < buckets.length; i++) {
+                histogram.put(BUCKET_NAMES[i], buckets[i]);
+            }
+            return new TimerSnapshot(count, totalMillis, maxMillis, histogram);
+        }
+    }
+
+    /** What we've done on one node. */
+    private static final class NodeMetrics {
+        final Timer queueWait = new Timer();
+        final Timer deletion = new Timer();
+        final AtomicLong filesDeleted = new AtomicLong();
+        final AtomicLong bytesDeleted = new AtomicLong();
+        final AtomicLong failures = new AtomicLong();
+        final AtomicLong interruptions = new AtomicLong();
+        final AtomicLong retries = new AtomicLong();
+
+        NodeMetricsSnapshot snapshot() {
+            return new NodeMetricsSnapshot(queueWait.snapshot(), deletion.snapshot(), filesDeleted.get(),
+                    bytesDeleted.get(), failures.get(), interruptions.get(), retries.get());
+        }
+    }
+}
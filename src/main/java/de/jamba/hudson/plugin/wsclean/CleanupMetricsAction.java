@@ -0,0 +1,39 @@
+package de.jamba.hudson.plugin.wsclean;
+
+import java.io.IOException;
+
+import org.kohsuke.stapler.StaplerRequest;
+import org.kohsuke.stapler.StaplerResponse;
+
+import hudson.Extension;
+import hudson.model.RootAction;
+import jenkins.model.Jenkins;
+
+/**
+ * Makes our {@link CleanupMetrics} available as JSON, at
+ * <code>JENKINS_URL/wsclean-metrics/</code>, to Jenkins administrators. This
+ * does not appear in the UI.
+ */
+@Extension
+public class CleanupMetricsAction implements RootAction {
+    @Override
+    public String getIconFileName() {
+        return null;
+    }
+
+    @Override
+    public String getDisplayName() {
+        return null;
+    }
+
+    @Override
+    public String getUrlName() {
+        return "wsclean-metrics";
+    }
+
+    public void doIndex(StaplerRequest req, StaplerResponse rsp) throws IOException {
+        Jenkins.getInstance().checkPermission(Jenkins.ADMINISTER);
+        rsp.setContentType("application/json;charset=UTF-8");
+        rsp.getWriter().print(CleanupMetrics.get().toJSON().toString(2));
+    }
+}
@@ -0,0 +1,39 @@
+package de.jamba.hudson.plugin.wsclean;
+
+import java.util.Map;
+
+/**
+ * The JMX view of our {@link CleanupMetrics}. This is registered as
+ * {@value CleanupMetrics#OBJECT_NAME}.
+ */
+public interface CleanupMetricsMXBean {
+    /** @return How many clean-ups have been started. */
+    long getCleanups();
+
+    /** @return How many clean-ups did not complete within their timeout. */
+    long getTimeouts();
+
+    /** @return How many folders (or whole calls to a node) failed. */
+    long getFailures();
+
+    /** @return How many times deletions were tried again after a transient failure. */
+    long getRetries();
+
+    /** @return How many files have been deleted. */
+    long getFilesDeleted();
+
+    /** @return How many bytes the deleted files contained. */
+    long getBytesDeleted();
+
+    /** @return How many deletions are waiting to start right now. */
+    int getQueueDepth();
+
+    /** @return How many deletions are in progress right now. */
+    int getActiveCount();
+
+    /** @return How long each phase of the clean-up has taken, by phase name. */
+    Map<String, TimerSnapshot> getPhases();
+
+    /** @return What we've done on each node, by node name. */
+    Map<String, NodeMetricsSnapshot> getNodes();
+}
@@ -0,0 +1,280 @@
+package de.jamba.hudson.plugin.wsclean;
+
+import java.io.Serializable;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+
+import javax.annotation.CheckForNull;
+import javax.annotation.Nonnull;
+
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import com.google.common.collect.Multimap;
+
+import hudson.Functions;
+import hudson.Util;
+
+/**
+ * What one clean of old workspaces did, in a compact form that's kept with the
+ * build (see {@link CleanupReportAction}): which nodes were cleaned, how long
+ * each took and how much each freed, which nodes were skipped and why, and
+ * whether we ran out of time.
+ */
+public final class CleanupReport implements Serializable {
+    private static final long serialVersionUID = 1L;
+
+    /** Why we didn't clean a node. */
+    public static enum SkipReason {
+        /** It matched one of the node names we've been told to skip. */
+        NAME("its name matches a node to skip"),
+        /** It has a {@link DisablePrePostCleanNodeProperty}. */
+        NODE_PROPERTY("it is set to be skipped"),
+        /** It had more free space than we need. */
+        FREE_SPACE("it has enough free space"),
+        /** It was offline (or went offline) so we couldn't get to it. */
+        OFFLINE("it is offline"),
+        /** A build of the job was using it. */
+        IN_USE("a build of this job is using it");
+
+        private final String description;
+
+        private SkipReason(String description) {
+            this.description = description;
+        }
+
+        /** @return How we describe this reason to the user. */
+        public String getDescription() {
+            return description;
+        }
+    }
+
+    private final long startTime;
+    private final long durationInMs;
+    private final boolean timedOut;
+    private final boolean skippedRoaming;
+    private final List<NodeReport> nodes;
+
+    CleanupReport(long startTime, long durationInMs, boolean timedOut, boolean skippedRoaming,
+            List<NodeReport> nodes) {
+        this.startTime = startTime;
+        this.durationInMs = durationInMs;
+        this.timedOut = timedOut;
+        this.skippedRoaming = skippedRoaming;
+        this.nodes = Lists.newArrayList(nodes);
+    }
+
+    /** @return When the clean started, in milliseconds since the epoch. */
+    public long getStartTime() {
+        return startTime;
+    }
+
+    /** @return How long the clean took, from start to finish. */
+    public long getDurationInMs() {
+        return durationInMs;
+    }
+
+    /** @return {@link #getDurationInMs()} in a human-friendly form. */
+    public String getDurationString() {
+        return Util.getTimeSpanString(durationInMs);
+    }
+
+    /** @return true if we ran out of time before every node had finished. */
+    public boolean isTimedOut() {
+        return timedOut;
+    }
+
+    /**
+     * @return true if we didn't look for workspaces on the nodes the job could
+     *         use because the job can run anywhere.
+     */
+    public boolean isSkippedRoaming() {
+        return skippedRoaming;
+    }
+
+    /** @return What happened on each node, cleaned ones first. */
+    public @Nonnull List<NodeReport> getNodes() {
+        return Collections.unmodifiableList(nodes);
+    }
+
+    /** @return How much was freed on all the nodes put together. */
+    public long getBytesFreed() {
+        long result = 0L;
+        for (final NodeReport node : nodes) {
+            result += node.getBytesFreed();
+        }
+        return result;
+    }
+
+    /** @return {@link #getBytesFreed()} in a human-friendly form. */
+    public String getBytesFreedString() {
+        return Functions.humanReadableByteSize(getBytesFreed());
+    }
+
+    /** @return How many nodes we asked to delete something. */
+    public int getCleanedNodeCount() {
+        int result = 0;
+        for (final NodeReport node : nodes) {
+            if (node.getSkipReason() == null && node.getOutcome() != NodeOutcome.SKIPPED) {
+                result++;
+            }
+        }
+        return result;
+    }
+
+    @Override
+    public String toString() {
+        return "CleanupReport[startTime=" + startTime + ", durationInMs=" + durationInMs + ", timedOut=" + timedOut
+                + ", skippedRoaming=" + skippedRoaming + ", nodes=" + nodes + "]";
+    }
+
+    /** What happened on one node. */
+    public static final class NodeReport implements Serializable {
+        private static final long serialVersionUID = 1L;
+
+        private final String nodeName;
+        private final NodeOutcome outcome;
+        private final SkipReason skipReason;
+        private final int folders;
+        private final long durationInMs;
+        private final long bytesFreed;
+
+        NodeReport(String nodeName, NodeOutcome outcome, @CheckForNull SkipReason skipReason, int folders,
+                long durationInMs, long bytesFreed) {
+            this.nodeName = nodeName;
+            this.outcome = outcome;
+            this.skipReason = skipReason;
+            this.folders = folders;
+            this.durationInMs = durationInMs;
+            this.bytesFreed = bytesFreed;
+        }
+
+        /** @return The (human-friendly) name of the node. */
+        public String getNodeName() {
+            return nodeName;
+        }
+
+        /** @return What happened. */
+        public NodeOutcome getOutcome() {
+            return outcome;
+        }
+
+        /** @return Why we skipped the node, or null if we didn't. */
+        public @CheckForNull SkipReason getSkipReason() {
+            return skipReason;
+        }
+
+        /** @return What happened, as we'd describe it to the user. */
+        public String getDescription() {
+            return skipReason == null ? outcome.getDescription() : "skipped as " + skipReason.getDescription();
+        }
+
+        /** @return How many folders we wanted to clean on the node. */
+        public int getFolders() {
+            return folders;
+        }
+
+        /** @return How long the node took to clean, or 0 if we don't know. */
+        public long getDurationInMs() {
+            return durationInMs;
+        }
+
+        /** @return {@link #getDurationInMs()} in a human-friendly form. */
+        public String getDurationString() {
+            return Util.getTimeSpanString(durationInMs);
+        }
+
+        /**
+         * @return How much was deleted on the node. Anything moved to the trash
+         *         doesn't count, as it hasn't been deleted yet.
+         */
+        public long getBytesFreed() {
+            return bytesFreed;
+        }
+
+        /** @return {@link #getBytesFreed()} in a human-friendly form. */
+        public String getBytesFreedString() {
+            return Functions.humanReadableByteSize(bytesFreed);
+        }
+
+        @Override
+        public String toString() {
+            return "NodeReport[nodeName=" + nodeName + ", outcome=" + outcome + ", skipReason=" + skipReason
+                    + ", folders=" + folders + ", durationInMs=" + durationInMs + ", bytesFreed=" + bytesFreed + "]";
+        }
+    }
+
+    /**
+     * Collects what happens during one clean, as it happens, so it can be turned
+     * into a {@link CleanupReport} at the end. Nodes are identified by their
+     * human-friendly names. This is safe for concurrent use, as each node may be
+     * cleaned by a different thread.
+     */
+    static final class Recorder {
+        private final long startTime = System.currentTimeMillis();
+        private final Map<String, SkipReason> skipped = Maps.newLinkedHashMap();
+        private final Map<String, long[]> cleaned = Maps.newHashMap();
+        private boolean skippedRoaming;
+
+        /**
+         * Records that we're leaving some nodes alone.
+         *
+         * @param nodeNames The nodes.
+         * @param reason    Why.
+         */
+        synchronized void skipped(Iterable<String> nodeNames, SkipReason reason) {
+            for (final String nodeName : nodeNames) {
+                skipped.put(nodeName, reason);
+            }
+        }
+
+        /** Records that the job can run anywhere, so we didn't look for nodes. */
+        synchronized void skippedRoaming() {
+            skippedRoaming = true;
+        }
+
+        /**
+         * Records that a node has finished cleaning.
+         *
+         * @param nodeName     The node.
+         * @param durationInMs How long it took.
+         * @param bytesFreed   How much it deleted.
+         */
+        synchronized void cleaned(String nodeName, long durationInMs, long bytesFreed) {
+            cleaned.put(nodeName, new long[] { durationInMs, bytesFreed });
+        }
+
+        /**
+         * Puts together what we've recorded with what was planned and what
+         * happened.
+         *
+         * @param workspacesToBeRemoved What we planned to clean, by human-friendly
+         *                              node name.
+         * @param outcomes              What happened on each node we've heard back
+         *                              from, by human-friendly node name. Any node
+         *                              we've not heard back from was still going
+         *                              when we ran out of time.
+         * @param timedOut              If we ran out of time.
+         * @return A new {@link CleanupReport}.
+         */
+        synchronized CleanupReport toReport(Multimap<String, String> workspacesToBeRemoved,
+                Map<String, NodeOutcome> outcomes, boolean timedOut) {
+            final List<NodeReport> nodes = Lists.newArrayList();
+            for (final String nodeName : workspacesToBeRemoved.keySet()) {
+                final NodeOutcome outcome = outcomes.get(nodeName);
+                final long[] durationAndBytes = cleaned.get(nodeName);
+                nodes.add(new NodeReport(nodeName, outcome == null ? NodeOutcome.TIMED_OUT : outcome,
+                        skipped.get(nodeName), workspacesToBeRemoved.get(nodeName).size(),
+                        durationAndBytes == null ? 0L : durationAndBytes[0],
+                        durationAndBytes == null ? 0L : durationAndBytes[1]));
+            }
+            for (final Map.Entry<String, SkipReason> e : skipped.entrySet()) {
+                if (!workspacesToBeRemoved.containsKey(e.getKey())) {
+                    nodes.add(new NodeReport(e.getKey(), NodeOutcome.SKIPPED, e.getValue(), 0, 0L, 0L));
+                }
+            }
+            return new CleanupReport(startTime, System.currentTimeMillis() - startTime, timedOut, skippedRoaming,
+                    nodes);
+        }
+    }
+}
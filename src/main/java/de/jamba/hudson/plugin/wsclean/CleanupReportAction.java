@@ -0,0 +1,124 @@
+package de.jamba.hudson.plugin.wsclean;
+
+import java.io.IOException;
+import java.util.List;
+
+import javax.annotation.Nonnull;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Lists;
+
+import hudson.Functions;
+import hudson.Util;
+import hudson.model.Run;
+import jenkins.model.RunAction2;
+
+/**
+ * Keeps a {@link CleanupReport} for each clean of old workspaces a build did,
+ * so that we can see what happened afterwards without reading through the
+ * build log, and so {@link CleanupTrendAction} can show how cleaning affects
+ * the job over time. This is saved with the build.
+ */
+public final class CleanupReportAction implements RunAction2 {
+    private static final Logger LOGGER = LoggerFactory.getLogger(CleanupReportAction.class);
+
+    private final List<CleanupReport> reports = Lists.newArrayList();
+    private transient Run<?, ?> run;
+
+    CleanupReportAction() {
+    }
+
+    /**
+     * Adds a report to a build, and saves the build so that it's not lost if the
+     * clean finishes after the build does.
+     *
+     * @param run    The build the clean was for.
+     * @param report What the clean did.
+     */
+    static void addTo(@Nonnull Run<?, ?> run, @Nonnull CleanupReport report) {
+        LOGGER.debug("addTo({},{})", run, report);
+        synchronized (CleanupReportAction.class) {
+            CleanupReportAction action = run.getAction(CleanupReportAction.class);
+            if (action == null) {
+                action = new CleanupReportAction();
+                run.addAction(action);
+            }
+            action.add(report);
+        }
+        try {
+            run.save();
+        } catch (IOException e) {
+            LOGGER.warn("Unable to save workspace clean report for {}", run, e);
+        }
+    }
+
+    private synchronized void add(CleanupReport report) {
+        reports.add(report);
+    }
+
+    /** @return Every clean the build did, in the order they finished. */
+    public synchronized @Nonnull List<CleanupReport> getReports() {
+        return ImmutableList.copyOf(reports);
+    }
+
+    /** @return How long all the build's cleans took between them. */
+    public long getDurationInMs() {
+        long result = 0L;
+        for (final CleanupReport report : getReports()) {
+            result += report.getDurationInMs();
+        }
+        return result;
+    }
+
+    /** @return {@link #getDurationInMs()} in a human-friendly form. */
+    public String getDurationString() {
+        return Util.getTimeSpanString(getDurationInMs());
+    }
+
+    /** @return How much all the build's cleans freed between them. */
+    public long getBytesFreed() {
+        long result = 0L;
+        for (final CleanupReport report : getReports()) {
+            result += report.getBytesFreed();
+        }
+        return result;
+    }
+
+    /** @return {@link #getBytesFreed()} in a human-friendly form. */
+    public String getBytesFreedString() {
+        return Functions.humanReadableByteSize(getBytesFreed());
+    }
+
+    /** @return The build these reports are for. */
+    public Run<?, ?> getRun() {
+        return run;
+    }
+
+    @Override
+    public void onAttached(Run<?, ?> r) {
+        this.run = r;
+    }
+
+    @Override
+    public void onLoad(Run<?, ?> r) {
+        this.run = r;
+    }
+
+    @Override
+    public String getIconFileName() {
+        return "edit-delete.png";
+    }
+
+    @Override
+    public String getDisplayName() {
+        return Messages.CleanupReportAction_displayName();
+    }
+
+    @Override
+    public String getUrlName() {
+        return "wsclean-report";
+    }
+}
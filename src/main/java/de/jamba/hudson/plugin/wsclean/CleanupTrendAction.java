@@ -0,0 +1,230 @@
+package de.jamba.hudson.plugin.wsclean;
+
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+
+import javax.annotation.Nonnull;
+
+import org.kohsuke.accmod.Restricted;
+import org.kohsuke.accmod.restrictions.NoExternalUse;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+
+import de.jamba.hudson.plugin.wsclean.CleanupReport.NodeReport;
+import hudson.Extension;
+import hudson.Functions;
+import hudson.Util;
+import hudson.model.Action;
+import hudson.model.Job;
+import hudson.model.Run;
+import jenkins.model.TransientActionFactory;
+
+/**
+ * Shows how long cleaning old workspaces has taken, and how much it has freed,
+ * over a job's recent builds, along with which nodes take the longest to clean.
+ * This is worked out from each build's {@link CleanupReportAction}, so it only
+ * appears on jobs whose last completed build has one.
+ */
+public final class CleanupTrendAction implements Action {
+    /** How many of the job's builds we look at. */
+    static final int MAX_BUILDS = 50;
+
+    private final Job<?, ?> job;
+
+    CleanupTrendAction(Job<?, ?> job) {
+        this.job = job;
+    }
+
+    /** @return The job this is for. */
+    public Job<?, ?> getJob() {
+        return job;
+    }
+
+    /** @return The job's recent builds that cleaned old workspaces, newest first. */
+    public @Nonnull List<BuildTrend> getBuilds() {
+        final List<BuildTrend> result = Lists.newArrayList();
+        for (final Run<?, ?> run : job.getBuilds().limit(MAX_BUILDS)) {
+            final CleanupReportAction action = run.getAction(CleanupReportAction.class);
+            if (action != null) {
+                result.add(new BuildTrend(run, action.getDurationInMs(), action.getBytesFreed()));
+            }
+        }
+        return result;
+    }
+
+    /** @return Every node the job's recent builds cleaned, slowest first. */
+    public @Nonnull List<NodeTrend> getNodes() {
+        final List<CleanupReport> reports = Lists.newArrayList();
+        for (final Run<?, ?> run : job.getBuilds().limit(MAX_BUILDS)) {
+            final CleanupReportAction action = run.getAction(CleanupReportAction.class);
+            if (action != null) {
+                reports.addAll(action.getReports());
+            }
+        }
+        return summarizeNodes(reports);
+    }
+
+    /**
+     * Adds up what each node did over several cleans.
+     *
+     * @param reports The cleans.
+     * @return One entry for each node that was cleaned, slowest (in total) first.
+     */
+    @Restricted(NoExternalUse.class) // package-level for unit-tests
+    static List<NodeTrend> summarizeNodes(Iterable<CleanupReport> reports) {
+        final Map<String, NodeTrend> byName = Maps.newLinkedHashMap();
+        for (final CleanupReport report : reports) {
+            for (final NodeReport node : report.getNodes()) {
+                if (node.getSkipReason() != null || node.getOutcome() == NodeOutcome.SKIPPED) {
+                    continue; // it didn't cost anything
+                }
+                final NodeTrend existing = byName.get(node.getNodeName());
+                byName.put(node.getNodeName(), existing == null
+                        ? new NodeTrend(node.getNodeName(), 1, node.getDurationInMs(), node.getBytesFreed())
+                        : existing.plus(node));
+            }
+        }
+        final List<NodeTrend> result = Lists.newArrayList(byName.values());
+        Collections.sort(result, new Comparator<NodeTrend>() {
+            @Override
+            public int compare(NodeTrend o1, NodeTrend o2) {
+                final long d1 = o1.getDurationInMs();
+                final long d2 = o2.getDurationInMs();
+                return d1 > d2 ? -1 : (d1 == d2 ? 0 : 1);
+            }
+        });
+        return result;
+    }
+
+    @Override
+    public String getIconFileName() {
+        return "graph.png";
+    }
+
+    @Override
+    public String getDisplayName() {
+        return Messages.CleanupTrendAction_displayName();
+    }
+
+    @Override
+    public String getUrlName() {
+        return "wsclean-trend";
+    }
+
+    /** How much cleaning one build did. */
+    public static final class BuildTrend {
+        private final Run<?, ?> run;
+        private final long durationInMs;
+        private final long bytesFreed;
+
+        BuildTrend(Run<?, ?> run, long durationInMs, long bytesFreed) {
+            this.run = run;
+            this.durationInMs = durationInMs;
+            this.bytesFreed = bytesFreed;
+        }
+
+        /** @return The build. */
+        public Run<?, ?> getRun() {
+            return run;
+        }
+
+        /** @return How long the build's cleans took between them. */
+        public long getDurationInMs() {
+            return durationInMs;
+        }
+
+        /** @return {@link #getDurationInMs()} in a human-friendly form. */
+        public String getDurationString() {
+            return Util.getTimeSpanString(durationInMs);
+        }
+
+        /** @return How much the build's cleans freed between them. */
+        public long getBytesFreed() {
+            return bytesFreed;
+        }
+
+        /** @return {@link #getBytesFreed()} in a human-friendly form. */
+        public String getBytesFreedString() {
+            return Functions.humanReadableByteSize(bytesFreed);
+        }
+    }
+
+    /** How much cleaning one node has done, over several cleans. */
+    public static final class NodeTrend {
+        private final String nodeName;
+        private final int cleans;
+        private final long durationInMs;
+        private final long bytesFreed;
+
+        NodeTrend(String nodeName, int cleans, long durationInMs, long bytesFreed) {
+            this.nodeName = nodeName;
+            this.cleans = cleans;
+            this.durationInMs = durationInMs;
+            this.bytesFreed = bytesFreed;
+        }
+
+        private NodeTrend plus(NodeReport node) {
+            return new NodeTrend(nodeName, cleans + 1, durationInMs + node.getDurationInMs(),
+                    bytesFreed + node.getBytesFreed());
+        }
+
+        /** @return The (human-friendly) name of the node. */
+        public String getNodeName() {
+            return nodeName;
+        }
+
+        /** @return How many times the node was cleaned. */
+        public int getCleans() {
+            return cleans;
+        }
+
+        /** @return How long all the node's cleans took between them. */
+        public long getDurationInMs() {
+            return durationInMs;
+        }
+
+        /** @return {@link #getDurationInMs()} in a human-friendly form. */
+        public String getDurationString() {
+            return Util.getTimeSpanString(durationInMs);
+        }
+
+        /** @return How long each of the node's cleans took, on average. */
+        public String getAverageDurationString() {
+            return Util.getTimeSpanString(durationInMs / cleans);
+        }
+
+        /** @return How much all the node's cleans freed between them. */
+        public long getBytesFreed() {
+            return bytesFreed;
+        }
+
+        /** @return {@link #getBytesFreed()} in a human-friendly form. */
+        public String getBytesFreedString() {
+            return Functions.humanReadableByteSize(bytesFreed);
+        }
+    }
+
+    /** Adds a {@link CleanupTrendAction} to jobs that have cleaned workspaces. */
+    @Extension
+    @SuppressWarnings("rawtypes")
+    public static final class Factory extends TransientActionFactory<Job> {
+        @Override
+        public Class<Job> type() {
+            return Job.class;
+        }
+
+        @Override
+        public @Nonnull Collection<? extends Action> createFor(@Nonnull Job target) {
+            final Run<?, ?> lastCompletedBuild = target.getLastCompletedBuild();
+            if (lastCompletedBuild == null || lastCompletedBuild.getAction(CleanupReportAction.class) == null) {
+                return Collections.emptyList();
+            }
+            return ImmutableList.of(new CleanupTrendAction(target));
+        }
+    }
+}
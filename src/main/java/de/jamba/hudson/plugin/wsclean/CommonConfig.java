@@ -1,10 +1,12 @@
 package de.jamba.hudson.plugin.wsclean;
 
+import java.io.IOException;
 import java.util.Arrays;
 import java.util.List;
 import java.util.regex.Pattern;
 import java.util.regex.PatternSyntaxException;
 
+import javax.annotation.CheckForNull;
 import javax.annotation.Nonnull;
 
 import org.jvnet.localizer.Localizable;
@@ -12,14 +14,18 @@ import org.kohsuke.accmod.Restricted;
 import org.kohsuke.accmod.restrictions.NoExternalUse;
 import org.kohsuke.stapler.DataBoundSetter;
 import org.kohsuke.stapler.QueryParameter;
+import org.kohsuke.stapler.StaplerRequest;
 
 import com.google.common.base.Joiner;
 import com.google.common.base.Splitter;
 import com.google.common.collect.Lists;
 
+import hudson.BulkChange;
 import hudson.Extension;
+import hudson.Util;
 import hudson.util.FormValidation;
 import jenkins.model.GlobalConfiguration;
+import net.sf.json.JSONObject;
 
 @Extension
 public class CommonConfig extends GlobalConfiguration {
@@ -59,21 +65,160 @@ public class CommonConfig extends GlobalConfiguration {
         }
     }
 
+    public static enum DeletionMode {
+        DELETE(false, Messages._DeletionMode_DELETE_displayName()), // default
+        TRASH(true, Messages._DeletionMode_TRASH_displayName());
+        private final boolean useTrash;
+        private final Localizable description;
+
+        private DeletionMode(boolean useTrash, Localizable description) {
+            this.useTrash = useTrash;
+            this.description = description;
+        }
+
+        public String getDescription() {
+            return description.toString();
+        }
+
+        public boolean getUseTrash() {
+            return useTrash;
+        }
+    }
+
+    public static enum LogVerbosity {
+        DETAILED(true, Messages._LogVerbosity_DETAILED_displayName()), // default
+        SUMMARY(false, Messages._LogVerbosity_SUMMARY_displayName());
+        private final boolean logFolders;
+        private final Localizable description;
+
+        private LogVerbosity(boolean logFolders, Localizable description) {
+            this.logFolders = logFolders;
+            this.description = description;
+        }
+
+        public String getDescription() {
+            return description.toString();
+        }
+
+        public boolean getLogFolders() {
+            return logFolders;
+        }
+    }
+
     private static final NodeSelection DEFAULT_NODESELECTION = NodeSelection.LABEL_ONLY;
     private static final boolean DEFAULT_SKIPROAMING = true; // legacy default
     private static final boolean DEFAULT_PARALLEL = true;
     private static final String[] DEFAULT_NODENAMESTOSKIP = new String[0];
     private static final long DEFAULT_TIMEOUTINMILLISECONDS = 15L * 60L * 1000L; // 15 minutes
+    private static final long DEFAULT_NODETIMEOUTINMILLISECONDS = 0L; // off
+    private static final long DEFAULT_FOLDERTIMEOUTINMILLISECONDS = 0L; // off
+    private static final int DEFAULT_MAXRETRIES = 3;
+    private static final boolean DEFAULT_PRESCAN = true;
+    private static final int DEFAULT_PRESCANMINSIZEINKB = 0; // only skip missing or empty folders
+    private static final int DEFAULT_JOBWORKSPACEBUDGETINMB = 0; // off
+    private static final DeletionMode DEFAULT_DELETIONMODE = DeletionMode.DELETE;
+    static final String DEFAULT_TRASHFOLDER = ".wsclean-trash";
+    private static final int DEFAULT_REAPERTHREADS = 1;
+    private static final int DEFAULT_MAXTHREADS = 32;
+    private static final int DEFAULT_MAXTHREADSPERNODE = 4;
+    private static final int DEFAULT_ORPHANSWEEPINTERVALINHOURS = 0; // off
+    private static final int DEFAULT_ORPHANSWEEPBATCHSIZE = 10;
+    private static final int DEFAULT_FREESPACETHRESHOLDINGB = 0; // off
+    private static final LogVerbosity DEFAULT_LOGVERBOSITY = LogVerbosity.DETAILED;
+    private static final Pattern[] NO_PATTERNS = new Pattern[0];
     private NodeSelection nodeSelection = null; // our getter will return the default
     private boolean skipRoaming = DEFAULT_SKIPROAMING;
     private boolean parallel = DEFAULT_PARALLEL;
     private String[] nodeNamesToSkip = DEFAULT_NODENAMESTOSKIP;
-    private transient Pattern[] nodeNamesToSkipPatterns;
     private long timeoutInMilliseconds = DEFAULT_TIMEOUTINMILLISECONDS;
+    private long nodeTimeoutInMilliseconds = DEFAULT_NODETIMEOUTINMILLISECONDS;
+    private long folderTimeoutInMilliseconds = DEFAULT_FOLDERTIMEOUTINMILLISECONDS;
+    private int maxRetries = DEFAULT_MAXRETRIES;
+    private boolean preScan = DEFAULT_PRESCAN;
+    private int preScanMinSizeInKB = DEFAULT_PRESCANMINSIZEINKB;
+    private int jobWorkspaceBudgetInMB = DEFAULT_JOBWORKSPACEBUDGETINMB;
+    private String keepGlobs = null; // our getter will return the default
+    private String deleteGlobs = null; // our getter will return the default
+    private DeletionMode deletionMode = null; // our getter will return the default
+    private String trashFolder = null; // our getter will return the default
+    private int reaperThreads = DEFAULT_REAPERTHREADS;
+    private int maxThreads = DEFAULT_MAXTHREADS;
+    private int maxThreadsPerNode = DEFAULT_MAXTHREADSPERNODE;
+    private int orphanSweepIntervalInHours = DEFAULT_ORPHANSWEEPINTERVALINHOURS;
+    private int orphanSweepBatchSize = DEFAULT_ORPHANSWEEPBATCHSIZE;
+    private int freeSpaceThresholdInGB = DEFAULT_FREESPACETHRESHOLDINGB;
+    private LogVerbosity logVerbosity = null; // our getter will return the default
+    /** What builds use; replaced whenever we're changed. */
+    private transient volatile Snapshot snapshot;
 
     public CommonConfig() {
         // When Jenkins is restarted, load any saved configuration from disk.
         load();
+        snapshot = new Snapshot(this);
+    }
+
+    /**
+     * Gets our settings as they were when last changed, all in one go, so that
+     * whoever's using them sees a consistent set even if we're being
+     * reconfigured at the same time. This doesn't lock anything.
+     * 
+     * @return The current {@link Snapshot}. This will not be null.
+     */
+    @Restricted(NoExternalUse.class)
+    @Nonnull
+    Snapshot getSnapshot() {
+        return snapshot;
+    }
+
+    /**
+     * Binds the whole form, then publishes the new settings and saves them to
+     * disk once, rather than once per field. The trash folder is checked before
+     * anything is bound, as a setter that fails part-way through binding would
+     * leave the fields before it changed but neither saved nor published.
+     */
+    @Override
+    public boolean configure(StaplerRequest req, JSONObject json) throws FormException {
+        final String newTrashFolder = json.optString("trashFolder", null);
+        if (newTrashFolder != null && !TrashReaper.isValidTrashFolder(newTrashFolder)) {
+            throw new FormException(Messages.CommonConfig_trashFolder_invalid(newTrashFolder), "trashFolder");
+        }
+        final BulkChange bc = new BulkChange(this);
+        try {
+            req.bindJSON(this, json);
+            publishSnapshot();
+            bc.commit();
+        } catch (IOException ex) {
+            throw new FormException(ex, "");
+        } finally {
+            bc.abort();
+        }
+        return true;
+    }
+
+    /**
+     * Called by each setter. When the whole form is being submitted,
+     * {@link #configure(StaplerRequest, JSONObject)} does this once at the end
+     * instead.
+     */
+    private void changed() {
+        if (BulkChange.contains(this)) {
+            return;
+        }
+        publishSnapshot();
+        save();
+    }
+
+    private synchronized void publishSnapshot() {
+        final Snapshot oldSnapshot = snapshot;
+        final Snapshot newSnapshot = new Snapshot(this);
+        snapshot = newSnapshot;
+        if (!Arrays.equals(oldSnapshot.nodeNamesToSkip, newSnapshot.nodeNamesToSkip)) {
+            NodeEligibilityIndex.get().patternsChanged();
+        }
+        if (oldSnapshot.maxThreads != newSnapshot.maxThreads
+                || oldSnapshot.maxThreadsPerNode != newSnapshot.maxThreadsPerNode) {
+            CleanupExecutor.reconfigure(newSnapshot.maxThreads, newSnapshot.maxThreadsPerNode);
+        }
     }
 
     public @Nonnull NodeSelection getNodeSelection() {
@@ -83,7 +228,7 @@ public class CommonConfig extends GlobalConfiguration {
     @DataBoundSetter
     public void setNodeSelection(NodeSelection nodeSelection) {
         this.nodeSelection = nodeSelection;
-        save();
+        changed();
     }
 
     public boolean getSkipRoaming() {
@@ -93,7 +238,7 @@ public class CommonConfig extends GlobalConfiguration {
     @DataBoundSetter
     public void setSkipRoaming(boolean skipRoaming) {
         this.skipRoaming = skipRoaming;
-        save();
+        changed();
     }
 
     public boolean getParallel() {
@@ -103,7 +248,7 @@ public class CommonConfig extends GlobalConfiguration {
     @DataBoundSetter
     public void setParallel(boolean parallel) {
         this.parallel = parallel;
-        save();
+        changed();
     }
 
     public @Nonnull String[] getNodeNamesToSkip() {
@@ -123,30 +268,14 @@ public class CommonConfig extends GlobalConfiguration {
      */
     @Restricted(NoExternalUse.class)
     Pattern[] getNodeNamesToSkipPatterns() {
-        return nodeNamesToSkipPatterns == null ? new Pattern[0] : nodeNamesToSkipPatterns;
+        return getSnapshot().getNodeNamesToSkipPatterns();
     }
 
     @DataBoundSetter
     public void setNodeNamesToSkip(String[] nodeNamesToSkip) {
-        final List<Pattern> patterns;
-        if (nodeNamesToSkip == null) {
-            patterns = Lists.newArrayList();
-            this.nodeNamesToSkip = new String[0];
-        } else {
-            final int length = nodeNamesToSkip.length;
-            patterns = Lists.newArrayListWithCapacity(length);
-            for (final String nodeNameToSkip : nodeNamesToSkip) {
-                try {
-                    final Pattern p = Pattern.compile(nodeNameToSkip);
-                    patterns.add(p);
-                } catch (PatternSyntaxException ex) {
-                    // ignore and skip it
-                }
-            }
-            this.nodeNamesToSkip = Arrays.copyOf(nodeNamesToSkip, length);
-        }
-        this.nodeNamesToSkipPatterns = patterns.toArray(new Pattern[patterns.size()]);
-        save();
+        this.nodeNamesToSkip = nodeNamesToSkip == null ? new String[0]
+                : Arrays.copyOf(nodeNamesToSkip, nodeNamesToSkip.length);
+        changed();
     }
 
     @DataBoundSetter
@@ -161,6 +290,252 @@ public class CommonConfig extends GlobalConfiguration {
     @DataBoundSetter
     public void setTimeoutInMilliseconds(long timeoutInMilliseconds) {
         this.timeoutInMilliseconds = timeoutInMilliseconds;
+        changed();
+    }
+
+    public long getNodeTimeoutInMilliseconds() {
+        return nodeTimeoutInMilliseconds < 0L ? 0L : nodeTimeoutInMilliseconds;
+    }
+
+    @DataBoundSetter
+    public void setNodeTimeoutInMilliseconds(long nodeTimeoutInMilliseconds) {
+        this.nodeTimeoutInMilliseconds = nodeTimeoutInMilliseconds;
+        changed();
+    }
+
+    public long getFolderTimeoutInMilliseconds() {
+        return folderTimeoutInMilliseconds < 0L ? 0L : folderTimeoutInMilliseconds;
+    }
+
+    @DataBoundSetter
+    public void setFolderTimeoutInMilliseconds(long folderTimeoutInMilliseconds) {
+        this.folderTimeoutInMilliseconds = folderTimeoutInMilliseconds;
+        changed();
+    }
+
+    public int getMaxRetries() {
+        return maxRetries < 0 ? 0 : maxRetries;
+    }
+
+    @DataBoundSetter
+    public void setMaxRetries(int maxRetries) {
+        this.maxRetries = maxRetries;
+        changed();
+    }
+
+    public boolean getPreScan() {
+        return preScan;
+    }
+
+    @DataBoundSetter
+    public void setPreScan(boolean preScan) {
+        this.preScan = preScan;
+        changed();
+    }
+
+    public int getPreScanMinSizeInKB() {
+        return preScanMinSizeInKB < 0 ? 0 : preScanMinSizeInKB;
+    }
+
+    @DataBoundSetter
+    public void setPreScanMinSizeInKB(int preScanMinSizeInKB) {
+        this.preScanMinSizeInKB = preScanMinSizeInKB;
+        changed();
+    }
+
+    public int getJobWorkspaceBudgetInMB() {
+        return jobWorkspaceBudgetInMB < 0 ? 0 : jobWorkspaceBudgetInMB;
+    }
+
+    @DataBoundSetter
+    public void setJobWorkspaceBudgetInMB(int jobWorkspaceBudgetInMB) {
+        this.jobWorkspaceBudgetInMB = jobWorkspaceBudgetInMB;
+        changed();
+    }
+
+    /**
+     * Things within each workspace that are to be kept when it's cleaned, one glob
+     * per line, e.g. <code>.git</code> or <code>node_modules</code>.
+     * 
+     * @return The globs, as entered. This will not be null.
+     */
+    public @Nonnull String getKeepGlobs() {
+        return keepGlobs == null ? "" : keepGlobs;
+    }
+
+    @DataBoundSetter
+    public void setKeepGlobs(String keepGlobs) {
+        this.keepGlobs = keepGlobs;
+        changed();
+    }
+
+    /**
+     * Things within each workspace that are to be deleted when it's cleaned, one
+     * glob per line, e.g. <code>target</code>. If there are none then
+     * everything that isn't kept is deleted.
+     * 
+     * @return The globs, as entered. This will not be null.
+     */
+    public @Nonnull String getDeleteGlobs() {
+        return deleteGlobs == null ? "" : deleteGlobs;
+    }
+
+    @DataBoundSetter
+    public void setDeleteGlobs(String deleteGlobs) {
+        this.deleteGlobs = deleteGlobs;
+        changed();
+    }
+
+    public @Nonnull DeletionMode getDeletionMode() {
+        return deletionMode == null ? DEFAULT_DELETIONMODE : deletionMode;
+    }
+
+    @DataBoundSetter
+    public void setDeletionMode(DeletionMode deletionMode) {
+        this.deletionMode = deletionMode;
+        changed();
+    }
+
+    public @Nonnull String getTrashFolder() {
+        final String trimmed = Util.fixEmptyAndTrim(trashFolder);
+        // in case something unsafe got saved before we checked
+        return trimmed == null || !TrashReaper.isValidTrashFolder(trimmed) ? DEFAULT_TRASHFOLDER : trimmed;
+    }
+
+    /**
+     * Sets where the trash is.
+     * 
+     * @param trashFolder The trash folder, or null for the default.
+     * @throws IllegalArgumentException if it's not somewhere we can safely empty,
+     *                                  e.g. blank, <code>.</code>,
+     *                                  <code>..</code> or a filesystem root.
+     */
+    @DataBoundSetter
+    public void setTrashFolder(String trashFolder) {
+        if (trashFolder != null && !TrashReaper.isValidTrashFolder(trashFolder)) {
+            throw new IllegalArgumentException(Messages.CommonConfig_trashFolder_invalid(trashFolder));
+        }
+        this.trashFolder = trashFolder;
+        changed();
+    }
+
+    public int getReaperThreads() {
+        return reaperThreads < 1 ? DEFAULT_REAPERTHREADS : reaperThreads;
+    }
+
+    @DataBoundSetter
+    public void setReaperThreads(int reaperThreads) {
+        this.reaperThreads = reaperThreads;
+        changed();
+    }
+
+    public int getMaxThreads() {
+        return maxThreads < 1 ? DEFAULT_MAXTHREADS : maxThreads;
+    }
+
+    @DataBoundSetter
+    public void setMaxThreads(int maxThreads) {
+        this.maxThreads = maxThreads;
+        changed();
+    }
+
+    public int getMaxThreadsPerNode() {
+        return maxThreadsPerNode < 1 ? DEFAULT_MAXTHREADSPERNODE : maxThreadsPerNode;
+    }
+
+    @DataBoundSetter
+    public void setMaxThreadsPerNode(int maxThreadsPerNode) {
+        this.maxThreadsPerNode = maxThreadsPerNode;
+        changed();
+    }
+
+    public int getOrphanSweepIntervalInHours() {
+        return orphanSweepIntervalInHours < 0 ? 0 : orphanSweepIntervalInHours;
+    }
+
+    @DataBoundSetter
+    public void setOrphanSweepIntervalInHours(int orphanSweepIntervalInHours) {
+        this.orphanSweepIntervalInHours = orphanSweepIntervalInHours;
+        changed();
+    }
+
+    public int getOrphanSweepBatchSize() {
+        return orphanSweepBatchSize < 1 ? DEFAULT_ORPHANSWEEPBATCHSIZE : orphanSweepBatchSize;
+    }
+
+    @DataBoundSetter
+    public void setOrphanSweepBatchSize(int orphanSweepBatchSize) {
+        this.orphanSweepBatchSize = orphanSweepBatchSize;
+        changed();
+    }
+
+    public int getFreeSpaceThresholdInGB() {
+        return freeSpaceThresholdInGB < 0 ? 0 : freeSpaceThresholdInGB;
+    }
+
+    @DataBoundSetter
+    public void setFreeSpaceThresholdInGB(int freeSpaceThresholdInGB) {
+        this.freeSpaceThresholdInGB = freeSpaceThresholdInGB;
+        changed();
+    }
+
+    /**
+     * Gets {@link #getFreeSpaceThresholdInGB()} in bytes.
+     * 
+     * @return Nodes with more free space than this are not cleaned, or 0 if we
+     *         clean regardless of free space.
+     */
+    @Restricted(NoExternalUse.class)
+    long getFreeSpaceThresholdInBytes() {
+        return getSnapshot().getFreeSpaceThresholdInBytes();
+    }
+
+    public @Nonnull LogVerbosity getLogVerbosity() {
+        return logVerbosity == null ? DEFAULT_LOGVERBOSITY : logVerbosity;
+    }
+
+    @DataBoundSetter
+    public void setLogVerbosity(LogVerbosity logVerbosity) {
+        this.logVerbosity = logVerbosity;
+        changed();
+    }
+
+    /**
+     * Gets the settings that tell the agent how to delete things. Nodes with a
+     * {@link PrePostCleanNodeProperty} may override some of these.
+     * 
+     * @return A new {@link DeletionOptions}.
+     */
+    @Restricted(NoExternalUse.class)
+    DeletionOptions getDeletionOptions() {
+        return getSnapshot().getDeletionOptions();
+    }
+
+    private DeletionOptions buildDeletionOptions() {
+        return new DeletionOptions(getDeletionMode().getUseTrash(), getTrashFolder(), getReaperThreads(),
+                PrePostCleanNodeProperty.DEFAULT_DELETIONTHREADS, getNodeTimeoutInMilliseconds(),
+                getFolderTimeoutInMilliseconds(), getMaxRetries(),
+                getPreScan() ? getPreScanMinSizeInKB() * 1024L : -1L, getJobWorkspaceBudgetInMB() * 1024L * 1024L)
+                        .withGlobs(splitGlobs(getKeepGlobs()), splitGlobs(getDeleteGlobs()))
+                        .withLogFolders(getLogVerbosity().getLogFolders());
+    }
+
+    /**
+     * Turns globs entered one per line into a list, ignoring blank lines and any
+     * whitespace around each glob.
+     * 
+     * @param globs The globs as entered, or null.
+     * @return A list of globs. This will not be null.
+     */
+    @Restricted(NoExternalUse.class)
+    static @Nonnull List<String> splitGlobs(@CheckForNull String globs) {
+        final List<String> result = Lists.newArrayList();
+        if (globs != null) {
+            for (final String glob : LINE_SPLITTER.trimResults().omitEmptyStrings().split(globs)) {
+                result.add(glob);
+            }
+        }
+        return result;
     }
 
     public FormValidation doCheckSkipRoaming(@QueryParameter boolean value, @QueryParameter String nodeSelection) {
@@ -208,6 +583,72 @@ public class CommonConfig extends GlobalConfiguration {
         return FormValidation.validateNonNegativeInteger(value);
     }
 
+    public FormValidation doCheckNodeTimeoutInMilliseconds(@QueryParameter String value) {
+        return FormValidation.validateNonNegativeInteger(value);
+    }
+
+    public FormValidation doCheckFolderTimeoutInMilliseconds(@QueryParameter String value) {
+        return FormValidation.validateNonNegativeInteger(value);
+    }
+
+    public FormValidation doCheckMaxRetries(@QueryParameter String value) {
+        return FormValidation.validateNonNegativeInteger(value);
+    }
+
+    public FormValidation doCheckPreScanMinSizeInKB(@QueryParameter String value) {
+        return FormValidation.validateNonNegativeInteger(value);
+    }
+
+    public FormValidation doCheckJobWorkspaceBudgetInMB(@QueryParameter String value) {
+        return FormValidation.validateNonNegativeInteger(value);
+    }
+
+    public FormValidation doCheckTrashFolder(@QueryParameter String value) {
+        if (!TrashReaper.isValidTrashFolder(value)) {
+            return FormValidation.error(Messages.CommonConfig_trashFolder_invalid(value));
+        }
+        return FormValidation.ok();
+    }
+
+    public FormValidation doCheckReaperThreads(@QueryParameter String value) {
+        return FormValidation.validatePositiveInteger(value);
+    }
+
+    public FormValidation doCheckMaxThreads(@QueryParameter String value) {
+        return FormValidation.validatePositiveInteger(value);
+    }
+
+    public FormValidation doCheckMaxThreadsPerNode(@QueryParameter String value) {
+        return FormValidation.validatePositiveInteger(value);
+    }
+
+    public FormValidation doCheckOrphanSweepIntervalInHours(@QueryParameter String value) {
+        return FormValidation.validateNonNegativeInteger(value);
+    }
+
+    public FormValidation doCheckOrphanSweepBatchSize(@QueryParameter String value) {
+        return FormValidation.validatePositiveInteger(value);
+    }
+
+    public FormValidation doCheckFreeSpaceThresholdInGB(@QueryParameter String value) {
+        return FormValidation.validateNonNegativeInteger(value);
+    }
+
+    /**
+     * Compiles regexes, silently omitting any that aren't valid.
+     */
+    private static Pattern[] compilePatterns(String[] regexes) {
+        final List<Pattern> patterns = Lists.newArrayListWithCapacity(regexes.length);
+        for (final String regex : regexes) {
+            try {
+                patterns.add(Pattern.compile(regex));
+            } catch (PatternSyntaxException ex) {
+                // ignore and skip it
+            }
+        }
+        return patterns.isEmpty() ? NO_PATTERNS : patterns.toArray(new Pattern[patterns.size()]);
+    }
+
     private static String[] splitAndFilterEmpty(String s) {
         final List<String> result = Lists.newArrayList();
         if (s != null) {
@@ -217,4 +658,100 @@ public class CommonConfig extends GlobalConfiguration {
         }
         return result.toArray(new String[result.size()]);
     }
+
+    /**
+     * An immutable copy of the settings that cleaning uses, worked out once
+     * whenever they change (including compiling the node name patterns) rather
+     * than every time they're used.
+     */
+    static final class Snapshot {
+        private final NodeSelection nodeSelection;
+        private final boolean skipRoaming;
+        private final boolean parallel;
+        private final String[] nodeNamesToSkip;
+        private final Pattern[] nodeNamesToSkipPatterns;
+        private final long timeoutInMilliseconds;
+        private final long freeSpaceThresholdInBytes;
+        private final DeletionOptions deletionOptions;
+        private final int maxThreads;
+        private final int maxThreadsPerNode;
+        private final int orphanSweepIntervalInHours;
+        private final int orphanSweepBatchSize;
+
+        private Snapshot(CommonConfig config) {
+            nodeSelection = config.getNodeSelection();
+            skipRoaming = config.getSkipRoaming();
+            parallel = config.getParallel();
+            nodeNamesToSkip = config.getNodeNamesToSkip();
+            nodeNamesToSkipPatterns = compilePatterns(nodeNamesToSkip);
+            timeoutInMilliseconds = config.getTimeoutInMilliseconds();
+            freeSpaceThresholdInBytes = config.getFreeSpaceThresholdInGB() * 1024L * 1024L * 1024L;
+            deletionOptions = config.buildDeletionOptions();
+            maxThreads = config.getMaxThreads();
+            maxThreadsPerNode = config.getMaxThreadsPerNode();
+            orphanSweepIntervalInHours = config.getOrphanSweepIntervalInHours();
+            orphanSweepBatchSize = config.getOrphanSweepBatchSize();
+        }
+
+        /** @return See {@link CommonConfig#getNodeSelection()}. */
+        @Nonnull
+        NodeSelection getNodeSelection() {
+            return nodeSelection;
+        }
+
+        /** @return See {@link CommonConfig#getSkipRoaming()}. */
+        boolean getSkipRoaming() {
+            return skipRoaming;
+        }
+
+        /** @return See {@link CommonConfig#getParallel()}. */
+        boolean getParallel() {
+            return parallel;
+        }
+
+        /**
+         * @return See {@link CommonConfig#getNodeNamesToSkipPatterns()}. This is
+         *         shared, so must not be modified.
+         */
+        @Nonnull
+        Pattern[] getNodeNamesToSkipPatterns() {
+            return nodeNamesToSkipPatterns;
+        }
+
+        /** @return See {@link CommonConfig#getTimeoutInMilliseconds()}. */
+        long getTimeoutInMilliseconds() {
+            return timeoutInMilliseconds;
+        }
+
+        /** @return See {@link CommonConfig#getFreeSpaceThresholdInBytes()}. */
+        long getFreeSpaceThresholdInBytes() {
+            return freeSpaceThresholdInBytes;
+        }
+
+        /** @return See {@link CommonConfig#getDeletionOptions()}. */
+        @Nonnull
+        DeletionOptions getDeletionOptions() {
+            return deletionOptions;
+        }
+
+        /** @return See {@link CommonConfig#getMaxThreads()}. */
+        int getMaxThreads() {
+            return maxThreads;
+        }
+
+        /** @return See {@link CommonConfig#getMaxThreadsPerNode()}. */
+        int getMaxThreadsPerNode() {
+            return maxThreadsPerNode;
+        }
+
+        /** @return See {@link CommonConfig#getOrphanSweepIntervalInHours()}. */
+        int getOrphanSweepIntervalInHours() {
+            return orphanSweepIntervalInHours;
+        }
+
+        /** @return See {@link CommonConfig#getOrphanSweepBatchSize()}. */
+        int getOrphanSweepBatchSize() {
+            return orphanSweepBatchSize;
+        }
+    }
 }
@@ -0,0 +1,454 @@
+package de.jamba.hudson.plugin.wsclean;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.regex.Pattern;
+
+import javax.annotation.CheckForNull;
+import javax.annotation.Nonnull;
+
+import org.kohsuke.accmod.Restricted;
+import org.kohsuke.accmod.restrictions.NoExternalUse;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import com.google.common.collect.Sets;
+
+import de.jamba.hudson.plugin.wsclean.InFlightDeletions.Claim;
+import hudson.Extension;
+import hudson.FilePath;
+import hudson.XmlFile;
+import hudson.init.InitMilestone;
+import hudson.init.Initializer;
+import hudson.init.Terminator;
+import hudson.model.AbstractProject;
+import hudson.model.Computer;
+import hudson.model.Job;
+import hudson.model.Node;
+import hudson.model.Run;
+import hudson.model.TaskListener;
+import hudson.remoting.RequestAbortedException;
+import hudson.slaves.ComputerListener;
+import jenkins.model.Jenkins;
+import jenkins.model.NodeListener;
+import jenkins.util.Timer;
+
+/**
+ * Remembers workspaces that we wanted to delete but couldn't, because the node
+ * they're on was offline, or didn't answer in time, or failed in a way that's
+ * likely to go away by itself. A workspace is only forgotten once it's been
+ * deleted, or once we've decided it should no longer be deleted. This is
+ * written to disk shortly after it changes, with changes made close together
+ * written in one go, so nothing is forgotten over a restart without every
+ * change costing a write.
+ * <p>
+ * When a node comes online, or Jenkins starts, any workspaces waiting to be
+ * deleted on that node are deleted in the background. Before we delete
+ * anything, we check that the job still exists, that no build of the job has
+ * used the workspace since we decided to delete it, and that we haven't since
+ * been told to leave the node alone. If a workspace fails those checks, we
+ * forget about it instead.
+ */
+public class DeferredDeletionQueue {
+    private static final Logger LOGGER = LoggerFactory.getLogger(DeferredDeletionQueue.class);
+    private static final String FILENAME = DeferredDeletionQueue.class.getName() + ".xml";
+    private static DeferredDeletionQueue instance = new DeferredDeletionQueue();
+    /** How long we wait after a change before writing to disk, so later changes are written too. */
+    static final long SAVE_DELAY_IN_MS = TimeUnit.SECONDS.toMillis(5);
+
+    /** Node name to workspace path to why we want to delete it. */
+    private final Map<String, Map<String, PendingDeletion>> pending = Maps.newTreeMap();
+    /** Where we're saved, or null if we're not to be saved. */
+    private transient XmlFile file;
+    /** True if we've changed and are waiting to be saved. Guarded by this. */
+    private transient boolean saveScheduled;
+
+    /** A workspace we want to delete. */
+    static final class PendingDeletion {
+        /** The job whose workspace it is. */
+        private final String jobFullName;
+        /** The build that decided it should be deleted. */
+        private final int buildNumber;
+
+        PendingDeletion(String jobFullName, int buildNumber) {
+            this.jobFullName = jobFullName;
+            this.buildNumber = buildNumber;
+        }
+
+        String getJobFullName() {
+            return jobFullName;
+        }
+
+        int getBuildNumber() {
+            return buildNumber;
+        }
+    }
+
+    DeferredDeletionQueue() {
+    }
+
+    /** @return the singleton instance */
+    static synchronized @Nonnull DeferredDeletionQueue get() {
+        return instance;
+    }
+
+    /**
+     * Loads the queue from disk and deletes anything that's waiting on nodes that
+     * are online now, e.g. things we were in the middle of deleting when Jenkins
+     * was stopped.
+     */
+    @Initializer(after = InitMilestone.JOB_LOADED)
+    public static void resume() {
+        final Jenkins jenkins = Jenkins.getInstance();
+        final XmlFile file = new XmlFile(Jenkins.XSTREAM2, new File(jenkins.getRootDir(), FILENAME));
+        final DeferredDeletionQueue loaded = load(file);
+        synchronized (DeferredDeletionQueue.class) {
+            instance = loaded;
+        }
+        for (final String nodeName : loaded.getNodeNames()) {
+            final Node node = nodeName.isEmpty() ? jenkins : jenkins.getNode(nodeName);
+            if (node != null && node.getRootPath() != null) {
+                loaded.drainInBackground(jenkins, nodeName);
+            }
+        }
+    }
+
+    /**
+     * Remembers workspaces that need deleting.
+     *
+     * @param jobFullName The job whose workspaces they are.
+     * @param buildNumber The build that decided they should be deleted.
+     * @param nodeName    The node they're on.
+     * @param paths       Where they are on that node.
+     */
+    void add(@Nonnull String jobFullName, int buildNumber, @Nonnull String nodeName, Iterable<String> paths) {
+        boolean changed = false;
+        synchronized (this) {
+            Map<String, PendingDeletion> pendingOnNode = pending.get(nodeName);
+            for (final String path : paths) {
+                if (pendingOnNode == null) {
+                    pendingOnNode = Maps.newTreeMap();
+                    pending.put(nodeName, pendingOnNode);
+                }
+                final PendingDeletion existing = pendingOnNode.get(path);
+                if (existing == null || existing.getBuildNumber() < buildNumber
+                        || !existing.getJobFullName().equals(jobFullName)) {
+                    pendingOnNode.put(path, new PendingDeletion(jobFullName, buildNumber));
+                    changed = true;
+                }
+            }
+        }
+        if (changed) {
+            scheduleSave();
+        }
+    }
+
+    /**
+     * Forgets about workspaces, e.g. because they've been deleted.
+     *
+     * @param nodeName The node they're on.
+     * @param paths    Where they are on that node.
+     */
+    void remove(@Nonnull String nodeName, Iterable<String> paths) {
+        boolean changed = false;
+        synchronized (this) {
+            final Map<String, PendingDeletion> pendingOnNode = pending.get(nodeName);
+            if (pendingOnNode != null) {
+                for (final String path : paths) {
+                    changed |= pendingOnNode.remove(path) != null;
+                }
+                if (pendingOnNode.isEmpty()) {
+                    pending.remove(nodeName);
+                }
+            }
+        }
+        if (changed) {
+            scheduleSave();
+        }
+    }
+
+    /**
+     * Forgets about everything on a node, e.g. because the node has been deleted.
+     *
+     * @param nodeName The node.
+     */
+    void removeNode(@Nonnull String nodeName) {
+        final boolean changed;
+        synchronized (this) {
+            changed = pending.remove(nodeName) != null;
+        }
+        if (changed) {
+            scheduleSave();
+        }
+    }
+
+    /**
+     * @param nodeName The node.
+     * @return Workspace paths to why we want to delete them, for everything
+     *         waiting to be deleted on that node.
+     */
+    synchronized @Nonnull Map<String, PendingDeletion> getPendingFor(@Nonnull String nodeName) {
+        final Map<String, PendingDeletion> pendingOnNode = pending.get(nodeName);
+        return pendingOnNode == null ? Collections.<String, PendingDeletion>emptyMap()
+                : Maps.newTreeMap(pendingOnNode);
+    }
+
+    /** @return The names of the nodes that have something waiting to be deleted. */
+    synchronized @Nonnull Set<String> getNodeNames() {
+        return Sets.newTreeSet(pending.keySet());
+    }
+
+    /**
+     * Deletes everything waiting to be deleted on a node, in the background.
+     *
+     * @param jenkins  Maps node names to nodes.
+     * @param nodeName The node.
+     */
+    void drainInBackground(final Jenkins jenkins, final String nodeName) {
+        final TaskListener listener = new LoggerBuildListener(LOGGER, "Deferred clean of " + nodeName + ": ");
+        CleanupExecutor.get().execute(nodeName, new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    final CommonConfig.Snapshot config = CommonConfig.get().getSnapshot();
+                    drain(jenkins, nodeName, config.getNodeNamesToSkipPatterns(), config.getDeletionOptions(),
+                            listener);
+                } catch (InterruptedException ex) {
+                    LOGGER.debug("Deferred clean of {} was interrupted", nodeName, ex);
+                    Thread.currentThread().interrupt();
+                } catch (RuntimeException ex) {
+                    LOGGER.warn("Deferred clean of {} failed", nodeName, ex);
+                }
+            }
+        });
+    }
+
+    /**
+     * Deletes everything waiting to be deleted on a node that is still safe to
+     * delete, and forgets about everything else. If the node has gone offline
+     * again, or doesn't answer in time, we leave everything for next time, as we
+     * do with anything that fails in a way that's likely to go away by itself, or
+     * that someone else is deleting right now. New
+     * builds of the jobs concerned wait for us to finish before they start on
+     * the node.
+     *
+     * @param jenkins         Maps node names to nodes, and job names to jobs.
+     * @param nodeName        The node.
+     * @param nodeNamesToSkip Regexes matching names of nodes to leave alone.
+     * @param deletionOptions How the agents are to delete things.
+     * @param listener        Where to log what we're doing.
+     * @throws InterruptedException if we are interrupted.
+     */
+    @Restricted(NoExternalUse.class) // unit-test only
+    void drain(Jenkins jenkins, String nodeName, Pattern[] nodeNamesToSkip,
+            DeletionOptions deletionOptions, TaskListener listener) throws InterruptedException {
+        final Map<String, PendingDeletion> pendingOnNode = getPendingFor(nodeName);
+        if (pendingOnNode.isEmpty()) {
+            return;
+        }
+        final Node node = nodeName.isEmpty() ? jenkins : jenkins.getNode(nodeName);
+        final NodeEligibilityIndex eligibility = NodeEligibilityIndex.get();
+        final List<String> nodeNames = Collections.singletonList(nodeName);
+        if (node == null || !eligibility.getNodesToSkipDueToTheirName(nodeNames, nodeNamesToSkip).isEmpty()
+                || !eligibility.getNodesWithDisableProperty(nodeNames, jenkins).isEmpty()) {
+            listener.getLogger().println("Forgetting " + pendingOnNode.size() + " folder(s) on " + nodeName
+                    + " as the node is gone or is to be left alone.");
+            removeNode(nodeName);
+            return;
+        }
+        final FilePath root = node.getRootPath();
+        if (root == null) {
+            return; // it's offline again; we'll try next time it comes online
+        }
+        // stop builds of these jobs starting on this node until we're done,
+        // so nothing can start using a workspace between us checking it and
+        // deleting it
+        final Set<String> jobNames = Sets.newTreeSet();
+        for (final PendingDeletion why : pendingOnNode.values()) {
+            jobNames.add(why.getJobFullName());
+        }
+        final WorkspaceDeletionBarrier barrier = WorkspaceDeletionBarrier.get();
+        for (final String jobName : jobNames) {
+            barrier.enter(jobName, nodeNames);
+        }
+        try {
+            deleteUnlessStale(jenkins, nodeName, node, root, pendingOnNode, deletionOptions, listener);
+        } finally {
+            for (final String jobName : jobNames) {
+                barrier.exit(jobName, nodeNames);
+            }
+        }
+    }
+
+    private void deleteUnlessStale(Jenkins jenkins, String nodeName, Node node, FilePath root,
+            Map<String, PendingDeletion> pendingOnNode, DeletionOptions deletionOptions, TaskListener listener)
+            throws InterruptedException {
+        final List<String> stale = Lists.newArrayList();
+        final List<String> folders = Lists.newArrayList();
+        for (final Map.Entry<String, PendingDeletion> e : pendingOnNode.entrySet()) {
+            if (isStale(jenkins, nodeName, e.getKey(), e.getValue())) {
+                stale.add(e.getKey());
+            } else {
+                folders.add(e.getKey());
+            }
+        }
+        if (!stale.isEmpty()) {
+            listener.getLogger().println("Not cleaning " + stale + " on " + nodeName + " as it has been used since.");
+            remove(nodeName, stale);
+        }
+        if (folders.isEmpty()) {
+            return;
+        }
+        final DeletionOptions options = PrePostClean.getDeletionOptionsFor(node, deletionOptions);
+        final InFlightDeletions inFlightDeletions = InFlightDeletions.get();
+        final Claim claim = inFlightDeletions.claim(nodeName, folders);
+        try {
+            final List<String> foldersToDelete = claim.getFoldersToDelete();
+            if (!foldersToDelete.isEmpty()) {
+                for (final String folder : foldersToDelete) {
+                    listener.getLogger().println("Cleaning " + nodeName + " folder " + folder);
+                }
+                final List<FolderDeletionResult> results = PrePostClean.actWithTimeout(root,
+                        new DeleteFoldersCallable(foldersToDelete, options), options.getNodeTimeoutInMs());
+                final List<String> done = Lists.newArrayList();
+                for (final FolderDeletionResult result : results) {
+                    if (result.isSuccess()) {
+                        done.add(result.getFolder());
+                    } else if (result.isTimedOut() || result.isTransientFailure()) {
+                        // we'll try again next time it comes online
+                        listener.getLogger().println("Unable to delete " + result.getFolder() + " on node "
+                                + nodeName + " yet\n" + result.getError());
+                    } else {
+                        // trying again won't help
+                        listener.getLogger().println("Can't delete " + result.getFolder() + " on node " + nodeName
+                                + "\n" + result.getError());
+                        done.add(result.getFolder());
+                    }
+                }
+                remove(nodeName, done);
+            }
+        } catch (TimeoutException ex) {
+            // we'll try again next time it comes online
+            listener.getLogger().println("Unable to clean " + nodeName + " as it did not answer within "
+                    + options.getNodeTimeoutInMs() + " milliseconds.");
+        } catch (IOException | RequestAbortedException ex) {
+            // we'll try again next time it comes online
+            listener.getLogger().println("Unable to clean " + nodeName + ": " + ex);
+        } finally {
+            inFlightDeletions.release(claim);
+        }
+    }
+
+    /**
+     * Decides whether a workspace should no longer be deleted, because its job
+     * has gone or a build has used the workspace since we decided to delete it.
+     * For jobs whose workspace use we don't track (e.g. Pipeline jobs), any later
+     * build counts as having used it.
+     */
+    private static boolean isStale(Jenkins jenkins, String nodeName, String path, PendingDeletion why) {
+        final Job<?, ?> job = jenkins.getItemByFullName(why.getJobFullName(), Job.class);
+        if (job == null) {
+            return true;
+        }
+        if (!(job instanceof AbstractProject)) {
+            final Run<?, ?> lastBuild = job.getLastBuild();
+            return lastBuild != null && lastBuild.getNumber() > why.getBuildNumber();
+        }
+        final AbstractProject<?, ?> project = (AbstractProject<?, ?>) job;
+        return WorkspaceUsageIndex.getOrRebuild(project).isUsedSince(nodeName, path, why.getBuildNumber());
+    }
+
+    private static @Nonnull DeferredDeletionQueue load(XmlFile file) {
+        DeferredDeletionQueue result = null;
+        if (file.exists()) {
+            try {
+                result = (DeferredDeletionQueue) file.read();
+            } catch (IOException | RuntimeException ex) {
+                LOGGER.warn("Unable to read {}; anything that was waiting to be deleted will be left.", file, ex);
+            }
+        }
+        if (result == null) {
+            result = new DeferredDeletionQueue();
+        }
+        result.file = file;
+        return result;
+    }
+
+    /** Writes us to disk soon, unless that's already going to happen. */
+    private void scheduleSave() {
+        synchronized (this) {
+            if (file == null || saveScheduled) {
+                return;
+            }
+            saveScheduled = true;
+        }
+        Timer.get().schedule(new Runnable() {
+            @Override
+            public void run() {
+                save();
+            }
+        }, SAVE_DELAY_IN_MS, TimeUnit.MILLISECONDS);
+    }
+
+    /** Writes anything that's not yet been written to disk, as Jenkins stops. */
+    @Terminator
+    public static void flush() {
+        final DeferredDeletionQueue queue = get();
+        synchronized (queue) {
+            if (queue.saveScheduled) {
+                queue.save();
+            }
+        }
+    }
+
+    private synchronized void save() {
+        saveScheduled = false;
+        if (file == null) {
+            return;
+        }
+        try {
+            file.write(this);
+        } catch (IOException ex) {
+            LOGGER.warn("Unable to write {}", file, ex);
+        }
+    }
+
+    private static void drainIfPending(@CheckForNull Computer c) {
+        if (c == null) {
+            return;
+        }
+        final String nodeName = c.getName();
+        final DeferredDeletionQueue queue = get();
+        if (!queue.getPendingFor(nodeName).isEmpty()) {
+            queue.drainInBackground(Jenkins.getInstance(), nodeName);
+        }
+    }
+
+    /** Deletes what's waiting on each node as it comes online. */
+    @Restricted(NoExternalUse.class)
+    @Extension
+    public static final class ComputerListenerImpl extends ComputerListener {
+        @Override
+        public void onOnline(Computer c, TaskListener listener) {
+            drainIfPending(c);
+        }
+    }
+
+    /** Forgets what's waiting on nodes that are deleted. */
+    @Restricted(NoExternalUse.class)
+    @Extension
+    public static final class NodeListenerImpl extends NodeListener {
+        @Override
+        protected void onDeleted(@Nonnull Node node) {
+            get().removeNode(node.getNodeName());
+        }
+    }
+}
@@ -0,0 +1,171 @@
+package de.jamba.hudson.plugin.wsclean;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.List;
+
+import com.google.common.collect.Lists;
+
+import hudson.FilePath;
+import jenkins.security.MasterToSlaveCallable;
+
+/**
+ * Deletes the contents of several folders on a node in a single remoting call,
+ * instead of needing one {@link FilePath#deleteContents()} round-trip per
+ * folder. Each folder is emptied (the folder itself is left in place) and the
+ * outcome of each folder is reported separately so that one failure does not
+ * prevent the others from being cleaned. Deletion is done by a
+ * {@link TreeDeleter} using {@link DeletionOptions#getDeletionThreads()}
+ * threads.
+ * <p>
+ * If {@link DeletionOptions#getUseTrash()} is set then, instead of deleting the
+ * contents there and then, each folder is renamed into a trash folder (which is
+ * near-instantaneous) and replaced with an empty folder, and the trash is then
+ * emptied in the background by the {@link TrashReaper}. If a folder can't be
+ * renamed (e.g. the trash is on a different filesystem) then it's deleted in
+ * place instead.
+ * <p>
+ * If {@link DeletionOptions#getKeepGlobs()} or
+ * {@link DeletionOptions#getDeleteGlobs()} are set then only part of each
+ * folder is deleted, as decided by a {@link PathFilter}. The whole folder can't
+ * then be moved into the trash, so it's done in place.
+ * <p>
+ * If asked to remove the folders themselves, nothing is left behind (and the
+ * globs are ignored).
+ * <p>
+ * If {@link DeletionOptions#getNodeTimeoutInMs()} or
+ * {@link DeletionOptions#getFolderTimeoutInMs()} are set then we stop deleting
+ * a folder once we run out of time, and don't start on any more folders once
+ * the node's time is up. Those folders are reported as having timed out. The
+ * time is measured by the agent's clock, from when this call starts.
+ * <p>
+ * If the controller gives up on us (e.g. its own timeout expires) then the
+ * thread running this call is interrupted. We then stop deleting as soon as we
+ * can and don't start on any more folders, rather than carrying on regardless.
+ */
+class DeleteFoldersCallable extends MasterToSlaveCallable<List<FolderDeletionResult>, IOException> {
+    private static final long serialVersionUID = 1L;
+
+    private final List<String> folders;
+    private final DeletionOptions options;
+    private final boolean removeFolders;
+
+    /**
+     * @param folders The (remote) paths of the folders whose contents are to be
+     *                deleted.
+     * @param options How we are to delete them.
+     */
+    DeleteFoldersCallable(Iterable<String> folders, DeletionOptions options) {
+        this(folders, options, false);
+    }
+
+    /**
+     * @param folders       The (remote) paths of the folders whose contents are to
+     *                      be deleted.
+     * @param options       How we are to delete them.
+     * @param removeFolders If true then the folders are removed too, instead of
+     *                      being left behind empty.
+     */
+    DeleteFoldersCallable(Iterable<String> folders, DeletionOptions options, boolean removeFolders) {
+        this.folders = Lists.newArrayList(folders);
+        this.options = options;
+        this.removeFolders = removeFolders;
+    }
+
+    @Override
+    public List<FolderDeletionResult> call() throws IOException {
+        final List<FolderDeletionResult> results = Lists.newArrayListWithCapacity(folders.size());
+        final long nodeDeadline = deadlineFor(System.currentTimeMillis(), options.getNodeTimeoutInMs());
+        final PathFilter filter = removeFolders ? null
+                : PathFilter.of(options.getKeepGlobs(), options.getDeleteGlobs());
+        final TreeDeleter.Cancellation cancellation = new TreeDeleter.Cancellation();
+        for (final String folder : folders) {
+            if (cancellation.isCancelled() || Thread.currentThread().isInterrupted()) {
+                cancellation.cancel();
+                results.add(new FolderDeletionResult(folder, "Not started as we were asked to stop", 0L, 0L, true,
+                        false));
+                continue;
+            }
+            final long now = System.currentTimeMillis();
+            if (now >= nodeDeadline) {
+                results.add(new FolderDeletionResult(folder, "Not started as time ran out after "
+                        + options.getNodeTimeoutInMs() + " milliseconds", 0L, 0L, true, false));
+                continue;
+            }
+            final long deadline = Math.min(nodeDeadline, deadlineFor(now, options.getFolderTimeoutInMs()));
+            final File dir = new File(folder);
+            long filesDeleted = 0L;
+            long bytesDeleted = 0L;
+            String error = null;
+            boolean timedOut = false;
+            boolean transientFailure = false;
+            try {
+                if (!(filter == null && options.getUseTrash() && moveToTrash(dir))) {
+                    final TreeDeleter.Outcome outcome = TreeDeleter.deleteContents(dir, options.getDeletionThreads(),
+                            deadline, filter, cancellation);
+                    filesDeleted = outcome.getFilesDeleted();
+                    bytesDeleted = outcome.getBytesDeleted();
+                }
+                if (removeFolders && !dir.delete() && dir.exists()) {
+                    throw new IOException("Unable to delete " + dir);
+                }
+            } catch (TreeDeleter.TimedOutException | TreeDeleter.CancelledException ex) {
+                error = ex.getMessage();
+                timedOut = true;
+            } catch (IOException ex) {
+                error = ex.toString();
+                transientFailure = RetryPolicy.isTransient(ex);
+            }
+            results.add(new FolderDeletionResult(folder, error, filesDeleted, bytesDeleted, timedOut,
+                    transientFailure));
+        }
+        return results;
+    }
+
+    private static long deadlineFor(long start, long timeoutInMs) {
+        return timeoutInMs > 0L ? start + timeoutInMs : TreeDeleter.NO_DEADLINE;
+    }
+
+    /**
+     * Renames a folder into the trash, replaces it with an empty folder, and
+     * ensures that the trash gets emptied.
+     *
+     * @return true if the folder is now empty, false if it needs to be deleted the
+     *         slow way.
+     */
+    private boolean moveToTrash(File dir) {
+        if (!dir.isDirectory()) {
+            return true; // nothing to do
+        }
+        if (!TrashReaper.isValidTrashFolder(options.getTrashFolder())) {
+            return false; // we won't risk emptying something that isn't ours
+        }
+        final File trash = getTrashFolderFor(dir);
+        if (trash.getAbsolutePath().startsWith(dir.getAbsolutePath() + File.separator)) {
+            return false; // trash is inside the folder; we can't move it into itself
+        }
+        final File tombstone = new File(trash, TrashReaper.tombstoneNameFor(dir.getName()));
+        try {
+            Files.createDirectories(trash.toPath());
+            Files.move(dir.toPath(), tombstone.toPath(), StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException ex) {
+            // e.g. AtomicMoveNotSupportedException if trash is on another filesystem
+            return false;
+        }
+        TrashReaper.get(options.getReaperThreads()).emptyTrash(trash);
+        if (!removeFolders) {
+            dir.mkdir(); // leave an empty folder behind, as deleteContents would
+        }
+        return true;
+    }
+
+    private File getTrashFolderFor(File dir) {
+        final File trash = new File(options.getTrashFolder());
+        if (trash.isAbsolute()) {
+            return trash;
+        }
+        return new File(dir.getAbsoluteFile().getParentFile(), trash.getPath());
+    }
+}
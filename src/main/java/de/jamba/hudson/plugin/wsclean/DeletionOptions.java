@@ -0,0 +1,243 @@
+package de.jamba.hudson.plugin.wsclean;
+
+import java.io.Serializable;
+import java.util.Arrays;
+import java.util.List;
+
+import javax.annotation.CheckForNull;
+
+import com.google.common.collect.ImmutableList;
+
+/**
+ * Tells {@link DeleteFoldersCallable} how it should go about deleting things on
+ * the agent, and how hard we try if that fails. This gets sent to the agent, so
+ * it only contains simple values.
+ * <p>
+ * It also tells us how much to say in the build log about each folder, as that
+ * goes wherever the rest of these options go.
+ */
+public class DeletionOptions implements Serializable {
+    private static final long serialVersionUID = 1L;
+
+    private final boolean useTrash;
+    private final String trashFolder;
+    private final int reaperThreads;
+    private final int deletionThreads;
+    private final long nodeTimeoutInMs;
+    private final long folderTimeoutInMs;
+    private final int maxRetries;
+    private final long preScanMinSizeInBytes;
+    private final long jobWorkspaceBudgetInBytes;
+    private final String[] keepGlobs;
+    private final String[] deleteGlobs;
+    private final boolean logFolders;
+
+    /**
+     * @param useTrash        If true, folders are renamed into the trash instead
+     *                        of being deleted in place.
+     * @param trashFolder     Where the trash lives. If relative, it's relative to
+     *                        the parent of each folder being trashed.
+     * @param reaperThreads   How many threads the agent can use to empty its
+     *                        trash.
+     * @param deletionThreads How many threads the agent can use to delete a
+     *                        folder.
+     */
+    DeletionOptions(boolean useTrash, @CheckForNull String trashFolder, int reaperThreads, int deletionThreads) {
+        this(useTrash, trashFolder, reaperThreads, deletionThreads, 0L, 0L, 0, -1L, 0L);
+    }
+
+    /**
+     * @param useTrash                  If true, folders are renamed into the trash
+     *                                  instead of being deleted in place.
+     * @param trashFolder               Where the trash lives. If relative, it's
+     *                                  relative to the parent of each folder being
+     *                                  trashed.
+     * @param reaperThreads             How many threads the agent can use to empty
+     *                                  its trash.
+     * @param deletionThreads           How many threads the agent can use to
+     *                                  delete a folder.
+     * @param nodeTimeoutInMs           If >0, how long the agent can spend on all
+     *                                  the folders we give it at once.
+     * @param folderTimeoutInMs         If >0, how long the agent can spend on any
+     *                                  one folder.
+     * @param maxRetries                How many times we try again if the agent
+     *                                  fails in a way that's likely to go away by
+     *                                  itself.
+     * @param preScanMinSizeInBytes     If >=0, folders are looked at first and any
+     *                                  that don't exist, are empty, or hold less
+     *                                  than this are left alone. If negative, we
+     *                                  don't look.
+     * @param jobWorkspaceBudgetInBytes If >0, how much the folders (i.e. one
+     *                                  job's workspaces on one node) can hold
+     *                                  between them before we delete any. The
+     *                                  least recently used are deleted first, and
+     *                                  only until the rest fit.
+     */
+    DeletionOptions(boolean useTrash, @CheckForNull String trashFolder, int reaperThreads, int deletionThreads,
+            long nodeTimeoutInMs, long folderTimeoutInMs, int maxRetries, long preScanMinSizeInBytes,
+            long jobWorkspaceBudgetInBytes) {
+        this(useTrash, trashFolder, reaperThreads, deletionThreads, nodeTimeoutInMs, folderTimeoutInMs, maxRetries,
+                preScanMinSizeInBytes, jobWorkspaceBudgetInBytes, new String[0], new String[0], true);
+    }
+
+    private DeletionOptions(boolean useTrash, String trashFolder, int reaperThreads, int deletionThreads,
+            long nodeTimeoutInMs, long folderTimeoutInMs, int maxRetries, long preScanMinSizeInBytes,
+            long jobWorkspaceBudgetInBytes, String[] keepGlobs, String[] deleteGlobs, boolean logFolders) {
+        this.useTrash = useTrash;
+        this.trashFolder = trashFolder;
+        this.reaperThreads = reaperThreads;
+        this.deletionThreads = deletionThreads;
+        this.nodeTimeoutInMs = nodeTimeoutInMs;
+        this.folderTimeoutInMs = folderTimeoutInMs;
+        this.maxRetries = maxRetries;
+        this.preScanMinSizeInBytes = preScanMinSizeInBytes;
+        this.jobWorkspaceBudgetInBytes = jobWorkspaceBudgetInBytes;
+        this.keepGlobs = keepGlobs;
+        this.deleteGlobs = deleteGlobs;
+        this.logFolders = logFolders;
+    }
+
+    /**
+     * @param newDeletionThreads The number of threads to use instead.
+     * @return A copy of these options with a different
+     *         {@link #getDeletionThreads()}.
+     */
+    DeletionOptions withDeletionThreads(int newDeletionThreads) {
+        return new DeletionOptions(useTrash, trashFolder, reaperThreads, newDeletionThreads, nodeTimeoutInMs,
+                folderTimeoutInMs, maxRetries, preScanMinSizeInBytes, jobWorkspaceBudgetInBytes, keepGlobs, deleteGlobs,
+                logFolders);
+    }
+
+    /**
+     * @param newNodeTimeoutInMs The node time limit to use instead, e.g. whatever
+     *                           is left of it.
+     * @return A copy of these options with a different
+     *         {@link #getNodeTimeoutInMs()}.
+     */
+    DeletionOptions withNodeTimeoutInMs(long newNodeTimeoutInMs) {
+        return new DeletionOptions(useTrash, trashFolder, reaperThreads, deletionThreads, newNodeTimeoutInMs,
+                folderTimeoutInMs, maxRetries, preScanMinSizeInBytes, jobWorkspaceBudgetInBytes, keepGlobs, deleteGlobs,
+                logFolders);
+    }
+
+    /**
+     * @param newJobWorkspaceBudgetInBytes The budget to use instead, e.g. one
+     *                                     set for a particular node.
+     * @return A copy of these options with a different
+     *         {@link #getJobWorkspaceBudgetInBytes()}.
+     */
+    DeletionOptions withJobWorkspaceBudgetInBytes(long newJobWorkspaceBudgetInBytes) {
+        return new DeletionOptions(useTrash, trashFolder, reaperThreads, deletionThreads, nodeTimeoutInMs,
+                folderTimeoutInMs, maxRetries, preScanMinSizeInBytes, newJobWorkspaceBudgetInBytes, keepGlobs,
+                deleteGlobs, logFolders);
+    }
+
+    /**
+     * @param newKeepGlobs   Globs matching things within each folder that are to
+     *                       be kept, e.g. <code>.git</code>.
+     * @param newDeleteGlobs Globs matching things within each folder that are to
+     *                       be deleted, or empty to delete everything that isn't
+     *                       kept.
+     * @return A copy of these options with different {@link #getKeepGlobs()} and
+     *         {@link #getDeleteGlobs()}.
+     */
+    DeletionOptions withGlobs(List<String> newKeepGlobs, List<String> newDeleteGlobs) {
+        return new DeletionOptions(useTrash, trashFolder, reaperThreads, deletionThreads, nodeTimeoutInMs,
+                folderTimeoutInMs, maxRetries, preScanMinSizeInBytes, jobWorkspaceBudgetInBytes,
+                newKeepGlobs.toArray(new String[newKeepGlobs.size()]),
+                newDeleteGlobs.toArray(new String[newDeleteGlobs.size()]), logFolders);
+    }
+
+    /**
+     * @param newLogFolders If false, we only say what happened on each node rather
+     *                      than what we're doing with every folder.
+     * @return A copy of these options with a different {@link #getLogFolders()}.
+     */
+    DeletionOptions withLogFolders(boolean newLogFolders) {
+        return new DeletionOptions(useTrash, trashFolder, reaperThreads, deletionThreads, nodeTimeoutInMs,
+                folderTimeoutInMs, maxRetries, preScanMinSizeInBytes, jobWorkspaceBudgetInBytes, keepGlobs, deleteGlobs,
+                newLogFolders);
+    }
+
+    /** @return true if folders are to be moved into the trash. */
+    public boolean getUseTrash() {
+        return useTrash;
+    }
+
+    /** @return Where the trash lives. */
+    public @CheckForNull String getTrashFolder() {
+        return trashFolder;
+    }
+
+    /** @return How many threads the agent can use to empty its trash. */
+    public int getReaperThreads() {
+        return reaperThreads;
+    }
+
+    /** @return How many threads the agent can use to delete a folder. */
+    public int getDeletionThreads() {
+        return deletionThreads;
+    }
+
+    /** @return If >0, how long the agent can spend on all the folders it's given at once. */
+    public long getNodeTimeoutInMs() {
+        return nodeTimeoutInMs;
+    }
+
+    /** @return If >0, how long the agent can spend on any one folder. */
+    public long getFolderTimeoutInMs() {
+        return folderTimeoutInMs;
+    }
+
+    /** @return How many times we try again after a transient failure. */
+    public int getMaxRetries() {
+        return maxRetries;
+    }
+
+    /**
+     * @return If >=0, folders that don't exist, are empty, or hold less than this
+     *         are left alone. If negative, we delete without looking first.
+     */
+    public long getPreScanMinSizeInBytes() {
+        return preScanMinSizeInBytes;
+    }
+
+    /**
+     * @return If >0, how much the folders we're given can hold between them before
+     *         we delete any, least recently used first.
+     */
+    public long getJobWorkspaceBudgetInBytes() {
+        return jobWorkspaceBudgetInBytes;
+    }
+
+    /** @return Globs matching things within each folder that are to be kept. */
+    public List<String> getKeepGlobs() {
+        return ImmutableList.copyOf(keepGlobs);
+    }
+
+    /**
+     * @return Globs matching things within each folder that are to be deleted. If
+     *         empty, everything that isn't kept is deleted.
+     */
+    public List<String> getDeleteGlobs() {
+        return ImmutableList.copyOf(deleteGlobs);
+    }
+
+    /**
+     * @return true if the build log is to say what's being done with each folder.
+     *         Problems are logged regardless.
+     */
+    public boolean getLogFolders() {
+        return logFolders;
+    }
+
+    @Override
+    public String toString() {
+        return "DeletionOptions[useTrash=" + useTrash + ", trashFolder=" + trashFolder + ", reaperThreads="
+                + reaperThreads + ", deletionThreads=" + deletionThreads + ", nodeTimeoutInMs=" + nodeTimeoutInMs
+                + ", folderTimeoutInMs=" + folderTimeoutInMs + ", maxRetries=" + maxRetries + ", preScanMinSizeInBytes="
+                + preScanMinSizeInBytes + ", jobWorkspaceBudgetInBytes=" + jobWorkspaceBudgetInBytes + ", keepGlobs="
+                + Arrays.toString(keepGlobs) + ", deleteGlobs=" + Arrays.toString(deleteGlobs) + ", logFolders="
+                + logFolders + "]";
+    }
+}
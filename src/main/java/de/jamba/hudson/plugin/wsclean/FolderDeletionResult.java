@@ -0,0 +1,88 @@
+package de.jamba.hudson.plugin.wsclean;
+
+import java.io.Serializable;
+
+import javax.annotation.CheckForNull;
+import javax.annotation.Nonnull;
+
+/**
+ * The outcome of deleting the contents of one folder on an agent node, as
+ * returned by {@link DeleteFoldersCallable}.
+ */
+public class FolderDeletionResult implements Serializable {
+    private static final long serialVersionUID = 1L;
+
+    private final String folder;
+    private final String error;
+    private final long filesDeleted;
+    private final long bytesDeleted;
+    private final boolean timedOut;
+    private final boolean transientFailure;
+
+    FolderDeletionResult(@Nonnull String folder, @CheckForNull String error, long filesDeleted, long bytesDeleted) {
+        this(folder, error, filesDeleted, bytesDeleted, false, false);
+    }
+
+    FolderDeletionResult(@Nonnull String folder, @CheckForNull String error, long filesDeleted, long bytesDeleted,
+            boolean timedOut, boolean transientFailure) {
+        this.folder = folder;
+        this.error = error;
+        this.filesDeleted = filesDeleted;
+        this.bytesDeleted = bytesDeleted;
+        this.timedOut = timedOut;
+        this.transientFailure = transientFailure;
+    }
+
+    /** @return The (remote) path of the folder whose contents were deleted. */
+    public @Nonnull String getFolder() {
+        return folder;
+    }
+
+    /** @return true if everything within the folder was deleted. */
+    public boolean isSuccess() {
+        return error == null;
+    }
+
+    /** @return Why the deletion failed, or null if it succeeded. */
+    public @CheckForNull String getError() {
+        return error;
+    }
+
+    /** @return How many files (not directories) were removed. */
+    public long getFilesDeleted() {
+        return filesDeleted;
+    }
+
+    /**
+     * @return The total size of the files that were removed. Folders that were
+     *         moved to the trash count as zero, as their contents haven't been
+     *         deleted yet.
+     */
+    public long getBytesDeleted() {
+        return bytesDeleted;
+    }
+
+    /**
+     * @return true if the deletion failed because we ran out of time, rather than
+     *         because something couldn't be deleted.
+     */
+    public boolean isTimedOut() {
+        return timedOut;
+    }
+
+    /**
+     * @return true if the deletion failed for a reason that is likely to go away
+     *         by itself, so it's worth trying again.
+     * @see RetryPolicy#isTransient(Throwable)
+     */
+    public boolean isTransientFailure() {
+        return transientFailure;
+    }
+
+    @Override
+    public String toString() {
+        return "FolderDeletionResult[folder=" + folder + ", error=" + error + ", filesDeleted=" + filesDeleted
+                + ", bytesDeleted=" + bytesDeleted + ", timedOut=" + timedOut
+                + ", transientFailure=" + transientFailure + "]";
+    }
+}
@@ -0,0 +1,100 @@
+package de.jamba.hudson.plugin.wsclean;
+
+import java.io.Serializable;
+
+import javax.annotation.CheckForNull;
+import javax.annotation.Nonnull;
+
+/**
+ * What one folder on an agent node looked like before we tried to delete it, as
+ * returned by {@link StatFoldersCallable}. The entry count and size are only
+ * counted until we know enough to decide whether the folder is worth deleting,
+ * so they are lower bounds rather than exact figures.
+ */
+public class FolderStat implements Serializable {
+    private static final long serialVersionUID = 1L;
+
+    private final String folder;
+    private final boolean exists;
+    private final long entryCount;
+    private final long sizeInBytes;
+    private final long lastModified;
+    private final boolean complete;
+
+    FolderStat(@Nonnull String folder, boolean exists, long entryCount, long sizeInBytes, long lastModified) {
+        this(folder, exists, entryCount, sizeInBytes, lastModified, true);
+    }
+
+    FolderStat(@Nonnull String folder, boolean exists, long entryCount, long sizeInBytes, long lastModified,
+            boolean complete) {
+        this.folder = folder;
+        this.exists = exists;
+        this.entryCount = entryCount;
+        this.sizeInBytes = sizeInBytes;
+        this.lastModified = lastModified;
+        this.complete = complete;
+    }
+
+    /** @return The (remote) path of the folder. */
+    public @Nonnull String getFolder() {
+        return folder;
+    }
+
+    /** @return true if the folder exists. */
+    public boolean getExists() {
+        return exists;
+    }
+
+    /** @return How many files and folders we found within it, at least. */
+    public long getEntryCount() {
+        return entryCount;
+    }
+
+    /** @return The total size of the files we found within it, at least. */
+    public long getSizeInBytes() {
+        return sizeInBytes;
+    }
+
+    /** @return When the folder was last modified, or 0 if it doesn't exist. */
+    public long getLastModified() {
+        return lastModified;
+    }
+
+    /**
+     * @return false if we ran out of time before we'd looked at everything we
+     *         wanted to, so we can't tell whether it's worth deleting.
+     */
+    public boolean isComplete() {
+        return complete;
+    }
+
+    /**
+     * Decides whether the folder is worth deleting. If we didn't finish looking
+     * in it, we assume it is.
+     *
+     * @param minSizeInBytes Folders with less than this in them aren't worth it.
+     * @return Why it isn't worth deleting, or null if it is.
+     */
+    @CheckForNull
+    String getReasonToSkip(long minSizeInBytes) {
+        if (!exists) {
+            return "it does not exist";
+        }
+        if (!complete) {
+            return null;
+        }
+        if (entryCount == 0L) {
+            return "it is empty";
+        }
+        if (sizeInBytes < minSizeInBytes) {
+            return "it holds less than " + minSizeInBytes + " bytes";
+        }
+        return null;
+    }
+
+    @Override
+    public String toString() {
+        return "FolderStat[folder=" + folder + ", exists=" + exists + ", entryCount=" + entryCount + ", sizeInBytes="
+                + sizeInBytes + ", lastModified=" + lastModified + ", complete=" + complete + "]";
+    }
+}
@@ -0,0 +1,147 @@
+package de.jamba.hudson.plugin.wsclean;
+
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+
+import javax.annotation.Nonnull;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import com.google.common.util.concurrent.SettableFuture;
+
+/**
+ * Keeps track of every folder that's being deleted (or is queued for deletion)
+ * on every node, so that when several builds want the same folder deleted at
+ * the same time, only one of them deletes it and the others wait for it to be
+ * done.
+ */
+public class InFlightDeletions {
+    private static final Logger LOGGER = LoggerFactory.getLogger(InFlightDeletions.class);
+    private static final InFlightDeletions INSTANCE = new InFlightDeletions();
+
+    /** (node name, folder) to the deletion that's been promised. */
+    private final ConcurrentMap<Map.Entry<String, String>, SettableFuture<Void>> inFlight = Maps
+            .newConcurrentMap();
+
+    InFlightDeletions() {
+    }
+
+    /** @return the singleton instance */
+    static @Nonnull InFlightDeletions get() {
+        return INSTANCE;
+    }
+
+    /**
+     * Claims the folders on a node that nobody else is deleting. Every claim must
+     * be passed to {@link #release(Claim)} once the deletion has been done (or
+     * abandoned), otherwise anyone else wanting those folders deleted will wait
+     * forever.
+     *
+     * @param nodeName The name of the node the folders are on.
+     * @param folders  The folders we want deleted.
+     * @return A {@link Claim} saying which folders we must delete and which are
+     *         already being deleted by someone else.
+     */
+    @Nonnull
+    Claim claim(String nodeName, Iterable<String> folders) {
+        final Map<String, SettableFuture<Void>> ours = Maps.newLinkedHashMap();
+        final Map<String, SettableFuture<Void>> theirs = Maps.newLinkedHashMap();
+        for (final String folder : folders) {
+            final SettableFuture<Void> ourFuture = SettableFuture.create();
+            final SettableFuture<Void> existing = inFlight.putIfAbsent(Maps.immutableEntry(nodeName, folder),
+                    ourFuture);
+            if (existing == null) {
+                ours.put(folder, ourFuture);
+            } else {
+                theirs.put(folder, existing);
+            }
+        }
+        LOGGER.debug("claim({},): ours={}, theirs={}", nodeName, ours.keySet(), theirs.keySet());
+        return new Claim(nodeName, ours, theirs);
+    }
+
+    /**
+     * Says that we've finished with the folders we claimed, so anyone waiting for
+     * them can carry on. It's harmless to release a claim more than once.
+     *
+     * @param claim What we claimed.
+     */
+    void release(Claim claim) {
+        for (final Map.Entry<String, SettableFuture<Void>> e : claim.ours.entrySet()) {
+            final SettableFuture<Void> ourFuture = e.getValue();
+            inFlight.remove(Maps.immutableEntry(claim.nodeName, e.getKey()), ourFuture);
+            ourFuture.set(null);
+        }
+    }
+
+    /**
+     * Tells us if any folders on the node are being deleted, or are waiting to be.
+     *
+     * @param nodeName The name of the node.
+     * @return true if something is being deleted there.
+     */
+    boolean isBusyOn(String nodeName) {
+        for (final Map.Entry<String, String> key : inFlight.keySet()) {
+            if (key.getKey().equals(nodeName)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * @return How many folders are currently being deleted or are waiting to be
+     *         deleted.
+     */
+    int size() {
+        return inFlight.size();
+    }
+
+    /**
+     * The result of {@link InFlightDeletions#claim(String, Iterable)}.
+     */
+    static final class Claim {
+        private final String nodeName;
+        private final Map<String, SettableFuture<Void>> ours;
+        private final Map<String, SettableFuture<Void>> theirs;
+
+        private Claim(String nodeName, Map<String, SettableFuture<Void>> ours,
+                Map<String, SettableFuture<Void>> theirs) {
+            this.nodeName = nodeName;
+            this.ours = ours;
+            this.theirs = theirs;
+        }
+
+        /** @return The folders that we must delete. */
+        List<String> getFoldersToDelete() {
+            return Collections.unmodifiableList(Lists.newArrayList(ours.keySet()));
+        }
+
+        /** @return The folders that someone else is deleting for us. */
+        List<String> getFoldersDeletedElsewhere() {
+            return Collections.unmodifiableList(Lists.newArrayList(theirs.keySet()));
+        }
+
+        /**
+         * Waits until everyone else has finished deleting the folders they're
+         * deleting for us.
+         *
+         * @throws InterruptedException if we are interrupted while waiting.
+         */
+        void awaitOthers() throws InterruptedException {
+            for (final SettableFuture<Void> f : theirs.values()) {
+                try {
+                    f.get();
+                } catch (ExecutionException e) {
+                    // can't happen; we never set an exception
+                }
+            }
+        }
+    }
+}
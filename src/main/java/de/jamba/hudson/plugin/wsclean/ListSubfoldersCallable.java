@@ -0,0 +1,44 @@
+package de.jamba.hudson.plugin.wsclean;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Map;
+import java.util.TreeMap;
+
+import jenkins.security.MasterToSlaveCallable;
+
+/**
+ * Lists the folders within a folder on a node in a single remoting call,
+ * returning the name of each along with when it was last modified.
+ */
+class ListSubfoldersCallable extends MasterToSlaveCallable<Map<String, Long>, IOException> {
+    private static final long serialVersionUID = 1L;
+
+    private final String folder;
+
+    /**
+     * @param folder The (remote) path of the folder whose subfolders are to be
+     *               listed.
+     */
+    ListSubfoldersCallable(String folder) {
+        this.folder = folder;
+    }
+
+    @Override
+    public Map<String, Long> call() throws IOException {
+        final TreeMap<String, Long> result = new TreeMap<>();
+        final File[] children = new File(folder).listFiles();
+        if (children == null) {
+            if (new File(folder).exists()) {
+                throw new IOException("Unable to list " + folder);
+            }
+            return result; // nothing there
+        }
+        for (final File child : children) {
+            if (child.isDirectory()) {
+                result.put(child.getName(), child.lastModified());
+            }
+        }
+        return result;
+    }
+}
@@ -0,0 +1,30 @@
+package de.jamba.hudson.plugin.wsclean;
+
+import java.nio.charset.StandardCharsets;
+
+import org.slf4j.Logger;
+
+import hudson.console.LineTransformationOutputStream;
+import hudson.model.StreamBuildListener;
+
+/**
+ * A {@link hudson.model.BuildListener} for work that carries on after the
+ * build's own log has been closed. Each line written to it is sent to our
+ * {@link Logger} instead.
+ */
+final class LoggerBuildListener extends StreamBuildListener {
+    private static final long serialVersionUID = 1L;
+
+    /**
+     * @param logger Where each line will be logged.
+     * @param prefix Prepended to each line, to say what it relates to.
+     */
+    LoggerBuildListener(final Logger logger, final String prefix) {
+        super(new LineTransformationOutputStream() {
+            @Override
+            protected void eol(byte[] b, int len) {
+                logger.info("{}{}", prefix, trimEOL(new String(b, 0, len, StandardCharsets.UTF_8)));
+            }
+        }, StandardCharsets.UTF_8);
+    }
+}
@@ -0,0 +1,159 @@
+package de.jamba.hudson.plugin.wsclean;
+
+import java.util.Map;
+import java.util.Set;
+import java.util.WeakHashMap;
+
+import javax.annotation.Nonnull;
+
+import org.kohsuke.accmod.Restricted;
+import org.kohsuke.accmod.restrictions.NoExternalUse;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.common.collect.ImmutableSet;
+
+import hudson.Extension;
+import hudson.model.Label;
+import hudson.model.Node;
+import hudson.slaves.ComputerListener;
+import jenkins.model.Jenkins;
+import jenkins.model.NodeListener;
+
+/**
+ * Remembers which nodes each label refers to, and which nodes can be used by
+ * any build, so that we don't have to work this out again for every build.
+ * Everything is forgotten whenever a node is added, removed or reconfigured
+ * (e.g. relabelled or changed to/from exclusive use), so we never give out of
+ * date answers.
+ * <p>
+ * Jenkins keeps a single {@link Label} instance for each label expression, so
+ * caching by {@link Label} is caching by label expression.
+ */
+public class NodeCache {
+    private static final Logger LOGGER = LoggerFactory.getLogger(NodeCache.class);
+    private static final NodeCache INSTANCE = new NodeCache();
+
+    /** Guarded by this. Weak so we don't keep labels Jenkins has discarded. */
+    private final Map<Label, ImmutableSet<Node>> nodesByLabel = new WeakHashMap<>();
+    /** Guarded by this. */
+    private Jenkins allNonexclusiveNodesOwner;
+    /** Guarded by this. */
+    private ImmutableSet<Node> allNonexclusiveNodes;
+    /** Incremented whenever we're told to forget everything. Guarded by this. */
+    private long generation;
+
+    NodeCache() {
+    }
+
+    /** @return the singleton instance */
+    static @Nonnull NodeCache get() {
+        return INSTANCE;
+    }
+
+    /**
+     * Gets the nodes that a label refers to.
+     *
+     * @param label The label.
+     * @return The nodes that have that label. This will not be null.
+     */
+    @Nonnull
+    Set<Node> getNodes(@Nonnull Label label) {
+        final long generationBeforeWeStarted;
+        synchronized (this) {
+            final ImmutableSet<Node> cached = nodesByLabel.get(label);
+            if (cached != null) {
+                return cached;
+            }
+            generationBeforeWeStarted = generation;
+        }
+        final Set<Node> nodes = label.getNodes();
+        final ImmutableSet<Node> result = nodes == null ? ImmutableSet.<Node>of() : ImmutableSet.copyOf(nodes);
+        synchronized (this) {
+            // don't cache what we found if the nodes changed while we were looking
+            if (generation == generationBeforeWeStarted) {
+                nodesByLabel.put(label, result);
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Gets all the nodes (including the built-in node) that are set to be used "as
+     * much as possible", i.e. that any build could use.
+     *
+     * @param jenkins The Jenkins instance holding all the nodes.
+     * @return The nodes that can be used by anything. This will not be null.
+     */
+    @Nonnull
+    Set<Node> getAllNonexclusiveNodes(@Nonnull Jenkins jenkins) {
+        final long generationBeforeWeStarted;
+        synchronized (this) {
+            if (allNonexclusiveNodes != null && allNonexclusiveNodesOwner == jenkins) {
+                return allNonexclusiveNodes;
+            }
+            generationBeforeWeStarted = generation;
+        }
+        final ImmutableSet.Builder<Node> builder = ImmutableSet.builder();
+        for (final Node n : jenkins.getNodes()) {
+            if (Node.Mode.NORMAL.equals(n.getMode())) {
+                builder.add(n);
+            }
+        }
+        if (Node.Mode.NORMAL.equals(jenkins.getMode())) {
+            builder.add(jenkins);
+        }
+        final ImmutableSet<Node> result = builder.build();
+        synchronized (this) {
+            if (generation == generationBeforeWeStarted) {
+                allNonexclusiveNodesOwner = jenkins;
+                allNonexclusiveNodes = result;
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Forgets everything we've cached.
+     */
+    synchronized void invalidate() {
+        generation++;
+        nodesByLabel.clear();
+        allNonexclusiveNodesOwner = null;
+        allNonexclusiveNodes = null;
+        LOGGER.debug("invalidate(): generation={}", generation);
+    }
+
+    /** Forgets everything when nodes are added, removed or changed. */
+    @Restricted(NoExternalUse.class)
+    @Extension
+    public static final class NodeListenerImpl extends NodeListener {
+        @Override
+        protected void onCreated(@Nonnull Node node) {
+            get().invalidate();
+        }
+
+        @Override
+        protected void onUpdated(@Nonnull Node oldOne, @Nonnull Node newOne) {
+            get().invalidate();
+        }
+
+        @Override
+        protected void onDeleted(@Nonnull Node node) {
+            get().invalidate();
+        }
+    }
+
+    /**
+     * Forgets everything when the configuration changes. This catches changes to
+     * the built-in node, which don't cause {@link NodeListener} events.
+     */
+    @Restricted(NoExternalUse.class)
+    @Extension
+    public static final class ComputerListenerImpl extends ComputerListener {
+        @Override
+        public void onConfigurationChange() {
+            get().invalidate();
+        }
+    }
+}
@@ -0,0 +1,124 @@
+package de.jamba.hudson.plugin.wsclean;
+
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+
+import javax.annotation.CheckForNull;
+
+import com.google.common.collect.LinkedHashMultimap;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import com.google.common.collect.Multimap;
+
+import hudson.model.Computer;
+import hudson.model.Node;
+import hudson.node_monitors.DiskSpaceMonitor;
+import hudson.node_monitors.DiskSpaceMonitorDescriptor.DiskSpace;
+import jenkins.model.Jenkins;
+
+/**
+ * Uses the free disk space that Jenkins' {@link DiskSpaceMonitor} has already
+ * recorded for each node to decide which nodes most need cleaning. We never ask
+ * the nodes themselves; if Jenkins doesn't (yet) know how much space a node has
+ * then we treat it as needing cleaning.
+ */
+final class NodeDiskSpace {
+    private NodeDiskSpace() {
+    }
+
+    /**
+     * Gets the free space on a node's root (workspace) filesystem, as last
+     * recorded by Jenkins.
+     *
+     * @param node The node.
+     * @return The free space in bytes, or null if not known.
+     */
+    @CheckForNull
+    static Long getFreeSpace(@CheckForNull Node node) {
+        if (node == null) {
+            return null;
+        }
+        final Computer computer = node.toComputer();
+        if (computer == null) {
+            return null;
+        }
+        final Map<String, Object> monitorData = computer.getMonitorData();
+        if (monitorData == null) {
+            return null;
+        }
+        final Object data = monitorData.get(DiskSpaceMonitor.class.getName());
+        if (!(data instanceof DiskSpace)) {
+            return null;
+        }
+        return ((DiskSpace) data).getFreeSize();
+    }
+
+    /**
+     * Finds the nodes that are known to have more than a certain amount of free
+     * space.
+     *
+     * @param jenkins        Maps node names to nodes.
+     * @param nodeNames      The node names to consider.
+     * @param thresholdBytes The amount of free space above which a node doesn't
+     *                       need cleaning.
+     * @return The names of the nodes with more free space than that.
+     */
+    static List<String> getNodesWithMoreFreeSpaceThan(Jenkins jenkins, Iterable<String> nodeNames,
+            long thresholdBytes) {
+        final List<String> result = Lists.newArrayList();
+        for (final String nodeName : nodeNames) {
+            final Long freeSpace = getFreeSpace(getNode(jenkins, nodeName));
+            if (freeSpace != null && freeSpace > thresholdBytes) {
+                result.add(nodeName);
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Re-orders a plan so that the nodes with the least free space come first.
+     * Nodes whose free space isn't known come after those whose free space is
+     * known. Nodes with the same free space stay in the order they were in.
+     *
+     * @param jenkins Maps node names to nodes.
+     * @param plan    Map of node names to workspace locations.
+     * @param <V>     The type of the values in the plan.
+     * @return A new map of the same node names to the same workspace locations,
+     *         ordered by free space.
+     */
+    static <V> Multimap<String, V> orderByFreeSpace(Jenkins jenkins, Multimap<String, V> plan) {
+        final Map<String, Long> freeSpaceByNodeName = Maps.newHashMap();
+        for (final String nodeName : plan.keySet()) {
+            freeSpaceByNodeName.put(nodeName, getFreeSpace(getNode(jenkins, nodeName)));
+        }
+        final List<String> nodeNames = Lists.newArrayList(plan.keySet());
+        Collections.sort(nodeNames, new Comparator<String>() {
+            @Override
+            public int compare(String o1, String o2) {
+                final Long free1 = freeSpaceByNodeName.get(o1);
+                final Long free2 = freeSpaceByNodeName.get(o2);
+                if (free1 == null) {
+                    return free2 == null ? 0 : 1;
+                }
+                if (free2 == null) {
+                    return -1;
+                }
+                return free1.compareTo(free2);
+            }
+        });
+        final Multimap<String, V> result = LinkedHashMultimap.create();
+        for (final String nodeName : nodeNames) {
+            result.putAll(nodeName, plan.get(nodeName));
+        }
+        return result;
+    }
+
+    private static Node getNode(Jenkins jenkins, String nodeName) {
+        if (nodeName.isEmpty()) {
+            return jenkins;
+        }
+        return jenkins.getNode(nodeName);
+    }
+}
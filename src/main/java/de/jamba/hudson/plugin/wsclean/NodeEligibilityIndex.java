@@ -0,0 +1,203 @@
+package de.jamba.hudson.plugin.wsclean;
+
+import java.util.List;
+import java.util.Map;
+import java.util.regex.Pattern;
+
+import javax.annotation.Nonnull;
+
+import org.kohsuke.accmod.Restricted;
+import org.kohsuke.accmod.restrictions.NoExternalUse;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.common.collect.ImmutableSet;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+
+import hudson.Extension;
+import hudson.model.Node;
+import hudson.slaves.ComputerListener;
+import jenkins.model.Jenkins;
+import jenkins.model.NodeListener;
+
+/**
+ * Remembers which nodes we've been told to leave alone, either because their
+ * name matches one of {@link CommonConfig#getNodeNamesToSkipPatterns()} or
+ * because they have a {@link DisablePrePostCleanNodeProperty}.
+ * <p>
+ * Each node name is only tested against the patterns once for each version of
+ * the patterns, and the nodes with the property are only looked for once each
+ * time nodes are added, removed or reconfigured, so filtering the nodes we plan
+ * to clean is just a lookup.
+ */
+public class NodeEligibilityIndex {
+    private static final Logger LOGGER = LoggerFactory.getLogger(NodeEligibilityIndex.class);
+    private static final NodeEligibilityIndex INSTANCE = new NodeEligibilityIndex();
+
+    /** The patterns {@link #skippedByName} was calculated for. Guarded by this. */
+    private Pattern[] patterns;
+    /** Node name to whether it matches {@link #patterns}. Guarded by this. */
+    private final Map<String, Boolean> skippedByName = Maps.newHashMap();
+    /** The Jenkins {@link #disabledNodeNames} was calculated for. Guarded by this. */
+    private Jenkins disabledNodeNamesOwner;
+    /** Names of nodes with the disable property. Guarded by this. */
+    private ImmutableSet<String> disabledNodeNames;
+    /** Incremented whenever nodes change. Guarded by this. */
+    private long generation;
+
+    NodeEligibilityIndex() {
+    }
+
+    /** @return the singleton instance */
+    static @Nonnull NodeEligibilityIndex get() {
+        return INSTANCE;
+    }
+
+    /**
+     * Finds the node names that match any of the given patterns.
+     *
+     * @param nodeNames       The node names to consider.
+     * @param patternsToMatch The patterns to match them against. Results are
+     *                        remembered for as long as we're given this same
+     *                        array.
+     * @return The node names that matched.
+     */
+    synchronized List<String> getNodesToSkipDueToTheirName(Iterable<String> nodeNames, Pattern[] patternsToMatch) {
+        if (patterns != patternsToMatch) {
+            skippedByName.clear();
+            patterns = patternsToMatch;
+        }
+        final List<String> result = Lists.newArrayList();
+        for (final String nodeName : nodeNames) {
+            Boolean skipped = skippedByName.get(nodeName);
+            if (skipped == null) {
+                skipped = matchesAny(nodeName, patternsToMatch);
+                skippedByName.put(nodeName, skipped);
+            }
+            if (skipped) {
+                result.add(nodeName);
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Finds the node names whose nodes have a
+     * {@link DisablePrePostCleanNodeProperty}.
+     *
+     * @param nodeNames The node names to consider.
+     * @param jenkins   The Jenkins instance holding all the nodes.
+     * @return The node names that are disabled.
+     */
+    List<String> getNodesWithDisableProperty(Iterable<String> nodeNames, Jenkins jenkins) {
+        final ImmutableSet<String> disabled = getDisabledNodeNames(jenkins);
+        final List<String> result = Lists.newArrayList();
+        for (final String nodeName : nodeNames) {
+            if (disabled.contains(nodeName)) {
+                result.add(nodeName);
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Forgets everything we know about the nodes. Called when nodes are added,
+     * removed or changed.
+     */
+    synchronized void nodesChanged() {
+        generation++;
+        disabledNodeNamesOwner = null;
+        disabledNodeNames = null;
+        LOGGER.debug("nodesChanged(): generation={}", generation);
+    }
+
+    /**
+     * Forgets what we know about a node that no longer exists.
+     *
+     * @param nodeName The name of the node.
+     */
+    synchronized void nodeDeleted(String nodeName) {
+        skippedByName.remove(nodeName);
+        nodesChanged();
+    }
+
+    /**
+     * Forgets everything we know about node names. Called when the patterns
+     * change.
+     */
+    synchronized void patternsChanged() {
+        patterns = null;
+        skippedByName.clear();
+    }
+
+    private ImmutableSet<String> getDisabledNodeNames(Jenkins jenkins) {
+        final long generationBeforeWeStarted;
+        synchronized (this) {
+            if (disabledNodeNames != null && disabledNodeNamesOwner == jenkins) {
+                return disabledNodeNames;
+            }
+            generationBeforeWeStarted = generation;
+        }
+        final ImmutableSet.Builder<String> builder = ImmutableSet.builder();
+        for (final Node n : jenkins.getNodes()) {
+            if (n.getNodeProperty(DisablePrePostCleanNodeProperty.class) != null) {
+                builder.add(n.getNodeName());
+            }
+        }
+        if (jenkins.getNodeProperty(DisablePrePostCleanNodeProperty.class) != null) {
+            builder.add("");
+        }
+        final ImmutableSet<String> result = builder.build();
+        synchronized (this) {
+            // don't remember what we found if the nodes changed while we were looking
+            if (generation == generationBeforeWeStarted) {
+                disabledNodeNamesOwner = jenkins;
+                disabledNodeNames = result;
+            }
+        }
+        return result;
+    }
+
+    private static boolean matchesAny(String s, Pattern[] patternsToMatch) {
+        for (final Pattern p : patternsToMatch) {
+            if (p.matcher(s).matches()) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /** Keeps us up to date as nodes are added, removed or changed. */
+    @Restricted(NoExternalUse.class)
+    @Extension
+    public static final class NodeListenerImpl extends NodeListener {
+        @Override
+        protected void onCreated(@Nonnull Node node) {
+            get().nodesChanged();
+        }
+
+        @Override
+        protected void onUpdated(@Nonnull Node oldOne, @Nonnull Node newOne) {
+            get().nodesChanged();
+        }
+
+        @Override
+        protected void onDeleted(@Nonnull Node node) {
+            get().nodeDeleted(node.getNodeName());
+        }
+    }
+
+    /**
+     * Keeps us up to date when the configuration changes. This catches changes to
+     * the built-in node, which don't cause {@link NodeListener} events.
+     */
+    @Restricted(NoExternalUse.class)
+    @Extension
+    public static final class ComputerListenerImpl extends ComputerListener {
+        @Override
+        public void onConfigurationChange() {
+            get().nodesChanged();
+        }
+    }
+}
@@ -0,0 +1,55 @@
+package de.jamba.hudson.plugin.wsclean;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.charset.StandardCharsets;
+
+import hudson.model.BuildListener;
+import hudson.util.StreamBuildListener;
+
+/**
+ * Holds onto what we've got to say about one node until that node is done, so
+ * that the build log gets one block per node instead of lines from every node
+ * interleaved. It also means the threads cleaning each node only contend for
+ * the build log once each, rather than once per line.
+ * <p>
+ * Each node's log is written to by whichever thread is cleaning that node, but
+ * it may be flushed by the thread that's waiting for it if that node's clean
+ * is abandoned, so anything it holds is never lost.
+ */
+final class NodeLog extends StreamBuildListener {
+    private static final long serialVersionUID = 1L;
+
+    private final transient ByteArrayOutputStream buffer;
+    private final transient BuildListener target;
+
+    /**
+     * @param target Where everything ends up when we {@link #flush()}.
+     */
+    NodeLog(BuildListener target) {
+        this(new ByteArrayOutputStream(), target);
+    }
+
+    private NodeLog(ByteArrayOutputStream buffer, BuildListener target) {
+        super(buffer, StandardCharsets.UTF_8);
+        this.buffer = buffer;
+        this.target = target;
+    }
+
+    /** @return Where everything ends up when we {@link #flush()}. */
+    BuildListener getTarget() {
+        return target;
+    }
+
+    /**
+     * Writes everything logged so far to the build log in one go, and then
+     * forgets it. Does nothing if nothing has been logged since last time.
+     */
+    void flush() {
+        getLogger().flush();
+        final String text = new String(buffer.toByteArray(), StandardCharsets.UTF_8);
+        buffer.reset();
+        if (!text.isEmpty()) {
+            target.getLogger().print(text);
+        }
+    }
+}
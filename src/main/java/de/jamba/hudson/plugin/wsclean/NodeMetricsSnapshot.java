@@ -0,0 +1,84 @@
+package de.jamba.hudson.plugin.wsclean;
+
+import java.beans.ConstructorProperties;
+
+import javax.annotation.Nonnull;
+
+/**
+ * What we've done on one node, as recorded by {@link CleanupMetrics}. This is
+ * an unchanging copy of the figures at the time it was taken.
+ */
+public class NodeMetricsSnapshot {
+    private final TimerSnapshot queueWait;
+    private final TimerSnapshot deletion;
+    private final long filesDeleted;
+    private final long bytesDeleted;
+    private final long failures;
+    private final long interruptions;
+    private final long retries;
+
+    /**
+     * @param queueWait     How long deletions waited before they started.
+     * @param deletion      How long deletions took once started.
+     * @param filesDeleted  How many files have been deleted.
+     * @param bytesDeleted  How many bytes those files contained.
+     * @param failures      How many folders could not be deleted.
+     * @param interruptions How many deletions were interrupted (e.g. by a
+     *                      timeout).
+     * @param retries       How many times deletions were tried again.
+     */
+    @ConstructorProperties({ "queueWait", "deletion", "filesDeleted", "bytesDeleted", "failures", "interruptions",
+            "retries" })
+    public NodeMetricsSnapshot(@Nonnull TimerSnapshot queueWait, @Nonnull TimerSnapshot deletion, long filesDeleted,
+            long bytesDeleted, long failures, long interruptions, long retries) {
+        this.queueWait = queueWait;
+        this.deletion = deletion;
+        this.filesDeleted = filesDeleted;
+        this.bytesDeleted = bytesDeleted;
+        this.failures = failures;
+        this.interruptions = interruptions;
+        this.retries = retries;
+    }
+
+    /** @return How long deletions waited for a thread before they started. */
+    public @Nonnull TimerSnapshot getQueueWait() {
+        return queueWait;
+    }
+
+    /** @return How long deletions took once they had started. */
+    public @Nonnull TimerSnapshot getDeletion() {
+        return deletion;
+    }
+
+    /** @return How many files have been deleted. */
+    public long getFilesDeleted() {
+        return filesDeleted;
+    }
+
+    /** @return How many bytes the deleted files contained. */
+    public long getBytesDeleted() {
+        return bytesDeleted;
+    }
+
+    /** @return How many folders (or whole calls to the node) failed. */
+    public long getFailures() {
+        return failures;
+    }
+
+    /** @return How many deletions were interrupted before they completed. */
+    public long getInterruptions() {
+        return interruptions;
+    }
+
+    /** @return How many times deletions were tried again after a transient failure. */
+    public long getRetries() {
+        return retries;
+    }
+
+    @Override
+    public String toString() {
+        return "NodeMetricsSnapshot[queueWait=" + queueWait + ", deletion=" + deletion + ", filesDeleted="
+                + filesDeleted + ", bytesDeleted=" + bytesDeleted + ", failures=" + failures + ", interruptions="
+                + interruptions + ", retries=" + retries + "]";
+    }
+}
@@ -0,0 +1,26 @@
+package de.jamba.hudson.plugin.wsclean;
+
+/**
+ * What happened when we tried to clean one node.
+ */
+public enum NodeOutcome {
+    /** Everything we asked the node to delete was deleted. */
+    COMPLETED("completed"),
+    /** The node ran out of time before it finished, so we stopped it. */
+    TIMED_OUT("timed out"),
+    /** The node finished, but couldn't delete some or all of what we asked. */
+    FAILED("failed"),
+    /** We didn't ask the node to delete anything, e.g. because it went offline. */
+    SKIPPED("skipped");
+
+    private final String description;
+
+    private NodeOutcome(String description) {
+        this.description = description;
+    }
+
+    /** @return How we describe this outcome in the build log. */
+    public String getDescription() {
+        return description;
+    }
+}
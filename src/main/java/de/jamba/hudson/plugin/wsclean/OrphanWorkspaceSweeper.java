@@ -0,0 +1,417 @@
+package de.jamba.hudson.plugin.wsclean;
+
+import java.io.IOException;
+import java.io.PrintStream;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.regex.Pattern;
+
+import javax.annotation.CheckForNull;
+
+import org.kohsuke.accmod.Restricted;
+import org.kohsuke.accmod.restrictions.NoExternalUse;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import com.google.common.collect.Sets;
+
+import de.jamba.hudson.plugin.wsclean.InFlightDeletions.Claim;
+import hudson.Extension;
+import hudson.FilePath;
+import hudson.model.AbstractProject;
+import hudson.model.AsyncPeriodicWork;
+import hudson.model.Computer;
+import hudson.model.Executor;
+import hudson.model.Node;
+import hudson.model.Queue;
+import hudson.model.Slave;
+import hudson.model.TaskListener;
+import hudson.model.TopLevelItem;
+import hudson.remoting.RequestAbortedException;
+import jenkins.model.Jenkins;
+
+/**
+ * Periodically looks for workspaces on agents that don't belong to any job, e.g.
+ * those left behind by jobs that were deleted or renamed, and deletes them.
+ * <p>
+ * Each agent's workspace root is listed with a single remote call, and every
+ * folder in it that isn't the workspace (or a "@" variant of the workspace) of
+ * a job we know about, isn't a job's custom workspace, isn't the trash folder
+ * and hasn't been modified recently is deleted. Deletion is done in batches of
+ * {@link CommonConfig#getOrphanSweepBatchSize()} folders, with a pause between
+ * batches, so the agents aren't swamped, and each call to an agent is limited
+ * to the node timeout, so an agent that has locked up can't stop the sweep.
+ * Nodes we've been told to leave alone are left alone. This is off unless
+ * {@link CommonConfig#getOrphanSweepIntervalInHours()} is set.
+ * <p>
+ * Folders that builds running on the agent are using are left alone too, and
+ * an agent is left until the next sweep if we're deleting anything else on it,
+ * or if it's running something whose workspace we can't see, e.g. a Pipeline
+ * <code>node</code> block. This is checked again before every batch.
+ * <p>
+ * Note that Pipeline jobs' custom workspaces (e.g. from a <code>ws</code> step)
+ * are not protected once their builds have finished, as we've no way of
+ * knowing where they are. If they're within the workspace root and haven't
+ * been modified for {@link #MINIMUM_AGE_IN_MS}, they will be deleted.
+ * <p>
+ * The built-in node isn't swept, as it doesn't have a single workspace root.
+ */
+@Extension
+public class OrphanWorkspaceSweeper extends AsyncPeriodicWork {
+    private static final Logger LOGGER = LoggerFactory.getLogger(OrphanWorkspaceSweeper.class);
+    /** Folders modified more recently than this are left alone, in case they're about to be used. */
+    static final long MINIMUM_AGE_IN_MS = TimeUnit.DAYS.toMillis(1);
+    /** How long we wait between deleting one batch of folders and the next. */
+    static final long PAUSE_BETWEEN_BATCHES_IN_MS = TimeUnit.SECONDS.toMillis(30);
+    /**
+     * Suffix on a protected name that means any folder whose name starts with
+     * the rest of it is protected, e.g. because a custom workspace has a
+     * variable part-way through its name.
+     */
+    static final String ANY_SUFFIX = "*";
+
+    private volatile long lastSweepTimestamp;
+
+    public OrphanWorkspaceSweeper() {
+        super("Distributed workspace clean orphan sweeper");
+    }
+
+    @Override
+    public long getRecurrencePeriod() {
+        // we check this often, but only sweep as often as we've been configured to
+        return HOUR;
+    }
+
+    @Override
+    protected void execute(TaskListener listener) throws IOException, InterruptedException {
+        final CommonConfig.Snapshot config = CommonConfig.get().getSnapshot();
+        final int intervalInHours = config.getOrphanSweepIntervalInHours();
+        if (intervalInHours <= 0) {
+            return; // we're turned off
+        }
+        final long now = System.currentTimeMillis();
+        // allow for our periodic checks not happening exactly on time
+        final long interval = TimeUnit.HOURS.toMillis(intervalInHours) - MIN;
+        if (now - lastSweepTimestamp < interval) {
+            return;
+        }
+        lastSweepTimestamp = now;
+        sweep(Jenkins.getInstance(), config.getNodeNamesToSkipPatterns(), config.getDeletionOptions(),
+                config.getOrphanSweepBatchSize(), PAUSE_BETWEEN_BATCHES_IN_MS, listener);
+    }
+
+    /**
+     * Sweeps all the agents we're allowed to sweep.
+     *
+     * @param jenkins             Contains all our nodes and jobs.
+     * @param nodeNamesToSkip     Regexes matching names of nodes to leave alone.
+     * @param deletionOptions     How the agents are to delete things.
+     * @param batchSize           How many folders to delete at once.
+     * @param pauseBetweenBatches How long to wait between batches.
+     * @param listener            Where to log what we're doing.
+     * @throws InterruptedException if we are interrupted.
+     */
+    @Restricted(NoExternalUse.class) // unit-test only
+    void sweep(Jenkins jenkins, Pattern[] nodeNamesToSkip, DeletionOptions deletionOptions, int batchSize,
+            long pauseBetweenBatches, TaskListener listener) throws InterruptedException {
+        final PrintStream log = listener.getLogger();
+        final Map<String, Slave> agents = Maps.newTreeMap();
+        for (final Node node : jenkins.getNodes()) {
+            if (node instanceof Slave) {
+                agents.put(node.getNodeName(), (Slave) node);
+            }
+        }
+        final NodeEligibilityIndex eligibility = NodeEligibilityIndex.get();
+        agents.keySet().removeAll(eligibility.getNodesToSkipDueToTheirName(agents.keySet(), nodeNamesToSkip));
+        agents.keySet().removeAll(eligibility.getNodesWithDisableProperty(agents.keySet(), jenkins));
+        final List<TopLevelItem> items = jenkins.getAllItems(TopLevelItem.class);
+        for (final Slave agent : agents.values()) {
+            final String nodeName = agent.getNodeName();
+            try {
+                final List<String> orphans = findOrphans(jenkins, agent, items, deletionOptions, log);
+                if (orphans != null && !orphans.isEmpty()) {
+                    deleteInBatches(jenkins, agent, orphans, deletionOptions, batchSize, pauseBetweenBatches, log);
+                }
+            } catch (TimeoutException ex) {
+                LOGGER.warn("Unable to sweep node {} as it did not answer in time", nodeName);
+                log.println("Unable to sweep " + nodeName + " as it did not answer in time.");
+            } catch (IOException | RequestAbortedException ex) {
+                LOGGER.warn("Unable to sweep node {}", nodeName, ex);
+                log.println("Unable to sweep " + nodeName + ": " + ex);
+            }
+        }
+    }
+
+    /**
+     * Lists the agent's workspace root and works out which of the folders in it
+     * nobody is using.
+     *
+     * @return The names of the unused folders, or null if the agent is offline
+     *         or we can't tell what's in use.
+     */
+    @CheckForNull
+    private List<String> findOrphans(Jenkins jenkins, Slave agent, Iterable<TopLevelItem> items,
+            DeletionOptions deletionOptions, PrintStream log)
+            throws IOException, InterruptedException, TimeoutException {
+        final String nodeName = agent.getNodeName();
+        final FilePath root = agent.getWorkspaceRoot();
+        final FilePath nodeRoot = agent.getRootPath();
+        if (root == null || nodeRoot == null) {
+            log.println("Skipping " + nodeName + " as it is offline.");
+            return null;
+        }
+        final Set<String> protectedNames = findProtectedNames(agent, root, nodeRoot, items, deletionOptions);
+        if (protectedNames == null) {
+            log.println("Skipping " + nodeName + " as a custom workspace could be anywhere in " + root);
+            return null;
+        }
+        final Set<String> namesInUse = findNamesInUse(jenkins.getComputer(nodeName), nodeName, root);
+        if (namesInUse == null) {
+            log.println("Skipping " + nodeName + " as it is busy.");
+            return null;
+        }
+        protectedNames.addAll(namesInUse);
+        final long nodeTimeoutInMs = PrePostClean.getDeletionOptionsFor(agent, deletionOptions).getNodeTimeoutInMs();
+        final Map<String, Long> subfolders = PrePostClean.actWithTimeout(root,
+                new ListSubfoldersCallable(root.getRemote()), nodeTimeoutInMs);
+        final List<String> orphanNames = findOrphanNames(subfolders, protectedNames,
+                System.currentTimeMillis() - MINIMUM_AGE_IN_MS);
+        LOGGER.debug("findOrphans({}): root={}, protectedNames={}, subfolders={}, orphanNames={}", nodeName, root,
+                protectedNames, subfolders.keySet(), orphanNames);
+        return orphanNames;
+    }
+
+    /**
+     * Works out which folder names in the agent's workspace root are being used
+     * right now by builds running on the agent.
+     *
+     * @param computer The agent's computer, or null if it hasn't got one.
+     * @param nodeName The name of the agent.
+     * @param root     The agent's workspace root.
+     * @return The names of the folders in the workspace root that builds are
+     *         using, or null if we're deleting something on the agent or it's
+     *         running something whose workspace we can't see, meaning we should
+     *         leave it alone for now.
+     */
+    @CheckForNull
+    @Restricted(NoExternalUse.class) // unit-test only
+    static Set<String> findNamesInUse(@CheckForNull Computer computer, String nodeName, FilePath root) {
+        if (WorkspaceDeletionBarrier.get().isBusyOn(nodeName) || InFlightDeletions.get().isBusyOn(nodeName)) {
+            return null;
+        }
+        final Set<String> result = Sets.newHashSet();
+        if (computer == null) {
+            return result;
+        }
+        // we don't look at the one-off executors, as that's where the Pipeline
+        // builds themselves run, and they don't use a workspace
+        for (final Executor executor : computer.getExecutors()) {
+            final Queue.Executable executable = executor.getCurrentExecutable();
+            if (executable == null) {
+                if (executor.getCurrentWorkUnit() != null) {
+                    return null; // it's about to start
+                }
+                continue;
+            }
+            final FilePath ws = executor.getCurrentWorkspace();
+            if (ws == null || !addFirstFolderWithin(root.getRemote(), ws.getRemote(), result)) {
+                return null;
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Works out which folder names in the agent's workspace root are (or could
+     * be) in use.
+     *
+     * @return The names of the folders in the workspace root that we must not
+     *         touch, or null if we can't tell.
+     */
+    @CheckForNull
+    @Restricted(NoExternalUse.class) // unit-test only
+    static Set<String> findProtectedNames(Node agent, FilePath root, FilePath nodeRoot, Iterable<TopLevelItem> items,
+            DeletionOptions deletionOptions) {
+        final String rootPath = root.getRemote();
+        final Set<String> result = Sets.newHashSet();
+        for (final TopLevelItem item : items) {
+            final FilePath ws = agent.getWorkspaceFor(item);
+            if (ws != null && !addFirstFolderWithin(rootPath, ws.getRemote(), result)) {
+                return null;
+            }
+            if (item instanceof AbstractProject) {
+                final String customWorkspace = ((AbstractProject<?, ?>) item).getCustomWorkspace();
+                if (customWorkspace != null) {
+                    // we can't expand variables, so we have to assume they could be anything
+                    final int dollar = customWorkspace.indexOf('$');
+                    final String fixedPart = dollar < 0 ? customWorkspace : customWorkspace.substring(0, dollar);
+                    final int lastSeparator = Math.max(fixedPart.lastIndexOf('/'), fixedPart.lastIndexOf('\\'));
+                    final String partialName = dollar < 0 ? "" : fixedPart.substring(lastSeparator + 1);
+                    if (partialName.isEmpty()) {
+                        final String cw = nodeRoot.child(fixedPart).getRemote();
+                        if (!addFirstFolderWithin(rootPath, cw, result)) {
+                            return null;
+                        }
+                    } else {
+                        // the variable is part-way through a folder name
+                        final String parent = nodeRoot.child(fixedPart.substring(0, lastSeparator + 1)).getRemote();
+                        if (!addFoldersStartingWith(rootPath, parent, partialName, result)) {
+                            return null;
+                        }
+                    }
+                }
+            }
+        }
+        final String trashFolder = deletionOptions.getTrashFolder();
+        if (trashFolder != null && !addFirstFolderWithin(rootPath, root.child(trashFolder).getRemote(), result)) {
+            return null;
+        }
+        return result;
+    }
+
+    /**
+     * Picks out the folders that aren't protected and haven't been modified
+     * recently.
+     *
+     * @param subfolders     Folder names and when they were last modified.
+     * @param protectedNames Folder names that are in use. Anything that's one of
+     *                       these with an "@" suffix is in use too, as is
+     *                       anything starting with one of these that ends with
+     *                       {@link #ANY_SUFFIX} (less that suffix).
+     * @param modifiedBefore Only folders last modified before this time are
+     *                       returned.
+     * @return The folder names that can be deleted.
+     */
+    @Restricted(NoExternalUse.class) // unit-test only
+    static List<String> findOrphanNames(Map<String, Long> subfolders, Set<String> protectedNames,
+            long modifiedBefore) {
+        final List<String> result = Lists.newArrayList();
+        for (final Map.Entry<String, Long> e : subfolders.entrySet()) {
+            final String name = e.getKey();
+            final int at = name.indexOf('@');
+            final String baseName = at < 0 ? name : name.substring(0, at);
+            if (protectedNames.contains(baseName) || startsWithProtectedPrefix(name, protectedNames)
+                    || e.getValue() >= modifiedBefore) {
+                continue;
+            }
+            result.add(name);
+        }
+        return result;
+    }
+
+    /**
+     * If path is within root, adds the name of the folder in root that contains
+     * it to result.
+     *
+     * @return false if the path is root, or contains root, meaning everything in
+     *         root could be in use.
+     */
+    private static boolean addFirstFolderWithin(String root, String path, Set<String> result) {
+        final String normalizedRoot = withTrailingSlash(root.replace('\\', '/'));
+        final String normalizedPath = withTrailingSlash(path.replace('\\', '/'));
+        if (normalizedRoot.startsWith(normalizedPath)) {
+            return false;
+        }
+        if (normalizedPath.startsWith(normalizedRoot)) {
+            final String relative = normalizedPath.substring(normalizedRoot.length());
+            result.add(relative.substring(0, relative.indexOf('/')));
+        }
+        return true;
+    }
+
+    private static boolean startsWithProtectedPrefix(String name, Set<String> protectedNames) {
+        for (final String protectedName : protectedNames) {
+            if (protectedName.endsWith(ANY_SUFFIX)
+                    && name.startsWith(protectedName.substring(0, protectedName.length() - ANY_SUFFIX.length()))) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Protects whatever in root could be a folder, within parent, whose name
+     * starts with partialName. If parent is root then that's every folder in root
+     * starting with partialName, if parent is within root then it's the folder in
+     * root containing parent, and if parent contains root then it could be root
+     * itself.
+     *
+     * @return false if the folder could be root, or contain root, meaning
+     *         everything in root could be in use.
+     */
+    private static boolean addFoldersStartingWith(String root, String parent, String partialName,
+            Set<String> result) {
+        final String normalizedRoot = withTrailingSlash(root.replace('\\', '/'));
+        final String normalizedParent = withTrailingSlash(parent.replace('\\', '/'));
+        if (normalizedRoot.equals(normalizedParent)) {
+            result.add(partialName + ANY_SUFFIX);
+            return true;
+        }
+        if (normalizedRoot.startsWith(normalizedParent)) {
+            final String relative = normalizedRoot.substring(normalizedParent.length());
+            return !relative.startsWith(partialName);
+        }
+        return addFirstFolderWithin(root, parent + '/' + partialName, result);
+    }
+
+    private static String withTrailingSlash(String path) {
+        return path.endsWith("/") ? path : path + '/';
+    }
+
+    private void deleteInBatches(Jenkins jenkins, Slave agent, List<String> orphanNames,
+            DeletionOptions deletionOptions, int batchSize, long pauseBetweenBatches, PrintStream log)
+            throws IOException, InterruptedException, TimeoutException {
+        final String nodeName = agent.getNodeName();
+        final DeletionOptions options = PrePostClean.getDeletionOptionsFor(agent, deletionOptions);
+        final InFlightDeletions inFlightDeletions = InFlightDeletions.get();
+        boolean first = true;
+        for (final List<String> batch : Lists.partition(orphanNames, batchSize)) {
+            if (!first) {
+                Thread.sleep(pauseBetweenBatches);
+            }
+            first = false;
+            final FilePath root = agent.getWorkspaceRoot();
+            if (root == null) {
+                log.println("Stopped sweeping " + nodeName + " as it has gone offline.");
+                return;
+            }
+            // builds may have started since we looked
+            final Set<String> namesInUse = findNamesInUse(jenkins.getComputer(nodeName), nodeName, root);
+            if (namesInUse == null) {
+                log.println("Stopped sweeping " + nodeName + " as it has become busy.");
+                return;
+            }
+            final List<String> batchFolders = Lists.newArrayListWithCapacity(batch.size());
+            for (final String orphanName : batch) {
+                if (!namesInUse.contains(orphanName)) {
+                    batchFolders.add(root.child(orphanName).getRemote());
+                }
+            }
+            final Claim claim = inFlightDeletions.claim(nodeName, batchFolders);
+            try {
+                final List<String> folders = claim.getFoldersToDelete();
+                if (folders.isEmpty()) {
+                    continue;
+                }
+                for (final String folder : folders) {
+                    log.println("Deleting orphaned workspace " + nodeName + " folder " + folder);
+                }
+                final List<FolderDeletionResult> results = PrePostClean.actWithTimeout(root,
+                        new DeleteFoldersCallable(folders, options, true), options.getNodeTimeoutInMs());
+                for (final FolderDeletionResult result : results) {
+                    if (result.getError() != null) {
+                        log.println("Unable to delete " + result.getFolder() + " on " + nodeName + ": "
+                                + result.getError());
+                    }
+                }
+            } finally {
+                inFlightDeletions.release(claim);
+            }
+        }
+    }
+}
@@ -0,0 +1,147 @@
+package de.jamba.hudson.plugin.wsclean;
+
+import java.util.List;
+import java.util.regex.Pattern;
+
+import javax.annotation.CheckForNull;
+
+import com.google.common.collect.Lists;
+
+/**
+ * Decides which parts of a folder are to be deleted, so that things that are
+ * expensive to recreate (e.g. <code>.git</code> or <code>node_modules</code>)
+ * can be kept while build outputs are removed.
+ * <p>
+ * Globs are matched against paths relative to the folder being cleaned, using
+ * <code>/</code> as the separator. A glob without a <code>/</code> matches a
+ * file or folder with that name at any depth, e.g. <code>node_modules</code>,
+ * while one with a <code>/</code> matches from the top of the folder, e.g.
+ * <code>build/cache</code>. <code>*</code> and <code>?</code> match within a
+ * name, and <code>**</code> matches across any number of folders.
+ * <p>
+ * Anything matching a keep glob is kept, along with everything within it. If
+ * there are delete globs then only things matching them (and everything within
+ * them) are deleted, otherwise everything that isn't kept is deleted.
+ * <p>
+ * This runs on the agent (it's used by {@link TreeDeleter}).
+ */
+final class PathFilter {
+    private final List<Glob> keepGlobs;
+    private final List<Glob> deleteGlobs;
+
+    /**
+     * @param keepGlobs   Globs matching things to keep.
+     * @param deleteGlobs Globs matching things to delete, or empty to delete
+     *                    everything that isn't kept.
+     */
+    PathFilter(Iterable<String> keepGlobs, Iterable<String> deleteGlobs) {
+        this.keepGlobs = compile(keepGlobs);
+        this.deleteGlobs = compile(deleteGlobs);
+    }
+
+    /**
+     * @param keepGlobs   Globs matching things to keep.
+     * @param deleteGlobs Globs matching things to delete.
+     * @return A filter, or null if there are no globs (so everything is to be
+     *         deleted).
+     */
+    static @CheckForNull PathFilter of(List<String> keepGlobs, List<String> deleteGlobs) {
+        if (keepGlobs.isEmpty() && deleteGlobs.isEmpty()) {
+            return null;
+        }
+        return new PathFilter(keepGlobs, deleteGlobs);
+    }
+
+    /** @return true if there's anything we must keep. */
+    boolean hasKeepGlobs() {
+        return !keepGlobs.isEmpty();
+    }
+
+    /** @return true if everything at the top of the folder is to be deleted. */
+    boolean isTopInDeleteScope() {
+        return deleteGlobs.isEmpty();
+    }
+
+    /**
+     * @param relativePath Where it is within the folder being cleaned.
+     * @param name         Its name.
+     * @return true if it's to be kept, along with everything within it.
+     */
+    boolean isKept(String relativePath, String name) {
+        return matchesAny(keepGlobs, relativePath, name);
+    }
+
+    /**
+     * @param relativePath Where it is within the folder being cleaned.
+     * @param name         Its name.
+     * @return true if it's to be deleted, along with everything within it that
+     *         isn't kept.
+     */
+    boolean isDeleted(String relativePath, String name) {
+        return matchesAny(deleteGlobs, relativePath, name);
+    }
+
+    private static boolean matchesAny(List<Glob> globs, String relativePath, String name) {
+        for (final Glob glob : globs) {
+            if (glob.pattern.matcher(glob.matchesPath ? relativePath : name).matches()) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static List<Glob> compile(Iterable<String> globs) {
+        final List<Glob> result = Lists.newArrayList();
+        for (final String glob : globs) {
+            final String trimmed = glob.trim();
+            final String withoutLeadingSlash = trimmed.startsWith("/") ? trimmed.substring(1) : trimmed;
+            final String withoutTrailingSlash = withoutLeadingSlash.endsWith("/")
+                    ? withoutLeadingSlash.substring(0, withoutLeadingSlash.length() - 1)
+                    : withoutLeadingSlash;
+            if (!withoutTrailingSlash.isEmpty()) {
+                final boolean matchesPath = trimmed.startsWith("/") || withoutTrailingSlash.contains("/");
+                result.add(new Glob(toRegex(withoutTrailingSlash), matchesPath));
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Turns a glob into a regex.
+     *
+     * @param glob The glob.
+     * @return An equivalent {@link Pattern}.
+     */
+    static Pattern toRegex(String glob) {
+        final StringBuilder regex = new StringBuilder();
+        for (int i = 0; i < glob.length(); i++) {
+            final char c = glob.charAt(i);
+            if (c == '*' && i + 1 < glob.length() && glob.charAt(i + 1) == '*') {
+                i++;
+                if (i + 1 < glob.length() && glob.charAt(i + 1) == '/') {
+                    i++;
+                    regex.append("(?:.*/)?"); // any number of folders, including none
+                } else {
+                    regex.append(".*");
+                }
+            } else if (c == '*') {
+                regex.append("[^/]*");
+            } else if (c == '?') {
+                regex.append("[^/]");
+            } else {
+                regex.append(Pattern.quote(String.valueOf(c)));
+            }
+        }
+        return Pattern.compile(regex.toString());
+    }
+
+    private static final class Glob {
+        private final Pattern pattern;
+        private final boolean matchesPath;
+
+        Glob(Pattern pattern, boolean matchesPath) {
+            this.pattern = pattern;
+            this.matchesPath = matchesPath;
+        }
+    }
+}
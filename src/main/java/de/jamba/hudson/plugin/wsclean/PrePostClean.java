@@ -6,15 +6,23 @@ import static de.jamba.hudson.plugin.wsclean.TaskUtils.waitUntilAllAreDone;
 
 import java.io.IOException;
 import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.BlockingQueue;
 import java.util.concurrent.Callable;
-import java.util.concurrent.ExecutorService;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
 import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.TimeoutException;
 import java.util.regex.Pattern;
 
+import javax.annotation.CheckForNull;
+
 import org.kohsuke.accmod.Restricted;
 import org.kohsuke.accmod.restrictions.NoExternalUse;
 import org.kohsuke.stapler.DataBoundConstructor;
@@ -22,12 +30,20 @@ import org.kohsuke.stapler.DataBoundSetter;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import com.google.common.collect.ImmutableSet;
+import com.google.common.collect.LinkedHashMultimap;
 import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
 import com.google.common.collect.Multimap;
 import com.google.common.collect.Sets;
 import com.google.common.collect.TreeMultimap;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.ListenableFutureTask;
 
+import de.jamba.hudson.plugin.wsclean.CleanupMetrics.Phase;
+import de.jamba.hudson.plugin.wsclean.CleanupReport.SkipReason;
 import de.jamba.hudson.plugin.wsclean.CommonConfig.NodeSelection;
+import de.jamba.hudson.plugin.wsclean.InFlightDeletions.Claim;
 import hudson.Extension;
 import hudson.FilePath;
 import hudson.Launcher;
@@ -35,20 +51,33 @@ import hudson.Util;
 import hudson.model.AbstractBuild;
 import hudson.model.AbstractProject;
 import hudson.model.BuildListener;
-import hudson.model.Computer;
 import hudson.model.Label;
 import hudson.model.Node;
+import hudson.model.Run;
 import hudson.model.TopLevelItem;
 import hudson.remoting.RequestAbortedException;
 import hudson.tasks.BuildWrapper;
 import hudson.tasks.BuildWrapperDescriptor;
-import hudson.util.RunList;
 import jenkins.model.Jenkins;
+import jenkins.security.MasterToSlaveCallable;
 
 public class PrePostClean extends BuildWrapper {
     private static final Logger LOGGER = LoggerFactory.getLogger(PrePostClean.class);
+    /**
+     * How much longer than its own time limit we let a node take to tell us it has
+     * given up before we stop waiting for it.
+     */
+    private static final long NODE_TIMEOUT_GRACE_IN_MS = TimeUnit.SECONDS.toMillis(10);
+    /**
+     * How much of a node's time limit we let it spend looking in folders before
+     * deleting them, so looking can't leave no time for deleting.
+     */
+    private static final long PRE_SCAN_PERCENT_OF_NODE_TIMEOUT = 50L;
 
     private boolean before;
+    private boolean detached;
+    private String keepGlobs;
+    private String deleteGlobs;
 
     @SuppressWarnings("unused")
     @Deprecated
@@ -78,6 +107,71 @@ public class PrePostClean extends BuildWrapper {
         this.before = before;
     }
 
+    /**
+     * If set (and we're not cleaning before the build), the clean-up at the end of
+     * the build is handed off to run in the background so that the build can
+     * finish without waiting for it.
+     * 
+     * @return true if the post-build clean-up does not hold the build open.
+     */
+    public boolean isDetached() {
+        return detached;
+    }
+
+    @DataBoundSetter
+    public void setDetached(boolean detached) {
+        this.detached = detached;
+    }
+
+    /**
+     * If set (or if {@link #getDeleteGlobs()} is), these are used instead of
+     * {@link CommonConfig#getKeepGlobs()} to decide what is kept when this job's
+     * workspaces are cleaned.
+     * 
+     * @return Globs, one per line, or null.
+     */
+    public @CheckForNull String getKeepGlobs() {
+        return keepGlobs;
+    }
+
+    @DataBoundSetter
+    public void setKeepGlobs(String keepGlobs) {
+        this.keepGlobs = Util.fixEmptyAndTrim(keepGlobs);
+    }
+
+    /**
+     * If set (or if {@link #getKeepGlobs()} is), these are used instead of
+     * {@link CommonConfig#getDeleteGlobs()} to decide what is deleted when this
+     * job's workspaces are cleaned.
+     * 
+     * @return Globs, one per line, or null.
+     */
+    public @CheckForNull String getDeleteGlobs() {
+        return deleteGlobs;
+    }
+
+    @DataBoundSetter
+    public void setDeleteGlobs(String deleteGlobs) {
+        this.deleteGlobs = Util.fixEmptyAndTrim(deleteGlobs);
+    }
+
+    // Called before the build checks anything out into its workspace.
+    // If an earlier build of this job is still deleting this node's workspaces in
+    // the background, we must wait for it to finish before we use our workspace.
+    @SuppressWarnings("rawtypes")
+    @Override
+    public void preCheckout(AbstractBuild build, Launcher launcher, BuildListener listener)
+            throws IOException, InterruptedException {
+        final String jobName = build.getProject().getFullName();
+        final String nodeName = build.getBuiltOnStr();
+        final WorkspaceDeletionBarrier barrier = WorkspaceDeletionBarrier.get();
+        if (barrier.isBusy(jobName, nodeName)) {
+            listener.getLogger().println("Waiting for background clean of "
+                    + toNormalizedNodeName(nodeName) + " by an earlier build to finish...");
+            barrier.await(jobName, nodeName);
+        }
+    }
+
     // Main entry point to our functionality.
     // This gets called when the build starts, and returns a hook that's run when
     // the build finishes, allowing our code to get called.
@@ -87,26 +181,35 @@ public class PrePostClean extends BuildWrapper {
             throws IOException, InterruptedException {
         final boolean runAtStart = isBefore();
         final boolean runAtEnd = !runAtStart;
-        final CommonConfig commonConfig = CommonConfig.get();
+        final boolean runDetached = runAtEnd && isDetached();
+        final CommonConfig.Snapshot commonConfig = CommonConfig.get().getSnapshot();
         final boolean skipRoaming = commonConfig.getSkipRoaming();
         final NodeSelection nodeSelectionMethod = commonConfig.getNodeSelection();
         final Pattern[] nodeNamesToSkip = commonConfig.getNodeNamesToSkipPatterns();
         final boolean parallel = commonConfig.getParallel();
         final long timeoutInMs = commonConfig.getTimeoutInMilliseconds();
+        final DeletionOptions deletionOptions = getKeepGlobs() == null && getDeleteGlobs() == null
+                ? commonConfig.getDeletionOptions()
+                : commonConfig.getDeletionOptions().withGlobs(CommonConfig.splitGlobs(getKeepGlobs()),
+                        CommonConfig.splitGlobs(getDeleteGlobs()));
+        final long freeSpaceThreshold = commonConfig.getFreeSpaceThresholdInBytes();
         final Jenkins jenkins = Jenkins.getInstance();
-        final ExecutorService parallelExecutor = Computer.threadPoolForRemoting;
+        final CleanupExecutor parallelExecutor = CleanupExecutor.get();
         LOGGER.info(
-                "setUp({},,): runAtStart={}, runAtEnd={}, nodeSelectionMethod={}, skipRoaming={}, nodeNamesToSkip={}, parallel={}, timeoutInMs={}",
-                build, runAtStart, runAtEnd, nodeSelectionMethod.name(), skipRoaming, Arrays.asList(nodeNamesToSkip),
-                parallel, timeoutInMs);
+                "setUp({},,): runAtStart={}, runAtEnd={}, runDetached={}, nodeSelectionMethod={}, skipRoaming={}, nodeNamesToSkip={}, freeSpaceThreshold={}, parallel={}, timeoutInMs={}, deletionOptions={}",
+                build, runAtStart, runAtEnd, runDetached, nodeSelectionMethod.name(), skipRoaming,
+                Arrays.asList(nodeNamesToSkip), freeSpaceThreshold, parallel, timeoutInMs, deletionOptions);
         // TearDown
         class TearDownImpl extends Environment {
             @Override
             public boolean tearDown(AbstractBuild build, BuildListener listener)
                     throws IOException, InterruptedException {
-                if (runAtEnd) {
+                if (runDetached) {
+                    executeOnSlavesDetached(jenkins, parallelExecutor, build, listener, nodeSelectionMethod,
+                            skipRoaming, nodeNamesToSkip, freeSpaceThreshold, parallel, timeoutInMs, deletionOptions);
+                } else if (runAtEnd) {
                     executeOnSlaves("Post", jenkins, parallelExecutor, build, listener, nodeSelectionMethod,
-                            skipRoaming, nodeNamesToSkip, parallel, timeoutInMs);
+                            skipRoaming, nodeNamesToSkip, freeSpaceThreshold, parallel, timeoutInMs, deletionOptions);
                 }
                 return super.tearDown(build, listener);
             }
@@ -114,7 +217,7 @@ public class PrePostClean extends BuildWrapper {
 
         if (runAtStart) {
             executeOnSlaves("Pre", jenkins, parallelExecutor, build, listener, nodeSelectionMethod, skipRoaming,
-                    nodeNamesToSkip, parallel, timeoutInMs);
+                    nodeNamesToSkip, freeSpaceThreshold, parallel, timeoutInMs, deletionOptions);
         }
         return new TearDownImpl();
     }
@@ -122,58 +225,271 @@ public class PrePostClean extends BuildWrapper {
     /**
      * Does the clean-up, and says so.
      * 
-     * @param preOrPost       String "Pre" or "Post". Only affects logging output.
-     * @param build           The build this action is part of.
-     * @param listener        The build output log we can append to.
-     * @param jenkins         Maps node names to nodes.
-     * @param executor        Means of running multiple threads in parallel.
-     * @param nodeSelection   Method we're going to use to decide what to clean.
-     * @param nodeNamesToSkip List of regexes matching node names to skip.
-     * @param parallel        If true we do the deletion in parallel, if false we do
-     *                        each node in sequence.
-     * @param timeoutInMs     If >0, timeout for the deletion in milliseconds.
+     * @param preOrPost          String "Pre" or "Post". Only affects logging output.
+     * @param build              The build this action is part of.
+     * @param listener           The build output log we can append to.
+     * @param jenkins            Maps node names to nodes.
+     * @param executor           Means of running multiple threads in parallel.
+     * @param nodeSelection      Method we're going to use to decide what to clean.
+     * @param nodeNamesToSkip    List of regexes matching node names to skip.
+     * @param freeSpaceThreshold If >0, nodes known to have more free space (in bytes)
+     *                           than this are skipped.
+     * @param parallel           If true we do the deletion in parallel, if false we
+     *                           do each node in sequence.
+     * @param timeoutInMs        If >0, timeout for the deletion in milliseconds.
+     * @param deletionOptions    How the agents are to delete things.
      * @throws InterruptedException if we are interrupted before we are complete.
      */
     @Restricted(NoExternalUse.class) // package-level to avoid accessor class
-    void executeOnSlaves(String preOrPost, Jenkins jenkins, ExecutorService executor, AbstractBuild<?, ?> build,
+    void executeOnSlaves(String preOrPost, Jenkins jenkins, CleanupExecutor executor, AbstractBuild<?, ?> build,
             BuildListener listener, NodeSelection nodeSelection, boolean skipRoaming, Pattern[] nodeNamesToSkip,
-            boolean parallel, long timeoutInMs) throws InterruptedException {
+            long freeSpaceThreshold, boolean parallel, long timeoutInMs, DeletionOptions deletionOptions)
+            throws InterruptedException {
         listener.getLogger().println(preOrPost + "-build clean running...");
         String result = "abandoned";
         try {
             final boolean success = cleanUp(jenkins, executor, build, listener, nodeSelection, skipRoaming,
-                    nodeNamesToSkip, parallel, timeoutInMs);
+                    nodeNamesToSkip, freeSpaceThreshold, parallel, timeoutInMs, deletionOptions);
             result = success ? "completed" : "failed";
         } finally {
             listener.getLogger().println(preOrPost + "-build clean " + result + ".");
         }
     }
 
-    private boolean cleanUp(Jenkins jenkins, ExecutorService executor, AbstractBuild<?, ?> build,
+    /**
+     * Works out what to clean, then hands the clean-up off to run in the
+     * background and says so. The build does not wait for the clean-up to
+     * complete, but later builds of the same job will wait before using a
+     * workspace on a node that is still being cleaned.
+     * 
+     * @param jenkins            Maps node names to nodes.
+     * @param executor           Means of running multiple threads in parallel.
+     * @param build              The build this action is part of.
+     * @param listener           The build output log we can append to.
+     * @param nodeSelection      Method we're going to use to decide what to clean.
+     * @param nodeNamesToSkip    List of regexes matching node names to skip.
+     * @param freeSpaceThreshold If >0, nodes known to have more free space (in bytes)
+     *                           than this are skipped.
+     * @param parallel           If true we do the deletion in parallel, if false we
+     *                           do each node in sequence.
+     * @param timeoutInMs        If >0, timeout for the deletion in milliseconds.
+     * @param deletionOptions    How the agents are to delete things.
+     * @return The background clean-up, which completes with true if it finished
+     *         within the timeout, or null if there was nothing to clean.
+     */
+    @Restricted(NoExternalUse.class) // package-level to avoid accessor class
+    Future<Boolean> executeOnSlavesDetached(Jenkins jenkins, CleanupExecutor executor, AbstractBuild<?, ?> build,
+            BuildListener listener, NodeSelection nodeSelection, boolean skipRoaming, Pattern[] nodeNamesToSkip,
+            long freeSpaceThreshold, boolean parallel, long timeoutInMs, DeletionOptions deletionOptions) {
+        listener.getLogger().println("Post-build clean running...");
+        final CleanupReport.Recorder report = new CleanupReport.Recorder();
+        final Multimap<String, String> workspacesToBeRemoved = planCleanUp(jenkins, build, listener, nodeSelection,
+                skipRoaming, nodeNamesToSkip, freeSpaceThreshold, deletionOptions, report);
+        if (workspacesToBeRemoved.isEmpty()) {
+            attachReport(build, report, workspacesToBeRemoved, Collections.<String, NodeOutcome>emptyMap(), false);
+            listener.getLogger().println("Post-build clean completed.");
+            return null;
+        }
+        final Future<Boolean> result;
+        try {
+            result = deleteInBackground(jenkins, executor, build, workspacesToBeRemoved, parallel, timeoutInMs,
+                    deletionOptions, report);
+        } catch (RuntimeException ex) {
+            listener.getLogger().println("Post-build clean abandoned.");
+            throw ex;
+        }
+        listener.getLogger().println("Post-build clean of " + workspacesToBeRemoved.keySet().size()
+                + " node(s) handed off to run in the background.");
+        return result;
+    }
+
+    /**
+     * Deletes what we planned to delete in the background, logging to the Jenkins
+     * log. Until it's done, later builds of the same job will wait before using a
+     * workspace on any of the nodes being cleaned.
+     * 
+     * @param jenkins               Maps node names to nodes.
+     * @param executor              Means of running multiple threads in parallel.
+     * @param build                 The build this is for.
+     * @param workspacesToBeRemoved What to delete. This must not be empty.
+     * @param parallel              If true we do the deletion in parallel, if
+     *                              false we do each node in sequence.
+     * @param timeoutInMs           If >0, timeout for the deletion in
+     *                              milliseconds.
+     * @param deletionOptions       How the agents are to delete things.
+     * @param report                Where we record what happened, so it can be
+     *                              added to the build when we're done.
+     * @return The background clean-up, which completes with true if it finished
+     *         within the timeout.
+     */
+    @Restricted(NoExternalUse.class) // package-level for CleanOldWorkspacesStep
+    ListenableFuture<Boolean> deleteInBackground(Jenkins jenkins, CleanupExecutor executor, Run<?, ?> build,
+            Multimap<String, String> workspacesToBeRemoved, boolean parallel, long timeoutInMs,
+            DeletionOptions deletionOptions, CleanupReport.Recorder report) {
+        final String jobName = build.getParent().getFullName();
+        final Set<String> nodeNames = ImmutableSet.copyOf(workspacesToBeRemoved.keySet());
+        final WorkspaceDeletionBarrier barrier = WorkspaceDeletionBarrier.get();
+        final BuildListener backgroundListener = new LoggerBuildListener(LOGGER, build + ": ");
+        class CleanInBackground implements Callable<Boolean> {
+            @Override
+            public Boolean call() throws InterruptedException {
+                try {
+                    final boolean success = deleteWithTimeout(jenkins, executor, build, backgroundListener,
+                            workspacesToBeRemoved, parallel, timeoutInMs, deletionOptions, report);
+                    LOGGER.info("{}: Background clean {}.", build, success ? "completed" : "failed");
+                    return success;
+                } finally {
+                    barrier.exit(jobName, nodeNames);
+                }
+            }
+        }
+        final ListenableFutureTask<Boolean> result = ListenableFutureTask.create(new CleanInBackground());
+        barrier.enter(jobName, nodeNames);
+        try {
+            executor.getBackgroundCleans().execute(result);
+        } catch (RuntimeException ex) {
+            barrier.exit(jobName, nodeNames);
+            throw ex;
+        }
+        return result;
+    }
+
+    private boolean cleanUp(Jenkins jenkins, CleanupExecutor executor, AbstractBuild<?, ?> build,
             BuildListener listener, NodeSelection nodeSelection, boolean skipRoaming, Pattern[] nodeNameRegexsToSkip,
-            boolean parallel, long timeoutInMs) throws InterruptedException {
+            long freeSpaceThreshold, boolean parallel, long timeoutInMs, DeletionOptions deletionOptions)
+            throws InterruptedException {
         LOGGER.debug("cleanUp({}) started", build);
+        final CleanupReport.Recorder report = new CleanupReport.Recorder();
+        final Multimap<String, String> workspacesToBeRemoved = planCleanUp(jenkins, build, listener, nodeSelection,
+                skipRoaming, nodeNameRegexsToSkip, freeSpaceThreshold, deletionOptions, report);
+        final boolean success = deleteWithTimeout(jenkins, executor, build, listener, workspacesToBeRemoved, parallel,
+                timeoutInMs, deletionOptions, report);
+        LOGGER.debug("cleanUp({}): completed.", build);
+        return success;
+    }
+
+    /**
+     * Works out what to clean, then leaves out and orders things as described in
+     * {@link #filterAndOrder(Jenkins, Run, Multimap, Pattern[], long, DeletionOptions, CleanupReport.Recorder)}.
+     * 
+     * @return A map of node names to lists of workspace locations.
+     */
+    private Multimap<String, String> planCleanUp(Jenkins jenkins, AbstractBuild<?, ?> build, BuildListener listener,
+            NodeSelection nodeSelection, boolean skipRoaming, Pattern[] nodeNameRegexsToSkip,
+            long freeSpaceThreshold, DeletionOptions deletionOptions, CleanupReport.Recorder report) {
+        final CleanupMetrics metrics = CleanupMetrics.get();
+        metrics.recordCleanup();
+        final long planStartTime = CleanupMetrics.startTimer();
         final Multimap<String, String> workspacesToBeRemoved = calculateWssForRemoval(jenkins, build, listener,
-                nodeSelection, skipRoaming);
+                nodeSelection, skipRoaming, report);
+        metrics.recordPhase(Phase.PLAN, planStartTime);
         LOGGER.debug("cleanUp({}): calculateWssForRemoval(,,,{},{})={}", build, nodeSelection, skipRoaming,
                 workspacesToBeRemoved);
-        final List<String> nodesToSkipDueToTheirName = getMatching(workspacesToBeRemoved.keySet(),
-                nodeNameRegexsToSkip);
+        return filterAndOrder(jenkins, build, workspacesToBeRemoved, nodeNameRegexsToSkip, freeSpaceThreshold,
+                deletionOptions, report);
+    }
+
+    /**
+     * Leaves out anything on nodes we've been told to leave alone or that have
+     * plenty of free space, with the nodes that have the least free space first.
+     * On nodes with a workspace budget, the least recently used workspaces come
+     * first, as those are the ones we'd delete first.
+     * 
+     * @param jenkins               Maps node names to nodes.
+     * @param build                 The build this is for.
+     * @param workspacesToBeRemoved Node names and the workspaces on them we'd like
+     *                              to clean. This is modified.
+     * @param nodeNameRegexsToSkip  List of regexes matching node names to skip.
+     * @param freeSpaceThreshold    If >0, nodes known to have more free space (in
+     *                              bytes) than this are skipped.
+     * @param deletionOptions       How the agents are to delete things.
+     * @param report                Where we record which nodes we left out, and
+     *                              why.
+     * @return A map of node names to lists of workspace locations.
+     */
+    @Restricted(NoExternalUse.class) // package-level for CleanOldWorkspacesStep
+    static Multimap<String, String> filterAndOrder(Jenkins jenkins, Run<?, ?> build,
+            Multimap<String, String> workspacesToBeRemoved, Pattern[] nodeNameRegexsToSkip, long freeSpaceThreshold,
+            DeletionOptions deletionOptions, CleanupReport.Recorder report) {
+        final CleanupMetrics metrics = CleanupMetrics.get();
+        final long filterStartTime = CleanupMetrics.startTimer();
+        final NodeEligibilityIndex eligibility = NodeEligibilityIndex.get();
+        final List<String> nodesToSkipDueToTheirName = eligibility
+                .getNodesToSkipDueToTheirName(workspacesToBeRemoved.keySet(), nodeNameRegexsToSkip);
         LOGGER.debug("cleanUp({}): nodesToSkipDueToTheirName={}", build, nodesToSkipDueToTheirName);
         workspacesToBeRemoved.keySet().removeAll(nodesToSkipDueToTheirName);
-        final List<String> nodesToSkipDueToNodeProperty = getNodesWithDisableProperty(workspacesToBeRemoved.keySet(),
-                jenkins);
+        report.skipped(toNormalizedNodeNames(nodesToSkipDueToTheirName), SkipReason.NAME);
+        final List<String> nodesToSkipDueToNodeProperty = eligibility
+                .getNodesWithDisableProperty(workspacesToBeRemoved.keySet(), jenkins);
         LOGGER.debug("cleanUp({}): nodesToSkipDueToNodeProperty={}", build, nodesToSkipDueToNodeProperty);
         workspacesToBeRemoved.keySet().removeAll(nodesToSkipDueToNodeProperty);
+        report.skipped(toNormalizedNodeNames(nodesToSkipDueToNodeProperty), SkipReason.NODE_PROPERTY);
+        if (freeSpaceThreshold > 0L) {
+            final List<String> nodesToSkipDueToFreeSpace = NodeDiskSpace.getNodesWithMoreFreeSpaceThan(jenkins,
+                    workspacesToBeRemoved.keySet(), freeSpaceThreshold);
+            LOGGER.debug("cleanUp({}): nodesToSkipDueToFreeSpace={}", build, nodesToSkipDueToFreeSpace);
+            workspacesToBeRemoved.keySet().removeAll(nodesToSkipDueToFreeSpace);
+            report.skipped(toNormalizedNodeNames(nodesToSkipDueToFreeSpace), SkipReason.FREE_SPACE);
+        }
+        final Multimap<String, String> orderedWorkspacesToBeRemoved = NodeDiskSpace.orderByFreeSpace(jenkins,
+                workspacesToBeRemoved);
+        final Multimap<String, String> result = orderLeastRecentlyUsedFirstWhereBudgeted(jenkins, build,
+                orderedWorkspacesToBeRemoved, deletionOptions);
+        metrics.recordPhase(Phase.FILTER, filterStartTime);
+        return result;
+    }
+
+    /**
+     * Puts the workspaces on each node that has a workspace budget in least
+     * recently used order, leaving the order of the nodes (and of the workspaces
+     * on nodes without a budget) unchanged. We only know which workspaces were
+     * used when for freestyle-style builds, so for anything else (e.g. Pipeline
+     * builds) the order is left as it is.
+     */
+    private static Multimap<String, String> orderLeastRecentlyUsedFirstWhereBudgeted(Jenkins jenkins,
+            Run<?, ?> build, Multimap<String, String> workspacesToBeRemoved, DeletionOptions deletionOptions) {
+        if (!(build instanceof AbstractBuild)) {
+            return workspacesToBeRemoved;
+        }
+        final Multimap<String, String> result = LinkedHashMultimap.create();
+        WorkspaceUsageIndex index = null;
+        for (final Map.Entry<String, ? extends Iterable<String>> e : workspacesToBeRemoved.asMap().entrySet()) {
+            final String nodeName = e.getKey();
+            final Node node = getNode(jenkins, nodeName);
+            if (node != null && getDeletionOptionsFor(node, deletionOptions).getJobWorkspaceBudgetInBytes() > 0L) {
+                if (index == null) {
+                    index = WorkspaceUsageIndex.getOrRebuild(((AbstractBuild<?, ?>) build).getProject());
+                }
+                result.putAll(nodeName, WorkspaceRetention.leastRecentlyUsedFirst(index, nodeName, e.getValue()));
+            } else {
+                result.putAll(nodeName, e.getValue());
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Deletes what we planned to delete, giving up if it takes too long, and then
+     * reports what happened on each node, both in the build log and in a
+     * {@link CleanupReportAction} on the build.
+     * 
+     * @return true if it completed, false if it timed out.
+     */
+    private boolean deleteWithTimeout(Jenkins jenkins, CleanupExecutor executor, Run<?, ?> build,
+            BuildListener listener, Multimap<String, String> workspacesToBeRemoved, boolean parallel, long timeoutInMs,
+            DeletionOptions deletionOptions, CleanupReport.Recorder report) throws InterruptedException {
+        final Map<String, NodeOutcome> outcomes = Maps.newConcurrentMap();
         class CleanOldWorkspaces implements Callable<Void> {
             @Override
             public Void call() throws InterruptedException {
                 if (parallel) {
                     LOGGER.debug("cleanUp({}): deleteWssInParallel...", build);
-                    deleteWssInParallel(build, jenkins, executor, workspacesToBeRemoved, listener);
+                    deleteWssInParallel(build, jenkins, executor, workspacesToBeRemoved, listener, deletionOptions,
+                            outcomes, report);
                 } else {
                     LOGGER.debug("cleanUp({}): deleteWssInSeries...", build);
-                    deleteWssInSeries(build, jenkins, workspacesToBeRemoved, listener);
+                    deleteWssInSeries(build, jenkins, executor, workspacesToBeRemoved, listener, deletionOptions,
+                            outcomes, report);
                 }
                 LOGGER.debug("cleanUp({}): deleted.", build);
                 return null;
@@ -184,19 +500,59 @@ public class PrePostClean extends BuildWrapper {
         if (timeoutInMs > 0L) {
             LOGGER.debug("cleanUp({}): using timeout of {}.", build, timeoutInMs);
             try {
-                runWithTimeout(executor, timeoutInMs, deletionTask);
+                runWithTimeout(executor.getCoordinator(), timeoutInMs, deletionTask);
                 success = true;
             } catch (TimeoutException e) {
+                CleanupMetrics.get().recordTimeout();
                 listener.getLogger().println("Clean did not complete within " + timeoutInMs + " milliseconds.");
             }
         } else {
             runWithoutTimeout(deletionTask);
             success = true;
         }
-        LOGGER.debug("cleanUp({}): completed.", build);
+        logOutcomes(listener, workspacesToBeRemoved, outcomes);
+        attachReport(build, report, workspacesToBeRemoved, outcomes, !success);
         return success;
     }
 
+    /**
+     * Adds what we recorded to the build as a {@link CleanupReport}.
+     */
+    private static void attachReport(Run<?, ?> build, CleanupReport.Recorder report,
+            Multimap<String, String> workspacesToBeRemoved, Map<String, NodeOutcome> outcomes, boolean timedOut) {
+        final Multimap<String, String> normalizedWorkspacesToBeRemoved = LinkedHashMultimap.create();
+        for (final Map.Entry<String, ? extends Iterable<String>> e : workspacesToBeRemoved.asMap().entrySet()) {
+            normalizedWorkspacesToBeRemoved.putAll(toNormalizedNodeName(e.getKey()), e.getValue());
+        }
+        final Map<String, NodeOutcome> normalizedOutcomes = Maps.newHashMap();
+        for (final Map.Entry<String, NodeOutcome> e : outcomes.entrySet()) {
+            normalizedOutcomes.put(toNormalizedNodeName(e.getKey()), e.getValue());
+        }
+        CleanupReportAction.addTo(build,
+                report.toReport(normalizedWorkspacesToBeRemoved, normalizedOutcomes, timedOut));
+    }
+
+    /**
+     * Says what happened on each node, as a table written to the build log in one
+     * go. Any node we've not heard back from was still going when we ran out of
+     * time.
+     */
+    private static void logOutcomes(BuildListener listener, Multimap<String, String> workspacesToBeRemoved,
+            Map<String, NodeOutcome> outcomes) {
+        int nameWidth = 0;
+        for (final String nodeName : workspacesToBeRemoved.keySet()) {
+            nameWidth = Math.max(nameWidth, toNormalizedNodeName(nodeName).length());
+        }
+        final StringBuilder table = new StringBuilder("Clean summary:");
+        for (final String nodeName : workspacesToBeRemoved.keySet()) {
+            final NodeOutcome outcome = outcomes.get(nodeName);
+            final NodeOutcome reported = outcome == null ? NodeOutcome.TIMED_OUT : outcome;
+            table.append(String.format("%n  %-" + nameWidth + "s %6d folder(s) %s", toNormalizedNodeName(nodeName),
+                    workspacesToBeRemoved.get(nodeName).size(), reported.getDescription()));
+        }
+        listener.getLogger().println(table);
+    }
+
     /**
      * Calculates what workspaces we should consider for removal, taking
      * <em>everything</em> into consideration.
@@ -208,29 +564,36 @@ public class PrePostClean extends BuildWrapper {
      * @param nodeSelection Says how we'll decide.
      * @param skipRoaming   If we should ignore "nodes matching label expression" if
      *                      we have no label expression.
+     * @param report        Where we record any nodes we can't get to, and if we
+     *                      skipped a roaming project.
      * @return A map of node names to lists of workspace locations.
      */
-    private Multimap<String, String> calculateWssForRemoval(Jenkins jenkins, AbstractBuild<?, ?> build,
-            BuildListener listener, NodeSelection nodeSelection, boolean skipRoaming) {
+    @Restricted(NoExternalUse.class) // package-level for benchmarking
+    Multimap<String, String> calculateWssForRemoval(Jenkins jenkins, AbstractBuild<?, ?> build,
+            BuildListener listener, NodeSelection nodeSelection, boolean skipRoaming, CleanupReport.Recorder report) {
         final Multimap<String, String> wssForRemovalFromLabels;
         if (nodeSelection.getUseLabels()) {
             wssForRemovalFromLabels = TreeMultimap.create();
-            findPossibleWssFromJobLabel(wssForRemovalFromLabels, jenkins, build, listener, skipRoaming);
+            findPossibleWssFromJobLabel(wssForRemovalFromLabels, jenkins, build, listener, skipRoaming, report);
         } else {
             wssForRemovalFromLabels = null;
         }
         final Multimap<String, String> oldWssFromHistory;
         final Multimap<String, String> currentWssFromHistory;
         final Set<String> nodeNamesOfDeadNodes;
+        final Multimap<String, String> wssOnOfflineNodes;
         if (nodeSelection.getUseHistory() || build.getProject().isConcurrentBuild()) {
             oldWssFromHistory = TreeMultimap.create();
             currentWssFromHistory = TreeMultimap.create();
             nodeNamesOfDeadNodes = Sets.newTreeSet();
-            findWssFromBuildHistory(currentWssFromHistory, oldWssFromHistory, nodeNamesOfDeadNodes, build);
+            wssOnOfflineNodes = TreeMultimap.create();
+            WorkspaceUsageIndex.getOrRebuild(build.getProject()).findWorkspaces(jenkins, currentWssFromHistory,
+                    oldWssFromHistory, nodeNamesOfDeadNodes, wssOnOfflineNodes);
         } else {
             oldWssFromHistory = null;
             currentWssFromHistory = null;
             nodeNamesOfDeadNodes = null;
+            wssOnOfflineNodes = null;
         }
         // Now work out what locations are safe to remove
         final Multimap<String, String> workspacesToBeRemoved = TreeMultimap.create();
@@ -244,6 +607,13 @@ public class PrePostClean extends BuildWrapper {
             for (final String offlineNode : nodeNamesOfDeadNodes) {
                 workspacesToBeRemoved.removeAll(offlineNode);
             }
+            // We can't delete on offline nodes now, so remember to do it when they're back
+            report.skipped(toNormalizedNodeNames(wssOnOfflineNodes.keySet()), SkipReason.OFFLINE);
+            for (final Map.Entry<String, Collection<String>> e : wssOnOfflineNodes.asMap().entrySet()) {
+                listener.getLogger().println("Will clean " + toNormalizedNodeName(e.getKey()) + " folder(s) "
+                        + e.getValue() + " when it comes online.");
+                deferDeletion(build, e.getKey(), e.getValue());
+            }
         }
         // Exclude currently-running builds if we know them
         if (currentWssFromHistory != null) {
@@ -268,18 +638,23 @@ public class PrePostClean extends BuildWrapper {
      *                    build.
      * @param skipRoaming If we should return nothing (instead of everything) if we
      *                    have no label expression.
+     * @param report      Where we record any nodes we can't get to, and if we
+     *                    skipped a roaming project.
      */
     private void findPossibleWssFromJobLabel(final Multimap<String, String> result, Jenkins jenkins,
-            AbstractBuild<?, ?> build, BuildListener listener, boolean skipRoaming) {
+            AbstractBuild<?, ?> build, BuildListener listener, boolean skipRoaming, CleanupReport.Recorder report) {
         // select actual running label
         String runNode = build.getBuiltOnStr();
         AbstractProject<?, ?> project = build.getProject();
         Label assignedLabel = project.getAssignedLabel();
         if (assignedLabel == null && skipRoaming) {
             listener.getLogger().println("Skipping roaming project.");
+            report.skippedRoaming();
             return;
         }
-        Set<Node> nodesForLabel = assignedLabel != null ? assignedLabel.getNodes() : getAllNonexclusiveNodes(jenkins);
+        final NodeCache nodeCache = NodeCache.get();
+        Set<Node> nodesForLabel = assignedLabel != null ? nodeCache.getNodes(assignedLabel)
+                : nodeCache.getAllNonexclusiveNodes(jenkins);
         LOGGER.debug("calculatePotentialWssFromJobLabel(,{},{}): assignedLabel={} evaluates to nodesForLabel={}", build,
                 skipRoaming, assignedLabel == null ? null : assignedLabel.getExpression(), nodesForLabel);
         if (nodesForLabel != null) {
@@ -287,7 +662,7 @@ public class PrePostClean extends BuildWrapper {
                 String nodeName = node.getNodeName();
                 if (!runNode.equals(nodeName)) {
                     String normalizedName = toNormalizedNodeName(nodeName);
-                    String folderOnNode = getWorkspaceOn(project, listener, node, normalizedName);
+                    String folderOnNode = getWorkspaceOn(project, listener, node, normalizedName, report);
                     LOGGER.debug("calculatePotentialWssFromJobLabel(,{},{}): Node={}, folder={}", build, skipRoaming,
                             nodeName, folderOnNode);
                     if (folderOnNode != null) {
@@ -302,78 +677,34 @@ public class PrePostClean extends BuildWrapper {
     }
 
     /**
-     * Uses the old build history to determine what workspaces (on what agent nodes)
-     * we should delete.
-     * 
-     * @param wssCurrentlyInUse    Where to record workspaces that are currently in
-     *                             use.
-     * @param wssPreviouslyUsed    Where to record workspaces that are no longer in
-     *                             use.
-     * @param nodeNamesOfDeadNodes Where to record nodes which aren't online so we
-     *                             need to avoid touching them at all.
-     * @param build                The build we're doing this on.
-     */
-    private void findWssFromBuildHistory(Multimap<String, String> wssCurrentlyInUse,
-            Multimap<String, String> wssPreviouslyUsed, Set<String> nodeNamesOfDeadNodes, AbstractBuild<?, ?> build) {
-        final AbstractProject<?, ?> project = build.getProject();
-        // First, figure out the overall build history
-        final RunList<?> builds = project.getBuilds();
-        for (final Object historyEntry : builds) {
-            if (!(historyEntry instanceof AbstractBuild)) {
-                LOGGER.debug("calculateUnusedWssFromBuildHistory({}): {} is not AbstractBuild", build, historyEntry);
-                continue;
-            }
-            final AbstractBuild<?, ?> historicalBuild = (AbstractBuild<?, ?>) historyEntry;
-            if (historicalBuild.hasntStartedYet()) {
-                LOGGER.debug("calculateUnusedWssFromBuildHistory({}): {} has not started", build, historicalBuild);
-                continue; // no node or ws assigned yet
-            }
-            final String nodeItRanOn = Util.fixNull(historicalBuild.getBuiltOnStr());
-            final Node node = historicalBuild.getBuiltOn();
-            if (node == null) {
-                // Node no longer exists
-                LOGGER.debug("calculateUnusedWssFromBuildHistory({}): {} ran on node {} which is deleted.", build,
-                        historicalBuild, nodeItRanOn);
-                nodeNamesOfDeadNodes.add(nodeItRanOn);
-                continue;
-            }
-            final FilePath wsOrNull = historicalBuild.getWorkspace();
-            if (wsOrNull == null) {
-                // Node is offline
-                LOGGER.debug(
-                        "calculateUnusedWssFromBuildHistory({}): {} ran on node {} which is offline so ws unavailable.",
-                        build, historicalBuild, nodeItRanOn);
-                nodeNamesOfDeadNodes.add(nodeItRanOn);
-                continue;
-            }
-            final boolean buildIsNotFinished = historicalBuild.isBuilding() || historicalBuild.getExecutor() != null;
-            final String folderOnNode = wsOrNull.getRemote();
-            LOGGER.debug("calculateUnusedWssFromBuildHistory({}): Unfinished={} {} ran on node {} in folder {}.", build,
-                    buildIsNotFinished, historicalBuild, nodeItRanOn, folderOnNode);
-            if (buildIsNotFinished) {
-                wssCurrentlyInUse.put(nodeItRanOn, folderOnNode);
-            } else {
-                wssPreviouslyUsed.put(nodeItRanOn, folderOnNode);
-            }
-        }
-    }
-
-    /**
-     * Deletes workspaces, one workspace at a time, all in this thread.
+     * Deletes workspaces, one node at a time. Each node's deletion is handed to
+     * the executor (so it counts towards that node's limit) and we wait for it
+     * before starting the next. Any that are already being deleted by another
+     * build aren't deleted again; we wait for that other build to finish deleting
+     * them instead.
      * 
      * @param build                 The build this is for. This is only used for
      *                              diagnostic logging.
      * @param nodeContainer         The Jenkins node that can turn node names into
      *                              Nodes.
+     * @param executor              Thread provider that'll be running each
+     *                              node's deletion for us, subject to its
+     *                              per-node limits.
      * @param workspacesToBeRemoved The set of workspaces to be removed.
      * @param listener              User-facing log where we can log progress
      *                              reports to the build.
+     * @param deletionOptions       How the agents are to delete things.
+     * @param outcomes              Where we record what happened on each node.
+     * @param report                Where we record how long each node took and
+     *                              how much it freed.
      * @throws InterruptedException if we are interrupted (e.g. if the build is
      *                              cancelled).
      */
     @Restricted(NoExternalUse.class)
-    void deleteWssInSeries(AbstractBuild<?, ?> build, Jenkins nodeContainer,
-            Multimap<String, String> workspacesToBeRemoved, BuildListener listener) throws InterruptedException {
+    void deleteWssInSeries(Run<?, ?> build, Jenkins nodeContainer, CleanupExecutor executor,
+            Multimap<String, String> workspacesToBeRemoved, BuildListener listener, DeletionOptions deletionOptions,
+            Map<String, NodeOutcome> outcomes, CleanupReport.Recorder report) throws InterruptedException {
+        final InFlightDeletions inFlightDeletions = InFlightDeletions.get();
         for (final Map.Entry<String, ? extends Iterable<String>> e : workspacesToBeRemoved.asMap().entrySet()) {
             final Iterable<String> foldersToDelete = e.getValue();
             final String nodeName = e.getKey();
@@ -382,43 +713,146 @@ public class PrePostClean extends BuildWrapper {
             if (node == null) {
                 LOGGER.debug("deleteWssInSeries({}): node==null for normalizedNodeName={}, foldersToDelete={}", build,
                         normalizedNodeName, foldersToDelete);
+                outcomes.put(nodeName, NodeOutcome.SKIPPED);
+                report.skipped(Collections.singleton(normalizedNodeName), SkipReason.OFFLINE);
                 continue; // it's gone while we were mid-calculation
             }
-            for (final String folderToDelete : foldersToDelete) {
-                final FilePath fp = node.createPath(folderToDelete);
-                if (fp == null) {
-                    LOGGER.debug("deleteWssInSeries({}): fp==null for normalizedNodeName={}, folderToDelete={}", build,
-                            normalizedNodeName, folderToDelete);
-                    continue; // it's gone offline while we were mid-calculation
+            final Claim claim = inFlightDeletions.claim(nodeName, foldersToDelete);
+            final NodeLog nodeLog = new NodeLog(listener);
+            logFoldersDeletedElsewhere(nodeLog, normalizedNodeName, claim, deletionOptions);
+            final List<String> foldersAttempted = Lists.newArrayList();
+            final DeletionOptions nodeDeletionOptions = getDeletionOptionsFor(node, deletionOptions);
+            try {
+                final List<String> foldersOffline = Lists.newArrayList();
+                final List<FilePath> fps = Lists.newArrayList();
+                for (final String folderToDelete : claim.getFoldersToDelete()) {
+                    final FilePath fp = node.createPath(folderToDelete);
+                    if (fp == null) {
+                        LOGGER.debug("deleteWssInSeries({}): fp==null for normalizedNodeName={}, folderToDelete={}",
+                                build, normalizedNodeName, folderToDelete);
+                        foldersOffline.add(folderToDelete);
+                        continue; // it's gone offline while we were mid-calculation, so do it later
+                    }
+                    if (deletionOptions.getLogFolders()) {
+                        nodeLog.getLogger().println("Cleaning " + normalizedNodeName + " folder " + fp);
+                    }
+                    fps.add(fp);
+                    foldersAttempted.add(folderToDelete);
+                }
+                if (!foldersOffline.isEmpty()) {
+                    deferDeletion(build, nodeName, foldersOffline);
                 }
-                listener.getLogger().println("Cleaning " + normalizedNodeName + " folder " + fp);
-                LOGGER.debug("deleteWssInSeries({}): deleting normalizedNodeName={}, folderToDelete={}", build,
-                        normalizedNodeName, folderToDelete);
-                deleteWorkspaceOn(build, listener, normalizedNodeName, fp);
+                if (fps.isEmpty()) {
+                    outcomes.put(nodeName, NodeOutcome.SKIPPED);
+                    report.skipped(Collections.singleton(normalizedNodeName), SkipReason.OFFLINE);
+                } else {
+                    LOGGER.debug("deleteWssInSeries({}): deleting normalizedNodeName={}, foldersToDelete={}", build,
+                            normalizedNodeName, fps);
+                    outcomes.put(nodeName, runForNode(executor, nodeName, new Callable<NodeOutcome>() {
+                        @Override
+                        public NodeOutcome call() throws InterruptedException {
+                            return deleteWorkspacesOn(build, nodeLog, normalizedNodeName, fps, nodeDeletionOptions,
+                                    report);
+                        }
+                    }));
+                }
+            } catch (InterruptedException ex) {
+                // we don't know how far it got, so do it later
+                deferDeletion(build, nodeName, foldersAttempted);
+                throw ex;
+            } finally {
+                inFlightDeletions.release(claim);
+                nodeLog.flush();
+            }
+            claim.awaitOthers();
+        }
+    }
+
+    /**
+     * Runs a task via the executor's queue for a node and waits for it. If we're
+     * interrupted while waiting, the task is cancelled.
+     */
+    private static <T> T runForNode(CleanupExecutor executor, String nodeName, Callable<T> task)
+            throws InterruptedException {
+        final Future<T> futureResult = executor.submit(nodeName, task);
+        try {
+            return futureResult.get();
+        } catch (ExecutionException ex) {
+            final Throwable cause = ex.getCause();
+            if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
             }
+            if (cause instanceof InterruptedException) {
+                throw (InterruptedException) cause;
+            }
+            throw new RuntimeException(cause);
+        } finally {
+            futureResult.cancel(true);
         }
     }
 
     /**
      * Deletes workspaces, using a separate thread for each agent node affected so
-     * that all the agent nodes do their deletions in parallel.
+     * that all the agent nodes do their deletions in parallel. Any that are
+     * already being deleted (or queued for deletion) by another build aren't
+     * deleted again; we wait for that other build to finish deleting them instead.
+     * What we log about each node is held back until that node is done, so the
+     * build log gets one block per node rather than lines from every node mixed
+     * together.
      * 
      * @param build                 The build this is for. This is only used for
      *                              diagnostic logging.
      * @param nodeContainer         The Jenkins node that can turn node names into
      *                              Nodes.
      * @param parallelExecutor      Thread provider that'll be running the deletions
-     *                              for us.
+     *                              for us, subject to its per-node limits.
      * @param workspacesToBeRemoved The set of workspaces to be removed.
      * @param listener              User-facing log where we can log progress
      *                              reports to the build.
+     * @param deletionOptions       How the agents are to delete things.
+     * @param outcomes              Where we record what happened on each node.
+     *                              This must be safe for concurrent use.
+     * @param report                Where we record how long each node took and
+     *                              how much it freed.
      * @throws InterruptedException if we are interrupted (e.g. if the build is
      *                              cancelled).
      */
     @Restricted(NoExternalUse.class)
-    void deleteWssInParallel(AbstractBuild<?, ?> build, Jenkins nodeContainer, ExecutorService parallelExecutor,
-            Multimap<String, String> workspacesToBeRemoved, BuildListener listener) throws InterruptedException {
-        final List<Future<?>> deletionTaskResults = Lists.newArrayList();
+    void deleteWssInParallel(Run<?, ?> build, Jenkins nodeContainer, CleanupExecutor parallelExecutor,
+            Multimap<String, String> workspacesToBeRemoved, BuildListener listener, DeletionOptions deletionOptions,
+            Map<String, NodeOutcome> outcomes, CleanupReport.Recorder report) throws InterruptedException {
+        final InFlightDeletions inFlightDeletions = InFlightDeletions.get();
+        final List<Claim> claims = Lists.newArrayList();
+        final List<Future<Void>> deletionTaskResults = Lists.newArrayList();
+        final BlockingQueue<Future<Void>> completedDeletions = new LinkedBlockingQueue<>();
+        final List<NodeLog> nodeLogs = Lists.newArrayList();
+        try {
+            submitDeletions(build, nodeContainer, parallelExecutor, workspacesToBeRemoved, listener, deletionOptions,
+                    outcomes, report, inFlightDeletions, claims, nodeLogs, deletionTaskResults, completedDeletions);
+            LOGGER.debug("deleteWssInParallel({}): waiting for {} deletions to complete", build,
+                    deletionTaskResults.size());
+            // if we're interrupted, this tells all our other tasks to abort.
+            waitUntilAllAreDone(completedDeletions, deletionTaskResults);
+        } finally {
+            // in case any tasks were cancelled before they could do this themselves
+            for (final Claim claim : claims) {
+                inFlightDeletions.release(claim);
+            }
+            for (final NodeLog nodeLog : nodeLogs) {
+                nodeLog.flush();
+            }
+        }
+        for (final Claim claim : claims) {
+            claim.awaitOthers();
+        }
+        LOGGER.debug("deleteWssInParallel({}): wait complete", build);
+    }
+
+    private void submitDeletions(Run<?, ?> build, Jenkins nodeContainer, CleanupExecutor parallelExecutor,
+            Multimap<String, String> workspacesToBeRemoved, BuildListener listener, DeletionOptions deletionOptions,
+            Map<String, NodeOutcome> outcomes, CleanupReport.Recorder report, InFlightDeletions inFlightDeletions,
+            List<Claim> claims, List<NodeLog> nodeLogs, List<Future<Void>> deletionTaskResults,
+            BlockingQueue<Future<Void>> completedDeletions) {
         for (final Map.Entry<String, ? extends Iterable<String>> e : workspacesToBeRemoved.asMap().entrySet()) {
             final Iterable<String> foldersToDelete = e.getValue();
             final String nodeName = e.getKey();
@@ -427,22 +861,59 @@ public class PrePostClean extends BuildWrapper {
             if (node == null) {
                 LOGGER.debug("deleteWssInParallel({}): node==null for normalizedNodeName={}, foldersToDelete={}", build,
                         normalizedNodeName, foldersToDelete);
+                outcomes.put(nodeName, NodeOutcome.SKIPPED);
+                report.skipped(Collections.singleton(normalizedNodeName), SkipReason.OFFLINE);
                 continue; // it's gone while we were mid-calculation
             }
+            final Claim claim = inFlightDeletions.claim(nodeName, foldersToDelete);
+            claims.add(claim);
+            final NodeLog nodeLog = new NodeLog(listener);
+            nodeLogs.add(nodeLog);
+            logFoldersDeletedElsewhere(nodeLog, normalizedNodeName, claim, deletionOptions);
+            if (claim.getFoldersToDelete().isEmpty()) {
+                outcomes.put(nodeName, NodeOutcome.SKIPPED);
+                nodeLog.flush();
+                continue; // someone else is doing it all for us
+            }
+            final long submissionTime = CleanupMetrics.startTimer();
             class CleanFoldersOnOneNode implements Callable<Void> {
                 @Override
                 public Void call() throws Exception {
+                    CleanupMetrics.get().recordQueueWait(normalizedNodeName, submissionTime);
+                    final List<String> foldersAttempted = Lists.newArrayList();
                     try {
-                        for (final String folderToDelete : foldersToDelete) {
+                        final List<String> foldersOffline = Lists.newArrayList();
+                        final List<FilePath> fps = Lists.newArrayList();
+                        for (final String folderToDelete : claim.getFoldersToDelete()) {
                             final FilePath fp = node.createPath(folderToDelete);
                             if (fp == null) {
-                                continue; // it's gone offline while we were mid-calculation
+                                foldersOffline.add(folderToDelete);
+                                continue; // it's gone offline while we were mid-calculation, so do it later
                             }
-                            listener.getLogger().println("Cleaning " + normalizedNodeName + " folder " + fp);
-                            deleteWorkspaceOn(build, listener, normalizedNodeName, fp);
+                            if (deletionOptions.getLogFolders()) {
+                                nodeLog.getLogger().println("Cleaning " + normalizedNodeName + " folder " + fp);
+                            }
+                            fps.add(fp);
+                            foldersAttempted.add(folderToDelete);
+                        }
+                        if (!foldersOffline.isEmpty()) {
+                            deferDeletion(build, nodeName, foldersOffline);
+                        }
+                        if (fps.isEmpty()) {
+                            outcomes.put(nodeName, NodeOutcome.SKIPPED);
+                            report.skipped(Collections.singleton(normalizedNodeName), SkipReason.OFFLINE);
+                        } else {
+                            outcomes.put(nodeName, deleteWorkspacesOn(build, nodeLog, normalizedNodeName, fps,
+                                    getDeletionOptionsFor(node, deletionOptions), report));
                         }
                     } catch (InterruptedException e) {
-                        listener.getLogger().println("Cleaning on " + normalizedNodeName + " was interrupted.");
+                        CleanupMetrics.get().recordInterruption(normalizedNodeName);
+                        nodeLog.getLogger().println("Cleaning on " + normalizedNodeName + " was interrupted.");
+                        // we don't know how far it got, so do it later
+                        deferDeletion(build, nodeName, foldersAttempted);
+                    } finally {
+                        inFlightDeletions.release(claim);
+                        nodeLog.flush();
                     }
                     return null;
                 }
@@ -450,30 +921,41 @@ public class PrePostClean extends BuildWrapper {
             final Callable<Void> task = new CleanFoldersOnOneNode();
             LOGGER.debug("deleteWssInParallel({}): submitting task to delete normalizedNodeName={}, foldersToDelete={}",
                     build, normalizedNodeName, foldersToDelete);
-            final Future<?> futureResult = parallelExecutor.submit(task);
+            final Future<Void> futureResult = new ExecutorCompletionService<Void>(parallelExecutor.forNode(nodeName),
+                    completedDeletions).submit(task);
             deletionTaskResults.add(futureResult);
         }
-        LOGGER.debug("deleteWssInParallel({}): waiting for {} deletions to complete", build,
-                deletionTaskResults.size());
-        try {
-            waitUntilAllAreDone(deletionTaskResults);
-            LOGGER.debug("deleteWssInParallel({}): wait complete", build);
-        } catch (InterruptedException ex) {
-            // if we're interrupted, we tell all our other tasks to abort.
-            for (Future<?> t : deletionTaskResults) {
-                t.cancel(true);
-            }
-            throw ex;
+    }
+
+    /**
+     * Records workspaces we couldn't delete now in the {@link DeferredDeletionQueue}
+     * so that they get deleted when the node is next online.
+     */
+    private static void deferDeletion(Run<?, ?> build, String nodeName, Collection<String> folders) {
+        if (!folders.isEmpty()) {
+            DeferredDeletionQueue.get().add(build.getParent().getFullName(), build.getNumber(), nodeName, folders);
+        }
+    }
+
+    private static void logFoldersDeletedElsewhere(BuildListener listener, String normalizedNodeName, Claim claim,
+            DeletionOptions deletionOptions) {
+        if (!deletionOptions.getLogFolders()) {
+            return;
+        }
+        for (final String folder : claim.getFoldersDeletedElsewhere()) {
+            listener.getLogger().println("Already cleaning " + normalizedNodeName + " folder " + folder);
         }
     }
 
-    private String getWorkspaceOn(AbstractProject<?, ?> project, BuildListener listener, Node node, String nodeName) {
+    private String getWorkspaceOn(AbstractProject<?, ?> project, BuildListener listener, Node node, String nodeName,
+            CleanupReport.Recorder report) {
         if (project instanceof TopLevelItem) {
             FilePath fp = node.getWorkspaceFor((TopLevelItem) project);
             if (fp != null) {
                 return fp.getRemote();
             } else {
                 listener.getLogger().println("No workspace found on " + nodeName + ". Node is maybe offline.");
+                report.skipped(Collections.singleton(nodeName), SkipReason.OFFLINE);
             }
         } else {
             listener.getLogger().println("Project is not TopLevelItem! Cannot determine other workspaces!");
@@ -482,26 +964,272 @@ public class PrePostClean extends BuildWrapper {
     }
 
     /**
-     * This is only non-private for test purposes. Wipes the workspace at the given
-     * location, logging any problems.
+     * This is only non-private for test purposes. Wipes the workspaces at the given
+     * locations, logging any problems. All the locations must be on the same node,
+     * as they are all deleted using a single call to that node. If
+     * {@link DeletionOptions#getPreScanMinSizeInBytes()} is set, we first ask the
+     * node (in one call) what's in each location, and leave alone any that don't
+     * exist, are empty or hold very little. If
+     * {@link DeletionOptions#getJobWorkspaceBudgetInBytes()} is set, we also ask how
+     * big each location is and only delete the first ones (which we expect to be
+     * the least recently used) until the rest fit within the budget. Asking is
+     * given at most half of the node's time limit. If
+     * {@link DeletionOptions#getNodeTimeoutInMs()} is set and the node doesn't
+     * answer in time, we stop waiting for it and cancel the call. Any locations
+     * that fail for a reason that's likely to go away by itself are tried again,
+     * up to {@link DeletionOptions#getMaxRetries()} times, waiting a bit longer
+     * each time, but only while the node has time left. Any locations we ran out
+     * of time for, or that still fail in that way, are left in the
+     * {@link DeferredDeletionQueue} for later, and any we did delete are taken out
+     * of it.
      * 
-     * @param build    The build this is for (used for logging only).
+     * @param build    The build this is for.
      * @param listener Where to log progress/issues.
      * @param nodeName Human-friendly name of the node we're working on (used for
      *                 logging only).
-     * @param fp       The workspace to be wiped.
+     * @param fps      The workspaces to be wiped. These must all be on the same
+     *                 node.
+     * @param options  How the node is to delete things.
+     * @param report   Where we record how long the node took and how much it
+     *                 freed.
+     * @return What happened.
      * @throws InterruptedException if we are interrupted.
      */
     @Restricted(NoExternalUse.class) // unit-test only
-    void deleteWorkspaceOn(AbstractBuild<?, ?> build, BuildListener listener, String nodeName, FilePath fp)
-            throws InterruptedException {
+    NodeOutcome deleteWorkspacesOn(Run<?, ?> build, BuildListener listener, String nodeName,
+            List<FilePath> fps, DeletionOptions options, CleanupReport.Recorder report) throws InterruptedException {
+        final long startTime = System.currentTimeMillis();
+        final Map<String, FolderDeletionResult> results = Maps.newLinkedHashMap();
+        List<String> folders = Lists.newArrayListWithCapacity(fps.size());
+        for (final FilePath fp : fps) {
+            folders.add(fp.getRemote());
+        }
+        final RetryPolicy retryPolicy = RetryPolicy.upTo(options.getMaxRetries());
+        final long nodeTimeoutInMs = options.getNodeTimeoutInMs();
+        final long deadline = nodeTimeoutInMs > 0L ? System.currentTimeMillis() + nodeTimeoutInMs : Long.MAX_VALUE;
+        DeletionOptions attemptOptions = options;
+        if (options.getPreScanMinSizeInBytes() >= 0L || options.getJobWorkspaceBudgetInBytes() > 0L) {
+            folders = preScan(build, listener, nodeName, fps.get(0), folders, options);
+            if (folders == null) {
+                report.cleaned(nodeName, System.currentTimeMillis() - startTime, 0L);
+                return NodeOutcome.FAILED; // we can't tell what's worth deleting
+            }
+            if (folders.isEmpty()) {
+                report.cleaned(nodeName, System.currentTimeMillis() - startTime, 0L);
+                return NodeOutcome.COMPLETED; // nothing worth deleting
+            }
+            if (nodeTimeoutInMs > 0L) {
+                attemptOptions = options.withNodeTimeoutInMs(Math.max(1L, deadline - System.currentTimeMillis()));
+            }
+        }
+        int retries = 0;
+        while (true) {
+            for (final FolderDeletionResult result : deleteFoldersOn(build, nodeName, fps.get(0), folders,
+                    attemptOptions)) {
+                results.put(result.getFolder(), result);
+            }
+            final List<String> foldersWorthRetrying = Lists.newArrayList();
+            for (final String folder : folders) {
+                if (results.get(folder).isTransientFailure()) {
+                    foldersWorthRetrying.add(folder);
+                }
+            }
+            if (foldersWorthRetrying.isEmpty() || retries >= retryPolicy.getMaxRetries()) {
+                break;
+            }
+            final long delay = retryPolicy.getDelayBeforeRetry(retries + 1);
+            if (System.currentTimeMillis() + delay >= deadline) {
+                listener.getLogger().println("Not retrying on " + nodeName + " as it has run out of time.");
+                break;
+            }
+            retries++;
+            CleanupMetrics.get().recordRetry(nodeName);
+            listener.getLogger().println("Retrying " + foldersWorthRetrying.size() + " folder(s) on " + nodeName
+                    + " in " + delay + " milliseconds (retry " + retries + " of " + retryPolicy.getMaxRetries()
+                    + ")...");
+            Thread.sleep(delay);
+            folders = foldersWorthRetrying;
+            if (nodeTimeoutInMs > 0L) {
+                attemptOptions = options.withNodeTimeoutInMs(Math.max(1L, deadline - System.currentTimeMillis()));
+            }
+        }
+        NodeOutcome outcome = NodeOutcome.COMPLETED;
+        long bytesFreed = 0L;
+        final List<String> foldersCleaned = Lists.newArrayList();
+        final List<String> foldersToDeleteLater = Lists.newArrayList();
+        for (final FolderDeletionResult result : results.values()) {
+            LOGGER.trace("deleteWorkspacesOn({}): {} on node {}", build, result, nodeName);
+            bytesFreed += result.getBytesDeleted();
+            if (result.isSuccess()) {
+                foldersCleaned.add(result.getFolder());
+                continue;
+            }
+            if (result.isTimedOut() || result.isTransientFailure()) {
+                foldersToDeleteLater.add(result.getFolder());
+            }
+            if (result.isTimedOut()) {
+                outcome = NodeOutcome.TIMED_OUT;
+                listener.getLogger().println("Ran out of time deleting " + result.getFolder() + " on node " + nodeName
+                        + "\n" + result.getError());
+            } else {
+                if (outcome == NodeOutcome.COMPLETED) {
+                    outcome = NodeOutcome.FAILED;
+                }
+                listener.getLogger().println(
+                        "Can't delete " + result.getFolder() + " on node " + nodeName + "\n" + result.getError());
+            }
+        }
+        if (retries > 0) {
+            listener.getLogger().println("Cleaning on " + nodeName + " " + outcome.getDescription() + " after "
+                    + retries + (retries == 1 ? " retry." : " retries."));
+        }
+        final String rawNodeName = fromNormalizedNodeName(nodeName);
+        if (!foldersCleaned.isEmpty()) {
+            // this build or an earlier one may have been waiting to delete these
+            DeferredDeletionQueue.get().remove(rawNodeName, foldersCleaned);
+            if (build instanceof AbstractBuild) {
+                // so the job's index doesn't keep growing with workspaces that are gone
+                WorkspaceUsageIndex.workspacesDeleted(((AbstractBuild<?, ?>) build).getProject(), rawNodeName,
+                        foldersCleaned);
+            }
+        }
+        deferDeletion(build, rawNodeName, foldersToDeleteLater);
+        report.cleaned(nodeName, System.currentTimeMillis() - startTime, bytesFreed);
+        return outcome;
+    }
+
+    /**
+     * Makes a single call to a node to delete some folders. If the call itself
+     * fails, every folder is reported as having failed in the same way.
+     *
+     * @return What happened to each folder.
+     */
+    private static List<FolderDeletionResult> deleteFoldersOn(Run<?, ?> build, String nodeName,
+            FilePath channelOwner, List<String> folders, DeletionOptions options) throws InterruptedException {
+        final long startTime = CleanupMetrics.startTimer();
+        final List<FolderDeletionResult> results;
         try {
-            LOGGER.trace("deleteWorkspaceOn({}): Deleting {} on node {}", build, fp.getRemote(), nodeName);
-            fp.deleteContents();
+            LOGGER.trace("deleteWorkspacesOn({}): Deleting {} on node {}", build, folders, nodeName);
+            results = actWithTimeout(channelOwner, new DeleteFoldersCallable(folders, options),
+                    options.getNodeTimeoutInMs());
+        } catch (TimeoutException e) {
+            CleanupMetrics.get().recordDeletion(nodeName, startTime, null);
+            return failAll(folders, "Node did not answer within " + options.getNodeTimeoutInMs() + " milliseconds",
+                    true, false);
         } catch (IOException | RequestAbortedException e) {
-            listener.getLogger()
-                    .println("Can't delete " + fp.getRemote() + " on node " + nodeName + "\n" + e.getMessage());
-            listener.getLogger().print(e);
+            CleanupMetrics.get().recordDeletion(nodeName, startTime, null);
+            LOGGER.debug("deleteWorkspacesOn({}): Unable to delete {} on node {}", build, folders, nodeName, e);
+            return failAll(folders, e.toString(), false, RetryPolicy.isTransient(e));
+        }
+        CleanupMetrics.get().recordDeletion(nodeName, startTime, results);
+        return results;
+    }
+
+    /**
+     * Makes a single call to a node to see what's in some folders, and works out
+     * which are worth deleting. If the call fails, we assume they all are, unless
+     * the node has a workspace budget, in which case we can't tell. The call is
+     * given at most {@link #PRE_SCAN_PERCENT_OF_NODE_TIMEOUT} percent of the
+     * node's time limit, so there's time left to delete things; any folders it
+     * doesn't finish looking in are assumed to be worth deleting, and only what
+     * it did count in them counts towards the budget.
+     *
+     * @return The folders that are worth deleting, or null if we can't tell.
+     */
+    @CheckForNull
+    private static List<String> preScan(Run<?, ?> build, BuildListener listener, String nodeName,
+            FilePath channelOwner, List<String> folders, DeletionOptions options) throws InterruptedException {
+        final long minSizeInBytes = Math.max(0L, options.getPreScanMinSizeInBytes());
+        final long budgetInBytes = options.getJobWorkspaceBudgetInBytes();
+        // if we've a budget, we need to know how big each folder really is
+        final long sizeToCountTo = budgetInBytes > 0L ? Long.MAX_VALUE : minSizeInBytes;
+        final long nodeTimeoutInMs = options.getNodeTimeoutInMs();
+        final long timeoutInMs = nodeTimeoutInMs > 0L
+                ? Math.max(1L, nodeTimeoutInMs * PRE_SCAN_PERCENT_OF_NODE_TIMEOUT / 100L)
+                : 0L;
+        final List<FolderStat> stats;
+        try {
+            stats = actWithTimeout(channelOwner, new StatFoldersCallable(folders, sizeToCountTo, timeoutInMs),
+                    timeoutInMs);
+        } catch (TimeoutException | IOException | RequestAbortedException e) {
+            LOGGER.debug("deleteWorkspacesOn({}): Unable to look in {} on node {}", build, folders, nodeName, e);
+            if (budgetInBytes > 0L) {
+                listener.getLogger().println("Not cleaning on node " + nodeName
+                        + " as we can't tell how much its workspaces hold: " + e);
+                return null;
+            }
+            return folders;
+        }
+        final List<FolderStat> worthDeleting = Lists.newArrayListWithCapacity(folders.size());
+        for (final FolderStat stat : stats) {
+            LOGGER.trace("deleteWorkspacesOn({}): {} on node {}", build, stat, nodeName);
+            if (!stat.isComplete() && options.getLogFolders()) {
+                listener.getLogger().println("Ran out of time looking in " + stat.getFolder() + " on node "
+                        + nodeName + " after " + stat.getSizeInBytes() + " bytes.");
+            }
+            final String reasonToSkip = stat.getReasonToSkip(minSizeInBytes);
+            if (reasonToSkip == null) {
+                worthDeleting.add(stat);
+            } else if (options.getLogFolders()) {
+                listener.getLogger().println(
+                        "Not cleaning " + stat.getFolder() + " on node " + nodeName + " as " + reasonToSkip + ".");
+            }
+        }
+        final List<String> result = Lists.newArrayListWithCapacity(worthDeleting.size());
+        if (budgetInBytes <= 0L) {
+            for (final FolderStat stat : worthDeleting) {
+                result.add(stat.getFolder());
+            }
+            return result;
+        }
+        result.addAll(WorkspaceRetention.chooseEvictions(worthDeleting, budgetInBytes));
+        for (final FolderStat stat : worthDeleting) {
+            if (!result.contains(stat.getFolder()) && options.getLogFolders()) {
+                listener.getLogger().println("Keeping " + stat.getFolder() + " on node " + nodeName + " ("
+                        + stat.getSizeInBytes() + " bytes) as it fits within the budget of " + budgetInBytes
+                        + " bytes.");
+            }
+        }
+        return result;
+    }
+
+    private static List<FolderDeletionResult> failAll(List<String> folders, String error, boolean timedOut,
+            boolean transientFailure) {
+        final List<FolderDeletionResult> results = Lists.newArrayListWithCapacity(folders.size());
+        for (final String folder : folders) {
+            results.add(new FolderDeletionResult(folder, error, 0L, 0L, timedOut, transientFailure));
+        }
+        return results;
+    }
+
+    /**
+     * Runs a callable on a node. If we've been given a time limit, the node is
+     * expected to stop by itself when it runs out of time, so we only cancel the
+     * call if the node doesn't answer shortly after that, e.g. because it has
+     * locked up.
+     *
+     * @throws TimeoutException if the node didn't answer in time.
+     */
+    @Restricted(NoExternalUse.class) // package-level for OrphanWorkspaceSweeper and DeferredDeletionQueue
+    static <T> T actWithTimeout(FilePath fp, MasterToSlaveCallable<T, IOException> callable,
+            long timeoutInMs) throws IOException, InterruptedException, TimeoutException {
+        if (timeoutInMs <= 0L) {
+            return fp.act(callable);
+        }
+        final Future<T> futureResult = fp.actAsync(callable);
+        try {
+            return futureResult.get(timeoutInMs + NODE_TIMEOUT_GRACE_IN_MS, TimeUnit.MILLISECONDS);
+        } catch (ExecutionException ex) {
+            final Throwable cause = ex.getCause();
+            if (cause instanceof IOException) {
+                throw (IOException) cause;
+            }
+            if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            }
+            throw new IOException(cause);
+        } finally {
+            futureResult.cancel(true);
         }
     }
 
@@ -510,54 +1238,37 @@ public class PrePostClean extends BuildWrapper {
         return normalizedNodeName;
     }
 
-    private static Node getNode(Jenkins nodeContainer, String nodeName) {
-        if (nodeName.isEmpty()) {
-            return nodeContainer;
-        }
-        return nodeContainer.getNode(nodeName);
+    /** The opposite of {@link #toNormalizedNodeName(String)}. */
+    private static String fromNormalizedNodeName(String normalizedNodeName) {
+        return "master".equals(normalizedNodeName) ? "" : normalizedNodeName;
     }
 
-    private static List<String> getMatching(Iterable<String> input, Pattern[] patternsToMatch) {
+    private static List<String> toNormalizedNodeNames(Iterable<String> nodeNames) {
         final List<String> result = Lists.newArrayList();
-        for (final String s : input) {
-            for (final Pattern p : patternsToMatch) {
-                if (p.matcher(s).matches()) {
-                    result.add(s);
-                    break; // go to next input string
-                }
-            }
+        for (final String nodeName : nodeNames) {
+            result.add(toNormalizedNodeName(nodeName));
         }
         return result;
     }
 
-    private static Set<Node> getAllNonexclusiveNodes(Jenkins jenkins) {
-        final Set<Node> result = Sets.newHashSet();
-        for (final Node n : jenkins.getNodes()) {
-            if (Node.Mode.NORMAL.equals(n.getMode())) {
-                result.add(n);
-            }
-        }
-        if (Node.Mode.NORMAL.equals(jenkins.getMode())) {
-            result.add(jenkins);
+    private static Node getNode(Jenkins nodeContainer, String nodeName) {
+        if (nodeName.isEmpty()) {
+            return nodeContainer;
         }
-        return result;
+        return nodeContainer.getNode(nodeName);
     }
 
-    private static List<String> getNodesWithDisableProperty(Set<String> nodesToConsider, Jenkins jenkins) {
-        final List<String> result = Lists.newArrayList();
-        for (final Node n : jenkins.getNodes()) {
-            final String nodeName = n.getNodeName();
-            if (nodesToConsider.contains(nodeName)
-                    && n.getNodeProperty(DisablePrePostCleanNodeProperty.class) != null) {
-                result.add(nodeName);
-            }
+    @Restricted(NoExternalUse.class) // package-level for OrphanWorkspaceSweeper
+    static DeletionOptions getDeletionOptionsFor(Node node, DeletionOptions defaults) {
+        final PrePostCleanNodeProperty nodeSettings = node.getNodeProperty(PrePostCleanNodeProperty.class);
+        if (nodeSettings == null) {
+            return defaults;
         }
-        final String nodeName = "";
-        if (nodesToConsider.contains(nodeName)
-                && jenkins.getNodeProperty(DisablePrePostCleanNodeProperty.class) != null) {
-            result.add(nodeName);
+        final DeletionOptions options = defaults.withDeletionThreads(nodeSettings.getDeletionThreads());
+        if (nodeSettings.getJobWorkspaceBudgetInMB() > 0) {
+            return options.withJobWorkspaceBudgetInBytes(nodeSettings.getJobWorkspaceBudgetInMB() * 1024L * 1024L);
         }
-        return result;
+        return options;
     }
 
     @Extension
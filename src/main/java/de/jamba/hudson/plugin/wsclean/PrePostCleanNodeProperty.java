@@ -0,0 +1,77 @@
+package de.jamba.hudson.plugin.wsclean;
+
+import org.kohsuke.stapler.DataBoundConstructor;
+import org.kohsuke.stapler.DataBoundSetter;
+import org.kohsuke.stapler.QueryParameter;
+
+import hudson.Extension;
+import hudson.model.Node;
+import hudson.slaves.NodeProperty;
+import hudson.slaves.NodePropertyDescriptor;
+import hudson.util.FormValidation;
+
+/**
+ * Jenkins agent {@link NodeProperty} that tunes how {@link PrePostClean} cleans
+ * the {@link Node}. Nodes without this property use the defaults.
+ */
+public class PrePostCleanNodeProperty extends NodeProperty<Node> {
+    static final int DEFAULT_DELETIONTHREADS = 1;
+
+    private int deletionThreads = DEFAULT_DELETIONTHREADS;
+    private int jobWorkspaceBudgetInMB = 0; // use the global setting
+
+    @DataBoundConstructor
+    public PrePostCleanNodeProperty() {
+    }
+
+    /**
+     * How many threads the node can use to delete each workspace. Fast storage
+     * (e.g. SSDs) can delete much faster when many files are deleted at once.
+     * 
+     * @return The number of threads, which will be at least 1.
+     */
+    public int getDeletionThreads() {
+        return deletionThreads < 1 ? DEFAULT_DELETIONTHREADS : deletionThreads;
+    }
+
+    @DataBoundSetter
+    public void setDeletionThreads(int deletionThreads) {
+        this.deletionThreads = deletionThreads;
+    }
+
+    /**
+     * How much this node can keep in each job's old workspaces before any of them
+     * are deleted. This overrides {@link CommonConfig#getJobWorkspaceBudgetInMB()}.
+     * 
+     * @return The budget in megabytes, or 0 to use the global setting.
+     */
+    public int getJobWorkspaceBudgetInMB() {
+        return jobWorkspaceBudgetInMB < 0 ? 0 : jobWorkspaceBudgetInMB;
+    }
+
+    @DataBoundSetter
+    public void setJobWorkspaceBudgetInMB(int jobWorkspaceBudgetInMB) {
+        this.jobWorkspaceBudgetInMB = jobWorkspaceBudgetInMB;
+    }
+
+    @Extension
+    public static final class NodePropertyDescriptorImpl extends NodePropertyDescriptor {
+
+        public NodePropertyDescriptorImpl() {
+            super(PrePostCleanNodeProperty.class);
+        }
+
+        @Override
+        public String getDisplayName() {
+            return Messages.PrePostCleanNodeProperty_displayName();
+        }
+
+        public FormValidation doCheckDeletionThreads(@QueryParameter String value) {
+            return FormValidation.validatePositiveInteger(value);
+        }
+
+        public FormValidation doCheckJobWorkspaceBudgetInMB(@QueryParameter String value) {
+            return FormValidation.validateNonNegativeInteger(value);
+        }
+    }
+}
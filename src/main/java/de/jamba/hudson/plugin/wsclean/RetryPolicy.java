@@ -0,0 +1,105 @@
+package de.jamba.hudson.plugin.wsclean;
+
+import java.io.EOFException;
+import java.net.SocketException;
+import java.net.SocketTimeoutException;
+import java.nio.file.FileSystemException;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.NotDirectoryException;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import javax.annotation.CheckForNull;
+
+import hudson.remoting.ChannelClosedException;
+import hudson.remoting.RequestAbortedException;
+
+/**
+ * Decides whether a failed deletion is worth trying again and, if so, how long
+ * to wait first.
+ * <p>
+ * Failures are transient if they're the sort of thing that usually goes away by
+ * itself, e.g. a file that's locked by a virus scanner on a Windows agent, or a
+ * remoting channel that dropped out. Anything else is permanent and not worth
+ * retrying.
+ * <p>
+ * We wait exponentially longer before each retry, up to a limit, and add a
+ * random amount (jitter) so that many builds retrying on the same node don't
+ * all do so at once.
+ */
+final class RetryPolicy {
+    /** How long we wait before the first retry, before jitter. */
+    static final long INITIAL_DELAY_IN_MS = TimeUnit.SECONDS.toMillis(2);
+    /** The longest we'll wait before any retry. */
+    static final long MAX_DELAY_IN_MS = TimeUnit.SECONDS.toMillis(30);
+
+    private final int maxRetries;
+    private final long initialDelayInMs;
+    private final long maxDelayInMs;
+    private final Random random;
+
+    /**
+     * @param maxRetries       How many times we can retry.
+     * @param initialDelayInMs How long to wait before the first retry, before
+     *                         jitter.
+     * @param maxDelayInMs     The longest we'll wait before any retry.
+     * @param random           Source of jitter.
+     */
+    RetryPolicy(int maxRetries, long initialDelayInMs, long maxDelayInMs, Random random) {
+        this.maxRetries = Math.max(0, maxRetries);
+        this.initialDelayInMs = initialDelayInMs;
+        this.maxDelayInMs = maxDelayInMs;
+        this.random = random;
+    }
+
+    /**
+     * @param maxRetries How many times we can retry.
+     * @return A policy with our usual delays.
+     */
+    static RetryPolicy upTo(int maxRetries) {
+        return new RetryPolicy(maxRetries, INITIAL_DELAY_IN_MS, MAX_DELAY_IN_MS, new Random());
+    }
+
+    /** @return How many times we can retry. */
+    int getMaxRetries() {
+        return maxRetries;
+    }
+
+    /**
+     * Works out how long to wait before a retry. This is somewhere between half
+     * and all of the exponentially-increasing delay.
+     *
+     * @param retryNumber Which retry this is; 1 for the first.
+     * @return How long to wait, in milliseconds.
+     */
+    long getDelayBeforeRetry(int retryNumber) {
+        final int doublings = Math.min(Math.max(0, retryNumber - 1), 30);
+        final long delay = Math.min(maxDelayInMs, initialDelayInMs << doublings);
+        final long half = delay / 2L;
+        return half + (long) (random.nextDouble() * (delay - half + 1L));
+    }
+
+    /**
+     * Decides whether something that went wrong is likely to go away by itself.
+     * This can be called on the agent as well as on the controller.
+     *
+     * @param problem What went wrong.
+     * @return true if it's worth trying again.
+     */
+    static boolean isTransient(@CheckForNull Throwable problem) {
+        for (Throwable t = problem; t != null; t = t.getCause()) {
+            if (t instanceof RequestAbortedException || t instanceof ChannelClosedException
+                    || t instanceof EOFException || t instanceof SocketException
+                    || t instanceof SocketTimeoutException) {
+                return true; // the connection to the agent had a problem
+            }
+            if (t instanceof NoSuchFileException || t instanceof NotDirectoryException) {
+                return false; // it's not going to appear by itself
+            }
+            if (t instanceof FileSystemException) {
+                return true; // e.g. locked by another process
+            }
+        }
+        return false;
+    }
+}
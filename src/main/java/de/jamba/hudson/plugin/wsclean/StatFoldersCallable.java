@@ -0,0 +1,125 @@
+package de.jamba.hudson.plugin.wsclean;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.List;
+
+import com.google.common.collect.Lists;
+
+import jenkins.security.MasterToSlaveCallable;
+
+/**
+ * Looks at several folders on a node in a single remoting call, so we can skip
+ * those that aren't worth deleting (because they don't exist, are empty, or
+ * hold very little) without a round-trip per folder.
+ * <p>
+ * We stop looking inside a folder as soon as we know it holds at least the
+ * minimum size we're interested in, so big workspaces are cheap to check.
+ * When we need to know how big a folder really is, the walk can take a while,
+ * so if we run out of time we stop and return what we've counted so far, with
+ * the folders we didn't finish marked as incomplete. If we're asked to stop,
+ * we give up (and fail).
+ */
+class StatFoldersCallable extends MasterToSlaveCallable<List<FolderStat>, IOException> {
+    private static final long serialVersionUID = 1L;
+
+    private final List<String> folders;
+    private final long minSizeInBytes;
+    private final long timeoutInMs;
+
+    /**
+     * @param folders        The (remote) paths of the folders to look at.
+     * @param minSizeInBytes We stop counting once a folder holds at least this
+     *                       much (and isn't empty).
+     */
+    StatFoldersCallable(Iterable<String> folders, long minSizeInBytes) {
+        this(folders, minSizeInBytes, 0L);
+    }
+
+    /**
+     * @param folders        The (remote) paths of the folders to look at.
+     * @param minSizeInBytes We stop counting once a folder holds at least this
+     *                       much (and isn't empty).
+     * @param timeoutInMs    If >0, how long we can spend on all the folders.
+     */
+    StatFoldersCallable(Iterable<String> folders, long minSizeInBytes, long timeoutInMs) {
+        this.folders = Lists.newArrayList(folders);
+        this.minSizeInBytes = minSizeInBytes;
+        this.timeoutInMs = timeoutInMs;
+    }
+
+    @Override
+    public List<FolderStat> call() throws IOException {
+        return statAll(timeoutInMs > 0L ? System.currentTimeMillis() + timeoutInMs : Long.MAX_VALUE);
+    }
+
+    /**
+     * Looks at every folder, stopping when we reach the deadline. This is only
+     * separate from {@link #call()} for test purposes.
+     */
+    List<FolderStat> statAll(long deadline) throws IOException {
+        final List<FolderStat> results = Lists.newArrayListWithCapacity(folders.size());
+        for (final String folder : folders) {
+            results.add(stat(folder, deadline));
+        }
+        return results;
+    }
+
+    private FolderStat stat(final String folder, final long deadline) throws IOException {
+        final File dir = new File(folder);
+        if (!dir.isDirectory()) {
+            return new FolderStat(folder, dir.exists(), 0L, 0L, dir.lastModified());
+        }
+        if (System.currentTimeMillis() >= deadline) {
+            return new FolderStat(folder, true, 0L, 0L, dir.lastModified(), false);
+        }
+        final Path root = dir.toPath();
+        final long[] entriesAndBytes = new long[2];
+        final boolean[] ranOutOfTime = new boolean[1];
+        Files.walkFileTree(root, new SimpleFileVisitor<Path>() {
+            @Override
+            public FileVisitResult preVisitDirectory(Path d, BasicFileAttributes attrs) throws IOException {
+                if (d.equals(root)) {
+                    return FileVisitResult.CONTINUE;
+                }
+                return counted(0L);
+            }
+
+            @Override
+            public FileVisitResult visitFile(Path f, BasicFileAttributes attrs) throws IOException {
+                return counted(attrs.size());
+            }
+
+            @Override
+            public FileVisitResult visitFileFailed(Path f, IOException exc) throws IOException {
+                return counted(0L); // it's there even if we can't look at it
+            }
+
+            @Override
+            public FileVisitResult postVisitDirectory(Path d, IOException exc) {
+                return FileVisitResult.CONTINUE; // we've counted what we could
+            }
+
+            private FileVisitResult counted(long bytes) throws IOException {
+                if (Thread.currentThread().isInterrupted()) {
+                    throw new InterruptedIOException("Asked to stop while looking in " + folder);
+                }
+                if (System.currentTimeMillis() >= deadline) {
+                    ranOutOfTime[0] = true;
+                    return FileVisitResult.TERMINATE;
+                }
+                entriesAndBytes[0]++;
+                entriesAndBytes[1] += bytes;
+                return entriesAndBytes[1] >= minSizeInBytes ? FileVisitResult.TERMINATE : FileVisitResult.CONTINUE;
+            }
+        });
+        return new FolderStat(folder, true, entriesAndBytes[0], entriesAndBytes[1], dir.lastModified(),
+                !ranOutOfTime[0]);
+    }
+}
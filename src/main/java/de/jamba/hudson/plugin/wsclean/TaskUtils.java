@@ -1,7 +1,11 @@
 package de.jamba.hudson.plugin.wsclean;
 
+import java.util.Collection;
+import java.util.concurrent.BlockingQueue;
 import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
 import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Future;
 import java.util.concurrent.TimeUnit;
@@ -13,8 +17,10 @@ import org.kohsuke.accmod.restrictions.NoExternalUse;
 public class TaskUtils {
     /**
      * Runs a task and returns its result, or throws {@link TimeoutException} if it
-     * took too long. If we get interrupted while waiting, or we time out, we'll
-     * cancel (interrupt) the task to tell it to quit ASAP.
+     * took too long. The time limit only starts once the task has a thread, so
+     * time spent queued behind other tasks doesn't count. If we get interrupted
+     * while waiting, or we time out, we'll cancel (interrupt) the task to tell it
+     * to quit ASAP.
      * 
      * @param timeoutInMs Max duration to allow it to run in milliseconds.
      * @param task        The task to be run.
@@ -26,8 +32,20 @@ public class TaskUtils {
     @Restricted(NoExternalUse.class)
     static <T> T runWithTimeout(final ExecutorService threadpool, final long timeoutInMs, final Callable<T> task)
             throws InterruptedException, TimeoutException {
-        final Future<T> futureResult = threadpool.submit(task);
+        final CountDownLatch started = new CountDownLatch(1);
+        final Future<T> futureResult = threadpool.submit(new Callable<T>() {
+            @Override
+            public T call() throws Exception {
+                started.countDown();
+                return task.call();
+            }
+        });
         try {
+            // it'll never start if the pool is shut down while it's queued
+            boolean isStarted = false;
+            while (!isStarted && !threadpool.isShutdown()) {
+                isStarted = started.await(1L, TimeUnit.SECONDS);
+            }
             return futureResult.get(timeoutInMs, TimeUnit.MILLISECONDS);
         } catch (ExecutionException ex) {
             final Throwable cause = ex.getCause();
@@ -67,43 +85,30 @@ public class TaskUtils {
     }
 
     /**
-     * Waits until multiple tasks are complete.
+     * Waits until multiple tasks are complete. Rather than polling the tasks, we
+     * wait for each one to be put on the completion queue as it finishes, so we
+     * return as soon as the last one is done. If we get interrupted while
+     * waiting, we'll cancel (interrupt) all the tasks to tell them to quit ASAP.
      * 
-     * @param asyncTasks The tasks to be waited for.
+     * @param completionQueue The queue that the tasks are added to when they
+     *                        complete, e.g. the queue given to an
+     *                        {@link ExecutorCompletionService}. This must not be
+     *                        used for anything else.
+     * @param asyncTasks      The tasks to be waited for.
      * @throws InterruptedException if we are interrupted while we were waiting.
      */
     @Restricted(NoExternalUse.class)
-    static void waitUntilAllAreDone(Iterable<Future<?>> asyncTasks) throws InterruptedException {
-        final long millisecondsToWaitLongerEachTime = 50L;
-        final long maxMillisecondsToWaitBetweenPolls = 1000L;
-        final long millisecondsToWaitFirstTime = 50L;
-        long millisecondsToWaitThisTime = millisecondsToWaitFirstTime;
-        for (Future<?> incompleteTask = getFirstIncompleteTask(
-                asyncTasks); incompleteTask != null; incompleteTask = getFirstIncompleteTask(asyncTasks)) {
-            try {
-                incompleteTask.get(millisecondsToWaitThisTime, TimeUnit.MILLISECONDS);
-                // it completed (without error) - reset timeout duration
-                millisecondsToWaitThisTime = millisecondsToWaitFirstTime;
-            } catch (ExecutionException e) {
-                // it completed (with error) - reset timeout duration
-                millisecondsToWaitThisTime = millisecondsToWaitFirstTime;
-            } catch (TimeoutException e) {
-                // it did not complete - increase the timeout
-                millisecondsToWaitThisTime = Math.min(maxMillisecondsToWaitBetweenPolls,
-                        millisecondsToWaitThisTime + millisecondsToWaitLongerEachTime);
-            } catch (InterruptedException e) {
-                throw e;
+    static void waitUntilAllAreDone(BlockingQueue<? extends Future<?>> completionQueue,
+            Collection<? extends Future<?>> asyncTasks) throws InterruptedException {
+        try {
+            for (int remaining = asyncTasks.size(); remaining > 0; remaining--) {
+                completionQueue.take();
             }
-            // Note: If we are interrupted, we let that escape uncaught
-        }
-    }
-
-    private static <T extends Future<?>> T getFirstIncompleteTask(Iterable<T> asyncTasks) {
-        for (final T t : asyncTasks) {
-            if (!t.isDone()) {
-                return t;
+        } catch (InterruptedException ex) {
+            for (final Future<?> t : asyncTasks) {
+                t.cancel(true);
             }
+            throw ex;
         }
-        return null;
     }
 }
@@ -0,0 +1,69 @@
+package de.jamba.hudson.plugin.wsclean;
+
+import java.beans.ConstructorProperties;
+import java.util.Collections;
+import java.util.Map;
+
+import javax.annotation.Nonnull;
+
+import com.google.common.collect.Maps;
+
+/**
+ * How long something has taken, over all the times it has been done, as
+ * recorded by {@link CleanupMetrics}. This is an unchanging copy of the
+ * figures at the time it was taken.
+ */
+public class TimerSnapshot {
+    private final long count;
+    private final long totalMillis;
+    private final long maxMillis;
+    private final Map<String, Long> histogram;
+
+    /**
+     * @param count       How many times it's been done.
+     * @param totalMillis How long it's taken in total.
+     * @param maxMillis   The longest it's taken.
+     * @param histogram   How many times it's taken up to each duration.
+     */
+    @ConstructorProperties({ "count", "totalMillis", "maxMillis", "histogram" })
+    public TimerSnapshot(long count, long totalMillis, long maxMillis, @Nonnull Map<String, Long> histogram) {
+        this.count = count;
+        this.totalMillis = totalMillis;
+        this.maxMillis = maxMillis;
+        this.histogram = Collections.unmodifiableMap(Maps.newLinkedHashMap(histogram));
+    }
+
+    /** @return How many times it's been done. */
+    public long getCount() {
+        return count;
+    }
+
+    /** @return How long it's taken, in total, in milliseconds. */
+    public long getTotalMillis() {
+        return totalMillis;
+    }
+
+    /** @return The longest it's taken, in milliseconds. */
+    public long getMaxMillis() {
+        return maxMillis;
+    }
+
+    /** @return How long it's taken on average, in milliseconds. */
+    public long getMeanMillis() {
+        return count == 0L ? 0L : totalMillis / count;
+    }
+
+    /**
+     * @return How many times it took up to a given duration, keyed by duration,
+     *         shortest first.
+     */
+    public @Nonnull Map<String, Long> getHistogram() {
+        return histogram;
+    }
+
+    @Override
+    public String toString() {
+        return "TimerSnapshot[count=" + count + ", totalMillis=" + totalMillis + ", maxMillis=" + maxMillis
+                + ", histogram=" + histogram + "]";
+    }
+}
@@ -0,0 +1,167 @@
+package de.jamba.hudson.plugin.wsclean;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.InvalidPathException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.regex.Pattern;
+
+import javax.annotation.CheckForNull;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Empties trash folders in the background, using low-priority threads. This
+ * runs on the agent (it's used by {@link DeleteFoldersCallable}), so there's
+ * one of these per JVM.
+ * <p>
+ * As the trash folder is user-configurable, we only ever delete things from it
+ * that we put there ourselves (see {@link #tombstoneNameFor(String)}), and we
+ * refuse to use trash folders that would obviously contain other things (see
+ * {@link #isValidTrashFolder(String)}).
+ */
+class TrashReaper {
+    private static final Logger LOGGER = LoggerFactory.getLogger(TrashReaper.class);
+
+    /** Matches what {@link #tombstoneNameFor(String)} returns. */
+    private static final Pattern TOMBSTONE_NAME = Pattern
+            .compile(".+-[0-9a-f]{8}-[0-9a-f]{4}-[0-9a-f]{4}-[0-9a-f]{4}-[0-9a-f]{12}");
+
+    private static TrashReaper instance;
+
+    private final ThreadPoolExecutor threads;
+    private final Set<String> pending = ConcurrentHashMap.newKeySet();
+
+    private TrashReaper(int numberOfThreads) {
+        final AtomicInteger threadNumber = new AtomicInteger();
+        final ThreadFactory threadFactory = new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                final Thread t = new Thread(r, "wsclean trash reaper #" + threadNumber.incrementAndGet());
+                t.setDaemon(true);
+                t.setPriority(Thread.MIN_PRIORITY);
+                return t;
+            }
+        };
+        threads = new ThreadPoolExecutor(numberOfThreads, numberOfThreads, 60L, TimeUnit.SECONDS,
+                new LinkedBlockingQueue<Runnable>(), threadFactory);
+        threads.allowCoreThreadTimeOut(true);
+    }
+
+    /**
+     * Gets the reaper for this JVM, creating it if necessary.
+     *
+     * @param numberOfThreads The maximum number of threads the reaper may use. If
+     *                        the reaper already exists, it'll be resized.
+     * @return The reaper.
+     */
+    static synchronized TrashReaper get(int numberOfThreads) {
+        final int n = Math.max(1, numberOfThreads);
+        if (instance == null) {
+            instance = new TrashReaper(n);
+        } else {
+            instance.setNumberOfThreads(n);
+        }
+        return instance;
+    }
+
+    private void setNumberOfThreads(int n) {
+        // core must never exceed max, so the order we change them in matters
+        if (n > threads.getMaximumPoolSize()) {
+            threads.setMaximumPoolSize(n);
+            threads.setCorePoolSize(n);
+        } else {
+            threads.setCorePoolSize(n);
+            threads.setMaximumPoolSize(n);
+        }
+    }
+
+    /**
+     * Works out what a folder should be called once it's in the trash, so that
+     * it doesn't clash with anything else in there and so that we can tell it
+     * apart from anything we didn't put there.
+     *
+     * @param folderName The name of the folder being moved to the trash.
+     * @return The name to give it in the trash.
+     */
+    static String tombstoneNameFor(String folderName) {
+        return folderName + '-' + UUID.randomUUID();
+    }
+
+    /**
+     * Decides if a trash folder setting is safe to use. It mustn't be blank, or
+     * the root of a filesystem, and if it's relative then it must be somewhere
+     * new within the folder containing the workspaces (so not <code>.</code> or
+     * anything above it).
+     *
+     * @param trashFolder The trash folder setting.
+     * @return true if it's safe to use.
+     */
+    static boolean isValidTrashFolder(@CheckForNull String trashFolder) {
+        if (trashFolder == null || trashFolder.trim().isEmpty()) {
+            return false;
+        }
+        final Path path;
+        try {
+            path = Paths.get(trashFolder.trim()).normalize();
+        } catch (InvalidPathException ex) {
+            return false;
+        }
+        if (path.isAbsolute()) {
+            return path.getNameCount() > 0; // not a root
+        }
+        final String first = path.getNameCount() == 0 ? "" : path.getName(0).toString();
+        return !first.isEmpty() && !first.equals(".") && !first.equals("..");
+    }
+
+    /**
+     * Schedules deletion of everything we put in the trash folder, including
+     * anything left there from before (e.g. if this JVM was restarted before the
+     * trash was emptied). Anything else in there is left alone. Anything that's
+     * already scheduled won't be scheduled twice.
+     *
+     * @param trashFolder The trash folder to be emptied.
+     */
+    void emptyTrash(File trashFolder) {
+        final File[] rubbish = trashFolder.listFiles();
+        if (rubbish == null) {
+            return;
+        }
+        for (final File r : rubbish) {
+            if (!TOMBSTONE_NAME.matcher(r.getName()).matches()) {
+                LOGGER.debug("Leaving {} alone as we didn't put it in the trash", r);
+                continue;
+            }
+            final String path = r.getPath();
+            if (pending.add(path)) {
+                threads.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        try {
+                            TreeDeleter.deleteRecursive(r, 1);
+                        } catch (IOException ex) {
+                            LOGGER.warn("Unable to delete {}", path, ex);
+                        } finally {
+                            pending.remove(path);
+                        }
+                    }
+                });
+            }
+        }
+    }
+
+    /** @return The number of trash items that have yet to be deleted. */
+    int getPendingCount() {
+        return pending.size();
+    }
+}
@@ -0,0 +1,395 @@
+package de.jamba.hudson.plugin.wsclean;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.RecursiveTask;
+
+import javax.annotation.CheckForNull;
+
+import com.google.common.base.Throwables;
+import com.google.common.collect.Iterables;
+import com.google.common.collect.Lists;
+
+import hudson.Util;
+
+/**
+ * Deletes directory trees on the local filesystem, splitting the work across a
+ * {@link ForkJoinPool}. Each subdirectory becomes its own subtask, and large
+ * directories have their files split into batches, so that many threads can be
+ * unlinking files at once. Directories are deleted bottom-up, once all their
+ * contents are gone. Symbolic links are deleted, not followed.
+ * <p>
+ * Every task checks, between directory entries, whether it's out of time or
+ * has been cancelled. If the thread that asked for the deletion is interrupted
+ * (e.g. because the controller has given up waiting and cancelled the remoting
+ * call) then the deletion is cancelled, so the work stops instead of carrying
+ * on in the background.
+ * <p>
+ * This runs on the agent (it's used by {@link DeleteFoldersCallable}).
+ */
+class TreeDeleter {
+    /** Directories with more files than this have them deleted in batches. */
+    private static final int FILES_PER_BATCH = 1000;
+    /** Deadline meaning we never give up. */
+    static final long NO_DEADLINE = Long.MAX_VALUE;
+
+    private TreeDeleter() {
+    }
+
+    /**
+     * Deletes everything within a directory, but not the directory itself. If the
+     * directory does not exist then there's nothing to do. If anything can't be
+     * deleted, we carry on and delete everything else we can before throwing the
+     * first problem we found.
+     *
+     * @param dir         The directory to be emptied.
+     * @param parallelism How many threads to use.
+     * @return What was deleted.
+     * @throws IOException if anything could not be deleted.
+     */
+    static Outcome deleteContents(File dir, int parallelism) throws IOException {
+        return delete(dir, false, parallelism, NO_DEADLINE, null, new Cancellation());
+    }
+
+    /**
+     * Deletes everything within a directory, but not the directory itself, giving
+     * up if that takes too long.
+     *
+     * @param dir         The directory to be emptied.
+     * @param parallelism How many threads to use.
+     * @param deadline    The {@link System#currentTimeMillis()} after which we stop
+     *                    deleting things, or {@link #NO_DEADLINE}.
+     * @return What was deleted.
+     * @throws TimedOutException if we ran out of time.
+     * @throws IOException       if anything could not be deleted.
+     */
+    static Outcome deleteContents(File dir, int parallelism, long deadline) throws IOException {
+        return delete(dir, false, parallelism, deadline, null, new Cancellation());
+    }
+
+    /**
+     * Deletes what a {@link PathFilter} says to within a directory, but not the
+     * directory itself, giving up if that takes too long. The filter is applied as
+     * we go, so this takes a single walk of the tree. Folders are only removed if
+     * nothing within them was kept.
+     *
+     * @param dir         The directory to be cleaned.
+     * @param parallelism How many threads to use.
+     * @param deadline    The {@link System#currentTimeMillis()} after which we stop
+     *                    deleting things, or {@link #NO_DEADLINE}.
+     * @param filter      What to delete and what to keep, or null to delete
+     *                    everything.
+     * @return What was deleted.
+     * @throws TimedOutException if we ran out of time.
+     * @throws IOException       if anything could not be deleted.
+     */
+    static Outcome deleteContents(File dir, int parallelism, long deadline, @CheckForNull PathFilter filter)
+            throws IOException {
+        return delete(dir, false, parallelism, deadline, filter, new Cancellation());
+    }
+
+    /**
+     * Deletes what a {@link PathFilter} says to within a directory, but not the
+     * directory itself, giving up if that takes too long or if we're cancelled.
+     *
+     * @param dir          The directory to be cleaned.
+     * @param parallelism  How many threads to use.
+     * @param deadline     The {@link System#currentTimeMillis()} after which we
+     *                     stop deleting things, or {@link #NO_DEADLINE}.
+     * @param filter       What to delete and what to keep, or null to delete
+     *                     everything.
+     * @param cancellation Tells us to stop. This is also cancelled by us if we're
+     *                     interrupted.
+     * @return What was deleted.
+     * @throws TimedOutException  if we ran out of time.
+     * @throws CancelledException if we were cancelled.
+     * @throws IOException        if anything could not be deleted.
+     */
+    static Outcome deleteContents(File dir, int parallelism, long deadline, @CheckForNull PathFilter filter,
+            Cancellation cancellation) throws IOException {
+        return delete(dir, false, parallelism, deadline, filter, cancellation);
+    }
+
+    /**
+     * Deletes a directory and everything within it.
+     *
+     * @param dir         The directory to be deleted.
+     * @param parallelism How many threads to use.
+     * @return What was deleted.
+     * @throws IOException if anything could not be deleted.
+     */
+    static Outcome deleteRecursive(File dir, int parallelism) throws IOException {
+        return delete(dir, true, parallelism, NO_DEADLINE, null, new Cancellation());
+    }
+
+    private static Outcome delete(File dir, boolean includingDir, int parallelism, long deadline,
+            PathFilter filter, Cancellation cancellation) throws IOException {
+        final ForkJoinPool pool = new ForkJoinPool(Math.max(1, parallelism));
+        final Outcome outcome;
+        try {
+            final boolean inDeleteScope = filter == null || filter.isTopInDeleteScope();
+            outcome = invoke(pool, new DeleteDirectoryTask(dir, includingDir, deadline, cancellation, filter, "",
+                    inDeleteScope), cancellation);
+        } finally {
+            pool.shutdown();
+        }
+        if (outcome.cancelled) {
+            throw new CancelledException("Stopped deleting " + dir + " after deleting " + outcome.filesDeleted
+                    + " files as we were asked to stop");
+        }
+        if (outcome.timedOut) {
+            throw new TimedOutException("Gave up deleting " + dir + " after deleting " + outcome.filesDeleted
+                    + " files as it was taking too long");
+        }
+        if (outcome.firstFailure != null) {
+            throw outcome.firstFailure;
+        }
+        return outcome;
+    }
+
+    /**
+     * Runs a task in the pool and waits for it. If we're interrupted while
+     * waiting, we cancel it and wait for it to notice.
+     */
+    private static Outcome invoke(ForkJoinPool pool, RecursiveTask<Outcome> task, Cancellation cancellation) {
+        final ForkJoinTask<Outcome> submitted = pool.submit(task);
+        try {
+            return submitted.get();
+        } catch (InterruptedException ex) {
+            cancellation.cancel();
+            final Outcome outcome = submitted.join();
+            Thread.currentThread().interrupt();
+            return outcome;
+        } catch (ExecutionException ex) {
+            throw Throwables.propagate(ex.getCause());
+        }
+    }
+
+    private static boolean isRealDirectory(File f) {
+        return f.isDirectory() && !Files.isSymbolicLink(f.toPath());
+    }
+
+    private static boolean isPast(long deadline) {
+        return deadline != NO_DEADLINE && System.currentTimeMillis() >= deadline;
+    }
+
+    /**
+     * Records why we're stopping, if we are.
+     *
+     * @return true if we're to stop.
+     */
+    private static boolean stopIfNecessary(Outcome outcome, long deadline, Cancellation cancellation) {
+        if (cancellation.isCancelled()) {
+            outcome.cancelled = true;
+        } else if (isPast(deadline)) {
+            outcome.timedOut = true;
+        }
+        return outcome.isStopped();
+    }
+
+    /**
+     * Tells a deletion to stop. It stops as soon as each of its tasks notices,
+     * which is before it starts on the next directory entry.
+     */
+    static final class Cancellation {
+        private volatile boolean cancelled;
+
+        /** Tells the deletion to stop. */
+        void cancel() {
+            cancelled = true;
+        }
+
+        /** @return true if the deletion is to stop. */
+        boolean isCancelled() {
+            return cancelled;
+        }
+    }
+
+    /** Thrown if we stopped deleting things because we ran out of time. */
+    static final class TimedOutException extends IOException {
+        private static final long serialVersionUID = 1L;
+
+        TimedOutException(String message) {
+            super(message);
+        }
+    }
+
+    /** Thrown if we stopped deleting things because we were cancelled. */
+    static final class CancelledException extends IOException {
+        private static final long serialVersionUID = 1L;
+
+        CancelledException(String message) {
+            super(message);
+        }
+    }
+
+    /** What a task achieved. */
+    static final class Outcome {
+        private long filesDeleted;
+        private long bytesDeleted;
+        private IOException firstFailure;
+        private boolean timedOut;
+        private boolean cancelled;
+        private boolean keptSomething;
+
+        /** @return The number of files (not directories) deleted. */
+        long getFilesDeleted() {
+            return filesDeleted;
+        }
+
+        /** @return The total size of the files deleted. */
+        long getBytesDeleted() {
+            return bytesDeleted;
+        }
+
+        void add(Outcome other) {
+            filesDeleted += other.filesDeleted;
+            bytesDeleted += other.bytesDeleted;
+            failed(other.firstFailure);
+            timedOut |= other.timedOut;
+            cancelled |= other.cancelled;
+            keptSomething |= other.keptSomething;
+        }
+
+        boolean isStopped() {
+            return timedOut || cancelled;
+        }
+
+        void failed(IOException ex) {
+            if (firstFailure == null) {
+                firstFailure = ex;
+            }
+        }
+    }
+
+    /**
+     * Empties a directory (of everything the filter doesn't keep) and then,
+     * optionally, deletes the directory itself if nothing was kept.
+     */
+    private static final class DeleteDirectoryTask extends RecursiveTask<Outcome> {
+        private static final long serialVersionUID = 1L;
+        private final File dir;
+        private final boolean includingDir;
+        private final long deadline;
+        private final Cancellation cancellation;
+        private final PathFilter filter;
+        /** Where dir is within the folder being cleaned, ending in a "/" unless it's the top. */
+        private final String relativePath;
+        /** If true, everything in here that isn't kept is deleted. */
+        private final boolean inDeleteScope;
+
+        DeleteDirectoryTask(File dir, boolean includingDir, long deadline, Cancellation cancellation,
+                PathFilter filter, String relativePath, boolean inDeleteScope) {
+            this.dir = dir;
+            this.includingDir = includingDir;
+            this.deadline = deadline;
+            this.cancellation = cancellation;
+            this.filter = filter;
+            this.relativePath = relativePath;
+            this.inDeleteScope = inDeleteScope;
+        }
+
+        @Override
+        protected Outcome compute() {
+            final Outcome outcome = new Outcome();
+            if (stopIfNecessary(outcome, deadline, cancellation)) {
+                return outcome;
+            }
+            final File[] children = dir.listFiles();
+            if (children != null) {
+                final List<RecursiveTask<Outcome>> subtasks = Lists.newArrayList();
+                final List<RecursiveTask<Outcome>> fileTasks = Lists.newArrayList();
+                final List<File> files = Lists.newArrayList();
+                for (final File child : children) {
+                    final String name = child.getName();
+                    final String childPath = relativePath + name;
+                    if (filter != null && filter.isKept(childPath, name)) {
+                        outcome.keptSomething = true;
+                        continue;
+                    }
+                    final boolean childInDeleteScope = inDeleteScope
+                            || (filter != null && filter.isDeleted(childPath, name));
+                    if (isRealDirectory(child)) {
+                        if (filter == null || (childInDeleteScope && !filter.hasKeepGlobs())) {
+                            subtasks.add(new DeleteDirectoryTask(child, true, deadline, cancellation, null,
+                                    childPath + "/", true));
+                        } else {
+                            subtasks.add(new DeleteDirectoryTask(child, childInDeleteScope, deadline, cancellation,
+                                    filter, childPath + "/", childInDeleteScope));
+                        }
+                    } else if (childInDeleteScope) {
+                        files.add(child);
+                    } else {
+                        outcome.keptSomething = true;
+                    }
+                }
+                for (int start = FILES_PER_BATCH; start < files.size(); start += FILES_PER_BATCH) {
+                    final int end = Math.min(start + FILES_PER_BATCH, files.size());
+                    fileTasks.add(new DeleteFilesTask(files.subList(start, end), deadline, cancellation));
+                }
+                for (final RecursiveTask<Outcome> subtask : Iterables.concat(subtasks, fileTasks)) {
+                    subtask.fork();
+                }
+                // we do the first batch of files ourselves while the others run
+                outcome.add(DeleteFilesTask.deleteFiles(files.subList(0, Math.min(FILES_PER_BATCH, files.size())),
+                        deadline, cancellation));
+                for (final RecursiveTask<Outcome> subtask : subtasks) {
+                    outcome.add(subtask.join());
+                }
+                for (final RecursiveTask<Outcome> fileTask : fileTasks) {
+                    outcome.add(fileTask.join());
+                }
+            }
+            if (includingDir && !outcome.isStopped() && !outcome.keptSomething) {
+                try {
+                    Util.deleteFile(dir);
+                } catch (IOException ex) {
+                    outcome.failed(ex);
+                }
+            }
+            return outcome;
+        }
+    }
+
+    /** Deletes a batch of files. */
+    private static final class DeleteFilesTask extends RecursiveTask<Outcome> {
+        private static final long serialVersionUID = 1L;
+        private final List<File> files;
+        private final long deadline;
+        private final Cancellation cancellation;
+
+        DeleteFilesTask(List<File> files, long deadline, Cancellation cancellation) {
+            this.files = files;
+            this.deadline = deadline;
+            this.cancellation = cancellation;
+        }
+
+        @Override
+        protected Outcome compute() {
+            return deleteFiles(files, deadline, cancellation);
+        }
+
+        static Outcome deleteFiles(Iterable<File> files, long deadline, Cancellation cancellation) {
+            final Outcome outcome = new Outcome();
+            for (final File f : files) {
+                if (stopIfNecessary(outcome, deadline, cancellation)) {
+                    break;
+                }
+                try {
+                    final long length = f.length();
+                    Util.deleteFile(f);
+                    outcome.filesDeleted++;
+                    outcome.bytesDeleted += length;
+                } catch (IOException ex) {
+                    outcome.failed(ex);
+                }
+            }
+            return outcome;
+        }
+    }
+}
@@ -0,0 +1,127 @@
+package de.jamba.hudson.plugin.wsclean;
+
+import java.util.Set;
+
+import javax.annotation.Nonnull;
+
+import org.jenkinsci.plugins.workflow.steps.Step;
+import org.jenkinsci.plugins.workflow.steps.StepContext;
+import org.jenkinsci.plugins.workflow.steps.StepDescriptor;
+import org.jenkinsci.plugins.workflow.steps.StepExecution;
+import org.kohsuke.stapler.DataBoundConstructor;
+
+import com.google.common.collect.ImmutableSet;
+import com.google.common.util.concurrent.FutureCallback;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+
+import hudson.Extension;
+import hudson.model.TaskListener;
+
+/**
+ * Pipeline step that waits for a clean started by
+ * {@link CleanOldWorkspacesStep} to finish, without tying up a thread while it
+ * does so. It returns true if the clean completed, false if it ran out of
+ * time, or null if we no longer know (e.g. because Jenkins was restarted).
+ */
+public class WaitForWorkspaceCleanStep extends Step {
+    private final WorkspaceCleanHandle handle;
+
+    @DataBoundConstructor
+    public WaitForWorkspaceCleanStep(WorkspaceCleanHandle handle) {
+        this.handle = handle;
+    }
+
+    /** @return What {@link CleanOldWorkspacesStep} returned. */
+    public WorkspaceCleanHandle getHandle() {
+        return handle;
+    }
+
+    @Override
+    public StepExecution start(StepContext context) throws Exception {
+        return new Execution(handle, context);
+    }
+
+    private static final class Execution extends StepExecution {
+        private static final long serialVersionUID = 1L;
+        private final WorkspaceCleanHandle handle;
+
+        Execution(WorkspaceCleanHandle handle, StepContext context) {
+            super(context);
+            this.handle = handle;
+        }
+
+        @Override
+        public boolean start() throws Exception {
+            return waitForCleanup();
+        }
+
+        @Override
+        public void onResume() {
+            try {
+                waitForCleanup();
+            } catch (Exception ex) {
+                getContext().onFailure(ex);
+            }
+        }
+
+        @Override
+        public void stop(@Nonnull Throwable cause) throws Exception {
+            getContext().onFailure(cause);
+        }
+
+        /** @return true if we've finished already. */
+        private boolean waitForCleanup() throws Exception {
+            final TaskListener listener = getContext().get(TaskListener.class);
+            final ListenableFuture<Boolean> cleanup = handle == null ? null : BackgroundCleanups.get().lookup(handle);
+            if (cleanup == null) {
+                listener.getLogger().println("Not waiting for clean as it's no longer known.");
+                getContext().onSuccess(null);
+                return true;
+            }
+            if (!cleanup.isDone()) {
+                listener.getLogger().println("Waiting for background clean of " + handle.getNodeCount()
+                        + " node(s) to finish...");
+            }
+            Futures.addCallback(cleanup, new FutureCallback<Boolean>() {
+                @Override
+                public void onSuccess(Boolean result) {
+                    listener.getLogger().println("Background clean " + (result ? "completed." : "failed."));
+                    getContext().onSuccess(result);
+                }
+
+                @Override
+                public void onFailure(Throwable t) {
+                    listener.getLogger().println("Background clean abandoned.");
+                    getContext().onFailure(t);
+                }
+            });
+            return false;
+        }
+    }
+
+    @Extension(optional = true) // Pipeline is optional
+    public static final class DescriptorImpl extends StepDescriptor {
+        @Override
+        public String getFunctionName() {
+            return "waitForWorkspaceClean";
+        }
+
+        @Override
+        public @Nonnull String getDisplayName() {
+            return Messages.WaitForWorkspaceCleanStep_displayName();
+        }
+
+        @Override
+        public Set<? extends Class<?>> getRequiredContext() {
+            return ImmutableSet.of(TaskListener.class);
+        }
+
+        @Override
+        public boolean isAdvanced() {
+            // the handle can only come from cleanOldWorkspaces, so there's
+            // nothing the snippet generator could offer
+            return true;
+        }
+    }
+}
@@ -0,0 +1,41 @@
+package de.jamba.hudson.plugin.wsclean;
+
+import java.io.Serializable;
+
+/**
+ * What the <code>cleanOldWorkspaces</code> Pipeline step returns, so that the
+ * Pipeline can later pass it to <code>waitForWorkspaceClean</code> (or ignore
+ * it). This only identifies the clean; it's kept by the Pipeline so it has to
+ * be serializable, but the clean itself is tracked by
+ * {@link BackgroundCleanups}.
+ */
+public final class WorkspaceCleanHandle implements Serializable {
+    private static final long serialVersionUID = 1L;
+
+    private final String id;
+    private final int nodeCount;
+
+    /**
+     * @param id        Uniquely identifies the clean.
+     * @param nodeCount How many nodes are being cleaned.
+     */
+    WorkspaceCleanHandle(String id, int nodeCount) {
+        this.id = id;
+        this.nodeCount = nodeCount;
+    }
+
+    /** @return Uniquely identifies the clean. */
+    String getId() {
+        return id;
+    }
+
+    /** @return How many nodes are being cleaned. */
+    public int getNodeCount() {
+        return nodeCount;
+    }
+
+    @Override
+    public String toString() {
+        return "WorkspaceCleanHandle[id=" + id + ", nodeCount=" + nodeCount + "]";
+    }
+}
@@ -0,0 +1,136 @@
+package de.jamba.hudson.plugin.wsclean;
+
+import java.util.Map;
+
+import javax.annotation.Nonnull;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.common.collect.HashMultiset;
+import com.google.common.collect.Maps;
+import com.google.common.collect.Multiset;
+
+import hudson.Extension;
+import hudson.model.Item;
+import hudson.model.Node;
+import hudson.model.Queue;
+import hudson.model.queue.CauseOfBlockage;
+import hudson.model.queue.QueueTaskDispatcher;
+
+/**
+ * Keeps track of which jobs have workspaces being deleted on which nodes, so
+ * that a build doesn't start using a workspace that an earlier build of the
+ * same job is still deleting in the background.
+ * <p>
+ * Freestyle builds wait for us in {@link PrePostClean}. Pipeline builds have
+ * nothing of ours running before they grab a workspace, so we stop the queue
+ * from giving their <code>node</code> blocks a node whose workspaces for that
+ * job are being deleted.
+ */
+public class WorkspaceDeletionBarrier {
+    private static final Logger LOGGER = LoggerFactory.getLogger(WorkspaceDeletionBarrier.class);
+    private static final WorkspaceDeletionBarrier INSTANCE = new WorkspaceDeletionBarrier();
+
+    /** (job name, node name) to number of deletions in progress. Guarded by this. */
+    private final Multiset<Map.Entry<String, String>> deletionsInProgress = HashMultiset.create();
+
+    WorkspaceDeletionBarrier() {
+    }
+
+    /** @return the singleton instance */
+    static @Nonnull WorkspaceDeletionBarrier get() {
+        return INSTANCE;
+    }
+
+    /**
+     * Records that we've started deleting the job's workspaces on these nodes.
+     * Every call to this must be followed by a call to
+     * {@link #exit(String, Iterable)} with the same arguments.
+     *
+     * @param jobName   The full name of the job.
+     * @param nodeNames The names of the nodes.
+     */
+    synchronized void enter(String jobName, Iterable<String> nodeNames) {
+        for (final String nodeName : nodeNames) {
+            deletionsInProgress.add(Maps.immutableEntry(jobName, nodeName));
+        }
+        LOGGER.debug("enter({},{}): deletionsInProgress={}", jobName, nodeNames, deletionsInProgress);
+    }
+
+    /**
+     * Records that we've finished deleting the job's workspaces on these nodes.
+     *
+     * @param jobName   The full name of the job.
+     * @param nodeNames The names of the nodes.
+     */
+    synchronized void exit(String jobName, Iterable<String> nodeNames) {
+        for (final String nodeName : nodeNames) {
+            deletionsInProgress.remove(Maps.immutableEntry(jobName, nodeName));
+        }
+        LOGGER.debug("exit({},{}): deletionsInProgress={}", jobName, nodeNames, deletionsInProgress);
+        notifyAll();
+    }
+
+    /**
+     * Tells us if any of the job's workspaces are being deleted on the node.
+     *
+     * @param jobName  The full name of the job.
+     * @param nodeName The name of the node.
+     * @return true if we'd have to wait.
+     */
+    synchronized boolean isBusy(String jobName, String nodeName) {
+        return deletionsInProgress.contains(Maps.immutableEntry(jobName, nodeName));
+    }
+
+    /**
+     * Tells us if any job's workspaces are being deleted on the node.
+     *
+     * @param nodeName The name of the node.
+     * @return true if something is being deleted there.
+     */
+    synchronized boolean isBusyOn(String nodeName) {
+        for (final Map.Entry<String, String> e : deletionsInProgress.elementSet()) {
+            if (e.getValue().equals(nodeName)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Waits until none of the job's workspaces are being deleted on the node.
+     *
+     * @param jobName  The full name of the job.
+     * @param nodeName The name of the node.
+     * @throws InterruptedException if we are interrupted while waiting.
+     */
+    synchronized void await(String jobName, String nodeName) throws InterruptedException {
+        final Map.Entry<String, String> key = Maps.immutableEntry(jobName, nodeName);
+        while (deletionsInProgress.contains(key)) {
+            wait();
+        }
+    }
+
+    /**
+     * Keeps Pipeline <code>node</code> blocks off nodes where their job's
+     * workspaces are being deleted.
+     */
+    @Extension
+    public static final class QueueTaskDispatcherImpl extends QueueTaskDispatcher {
+        @Override
+        public CauseOfBlockage canTake(Node node, Queue.BuildableItem item) {
+            final Queue.Task task = item.task;
+            final Queue.Task ownerTask = task.getOwnerTask();
+            if (ownerTask == task || !(ownerTask instanceof Item)) {
+                return null; // not part of a Pipeline, so it'll wait in PrePostClean if it needs to
+            }
+            final String jobName = ((Item) ownerTask).getFullName();
+            if (get().isBusy(jobName, node.getNodeName())) {
+                return CauseOfBlockage
+                        .fromMessage(Messages._WorkspaceDeletionBarrier_busy(node.getDisplayName()));
+            }
+            return null;
+        }
+    }
+}
@@ -0,0 +1,68 @@
+package de.jamba.hudson.plugin.wsclean;
+
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+
+import com.google.common.collect.Lists;
+
+/**
+ * Decides which workspaces to delete when a node has a workspace budget, i.e.
+ * when we'd rather keep some old workspaces around (so the next build there
+ * doesn't have to start from scratch) as long as they don't take up too much
+ * space.
+ * <p>
+ * The least recently used workspaces are deleted first, and only until the
+ * rest fit within the budget.
+ */
+final class WorkspaceRetention {
+    private WorkspaceRetention() {
+    }
+
+    /**
+     * Puts workspaces in the order we'd delete them.
+     *
+     * @param index    Tells us which build last used each workspace.
+     * @param nodeName The node the workspaces are on.
+     * @param folders  The workspaces.
+     * @return The workspaces, least recently used first. Any we know nothing about
+     *         come first of all.
+     */
+    static List<String> leastRecentlyUsedFirst(final WorkspaceUsageIndex index, final String nodeName,
+            Iterable<String> folders) {
+        final List<String> result = Lists.newArrayList(folders);
+        Collections.sort(result, new Comparator<String>() {
+            @Override
+            public int compare(String o1, String o2) {
+                final int lastUse1 = index.getLastBuildNumber(nodeName, o1);
+                final int lastUse2 = index.getLastBuildNumber(nodeName, o2);
+                return lastUse1 < lastUse2 ? -1 : (lastUse1 == lastUse2 ? 0 : 1);
+            }
+        });
+        return result;
+    }
+
+    /**
+     * Decides which workspaces to delete so that the rest fit within the budget.
+     *
+     * @param leastRecentlyUsedFirst The workspaces, in the order we'd delete them.
+     * @param budgetInBytes          How much the workspaces we keep can hold
+     *                               between them.
+     * @return The workspaces to delete, in the order given.
+     */
+    static List<String> chooseEvictions(List<FolderStat> leastRecentlyUsedFirst, long budgetInBytes) {
+        long total = 0L;
+        for (final FolderStat stat : leastRecentlyUsedFirst) {
+            total += stat.getSizeInBytes();
+        }
+        final List<String> result = Lists.newArrayList();
+        for (final FolderStat stat : leastRecentlyUsedFirst) {
+            if (total <= budgetInBytes) {
+                break;
+            }
+            result.add(stat.getFolder());
+            total -= stat.getSizeInBytes();
+        }
+        return result;
+    }
+}
@@ -0,0 +1,524 @@
+package de.jamba.hudson.plugin.wsclean;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Set;
+import java.util.SortedMap;
+import java.util.SortedSet;
+import java.util.WeakHashMap;
+
+import javax.annotation.CheckForNull;
+import javax.annotation.Nonnull;
+
+import org.kohsuke.accmod.Restricted;
+import org.kohsuke.accmod.restrictions.NoExternalUse;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.common.collect.Maps;
+import com.google.common.collect.Multimap;
+import com.google.common.collect.Sets;
+
+import hudson.Extension;
+import hudson.FilePath;
+import hudson.Util;
+import hudson.XmlFile;
+import hudson.model.AbstractBuild;
+import hudson.model.AbstractProject;
+import hudson.model.BuildListener;
+import hudson.model.Node;
+import hudson.model.Run;
+import hudson.model.TaskListener;
+import hudson.model.WorkspaceListener;
+import hudson.model.listeners.RunListener;
+import hudson.util.RunList;
+import jenkins.model.Jenkins;
+import jenkins.model.NodeListener;
+
+/**
+ * Remembers, for one job, which workspaces on which nodes have been used by its
+ * builds, and which of those are in use right now. This saves us from having to
+ * load the job's entire build history every time we want to know where its old
+ * workspaces are.
+ * <p>
+ * The index is kept up to date as builds start and finish (whether or not the
+ * job uses {@link PrePostClean} at the time, as it could be added later), and is
+ * persisted in the job's folder. If a job has no index (e.g. because the job
+ * predates this functionality) then one is built from the job's build history
+ * the first time it's needed, and when an index is loaded, any builds newer
+ * than those it knows about (e.g. ones that ran while an older version of this
+ * plugin was installed) are added from the job's history.
+ */
+public class WorkspaceUsageIndex {
+    private static final Logger LOGGER = LoggerFactory.getLogger(WorkspaceUsageIndex.class);
+    private static final String FILENAME = "wsclean-workspaces.xml";
+    /**
+     * Cache of indexes we've already got in memory. Each job has its own
+     * {@link Slot}, so loading or rebuilding one job's index doesn't hold up any
+     * other job.
+     */
+    private static final Map<AbstractProject<?, ?>, Slot> INDEXES = new WeakHashMap<>();
+
+    /** Node name to workspace path to how that workspace has been used. */
+    private final SortedMap<String, SortedMap<String, Usage>> usages = Maps.newTreeMap();
+
+    /** How one workspace on one node has been used. */
+    static final class Usage {
+        /** Most recent build to use the workspace. */
+        private int lastBuildNumber;
+        /** Builds that are using the workspace right now. */
+        private final SortedSet<Integer> buildsInProgress = Sets.newTreeSet();
+
+        boolean isInUse() {
+            return !buildsInProgress.isEmpty();
+        }
+    }
+
+    /** Holds one job's index, and is what we lock while loading or rebuilding it. */
+    private static final class Slot {
+        /** Guarded by this slot. */
+        private WorkspaceUsageIndex index;
+    }
+
+    private static Slot getSlot(AbstractProject<?, ?> project) {
+        synchronized (INDEXES) {
+            Slot slot = INDEXES.get(project);
+            if (slot == null) {
+                slot = new Slot();
+                INDEXES.put(project, slot);
+            }
+            return slot;
+        }
+    }
+
+    /**
+     * Gets the index for a job, building it from the job's history if there isn't
+     * one already. Only this job is held up while that happens.
+     *
+     * @param project The job whose workspaces we're interested in.
+     * @return The job's index.
+     */
+    static @Nonnull WorkspaceUsageIndex getOrRebuild(@Nonnull AbstractProject<?, ?> project) {
+        final Slot slot = getSlot(project);
+        synchronized (slot) {
+            WorkspaceUsageIndex index = getOrLoad(slot, project);
+            if (index == null) {
+                LOGGER.debug("getOrRebuild({}): index missing; rebuilding from history", project);
+                index = new WorkspaceUsageIndex();
+                index.rebuildFromHistory(project);
+                slot.index = index;
+                index.save(project);
+            }
+            return index;
+        }
+    }
+
+    /**
+     * Gets the index for a job, if it has one.
+     *
+     * @param project The job whose workspaces we're interested in.
+     * @return The job's index, or null if there isn't one.
+     */
+    static @CheckForNull WorkspaceUsageIndex get(@Nonnull AbstractProject<?, ?> project) {
+        final Slot slot = getSlot(project);
+        synchronized (slot) {
+            return getOrLoad(slot, project);
+        }
+    }
+
+    private static @CheckForNull WorkspaceUsageIndex getOrLoad(Slot slot, AbstractProject<?, ?> project) {
+        if (slot.index == null) {
+            slot.index = load(project);
+        }
+        return slot.index;
+    }
+
+    /**
+     * Forgets workspaces that have been deleted, so the index doesn't keep
+     * growing. Does nothing if the job has no index.
+     *
+     * @param project        The job whose workspaces they were.
+     * @param nodeName       The node they were on.
+     * @param workspacePaths Where they were on that node.
+     */
+    static void workspacesDeleted(@Nonnull AbstractProject<?, ?> project, @Nonnull String nodeName,
+            @Nonnull Iterable<String> workspacePaths) {
+        final WorkspaceUsageIndex index = get(project);
+        if (index != null && index.forgetWorkspaces(nodeName, workspacePaths)) {
+            index.save(project);
+        }
+    }
+
+    /**
+     * Forgets a node that has been deleted from every index we've got in memory.
+     * Any that aren't in memory will forget it when they're next loaded.
+     *
+     * @param nodeName The node.
+     */
+    static void nodeDeleted(@Nonnull String nodeName) {
+        final Map<AbstractProject<?, ?>, Slot> slots;
+        synchronized (INDEXES) {
+            slots = Maps.newHashMap(INDEXES);
+        }
+        for (final Map.Entry<AbstractProject<?, ?>, Slot> e : slots.entrySet()) {
+            final WorkspaceUsageIndex index;
+            synchronized (e.getValue()) {
+                index = e.getValue().index;
+            }
+            if (index != null && index.forgetNode(nodeName)) {
+                index.save(e.getKey());
+            }
+        }
+    }
+
+    /**
+     * Records that a build has started using a workspace.
+     *
+     * @param nodeName      The node the build is running on.
+     * @param workspacePath Where the workspace is on that node.
+     * @param buildNumber   The build's number.
+     */
+    synchronized void recordStarted(@Nonnull String nodeName, @Nonnull String workspacePath, int buildNumber) {
+        final Usage usage = getUsage(nodeName, workspacePath);
+        usage.lastBuildNumber = Math.max(usage.lastBuildNumber, buildNumber);
+        usage.buildsInProgress.add(buildNumber);
+    }
+
+    /**
+     * Records that a build has finished with its workspace(s).
+     *
+     * @param nodeName    The node the build ran on.
+     * @param buildNumber The build's number.
+     */
+    synchronized void recordCompleted(@Nonnull String nodeName, int buildNumber) {
+        final SortedMap<String, Usage> usagesOnNode = usages.get(nodeName);
+        if (usagesOnNode != null) {
+            for (final Usage usage : usagesOnNode.values()) {
+                usage.buildsInProgress.remove(buildNumber);
+            }
+        }
+    }
+
+    /**
+     * Tells us what workspaces are in use and what were used previously. This
+     * only needs to look at each node and workspace once, no matter how many
+     * builds there have been.
+     *
+     * @param jenkins              Used to turn node names into nodes.
+     * @param wssCurrentlyInUse    Where to record workspaces that are currently in
+     *                             use.
+     * @param wssPreviouslyUsed    Where to record workspaces that are no longer in
+     *                             use.
+     * @param nodeNamesOfDeadNodes Where to record nodes which aren't online so we
+     *                             need to avoid touching them at all.
+     * @param wssOnOfflineNodes    Where to record workspaces that are no longer in
+     *                             use on nodes that still exist but aren't online,
+     *                             so they can be deleted when the node comes back.
+     */
+    synchronized void findWorkspaces(Jenkins jenkins, Multimap<String, String> wssCurrentlyInUse,
+            Multimap<String, String> wssPreviouslyUsed, Set<String> nodeNamesOfDeadNodes,
+            Multimap<String, String> wssOnOfflineNodes) {
+        for (final Map.Entry<String, SortedMap<String, Usage>> e : usages.entrySet()) {
+            final String nodeName = e.getKey();
+            final SortedMap<String, Usage> usagesOnNode = e.getValue();
+            final Node node = nodeName.isEmpty() ? jenkins : jenkins.getNode(nodeName);
+            if (node == null || isOffline(node, usagesOnNode)) {
+                nodeNamesOfDeadNodes.add(nodeName);
+                if (node != null) {
+                    for (final Map.Entry<String, Usage> u : usagesOnNode.entrySet()) {
+                        if (!u.getValue().isInUse()) {
+                            wssOnOfflineNodes.put(nodeName, u.getKey());
+                        }
+                    }
+                }
+                continue;
+            }
+            for (final Map.Entry<String, Usage> u : usagesOnNode.entrySet()) {
+                if (u.getValue().isInUse()) {
+                    wssCurrentlyInUse.put(nodeName, u.getKey());
+                } else {
+                    wssPreviouslyUsed.put(nodeName, u.getKey());
+                }
+            }
+        }
+    }
+
+    /**
+     * Tells us if a workspace has been used since a given build, e.g. because a
+     * later build has used it, or if it's in use right now.
+     *
+     * @param nodeName      The node the workspace is on.
+     * @param workspacePath Where the workspace is on that node.
+     * @param buildNumber   The build we're comparing against.
+     * @return true if the workspace is in use, or was last used by a later build.
+     */
+    synchronized boolean isUsedSince(@Nonnull String nodeName, @Nonnull String workspacePath, int buildNumber) {
+        final SortedMap<String, Usage> usagesOnNode = usages.get(nodeName);
+        final Usage usage = usagesOnNode == null ? null : usagesOnNode.get(workspacePath);
+        return usage != null && (usage.isInUse() || usage.lastBuildNumber > buildNumber);
+    }
+
+    /**
+     * Tells us which build last used a workspace, so we can tell which workspaces
+     * were used least recently.
+     *
+     * @param nodeName      The node the workspace is on.
+     * @param workspacePath Where the workspace is on that node.
+     * @return The number of the most recent build to use it, or 0 if we don't
+     *         know of any.
+     */
+    synchronized int getLastBuildNumber(@Nonnull String nodeName, @Nonnull String workspacePath) {
+        final SortedMap<String, Usage> usagesOnNode = usages.get(nodeName);
+        final Usage usage = usagesOnNode == null ? null : usagesOnNode.get(workspacePath);
+        return usage == null ? 0 : usage.lastBuildNumber;
+    }
+
+    /**
+     * Forgets workspaces that have been deleted, unless a build has started using
+     * them again since.
+     *
+     * @param nodeName       The node they were on.
+     * @param workspacePaths Where they were on that node.
+     * @return true if we forgot anything.
+     */
+    synchronized boolean forgetWorkspaces(@Nonnull String nodeName, @Nonnull Iterable<String> workspacePaths) {
+        final SortedMap<String, Usage> usagesOnNode = usages.get(nodeName);
+        if (usagesOnNode == null) {
+            return false;
+        }
+        boolean changed = false;
+        for (final String workspacePath : workspacePaths) {
+            final Usage usage = usagesOnNode.get(workspacePath);
+            if (usage != null && !usage.isInUse()) {
+                usagesOnNode.remove(workspacePath);
+                changed = true;
+            }
+        }
+        if (changed && usagesOnNode.isEmpty()) {
+            usages.remove(nodeName);
+        }
+        return changed;
+    }
+
+    /**
+     * Forgets everything about a node.
+     *
+     * @param nodeName The node.
+     * @return true if we forgot anything.
+     */
+    synchronized boolean forgetNode(@Nonnull String nodeName) {
+        return usages.remove(nodeName) != null;
+    }
+
+    /**
+     * Forgets about any nodes that no longer exist.
+     */
+    private synchronized void forgetDeletedNodes(Jenkins jenkins) {
+        for (final Iterator<String> i = usages.keySet().iterator(); i.hasNext();) {
+            final String nodeName = i.next();
+            if (!nodeName.isEmpty() && jenkins.getNode(nodeName) == null) {
+                i.remove();
+            }
+        }
+    }
+
+    private static boolean isOffline(Node node, SortedMap<String, Usage> usagesOnNode) {
+        if (usagesOnNode.isEmpty()) {
+            return node.getRootPath() == null;
+        }
+        return node.createPath(usagesOnNode.firstKey()) == null;
+    }
+
+    private Usage getUsage(String nodeName, String workspacePath) {
+        SortedMap<String, Usage> usagesOnNode = usages.get(nodeName);
+        if (usagesOnNode == null) {
+            usagesOnNode = Maps.newTreeMap();
+            usages.put(nodeName, usagesOnNode);
+        }
+        Usage usage = usagesOnNode.get(workspacePath);
+        if (usage == null) {
+            usage = new Usage();
+            usagesOnNode.put(workspacePath, usage);
+        }
+        return usage;
+    }
+
+    /**
+     * Populates the index from the job's build history. This is expensive, as it
+     * loads every build, which is why we only do it if we have to.
+     */
+    private synchronized void rebuildFromHistory(AbstractProject<?, ?> project) {
+        final RunList<?> builds = project.getBuilds();
+        for (final Object historyEntry : builds) {
+            recordFromHistory(project, historyEntry);
+        }
+    }
+
+    /**
+     * Adds any builds that are newer than the newest one we know about. Builds
+     * are listed newest first, so we only load the ones we're missing.
+     */
+    @Restricted(NoExternalUse.class) // package-level for unit-tests
+    synchronized void catchUpWithHistory(AbstractProject<?, ?> project) {
+        final int newestKnown = getNewestBuildNumber();
+        for (final Object historyEntry : project.getBuilds()) {
+            if (historyEntry instanceof Run && ((Run<?, ?>) historyEntry).getNumber() <= newestKnown) {
+                break;
+            }
+            LOGGER.debug("catchUpWithHistory({}): {} is newer than build {}", project, historyEntry, newestKnown);
+            recordFromHistory(project, historyEntry);
+        }
+    }
+
+    private int getNewestBuildNumber() {
+        int result = 0;
+        for (final SortedMap<String, Usage> usagesOnNode : usages.values()) {
+            for (final Usage usage : usagesOnNode.values()) {
+                result = Math.max(result, usage.lastBuildNumber);
+            }
+        }
+        return result;
+    }
+
+    private void recordFromHistory(AbstractProject<?, ?> project, Object historyEntry) {
+        if (!(historyEntry instanceof AbstractBuild)) {
+            LOGGER.debug("rebuildFromHistory({}): {} is not AbstractBuild", project, historyEntry);
+            return;
+        }
+        final AbstractBuild<?, ?> historicalBuild = (AbstractBuild<?, ?>) historyEntry;
+        if (historicalBuild.hasntStartedYet()) {
+            LOGGER.debug("rebuildFromHistory({}): {} has not started", project, historicalBuild);
+            return; // no node or ws assigned yet
+        }
+        final String nodeItRanOn = Util.fixNull(historicalBuild.getBuiltOnStr());
+        final Node node = historicalBuild.getBuiltOn();
+        if (node == null) {
+            // Node no longer exists
+            LOGGER.debug("rebuildFromHistory({}): {} ran on node {} which is deleted.", project, historicalBuild,
+                    nodeItRanOn);
+            return;
+        }
+        final FilePath wsOrNull = historicalBuild.getWorkspace();
+        if (wsOrNull == null) {
+            // Node is offline; we remember the node so we know to leave it alone.
+            LOGGER.debug("rebuildFromHistory({}): {} ran on node {} which is offline so ws unavailable.", project,
+                    historicalBuild, nodeItRanOn);
+            if (!usages.containsKey(nodeItRanOn)) {
+                usages.put(nodeItRanOn, Maps.<String, Usage>newTreeMap());
+            }
+            return;
+        }
+        final boolean buildIsNotFinished = historicalBuild.isBuilding() || historicalBuild.getExecutor() != null;
+        final String folderOnNode = wsOrNull.getRemote();
+        LOGGER.debug("rebuildFromHistory({}): Unfinished={} {} ran on node {} in folder {}.", project,
+                buildIsNotFinished, historicalBuild, nodeItRanOn, folderOnNode);
+        final Usage usage = getUsage(nodeItRanOn, folderOnNode);
+        final int buildNumber = historicalBuild.getNumber();
+        usage.lastBuildNumber = Math.max(usage.lastBuildNumber, buildNumber);
+        if (buildIsNotFinished) {
+            usage.buildsInProgress.add(buildNumber);
+        }
+    }
+
+    /**
+     * Forgets about any builds we think are in progress but which aren't, e.g.
+     * because Jenkins was restarted while they were running.
+     */
+    private synchronized void forgetAbandonedBuilds(AbstractProject<?, ?> project) {
+        for (final SortedMap<String, Usage> usagesOnNode : usages.values()) {
+            for (final Usage usage : usagesOnNode.values()) {
+                for (final Iterator<Integer> i = usage.buildsInProgress.iterator(); i.hasNext();) {
+                    final AbstractBuild<?, ?> b = project.getBuildByNumber(i.next());
+                    if (b == null || !b.isBuilding()) {
+                        i.remove();
+                    }
+                }
+            }
+        }
+    }
+
+    private static @CheckForNull XmlFile getConfigFile(AbstractProject<?, ?> project) {
+        final File rootDir = project.getRootDir();
+        if (rootDir == null) {
+            return null;
+        }
+        return new XmlFile(Jenkins.XSTREAM2, new File(rootDir, FILENAME));
+    }
+
+    private static @CheckForNull WorkspaceUsageIndex load(AbstractProject<?, ?> project) {
+        final XmlFile file = getConfigFile(project);
+        if (file == null || !file.exists()) {
+            return null;
+        }
+        try {
+            final WorkspaceUsageIndex index = (WorkspaceUsageIndex) file.read();
+            index.catchUpWithHistory(project);
+            index.forgetAbandonedBuilds(project);
+            final Jenkins jenkins = Jenkins.getInstance();
+            if (jenkins != null) {
+                index.forgetDeletedNodes(jenkins);
+            }
+            return index;
+        } catch (IOException | RuntimeException ex) {
+            LOGGER.warn("Unable to read {}; it will be rebuilt.", file, ex);
+            return null;
+        }
+    }
+
+    private synchronized void save(AbstractProject<?, ?> project) {
+        final XmlFile file = getConfigFile(project);
+        if (file == null) {
+            return;
+        }
+        try {
+            file.write(this);
+        } catch (IOException ex) {
+            LOGGER.warn("Unable to write {}", file, ex);
+        }
+    }
+
+    /** Records which workspace each build uses as it starts using it. */
+    @Restricted(NoExternalUse.class)
+    @Extension
+    public static final class WorkspaceListenerImpl extends WorkspaceListener {
+        @Override
+        public void beforeUse(AbstractBuild b, FilePath workspace, BuildListener listener) {
+            final AbstractProject<?, ?> project = b.getProject();
+            final WorkspaceUsageIndex index = get(project);
+            if (index == null) {
+                return; // it'll get built from history, which will include this build
+            }
+            index.recordStarted(Util.fixNull(b.getBuiltOnStr()), workspace.getRemote(), b.getNumber());
+            index.save(project);
+        }
+    }
+
+    /** Forgets nodes as they're deleted. */
+    @Restricted(NoExternalUse.class)
+    @Extension
+    public static final class NodeListenerImpl extends NodeListener {
+        @Override
+        protected void onDeleted(@Nonnull Node node) {
+            nodeDeleted(node.getNodeName());
+        }
+    }
+
+    /** Records when each build has finished with its workspace. */
+    @Restricted(NoExternalUse.class)
+    @Extension
+    @SuppressWarnings("rawtypes")
+    public static final class RunListenerImpl extends RunListener<AbstractBuild> {
+        @Override
+        public void onCompleted(AbstractBuild b, @Nonnull TaskListener listener) {
+            final AbstractProject<?, ?> project = b.getProject();
+            final WorkspaceUsageIndex index = get(project);
+            if (index == null) {
+                return; // it'll get built from history, which will include this build
+            }
+            index.recordCompleted(Util.fixNull(b.getBuiltOnStr()), b.getNumber());
+            index.save(project);
+        }
+    }
+}
@@ -0,0 +1,58 @@
+package de.jamba.hudson.plugin.wsclean;
+
+import static org.hamcrest.Matchers.equalTo;
+import static org.hamcrest.Matchers.nullValue;
+import static org.hamcrest.Matchers.sameInstance;
+import static org.junit.Assert.assertThat;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+import org.junit.Test;
+
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.SettableFuture;
+
+import hudson.model.Run;
+
+public class BackgroundCleanupsTest {
+    @Test
+    public void lookupGivenRegisteredCleanupThenFindsIt() {
+        // Given
+        final Run mockRun = mockRun("myJob#1");
+        final SettableFuture<Boolean> cleanup = SettableFuture.create();
+        final BackgroundCleanups instance = new BackgroundCleanups();
+        final WorkspaceCleanHandle handle = instance.register(mockRun, cleanup, 3);
+
+        // When
+        final ListenableFuture<Boolean> actual = instance.lookup(handle);
+
+        // Then
+        assertThat(actual, sameInstance((ListenableFuture<Boolean>) cleanup));
+        assertThat(handle.getNodeCount(), equalTo(3));
+    }
+
+    @Test
+    public void forgetGivenRunThenForgetsOnlyItsCleanups() {
+        // Given
+        final Run mockRun1 = mockRun("myJob#1");
+        final Run mockRun10 = mockRun("myJob#10");
+        final SettableFuture<Boolean> cleanup1 = SettableFuture.create();
+        final SettableFuture<Boolean> cleanup10 = SettableFuture.create();
+        final BackgroundCleanups instance = new BackgroundCleanups();
+        final WorkspaceCleanHandle handle1 = instance.register(mockRun1, cleanup1, 1);
+        final WorkspaceCleanHandle handle10 = instance.register(mockRun10, cleanup10, 1);
+
+        // When
+        instance.forget(mockRun1);
+
+        // Then
+        assertThat(instance.lookup(handle1), nullValue());
+        assertThat(instance.lookup(handle10), sameInstance((ListenableFuture<Boolean>) cleanup10));
+    }
+
+    private static Run mockRun(String externalizableId) {
+        final Run m = mock(Run.class, externalizableId);
+        when(m.getExternalizableId()).thenReturn(externalizableId);
+        return m;
+    }
+}
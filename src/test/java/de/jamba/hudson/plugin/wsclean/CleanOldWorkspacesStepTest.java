@@ -0,0 +1,145 @@
+package de.jamba.hudson.plugin.wsclean;
+
+import static org.hamcrest.Matchers.contains;
+import static org.hamcrest.Matchers.equalTo;
+import static org.junit.Assert.assertThat;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+import static org.mockito.Mockito.withSettings;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.Test;
+
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.ImmutableMultimap;
+import com.google.common.collect.ImmutableSet;
+import com.google.common.collect.Multimap;
+import com.google.common.collect.TreeMultimap;
+
+import de.jamba.hudson.plugin.wsclean.CleanupReport.NodeReport;
+import de.jamba.hudson.plugin.wsclean.CleanupReport.SkipReason;
+import hudson.FilePath;
+import hudson.model.Computer;
+import hudson.model.Executor;
+import hudson.model.Job;
+import hudson.model.Label;
+import hudson.model.Node;
+import hudson.model.Queue;
+import hudson.model.TaskListener;
+import hudson.model.TopLevelItem;
+import hudson.model.queue.SubTask;
+import jenkins.model.Jenkins;
+
+public class CleanOldWorkspacesStepTest {
+    @Test
+    public void findWorkspacesGivenLabelThenFindsWorkspacesOnMatchingNodesExceptOurs() throws Exception {
+        // Given
+        final Job mockJob = mock(Job.class, withSettings().name("mockJob").extraInterfaces(TopLevelItem.class));
+        final TaskListener mockListener = mock(TaskListener.class, "mockListener");
+        when(mockListener.getLogger()).thenReturn(System.out);
+        final String ws = "/workspaces/myPipeline";
+        final Node mockNode1 = mockNode("node1-current", ws, mockJob);
+        final Node mockNode2 = mockNode("node2", ws, mockJob);
+        final Node mockNode3 = mockNode("node3-offline", null, mockJob);
+        final Label mockLabel = mock(Label.class, "mockLabel");
+        when(mockLabel.getNodes()).thenReturn(ImmutableSet.of(mockNode1, mockNode2, mockNode3));
+        final Jenkins mockJenkins = mock(Jenkins.class, "mockJenkins");
+        when(mockJenkins.getLabel("linux")).thenReturn(mockLabel);
+        final CleanOldWorkspacesStep instance = new CleanOldWorkspacesStep();
+        instance.setLabel("linux");
+        final CleanupReport.Recorder report = new CleanupReport.Recorder();
+
+        // When
+        final Multimap<String, String> actual = instance.findWorkspaces(mockJenkins, mockJob, mockListener,
+                "node1-current", report);
+
+        // Then
+        assertThat(actual.keySet(), contains("node2"));
+        assertThat(actual.get("node2"), contains(ws));
+        final List<NodeReport> actualSkipped = report
+                .toReport(ImmutableMultimap.<String, String>of(), ImmutableMap.<String, NodeOutcome>of(), false)
+                .getNodes();
+        assertThat(actualSkipped.size(), equalTo(1));
+        assertThat(actualSkipped.get(0).getNodeName(), equalTo("node3-offline"));
+        assertThat(actualSkipped.get(0).getSkipReason(), equalTo(SkipReason.OFFLINE));
+    }
+
+    @Test
+    public void findWorkspacesGivenJobWithoutWorkspacesThenFindsNothing() throws Exception {
+        // Given
+        final Job mockJob = mock(Job.class, "mockJob");
+        final TaskListener mockListener = mock(TaskListener.class, "mockListener");
+        when(mockListener.getLogger()).thenReturn(System.out);
+        final Jenkins mockJenkins = mock(Jenkins.class, "mockJenkins");
+        final CleanOldWorkspacesStep instance = new CleanOldWorkspacesStep();
+
+        // When
+        final Multimap<String, String> actual = instance.findWorkspaces(mockJenkins, mockJob, mockListener, null,
+                new CleanupReport.Recorder());
+
+        // Then
+        assertThat(actual.isEmpty(), equalTo(true));
+    }
+
+    @Test
+    public void removeNodesInUseGivenConcurrentBuildThenLeavesItsNodeAlone() throws Exception {
+        // Given
+        final Job mockJob = mock(Job.class,
+                withSettings().name("mockJob").extraInterfaces(TopLevelItem.class, Queue.Task.class));
+        final Job mockOtherJob = mock(Job.class,
+                withSettings().name("mockOtherJob").extraInterfaces(TopLevelItem.class, Queue.Task.class));
+        final TaskListener mockListener = mock(TaskListener.class, "mockListener");
+        when(mockListener.getLogger()).thenReturn(System.out);
+        final String ws = "/workspaces/myPipeline";
+        final Jenkins mockJenkins = mock(Jenkins.class, "mockJenkins");
+        mockComputer(mockJenkins, "node1-concurrentBuild", null, mockJob);
+        mockComputer(mockJenkins, "node2-otherJob", mockOtherJob);
+        mockComputer(mockJenkins, "node3-idle", (Job) null);
+        final Multimap<String, String> workspaces = TreeMultimap.create();
+        for (final String nodeName : Arrays.asList("node1-concurrentBuild", "node2-otherJob", "node3-idle")) {
+            workspaces.put(nodeName, ws);
+        }
+        final CleanupReport.Recorder report = new CleanupReport.Recorder();
+
+        // When
+        CleanOldWorkspacesStep.removeNodesInUse(mockJenkins, mockJob, workspaces, mockListener, report);
+
+        // Then
+        assertThat(workspaces.keySet(), contains("node2-otherJob", "node3-idle"));
+        final List<NodeReport> actualSkipped = report
+                .toReport(ImmutableMultimap.<String, String>of(), ImmutableMap.<String, NodeOutcome>of(), false)
+                .getNodes();
+        assertThat(actualSkipped.size(), equalTo(1));
+        assertThat(actualSkipped.get(0).getNodeName(), equalTo("node1-concurrentBuild"));
+        assertThat(actualSkipped.get(0).getSkipReason(), equalTo(SkipReason.IN_USE));
+    }
+
+    /** Gives the node one executor per job, running a build of that job (or nothing, if it's null). */
+    private static void mockComputer(Jenkins mockJenkins, String nodeName, Job... jobs) {
+        final Computer mockComputer = mock(Computer.class, nodeName);
+        final List<Executor> mockExecutors = new ArrayList<>();
+        for (final Job job : jobs) {
+            final Executor mockExecutor = mock(Executor.class);
+            if (job != null) {
+                final SubTask mockSubTask = mock(SubTask.class);
+                when(mockSubTask.getOwnerTask()).thenReturn((Queue.Task) job);
+                final Queue.Executable mockExecutable = mock(Queue.Executable.class);
+                when(mockExecutable.getParent()).thenReturn(mockSubTask);
+                when(mockExecutor.getCurrentExecutable()).thenReturn(mockExecutable);
+            }
+            mockExecutors.add(mockExecutor);
+        }
+        when(mockComputer.getExecutors()).thenReturn(mockExecutors);
+        when(mockJenkins.getComputer(nodeName)).thenReturn(mockComputer);
+    }
+
+    private static Node mockNode(String nodeName, String ws, Job job) {
+        final Node m = mock(Node.class, nodeName);
+        when(m.getNodeName()).thenReturn(nodeName);
+        when(m.getWorkspaceFor((TopLevelItem) job)).thenReturn(ws == null ? null : new FilePath(null, ws));
+        return m;
+    }
+}
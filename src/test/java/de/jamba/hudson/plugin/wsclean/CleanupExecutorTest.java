@@ -0,0 +1,164 @@
+package de.jamba.hudson.plugin.wsclean;
+
+import static org.hamcrest.Matchers.equalTo;
+import static org.hamcrest.Matchers.is;
+import static org.junit.Assert.assertThat;
+
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.After;
+import org.junit.Test;
+
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.Lists;
+
+public class CleanupExecutorTest {
+    private CleanupExecutor instance;
+
+    @After
+    public void shutdown() {
+        if (instance != null) {
+            instance.shutdownNow();
+        }
+    }
+
+    @Test
+    public void submitGivenMoreTasksForANodeThanItsLimitThenRunsNoMoreThanTheLimitAtOnce() throws Exception {
+        // Given
+        final int maxPerNode = 2;
+        final int numberOfTasks = 6;
+        instance = new CleanupExecutor(10, maxPerNode);
+        final AtomicInteger running = new AtomicInteger();
+        final AtomicInteger maxRunning = new AtomicInteger();
+        final Callable<Void> task = new Callable<Void>() {
+            @Override
+            public Void call() throws Exception {
+                final int nowRunning = running.incrementAndGet();
+                synchronized (maxRunning) {
+                    maxRunning.set(Math.max(maxRunning.get(), nowRunning));
+                }
+                Thread.sleep(50L);
+                running.decrementAndGet();
+                return null;
+            }
+        };
+
+        // When
+        final List<Future<Void>> futures = Lists.newArrayList();
+        for (int i = 0; i < numberOfTasks; i++) {
+            futures.add(instance.submit("node", task));
+        }
+        for (final Future<Void> f : futures) {
+            f.get(10, TimeUnit.SECONDS);
+        }
+
+        // Then
+        assertThat(maxRunning.get(), equalTo(maxPerNode));
+    }
+
+    @Test
+    public void submitGivenNodeAtItsLimitThenOtherNodesStillRun() throws Exception {
+        // Given
+        instance = new CleanupExecutor(10, 1);
+        final CountDownLatch release = new CountDownLatch(1);
+        final Future<Void> busyNodeTask = instance.submit("busyNode", mkTaskThatWaitsFor(release));
+        final Future<Void> queuedBusyNodeTask = instance.submit("busyNode", mkTaskThatWaitsFor(release));
+
+        // When
+        final Future<Void> otherNodeTask = instance.submit("otherNode", mkTaskThatWaitsFor(new CountDownLatch(0)));
+        otherNodeTask.get(10, TimeUnit.SECONDS);
+
+        // Then
+        assertThat(busyNodeTask.isDone(), is(false));
+        assertThat(queuedBusyNodeTask.isDone(), is(false));
+        release.countDown();
+        busyNodeTask.get(10, TimeUnit.SECONDS);
+        queuedBusyNodeTask.get(10, TimeUnit.SECONDS);
+    }
+
+    @Test
+    public void getCoordinatorGivenMoreTasksThanThreadsThenQueuesTheRest() throws Exception {
+        // Given
+        final int maxThreads = 2;
+        final int numberOfTasks = 6;
+        instance = new CleanupExecutor(maxThreads, 1);
+        final CountDownLatch release = new CountDownLatch(1);
+        final AtomicInteger started = new AtomicInteger();
+        final Runnable task = new Runnable() {
+            @Override
+            public void run() {
+                started.incrementAndGet();
+                try {
+                    release.await();
+                } catch (InterruptedException ex) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+        };
+        final List<Future<?>> futures = Lists.newArrayList();
+        for (int i = 0; i < numberOfTasks; i++) {
+            futures.add(instance.getCoordinator().submit(task));
+            futures.add(instance.getBackgroundCleans().submit(task));
+        }
+
+        // When
+        Thread.sleep(100L);
+        final int actualStarted = started.get();
+        release.countDown();
+        for (final Future<?> f : futures) {
+            f.get(10, TimeUnit.SECONDS);
+        }
+
+        // Then
+        assertThat(actualStarted, equalTo(maxThreads * 2));
+        assertThat(started.get(), equalTo(numberOfTasks * 2));
+    }
+
+    @Test
+    public void getQueueDepthGivenTasksWaitingThenCountsThem() throws Exception {
+        // Given
+        instance = new CleanupExecutor(2, 1);
+        final CountDownLatch release = new CountDownLatch(1);
+        final CountDownLatch started = new CountDownLatch(2);
+        final Callable<Void> task = mkTaskThatWaitsFor(release, started);
+        final List<Future<Void>> futures = Lists.newArrayList();
+        futures.add(instance.submit("node1", task));
+        futures.add(instance.submit("node2", task));
+        futures.add(instance.submit("node1", task)); // waits for node1
+        futures.add(instance.submit("node3", task)); // waits for a thread
+        started.await(10, TimeUnit.SECONDS);
+
+        // When
+        final int actualQueueDepth = instance.getQueueDepth();
+        final int actualActiveCount = instance.getActiveCount();
+
+        // Then
+        assertThat(actualQueueDepth, equalTo(2));
+        assertThat(actualActiveCount, equalTo(2));
+        assertThat(instance.getActiveCountsByNode(), equalTo(ImmutableMap.of("node1", 1, "node2", 1, "node3", 1)));
+        release.countDown();
+        for (final Future<Void> f : futures) {
+            f.get(10, TimeUnit.SECONDS);
+        }
+        assertThat(instance.getQueueDepth(), equalTo(0));
+        assertThat(instance.getActiveCountsByNode().isEmpty(), is(true));
+    }
+
+    private static Callable<Void> mkTaskThatWaitsFor(final CountDownLatch release, final CountDownLatch... started) {
+        return new Callable<Void>() {
+            @Override
+            public Void call() throws Exception {
+                for (final CountDownLatch s : started) {
+                    s.countDown();
+                }
+                release.await();
+                return null;
+            }
+        };
+    }
+}
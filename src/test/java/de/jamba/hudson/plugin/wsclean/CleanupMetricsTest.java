@@ -0,0 +1,118 @@
+package de.jamba.hudson.plugin.wsclean;
+
+import static org.hamcrest.Matchers.equalTo;
+import static org.hamcrest.Matchers.greaterThanOrEqualTo;
+import static org.hamcrest.Matchers.is;
+import static org.junit.Assert.assertThat;
+
+import java.lang.management.ManagementFactory;
+import java.util.Map;
+
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import javax.management.openmbean.CompositeData;
+import javax.management.openmbean.TabularData;
+
+import org.junit.Test;
+
+import com.google.common.collect.ImmutableList;
+
+import de.jamba.hudson.plugin.wsclean.CleanupMetrics.Phase;
+import net.sf.json.JSONObject;
+
+public class CleanupMetricsTest {
+    @Test
+    public void recordDeletionGivenResultsThenAddsThemUpOverallAndPerNode() {
+        // Given
+        final CleanupMetrics instance = new CleanupMetrics();
+        final FolderDeletionResult ok1 = new FolderDeletionResult("/ws1", null, 3L, 300L);
+        final FolderDeletionResult ok2 = new FolderDeletionResult("/ws2", null, 2L, 20L);
+        final FolderDeletionResult failed = new FolderDeletionResult("/ws3", "oops", 1L, 1L);
+
+        // When
+        instance.recordDeletion("node1", CleanupMetrics.startTimer(), ImmutableList.of(ok1, ok2));
+        instance.recordDeletion("node2", CleanupMetrics.startTimer(), ImmutableList.of(failed));
+        instance.recordDeletion("node2", CleanupMetrics.startTimer(), null);
+
+        // Then
+        assertThat(instance.getFilesDeleted(), equalTo(6L));
+        assertThat(instance.getBytesDeleted(), equalTo(321L));
+        assertThat(instance.getFailures(), equalTo(2L));
+        final Map<String, NodeMetricsSnapshot> nodes = instance.getNodes();
+        assertThat(nodes.get("node1").getFilesDeleted(), equalTo(5L));
+        assertThat(nodes.get("node1").getBytesDeleted(), equalTo(320L));
+        assertThat(nodes.get("node1").getFailures(), equalTo(0L));
+        assertThat(nodes.get("node1").getDeletion().getCount(), equalTo(1L));
+        assertThat(nodes.get("node2").getFailures(), equalTo(2L));
+        assertThat(nodes.get("node2").getDeletion().getCount(), equalTo(2L));
+        assertThat(instance.getPhases().get(Phase.DELETION.name()).getCount(), equalTo(3L));
+    }
+
+    @Test
+    public void recordPhaseGivenDurationThenCountsItInTheRightBucket() {
+        // Given
+        final CleanupMetrics instance = new CleanupMetrics();
+        final long oneSecondAndABitAgo = CleanupMetrics.startTimer() - 1500L * 1000L * 1000L;
+
+        // When
+        instance.recordPhase(Phase.PLAN, CleanupMetrics.startTimer());
+        instance.recordPhase(Phase.PLAN, oneSecondAndABitAgo);
+
+        // Then
+        final TimerSnapshot actual = instance.getPhases().get(Phase.PLAN.name());
+        assertThat(actual.getCount(), equalTo(2L));
+        assertThat(actual.getHistogram().get("<=100ms"), equalTo(1L));
+        assertThat(actual.getHistogram().get("<=1s"), equalTo(0L));
+        assertThat(actual.getHistogram().get("<=10s"), equalTo(1L));
+        assertThat(actual.getMaxMillis(), greaterThanOrEqualTo(1500L));
+    }
+
+    @Test
+    public void toJSONGivenSomeActivityThenIncludesEverything() {
+        // Given
+        final CleanupMetrics instance = new CleanupMetrics();
+        instance.recordCleanup();
+        instance.recordTimeout();
+        instance.recordQueueWait("node1", CleanupMetrics.startTimer());
+        instance.recordInterruption("node1");
+        instance.recordRetry("node1");
+
+        // When
+        final JSONObject actual = instance.toJSON();
+
+        // Then
+        assertThat(actual.getLong("cleanups"), equalTo(1L));
+        assertThat(actual.getLong("timeouts"), equalTo(1L));
+        assertThat(actual.getJSONObject("phases").getJSONObject("DISPATCH").getLong("count"), equalTo(1L));
+        assertThat(actual.getLong("retries"), equalTo(1L));
+        assertThat(actual.getJSONObject("nodes").getJSONObject("node1").getLong("interruptions"), equalTo(1L));
+        assertThat(actual.getJSONObject("nodes").getJSONObject("node1").getLong("retries"), equalTo(1L));
+        assertThat(actual.getJSONObject("nodes").getJSONObject("node1").getJSONObject("queueWait").has("histogram"),
+                is(true));
+    }
+
+    @Test
+    public void registerWithJmxThenExposesOpenTypes() throws Exception {
+        // Given
+        final CleanupMetrics instance = new CleanupMetrics();
+        instance.recordDeletion("node1", CleanupMetrics.startTimer(),
+                ImmutableList.of(new FolderDeletionResult("/ws", null, 1L, 10L)));
+        final MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        final ObjectName name = new ObjectName(CleanupMetrics.OBJECT_NAME + ",test=" + getClass().getSimpleName());
+
+        // When
+        server.registerMBean(instance, name);
+        try {
+            final Object actualBytes = server.getAttribute(name, "BytesDeleted");
+            final TabularData actualNodes = (TabularData) server.getAttribute(name, "Nodes");
+
+            // Then
+            assertThat(actualBytes, equalTo((Object) 10L));
+            final CompositeData node1 = actualNodes.get(new Object[] { "node1" });
+            final CompositeData node1Metrics = (CompositeData) node1.get("value");
+            assertThat(node1Metrics.get("filesDeleted"), equalTo((Object) 1L));
+        } finally {
+            server.unregisterMBean(name);
+        }
+    }
+}
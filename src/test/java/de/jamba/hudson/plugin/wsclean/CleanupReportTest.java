@@ -0,0 +1,85 @@
+package de.jamba.hudson.plugin.wsclean;
+
+import static org.hamcrest.Matchers.equalTo;
+import static org.hamcrest.Matchers.nullValue;
+import static org.junit.Assert.assertThat;
+
+import java.util.List;
+
+import org.junit.Test;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.ImmutableMultimap;
+
+import de.jamba.hudson.plugin.wsclean.CleanupReport.NodeReport;
+import de.jamba.hudson.plugin.wsclean.CleanupReport.SkipReason;
+
+public class CleanupReportTest {
+    @Test
+    public void toReportGivenCleanedAndSkippedNodesThenReportsEachNode() throws Exception {
+        // Given
+        final CleanupReport.Recorder instance = new CleanupReport.Recorder();
+        instance.skipped(ImmutableList.of("nodeSkippedByName"), SkipReason.NAME);
+        instance.skipped(ImmutableList.of("nodeWithProperty"), SkipReason.NODE_PROPERTY);
+        instance.cleaned("node1", 1500L, 1000L);
+        instance.cleaned("node2", 500L, 24L);
+        final ImmutableMultimap<String, String> workspacesToBeRemoved = ImmutableMultimap.of("node1", "/ws/a",
+                "node1", "/ws/b", "node2", "/ws/a", "node3", "/ws/a");
+        final ImmutableMap<String, NodeOutcome> outcomes = ImmutableMap.of("node1", NodeOutcome.COMPLETED, "node2",
+                NodeOutcome.FAILED);
+
+        // When
+        final CleanupReport actual = instance.toReport(workspacesToBeRemoved, outcomes, true);
+
+        // Then
+        final List<NodeReport> actualNodes = actual.getNodes();
+        assertThat(actualNodes.size(), equalTo(5));
+        assertNode(actualNodes.get(0), "node1", NodeOutcome.COMPLETED, null, 2, 1500L, 1000L);
+        assertNode(actualNodes.get(1), "node2", NodeOutcome.FAILED, null, 1, 500L, 24L);
+        assertNode(actualNodes.get(2), "node3", NodeOutcome.TIMED_OUT, null, 1, 0L, 0L);
+        assertNode(actualNodes.get(3), "nodeSkippedByName", NodeOutcome.SKIPPED, SkipReason.NAME, 0, 0L, 0L);
+        assertNode(actualNodes.get(4), "nodeWithProperty", NodeOutcome.SKIPPED, SkipReason.NODE_PROPERTY, 0, 0L,
+                0L);
+        assertThat(actual.getBytesFreed(), equalTo(1024L));
+        assertThat(actual.getCleanedNodeCount(), equalTo(3));
+        assertThat(actual.isTimedOut(), equalTo(true));
+        assertThat(actual.isSkippedRoaming(), equalTo(false));
+    }
+
+    @Test
+    public void toReportGivenNodeWentOfflineThenReportsItAsSkipped() throws Exception {
+        // Given
+        final CleanupReport.Recorder instance = new CleanupReport.Recorder();
+        instance.skippedRoaming();
+        instance.skipped(ImmutableList.of("node1"), SkipReason.OFFLINE);
+        final ImmutableMultimap<String, String> workspacesToBeRemoved = ImmutableMultimap.of("node1", "/ws/a");
+        final ImmutableMap<String, NodeOutcome> outcomes = ImmutableMap.of("node1", NodeOutcome.SKIPPED);
+
+        // When
+        final CleanupReport actual = instance.toReport(workspacesToBeRemoved, outcomes, false);
+
+        // Then
+        final List<NodeReport> actualNodes = actual.getNodes();
+        assertThat(actualNodes.size(), equalTo(1));
+        assertNode(actualNodes.get(0), "node1", NodeOutcome.SKIPPED, SkipReason.OFFLINE, 1, 0L, 0L);
+        assertThat(actualNodes.get(0).getDescription(), equalTo("skipped as it is offline"));
+        assertThat(actual.getCleanedNodeCount(), equalTo(0));
+        assertThat(actual.isTimedOut(), equalTo(false));
+        assertThat(actual.isSkippedRoaming(), equalTo(true));
+    }
+
+    private static void assertNode(NodeReport actual, String nodeName, NodeOutcome outcome, SkipReason skipReason,
+            int folders, long durationInMs, long bytesFreed) {
+        assertThat(actual.getNodeName(), equalTo(nodeName));
+        assertThat(actual.getOutcome(), equalTo(outcome));
+        if (skipReason == null) {
+            assertThat(actual.getSkipReason(), nullValue());
+        } else {
+            assertThat(actual.getSkipReason(), equalTo(skipReason));
+        }
+        assertThat(actual.getFolders(), equalTo(folders));
+        assertThat(actual.getDurationInMs(), equalTo(durationInMs));
+        assertThat(actual.getBytesFreed(), equalTo(bytesFreed));
+    }
+}
@@ -0,0 +1,44 @@
+package de.jamba.hudson.plugin.wsclean;
+
+import static org.hamcrest.Matchers.equalTo;
+import static org.junit.Assert.assertThat;
+
+import java.util.List;
+
+import org.junit.Test;
+
+import com.google.common.collect.ImmutableList;
+
+import de.jamba.hudson.plugin.wsclean.CleanupReport.NodeReport;
+import de.jamba.hudson.plugin.wsclean.CleanupReport.SkipReason;
+import de.jamba.hudson.plugin.wsclean.CleanupTrendAction.NodeTrend;
+
+public class CleanupTrendActionTest {
+    @Test
+    public void summarizeNodesGivenSeveralCleansThenAddsUpEachNodeSlowestFirst() throws Exception {
+        // Given
+        final CleanupReport clean1 = report(new NodeReport("fast", NodeOutcome.COMPLETED, null, 1, 100L, 10L),
+                new NodeReport("slow", NodeOutcome.COMPLETED, null, 1, 2000L, 30L),
+                new NodeReport("skipped", NodeOutcome.SKIPPED, SkipReason.NAME, 0, 0L, 0L));
+        final CleanupReport clean2 = report(new NodeReport("fast", NodeOutcome.COMPLETED, null, 1, 300L, 20L),
+                new NodeReport("slow", NodeOutcome.TIMED_OUT, null, 1, 4000L, 0L));
+
+        // When
+        final List<NodeTrend> actual = CleanupTrendAction.summarizeNodes(ImmutableList.of(clean1, clean2));
+
+        // Then
+        assertThat(actual.size(), equalTo(2));
+        assertThat(actual.get(0).getNodeName(), equalTo("slow"));
+        assertThat(actual.get(0).getCleans(), equalTo(2));
+        assertThat(actual.get(0).getDurationInMs(), equalTo(6000L));
+        assertThat(actual.get(0).getBytesFreed(), equalTo(30L));
+        assertThat(actual.get(1).getNodeName(), equalTo("fast"));
+        assertThat(actual.get(1).getCleans(), equalTo(2));
+        assertThat(actual.get(1).getDurationInMs(), equalTo(400L));
+        assertThat(actual.get(1).getBytesFreed(), equalTo(30L));
+    }
+
+    private static CleanupReport report(NodeReport... nodes) {
+        return new CleanupReport(0L, 0L, false, false, ImmutableList.copyOf(nodes));
+    }
+}
@@ -1,19 +1,34 @@
 package de.jamba.hudson.plugin.wsclean;
 
 import static org.hamcrest.Matchers.equalTo;
+import static org.hamcrest.Matchers.sameInstance;
 import static org.junit.Assert.assertThat;
+import static org.junit.Assert.fail;
+import static org.mockito.Mockito.doAnswer;
 import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.when;
 
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.regex.Pattern;
 
 import org.junit.Test;
+import org.kohsuke.stapler.StaplerRequest;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
 
+import de.jamba.hudson.plugin.wsclean.CommonConfig.DeletionMode;
+import de.jamba.hudson.plugin.wsclean.CommonConfig.LogVerbosity;
 import de.jamba.hudson.plugin.wsclean.CommonConfig.NodeSelection;
+import hudson.BulkChange;
 import hudson.DescriptorExtensionList;
+import hudson.model.Descriptor.FormException;
+import hudson.util.FormValidation;
 import jenkins.model.GlobalConfiguration;
 import jenkins.model.Jenkins;
 import jenkins.model.TestJenkins;
+import net.sf.json.JSONObject;
 
 public class CommonConfigTest {
 
@@ -27,6 +42,23 @@ public class CommonConfigTest {
         final boolean expectedParallel = true;
         final boolean expectedSkipRoaming = true;
         final Long expectedTimeoutInMilliseconds = 900000L;
+        final Long expectedNodeTimeoutInMilliseconds = 0L;
+        final Long expectedFolderTimeoutInMilliseconds = 0L;
+        final int expectedMaxRetries = 3;
+        final boolean expectedPreScan = true;
+        final int expectedPreScanMinSizeInKB = 0;
+        final int expectedJobWorkspaceBudgetInMB = 0;
+        final String expectedKeepGlobs = "";
+        final String expectedDeleteGlobs = "";
+        final DeletionMode expectedDeletionMode = DeletionMode.DELETE;
+        final String expectedTrashFolder = ".wsclean-trash";
+        final int expectedReaperThreads = 1;
+        final int expectedMaxThreads = 32;
+        final int expectedMaxThreadsPerNode = 4;
+        final int expectedOrphanSweepIntervalInHours = 0;
+        final int expectedOrphanSweepBatchSize = 10;
+        final int expectedFreeSpaceThresholdInGB = 0;
+        final LogVerbosity expectedLogVerbosity = LogVerbosity.DETAILED;
 
         // When
         final CommonConfig instance = new CommonConfig() {
@@ -42,6 +74,23 @@ public class CommonConfigTest {
         final boolean actualParallel = instance.getParallel();
         final boolean actualSkipRoaming = instance.getSkipRoaming();
         final Long actualTimeoutInMilliseconds = instance.getTimeoutInMilliseconds();
+        final Long actualNodeTimeoutInMilliseconds = instance.getNodeTimeoutInMilliseconds();
+        final Long actualFolderTimeoutInMilliseconds = instance.getFolderTimeoutInMilliseconds();
+        final int actualMaxRetries = instance.getMaxRetries();
+        final boolean actualPreScan = instance.getPreScan();
+        final int actualPreScanMinSizeInKB = instance.getPreScanMinSizeInKB();
+        final int actualJobWorkspaceBudgetInMB = instance.getJobWorkspaceBudgetInMB();
+        final String actualKeepGlobs = instance.getKeepGlobs();
+        final String actualDeleteGlobs = instance.getDeleteGlobs();
+        final DeletionMode actualDeletionMode = instance.getDeletionMode();
+        final String actualTrashFolder = instance.getTrashFolder();
+        final int actualReaperThreads = instance.getReaperThreads();
+        final int actualMaxThreads = instance.getMaxThreads();
+        final int actualMaxThreadsPerNode = instance.getMaxThreadsPerNode();
+        final int actualOrphanSweepIntervalInHours = instance.getOrphanSweepIntervalInHours();
+        final int actualOrphanSweepBatchSize = instance.getOrphanSweepBatchSize();
+        final int actualFreeSpaceThresholdInGB = instance.getFreeSpaceThresholdInGB();
+        final LogVerbosity actualLogVerbosity = instance.getLogVerbosity();
 
         // Then
         assertThat(actualNodeNamesToSkip, equalTo(expectedNodeNamesToSkip));
@@ -51,6 +100,23 @@ public class CommonConfigTest {
         assertThat(actualParallel, equalTo(expectedParallel));
         assertThat(actualSkipRoaming, equalTo(expectedSkipRoaming));
         assertThat(actualTimeoutInMilliseconds, equalTo(expectedTimeoutInMilliseconds));
+        assertThat(actualNodeTimeoutInMilliseconds, equalTo(expectedNodeTimeoutInMilliseconds));
+        assertThat(actualFolderTimeoutInMilliseconds, equalTo(expectedFolderTimeoutInMilliseconds));
+        assertThat(actualMaxRetries, equalTo(expectedMaxRetries));
+        assertThat(actualPreScan, equalTo(expectedPreScan));
+        assertThat(actualPreScanMinSizeInKB, equalTo(expectedPreScanMinSizeInKB));
+        assertThat(actualJobWorkspaceBudgetInMB, equalTo(expectedJobWorkspaceBudgetInMB));
+        assertThat(actualKeepGlobs, equalTo(expectedKeepGlobs));
+        assertThat(actualDeleteGlobs, equalTo(expectedDeleteGlobs));
+        assertThat(actualDeletionMode, equalTo(expectedDeletionMode));
+        assertThat(actualTrashFolder, equalTo(expectedTrashFolder));
+        assertThat(actualReaperThreads, equalTo(expectedReaperThreads));
+        assertThat(actualMaxThreads, equalTo(expectedMaxThreads));
+        assertThat(actualMaxThreadsPerNode, equalTo(expectedMaxThreadsPerNode));
+        assertThat(actualOrphanSweepIntervalInHours, equalTo(expectedOrphanSweepIntervalInHours));
+        assertThat(actualOrphanSweepBatchSize, equalTo(expectedOrphanSweepBatchSize));
+        assertThat(actualFreeSpaceThresholdInGB, equalTo(expectedFreeSpaceThresholdInGB));
+        assertThat(actualLogVerbosity, equalTo(expectedLogVerbosity));
     }
 
     @Test
@@ -85,6 +151,134 @@ public class CommonConfigTest {
         assertThat(actualNodeNamesToSkipPatterns[1].pattern(), equalTo(expectedNodeNamesToSkipPatterns[1].pattern()));
     }
 
+    @Test
+    public void configureGivenFormThenSavesOnceAndPublishesSnapshotAtTheEnd() throws Exception {
+        // Given
+        final AtomicInteger actualSaves = new AtomicInteger();
+        final CommonConfig instance = new CommonConfig() {
+            @Override
+            public void load() {
+            }
+
+            @Override
+            public synchronized void save() {
+                if (!BulkChange.contains(this)) {
+                    actualSaves.incrementAndGet();
+                }
+            }
+        };
+        final CommonConfig.Snapshot originalSnapshot = instance.getSnapshot();
+        final CommonConfig.Snapshot[] snapshotDuringBind = new CommonConfig.Snapshot[1];
+        final JSONObject json = new JSONObject();
+        final StaplerRequest mockReq = mock(StaplerRequest.class);
+        doAnswer(new Answer<Void>() {
+            @Override
+            public Void answer(InvocationOnMock invocation) throws Throwable {
+                instance.setParallel(false);
+                instance.setNodeNamesToSkipString("foo");
+                instance.setTimeoutInMilliseconds(1234L);
+                snapshotDuringBind[0] = instance.getSnapshot();
+                return null;
+            }
+        }).when(mockReq).bindJSON(instance, json);
+
+        // When
+        instance.configure(mockReq, json);
+
+        // Then
+        final CommonConfig.Snapshot actual = instance.getSnapshot();
+        assertThat(actualSaves.get(), equalTo(1));
+        assertThat(snapshotDuringBind[0], sameInstance(originalSnapshot));
+        assertThat(originalSnapshot.getParallel(), equalTo(true));
+        assertThat(actual.getParallel(), equalTo(false));
+        assertThat(actual.getTimeoutInMilliseconds(), equalTo(1234L));
+        assertThat(actual.getNodeNamesToSkipPatterns().length, equalTo(1));
+        assertThat(actual.getNodeNamesToSkipPatterns()[0].pattern(), equalTo("foo"));
+    }
+
+    @Test
+    public void configureGivenUnsafeTrashFolderThenRejectsFormWithoutChangingAnything() throws Exception {
+        // Given
+        final AtomicInteger actualSaves = new AtomicInteger();
+        final CommonConfig instance = new CommonConfig() {
+            @Override
+            public void load() {
+            }
+
+            @Override
+            public synchronized void save() {
+                actualSaves.incrementAndGet();
+            }
+        };
+        final CommonConfig.Snapshot originalSnapshot = instance.getSnapshot();
+        final JSONObject json = new JSONObject();
+        json.put("parallel", false);
+        json.put("trashFolder", "..");
+        final StaplerRequest mockReq = mock(StaplerRequest.class);
+
+        // When
+        try {
+            instance.configure(mockReq, json);
+            fail("Expecting FormException");
+        } catch (FormException expected) {
+            // Then
+            assertThat(expected.getFormField(), equalTo("trashFolder"));
+        }
+        verify(mockReq, never()).bindJSON(instance, json);
+        assertThat(actualSaves.get(), equalTo(0));
+        assertThat(instance.getSnapshot(), sameInstance(originalSnapshot));
+        assertThat(instance.getParallel(), equalTo(true));
+    }
+
+    @Test
+    public void setParallelGivenNoFormThenPublishesSnapshotStraightAway() throws Exception {
+        // Given
+        final CommonConfig instance = new CommonConfig() {
+            @Override
+            public void load() {
+            }
+
+            @Override
+            public void save() {
+            }
+        };
+
+        // When
+        instance.setParallel(false);
+
+        // Then
+        assertThat(instance.getSnapshot().getParallel(), equalTo(false));
+    }
+
+    @Test
+    public void setTrashFolderGivenUnsafeValueThenRejectsIt() throws Exception {
+        // Given
+        final CommonConfig instance = new CommonConfig() {
+            @Override
+            public void load() {
+            }
+
+            @Override
+            public void save() {
+            }
+        };
+        instance.setTrashFolder("/var/trash");
+
+        // When
+        try {
+            instance.setTrashFolder("..");
+            fail("Expecting IllegalArgumentException");
+        } catch (IllegalArgumentException expected) {
+            // expected
+        }
+
+        // Then
+        assertThat(instance.getTrashFolder(), equalTo("/var/trash"));
+        assertThat(instance.doCheckTrashFolder("/").kind, equalTo(FormValidation.Kind.ERROR));
+        assertThat(instance.doCheckTrashFolder("").kind, equalTo(FormValidation.Kind.ERROR));
+        assertThat(instance.doCheckTrashFolder(".wsclean-trash").kind, equalTo(FormValidation.Kind.OK));
+    }
+
     @SuppressWarnings("unchecked")
     static void stubConfig(Jenkins mockJenkins, CommonConfig config) {
         final DescriptorExtensionList<GlobalConfiguration, GlobalConfiguration> extensionList = mock(
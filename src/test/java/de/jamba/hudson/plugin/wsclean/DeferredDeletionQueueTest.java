@@ -0,0 +1,124 @@
+package de.jamba.hudson.plugin.wsclean;
+
+import static org.hamcrest.Matchers.contains;
+import static org.hamcrest.Matchers.empty;
+import static org.hamcrest.Matchers.equalTo;
+import static org.hamcrest.Matchers.is;
+import static org.junit.Assert.assertThat;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Map;
+import java.util.regex.Pattern;
+
+import org.junit.Test;
+
+import de.jamba.hudson.plugin.wsclean.DeferredDeletionQueue.PendingDeletion;
+import hudson.FilePath;
+import hudson.model.Node;
+import hudson.model.TaskListener;
+import hudson.remoting.VirtualChannel;
+import hudson.util.StreamTaskListener;
+import jenkins.model.Jenkins;
+
+public class DeferredDeletionQueueTest {
+    private static final Pattern[] NO_PATTERNS = new Pattern[0];
+    private static final DeletionOptions DEFAULT_DELETION_OPTIONS = new DeletionOptions(false, null, 1, 1);
+
+    @Test
+    public void addGivenSameFolderTwiceThenKeepsLaterBuild() {
+        // Given
+        final DeferredDeletionQueue instance = new DeferredDeletionQueue();
+
+        // When
+        instance.add("job", 5, "node1", Arrays.asList("/ws/a", "/ws/b"));
+        instance.add("job", 7, "node1", Arrays.asList("/ws/a"));
+        instance.add("job", 6, "node1", Arrays.asList("/ws/a"));
+        instance.add("job", 7, "node2", Arrays.asList("/ws/a"));
+
+        // Then
+        final Map<String, PendingDeletion> actual = instance.getPendingFor("node1");
+        assertThat(actual.keySet(), contains("/ws/a", "/ws/b"));
+        assertThat(actual.get("/ws/a").getBuildNumber(), equalTo(7));
+        assertThat(actual.get("/ws/b").getBuildNumber(), equalTo(5));
+        assertThat(instance.getNodeNames(), contains("node1", "node2"));
+    }
+
+    @Test
+    public void removeGivenAllFoldersOnNodeThenForgetsNode() {
+        // Given
+        final DeferredDeletionQueue instance = new DeferredDeletionQueue();
+        instance.add("job", 5, "node1", Arrays.asList("/ws/a", "/ws/b"));
+        instance.add("job", 5, "node2", Arrays.asList("/ws/a"));
+
+        // When
+        instance.remove("node1", Arrays.asList("/ws/a", "/ws/b", "/ws/notQueued"));
+
+        // Then
+        assertThat(instance.getPendingFor("node1").isEmpty(), equalTo(true));
+        assertThat(instance.getNodeNames(), contains("node2"));
+    }
+
+    @Test
+    public void drainGivenDeletedNodeThenForgetsEverythingOnIt() throws Exception {
+        // Given
+        final Jenkins mockJenkins = mock(Jenkins.class, "mockJenkins");
+        final DeferredDeletionQueue instance = new DeferredDeletionQueue();
+        instance.add("job", 5, "nodeGone", Arrays.asList("/ws/a"));
+
+        // When
+        instance.drain(mockJenkins, "nodeGone", NO_PATTERNS, DEFAULT_DELETION_OPTIONS, listener());
+
+        // Then
+        assertThat(instance.getNodeNames(), empty());
+    }
+
+    @Test
+    public void drainGivenNodeStillOfflineThenKeepsEverything() throws Exception {
+        // Given
+        final Jenkins mockJenkins = mock(Jenkins.class, "mockJenkins");
+        mockNode(mockJenkins, "nodeOffline", false);
+        when(mockJenkins.getNodes()).thenReturn(Collections.<Node>emptyList());
+        final DeferredDeletionQueue instance = new DeferredDeletionQueue();
+        instance.add("job", 5, "nodeOffline", Arrays.asList("/ws/a"));
+
+        // When
+        instance.drain(mockJenkins, "nodeOffline", NO_PATTERNS, DEFAULT_DELETION_OPTIONS, listener());
+
+        // Then
+        assertThat(instance.getPendingFor("nodeOffline").keySet(), contains("/ws/a"));
+    }
+
+    @Test
+    public void drainGivenJobNoLongerExistsThenForgetsWithoutDeleting() throws Exception {
+        // Given
+        final Jenkins mockJenkins = mock(Jenkins.class, "mockJenkins");
+        mockNode(mockJenkins, "nodeOnline", true);
+        when(mockJenkins.getNodes()).thenReturn(Collections.<Node>emptyList());
+        final DeferredDeletionQueue instance = new DeferredDeletionQueue();
+        instance.add("jobThatWasDeleted", 5, "nodeOnline", Arrays.asList("/ws/a"));
+
+        // When
+        instance.drain(mockJenkins, "nodeOnline", NO_PATTERNS, DEFAULT_DELETION_OPTIONS, listener());
+
+        // Then
+        assertThat(instance.getNodeNames(), empty());
+        assertThat(WorkspaceDeletionBarrier.get().isBusy("jobThatWasDeleted", "nodeOnline"), is(false));
+    }
+
+    private static Node mockNode(Jenkins mockJenkins, String nodeName, boolean nodeIsOnline) {
+        final Node m = mock(Node.class, nodeName);
+        when(m.getNodeName()).thenReturn(nodeName);
+        if (nodeIsOnline) {
+            when(m.getRootPath()).thenReturn(new FilePath((VirtualChannel) null, "/"));
+        }
+        when(mockJenkins.getNode(nodeName)).thenReturn(m);
+        return m;
+    }
+
+    private static TaskListener listener() {
+        return StreamTaskListener.fromStdout();
+    }
+}
@@ -0,0 +1,157 @@
+package de.jamba.hudson.plugin.wsclean;
+
+import static org.hamcrest.Matchers.arrayWithSize;
+import static org.hamcrest.Matchers.equalTo;
+import static org.hamcrest.Matchers.is;
+import static org.hamcrest.Matchers.lessThan;
+import static org.hamcrest.Matchers.nullValue;
+import static org.junit.Assert.assertThat;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.List;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import com.google.common.collect.ImmutableList;
+
+public class DeleteFoldersCallableTest {
+    private static final DeletionOptions DELETE_IN_PLACE = new DeletionOptions(false, ".trash", 1, 1);
+    private static final DeletionOptions MOVE_TO_TRASH = new DeletionOptions(true, ".trash", 2, 1);
+
+    @Rule
+    public TemporaryFolder tmp = new TemporaryFolder();
+
+    @Test
+    public void callGivenSeveralFoldersThenEmptiesEachAndReportsEach() throws Exception {
+        // Given
+        final File ws1 = tmp.newFolder("ws1");
+        final File ws2 = tmp.newFolder("ws2");
+        final File ws3DoesNotExist = new File(tmp.getRoot(), "ws3");
+        mkFile(ws1, "a.txt");
+        mkFile(ws1, "sub/b.txt");
+        mkFile(ws1, "sub/deeper/c.txt");
+        mkFile(ws2, "d.txt");
+        final DeleteFoldersCallable instance = new DeleteFoldersCallable(
+                ImmutableList.of(ws1.getPath(), ws2.getPath(), ws3DoesNotExist.getPath()), DELETE_IN_PLACE);
+
+        // When
+        final List<FolderDeletionResult> actual = instance.call();
+
+        // Then
+        assertThat(actual.size(), equalTo(3));
+        assertResult(actual.get(0), ws1, 3L);
+        assertResult(actual.get(1), ws2, 1L);
+        assertResult(actual.get(2), ws3DoesNotExist, 0L);
+        assertThat(ws1.isDirectory(), is(true));
+        assertThat(ws1.list(), arrayWithSize(0));
+        assertThat(ws2.isDirectory(), is(true));
+        assertThat(ws2.list(), arrayWithSize(0));
+    }
+
+    @Test
+    public void callGivenRemoveFoldersThenRemovesFoldersToo() throws Exception {
+        // Given
+        final File ws1 = tmp.newFolder("ws1");
+        final File ws2 = tmp.newFolder("ws2");
+        mkFile(ws1, "sub/a.txt");
+        final DeleteFoldersCallable instance = new DeleteFoldersCallable(
+                ImmutableList.of(ws1.getPath(), ws2.getPath()), DELETE_IN_PLACE, true);
+
+        // When
+        final List<FolderDeletionResult> actual = instance.call();
+
+        // Then
+        assertThat(actual.size(), equalTo(2));
+        assertResult(actual.get(0), ws1, 1L);
+        assertResult(actual.get(1), ws2, 0L);
+        assertThat(ws1.exists(), is(false));
+        assertThat(ws2.exists(), is(false));
+    }
+
+    @Test
+    public void callGivenTrashThenEmptiesFolderImmediatelyAndTrashEventually() throws Exception {
+        // Given
+        final long maxTimeToEmptyTrashInMs = 10000L;
+        final File ws = tmp.newFolder("ws");
+        mkFile(ws, "a.txt");
+        mkFile(ws, "sub/b.txt");
+        final File trash = new File(tmp.getRoot(), ".trash");
+        final DeleteFoldersCallable instance = new DeleteFoldersCallable(ImmutableList.of(ws.getPath()),
+                MOVE_TO_TRASH);
+
+        // When
+        final List<FolderDeletionResult> actual = instance.call();
+
+        // Then
+        assertThat(actual.size(), equalTo(1));
+        assertThat(actual.get(0).isSuccess(), is(true));
+        assertThat(ws.isDirectory(), is(true));
+        assertThat(ws.list(), arrayWithSize(0));
+        assertThat(trash.isDirectory(), is(true));
+        final long timestampBeforeWaiting = System.currentTimeMillis();
+        while (trash.list().length > 0) {
+            assertThat(System.currentTimeMillis() - timestampBeforeWaiting, lessThan(maxTimeToEmptyTrashInMs));
+            Thread.sleep(10L);
+        }
+    }
+
+    @Test
+    public void callGivenTrashWithOtherThingsInItThenOnlyEmptiesWhatItPutThere() throws Exception {
+        // Given
+        final long maxTimeToEmptyTrashInMs = 10000L;
+        final File ws = tmp.newFolder("ws");
+        mkFile(ws, "a.txt");
+        final File trash = new File(tmp.getRoot(), ".trash");
+        final File notOurs = mkFile(trash, "precious/data.txt");
+        final DeleteFoldersCallable instance = new DeleteFoldersCallable(ImmutableList.of(ws.getPath()),
+                MOVE_TO_TRASH);
+
+        // When
+        instance.call();
+
+        // Then
+        final long timestampBeforeWaiting = System.currentTimeMillis();
+        while (trash.list().length > 1) {
+            assertThat(System.currentTimeMillis() - timestampBeforeWaiting, lessThan(maxTimeToEmptyTrashInMs));
+            Thread.sleep(10L);
+        }
+        assertThat(notOurs.isFile(), is(true));
+    }
+
+    @Test
+    public void callGivenUnsafeTrashFolderThenDeletesInPlaceInstead() throws Exception {
+        // Given
+        final File parent = tmp.newFolder("parent");
+        final File ws = new File(parent, "ws");
+        mkFile(ws, "a.txt");
+        final File sibling = mkFile(parent, "sibling/b.txt");
+        final DeleteFoldersCallable instance = new DeleteFoldersCallable(ImmutableList.of(ws.getPath()),
+                new DeletionOptions(true, ".", 1, 1));
+
+        // When
+        final List<FolderDeletionResult> actual = instance.call();
+
+        // Then
+        assertResult(actual.get(0), ws, 1L);
+        assertThat(ws.list(), arrayWithSize(0));
+        assertThat(sibling.isFile(), is(true));
+        assertThat(parent.list(), arrayWithSize(2));
+    }
+
+    private static void assertResult(FolderDeletionResult actual, File expectedFolder, long expectedFilesDeleted) {
+        assertThat(actual.getFolder(), equalTo(expectedFolder.getPath()));
+        assertThat(actual.isSuccess(), is(true));
+        assertThat(actual.getError(), nullValue());
+        assertThat(actual.getFilesDeleted(), equalTo(expectedFilesDeleted));
+    }
+
+    static File mkFile(File dir, String relativePath) throws IOException {
+        final File f = new File(dir, relativePath);
+        f.getParentFile().mkdirs();
+        f.createNewFile();
+        return f;
+    }
+}
@@ -0,0 +1,104 @@
+package de.jamba.hudson.plugin.wsclean;
+
+import static org.hamcrest.Matchers.contains;
+import static org.hamcrest.Matchers.empty;
+import static org.hamcrest.Matchers.equalTo;
+import static org.hamcrest.Matchers.greaterThanOrEqualTo;
+import static org.junit.Assert.assertThat;
+
+import java.util.Arrays;
+
+import org.junit.Test;
+
+import de.jamba.hudson.plugin.wsclean.InFlightDeletions.Claim;
+
+public class InFlightDeletionsTest {
+    @Test
+    public void claimGivenNothingInFlightThenClaimsEverything() {
+        // Given
+        final InFlightDeletions instance = new InFlightDeletions();
+
+        // When
+        final Claim actual = instance.claim("node1", Arrays.asList("/ws1", "/ws2"));
+
+        // Then
+        assertThat(actual.getFoldersToDelete(), contains("/ws1", "/ws2"));
+        assertThat(actual.getFoldersDeletedElsewhere(), empty());
+        assertThat(instance.size(), equalTo(2));
+    }
+
+    @Test
+    public void claimGivenSomeFoldersInFlightThenOnlyClaimsTheRest() {
+        // Given
+        final InFlightDeletions instance = new InFlightDeletions();
+        instance.claim("node1", Arrays.asList("/ws1"));
+
+        // When
+        final Claim actual = instance.claim("node1", Arrays.asList("/ws1", "/ws2"));
+
+        // Then
+        assertThat(actual.getFoldersToDelete(), contains("/ws2"));
+        assertThat(actual.getFoldersDeletedElsewhere(), contains("/ws1"));
+    }
+
+    @Test
+    public void claimGivenSameFolderInFlightOnDifferentNodeThenClaimsIt() {
+        // Given
+        final InFlightDeletions instance = new InFlightDeletions();
+        instance.claim("node1", Arrays.asList("/ws1"));
+
+        // When
+        final Claim actual = instance.claim("node2", Arrays.asList("/ws1"));
+
+        // Then
+        assertThat(actual.getFoldersToDelete(), contains("/ws1"));
+        assertThat(actual.getFoldersDeletedElsewhere(), empty());
+    }
+
+    @Test
+    public void releaseThenFoldersCanBeClaimedAgain() {
+        // Given
+        final InFlightDeletions instance = new InFlightDeletions();
+        final Claim first = instance.claim("node1", Arrays.asList("/ws1"));
+
+        // When
+        instance.release(first);
+        instance.release(first); // harmless
+        final Claim actual = instance.claim("node1", Arrays.asList("/ws1"));
+
+        // Then
+        assertThat(actual.getFoldersToDelete(), contains("/ws1"));
+        assertThat(instance.size(), equalTo(1));
+    }
+
+    @Test
+    public void awaitOthersGivenFolderInFlightThenWaitsUntilReleased() throws Exception {
+        // Given
+        final long delayBeforeRelease = 500L;
+        final InFlightDeletions instance = new InFlightDeletions();
+        final Claim first = instance.claim("node1", Arrays.asList("/ws1"));
+        final Claim second = instance.claim("node1", Arrays.asList("/ws1"));
+        final Thread releaser = new Thread() {
+            @Override
+            public void run() {
+                try {
+                    Thread.sleep(delayBeforeRelease);
+                } catch (InterruptedException e) {
+                    // just release early
+                }
+                instance.release(first);
+            }
+        };
+        final long timestampBefore = System.currentTimeMillis();
+        releaser.start();
+
+        // When
+        second.awaitOthers();
+        final long timestampAfter = System.currentTimeMillis();
+
+        // Then
+        assertThat(timestampAfter - timestampBefore, greaterThanOrEqualTo(delayBeforeRelease - 50L));
+        assertThat(instance.size(), equalTo(0));
+        releaser.join();
+    }
+}
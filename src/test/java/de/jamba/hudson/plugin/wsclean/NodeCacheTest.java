@@ -0,0 +1,109 @@
+package de.jamba.hudson.plugin.wsclean;
+
+import static org.hamcrest.Matchers.containsInAnyOrder;
+import static org.hamcrest.Matchers.equalTo;
+import static org.hamcrest.Matchers.sameInstance;
+import static org.junit.Assert.assertThat;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import java.util.Arrays;
+import java.util.Set;
+
+import org.junit.Test;
+
+import com.google.common.collect.ImmutableSet;
+
+import hudson.model.Label;
+import hudson.model.Node;
+import jenkins.model.Jenkins;
+
+public class NodeCacheTest {
+    @Test
+    public void getNodesGivenSameLabelTwiceThenOnlyAsksLabelOnce() {
+        // Given
+        final Node mockNode1 = mockNode("node1", Node.Mode.NORMAL);
+        final Node mockNode2 = mockNode("node2", Node.Mode.NORMAL);
+        final Label mockLabel = mock(Label.class, "mockLabel");
+        when(mockLabel.getNodes()).thenReturn(ImmutableSet.of(mockNode1, mockNode2));
+        final NodeCache instance = new NodeCache();
+
+        // When
+        final Set<Node> actual1 = instance.getNodes(mockLabel);
+        final Set<Node> actual2 = instance.getNodes(mockLabel);
+
+        // Then
+        assertThat(actual1, containsInAnyOrder(mockNode1, mockNode2));
+        assertThat(actual2, sameInstance(actual1));
+        verify(mockLabel, times(1)).getNodes();
+    }
+
+    @Test
+    public void getNodesGivenInvalidatedThenAsksLabelAgain() {
+        // Given
+        final Node mockNode1 = mockNode("node1", Node.Mode.NORMAL);
+        final Node mockNode2 = mockNode("node2", Node.Mode.NORMAL);
+        final Label mockLabel = mock(Label.class, "mockLabel");
+        when(mockLabel.getNodes()).thenReturn(ImmutableSet.of(mockNode1));
+        final NodeCache instance = new NodeCache();
+        instance.getNodes(mockLabel);
+        when(mockLabel.getNodes()).thenReturn(ImmutableSet.of(mockNode1, mockNode2));
+
+        // When
+        instance.invalidate();
+        final Set<Node> actual = instance.getNodes(mockLabel);
+
+        // Then
+        assertThat(actual, containsInAnyOrder(mockNode1, mockNode2));
+        verify(mockLabel, times(2)).getNodes();
+    }
+
+    @Test
+    public void getAllNonexclusiveNodesThenReturnsNormalModeNodesAndCachesThem() {
+        // Given
+        final Node mockNode1 = mockNode("node1", Node.Mode.NORMAL);
+        final Node mockNode2 = mockNode("node2", Node.Mode.EXCLUSIVE);
+        final Node mockNode3 = mockNode("node3", Node.Mode.NORMAL);
+        final Jenkins mockJenkins = mock(Jenkins.class, "mockJenkins");
+        when(mockJenkins.getNodes()).thenReturn(Arrays.asList(mockNode1, mockNode2, mockNode3));
+        when(mockJenkins.getMode()).thenReturn(Node.Mode.NORMAL);
+        final NodeCache instance = new NodeCache();
+
+        // When
+        final Set<Node> actual1 = instance.getAllNonexclusiveNodes(mockJenkins);
+        final Set<Node> actual2 = instance.getAllNonexclusiveNodes(mockJenkins);
+
+        // Then
+        assertThat(actual1, containsInAnyOrder(mockNode1, mockNode3, mockJenkins));
+        assertThat(actual2, sameInstance(actual1));
+        verify(mockJenkins, times(1)).getNodes();
+    }
+
+    @Test
+    public void getAllNonexclusiveNodesGivenNodeChangedModeAndInvalidatedThenReflectsChange() {
+        // Given
+        final Node mockNode1 = mockNode("node1", Node.Mode.NORMAL);
+        final Jenkins mockJenkins = mock(Jenkins.class, "mockJenkins");
+        when(mockJenkins.getNodes()).thenReturn(Arrays.asList(mockNode1));
+        when(mockJenkins.getMode()).thenReturn(Node.Mode.EXCLUSIVE);
+        final NodeCache instance = new NodeCache();
+        instance.getAllNonexclusiveNodes(mockJenkins);
+        when(mockNode1.getMode()).thenReturn(Node.Mode.EXCLUSIVE);
+
+        // When
+        instance.invalidate();
+        final Set<Node> actual = instance.getAllNonexclusiveNodes(mockJenkins);
+
+        // Then
+        assertThat(actual.size(), equalTo(0));
+    }
+
+    private static Node mockNode(String nodeName, Node.Mode mode) {
+        final Node m = mock(Node.class, nodeName);
+        when(m.getNodeName()).thenReturn(nodeName);
+        when(m.getMode()).thenReturn(mode);
+        return m;
+    }
+}
@@ -0,0 +1,113 @@
+package de.jamba.hudson.plugin.wsclean;
+
+import static org.hamcrest.Matchers.contains;
+import static org.hamcrest.Matchers.equalTo;
+import static org.hamcrest.Matchers.nullValue;
+import static org.junit.Assert.assertThat;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+
+import org.junit.Test;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Multimap;
+import com.google.common.collect.TreeMultimap;
+
+import hudson.model.Computer;
+import hudson.model.Node;
+import hudson.node_monitors.DiskSpaceMonitor;
+import hudson.node_monitors.DiskSpaceMonitorDescriptor.DiskSpace;
+import jenkins.model.Jenkins;
+
+public class NodeDiskSpaceTest {
+    private static final long GB = 1024L * 1024L * 1024L;
+
+    @Test
+    public void getFreeSpaceGivenMonitorDataThenReturnsFreeSize() {
+        // Given
+        final Node mockNode = mockNode("node1", 5L * GB);
+
+        // When
+        final Long actual = NodeDiskSpace.getFreeSpace(mockNode);
+
+        // Then
+        assertThat(actual, equalTo(5L * GB));
+    }
+
+    @Test
+    public void getFreeSpaceGivenNoMonitorDataThenReturnsNull() {
+        // Given
+        final Node mockNode = mockNode("node1", null);
+
+        // When
+        final Long actual = NodeDiskSpace.getFreeSpace(mockNode);
+
+        // Then
+        assertThat(actual, nullValue());
+    }
+
+    @Test
+    public void getNodesWithMoreFreeSpaceThanThenReturnsOnlyThoseKnownToHaveMore() {
+        // Given
+        final Node mockNode1 = mockNode("node1", 5L * GB);
+        final Node mockNode2 = mockNode("node2", 50L * GB);
+        final Node mockNode3 = mockNode("node3", null);
+        final Jenkins mockJenkins = mockJenkins(mockNode1, mockNode2, mockNode3);
+
+        // When
+        final List<String> actual = NodeDiskSpace.getNodesWithMoreFreeSpaceThan(mockJenkins,
+                Arrays.asList("node1", "node2", "node3"), 10L * GB);
+
+        // Then
+        assertThat(actual, contains("node2"));
+    }
+
+    @Test
+    public void orderByFreeSpaceThenLeastFreeSpaceFirstAndUnknownLast() {
+        // Given
+        final Node mockNode1 = mockNode("node1", 50L * GB);
+        final Node mockNode2 = mockNode("node2", null);
+        final Node mockNode3 = mockNode("node3", 5L * GB);
+        final Node mockNode4 = mockNode("node4", 20L * GB);
+        final Jenkins mockJenkins = mockJenkins(mockNode1, mockNode2, mockNode3, mockNode4);
+        final Multimap<String, String> plan = TreeMultimap.create();
+        plan.put("node1", "/ws1");
+        plan.put("node2", "/ws2");
+        plan.put("node3", "/ws3a");
+        plan.put("node3", "/ws3b");
+        plan.put("node4", "/ws4");
+
+        // When
+        final Multimap<String, String> actual = NodeDiskSpace.orderByFreeSpace(mockJenkins, plan);
+
+        // Then
+        assertThat(actual.keySet(), contains("node3", "node4", "node1", "node2"));
+        assertThat(ImmutableList.copyOf(actual.get("node3")), contains("/ws3a", "/ws3b"));
+        assertThat(actual.size(), equalTo(plan.size()));
+    }
+
+    private static Node mockNode(String nodeName, Long freeSpace) {
+        final Node m = mock(Node.class, nodeName);
+        final Computer mockComputer = mock(Computer.class, nodeName + "_computer");
+        when(m.getNodeName()).thenReturn(nodeName);
+        when(m.toComputer()).thenReturn(mockComputer);
+        final Map<String, Object> monitorData = freeSpace == null ? Collections.<String, Object>emptyMap()
+                : Collections.<String, Object>singletonMap(DiskSpaceMonitor.class.getName(),
+                        new DiskSpace("/", freeSpace));
+        when(mockComputer.getMonitorData()).thenReturn(monitorData);
+        return m;
+    }
+
+    private static Jenkins mockJenkins(Node... nodes) {
+        final Jenkins m = mock(Jenkins.class, "mockJenkins");
+        for (final Node n : nodes) {
+            when(m.getNode(n.getNodeName())).thenReturn(n);
+        }
+        return m;
+    }
+}
@@ -0,0 +1,155 @@
+package de.jamba.hudson.plugin.wsclean;
+
+import static org.hamcrest.Matchers.contains;
+import static org.hamcrest.Matchers.containsInAnyOrder;
+import static org.hamcrest.Matchers.empty;
+import static org.junit.Assert.assertThat;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.regex.Pattern;
+
+import org.junit.Test;
+
+import hudson.model.Node;
+import jenkins.model.Jenkins;
+
+public class NodeEligibilityIndexTest {
+    @Test
+    public void getNodesToSkipDueToTheirNameThenReturnsMatchingNames() {
+        // Given
+        final Pattern[] patterns = new Pattern[] { Pattern.compile("foo.*"), Pattern.compile("bar") };
+        final List<String> nodeNames = Arrays.asList("foo1", "bar", "barber", "", "foo");
+        final NodeEligibilityIndex instance = new NodeEligibilityIndex();
+
+        // When
+        final List<String> actual = instance.getNodesToSkipDueToTheirName(nodeNames, patterns);
+
+        // Then
+        assertThat(actual, contains("foo1", "bar", "foo"));
+    }
+
+    @Test
+    public void getNodesToSkipDueToTheirNameGivenSamePatternsTwiceThenRemembersEarlierResults() {
+        // Given
+        final Pattern[] patterns = new Pattern[] { Pattern.compile("foo.*") };
+        final List<String> nodeNames = Arrays.asList("foo1", "bar");
+        final NodeEligibilityIndex instance = new NodeEligibilityIndex();
+        instance.getNodesToSkipDueToTheirName(nodeNames, patterns);
+        // if we re-evaluated the regexes then we'd see this change
+        patterns[0] = Pattern.compile("bar");
+
+        // When
+        final List<String> actual = instance.getNodesToSkipDueToTheirName(nodeNames, patterns);
+
+        // Then
+        assertThat(actual, contains("foo1"));
+    }
+
+    @Test
+    public void getNodesToSkipDueToTheirNameGivenPatternsChangedThenRecalculates() {
+        // Given
+        final Pattern[] patterns = new Pattern[] { Pattern.compile("foo.*") };
+        final List<String> nodeNames = Arrays.asList("foo1", "bar");
+        final NodeEligibilityIndex instance = new NodeEligibilityIndex();
+        instance.getNodesToSkipDueToTheirName(nodeNames, patterns);
+        patterns[0] = Pattern.compile("bar");
+
+        // When
+        instance.patternsChanged();
+        final List<String> actual = instance.getNodesToSkipDueToTheirName(nodeNames, patterns);
+
+        // Then
+        assertThat(actual, contains("bar"));
+    }
+
+    @Test
+    public void getNodesToSkipDueToTheirNameGivenDifferentPatternsThenRecalculates() {
+        // Given
+        final List<String> nodeNames = Arrays.asList("foo1", "bar");
+        final NodeEligibilityIndex instance = new NodeEligibilityIndex();
+        instance.getNodesToSkipDueToTheirName(nodeNames, new Pattern[] { Pattern.compile("foo.*") });
+
+        // When
+        final List<String> actual = instance.getNodesToSkipDueToTheirName(nodeNames,
+                new Pattern[] { Pattern.compile("bar") });
+
+        // Then
+        assertThat(actual, contains("bar"));
+    }
+
+    @Test
+    public void getNodesWithDisablePropertyThenReturnsDisabledNodesIncludingMaster() {
+        // Given
+        final Node mockNode1 = mockNode("node1", true);
+        final Node mockNode2 = mockNode("node2", false);
+        final Node mockNode3 = mockNode("node3", true);
+        final Jenkins mockJenkins = mockJenkins(true, mockNode1, mockNode2, mockNode3);
+        final NodeEligibilityIndex instance = new NodeEligibilityIndex();
+
+        // When
+        final List<String> actual = instance.getNodesWithDisableProperty(Arrays.asList("", "node1", "node2"),
+                mockJenkins);
+
+        // Then
+        assertThat(actual, containsInAnyOrder("", "node1"));
+    }
+
+    @Test
+    public void getNodesWithDisablePropertyGivenCalledTwiceThenOnlyLooksAtNodesOnce() {
+        // Given
+        final Node mockNode1 = mockNode("node1", true);
+        final Jenkins mockJenkins = mockJenkins(false, mockNode1);
+        final NodeEligibilityIndex instance = new NodeEligibilityIndex();
+        instance.getNodesWithDisableProperty(Arrays.asList("node1"), mockJenkins);
+
+        // When
+        final List<String> actual = instance.getNodesWithDisableProperty(Arrays.asList("node1"), mockJenkins);
+
+        // Then
+        assertThat(actual, contains("node1"));
+        verify(mockJenkins, times(1)).getNodes();
+    }
+
+    @Test
+    public void getNodesWithDisablePropertyGivenPropertyRemovedAndNodesChangedThenReflectsChange() {
+        // Given
+        final Node mockNode1 = mockNode("node1", true);
+        final Jenkins mockJenkins = mockJenkins(false, mockNode1);
+        final NodeEligibilityIndex instance = new NodeEligibilityIndex();
+        instance.getNodesWithDisableProperty(Arrays.asList("node1"), mockJenkins);
+        when(mockNode1.getNodeProperty(DisablePrePostCleanNodeProperty.class)).thenReturn(null);
+
+        // When
+        instance.nodesChanged();
+        final List<String> actual = instance.getNodesWithDisableProperty(Arrays.asList("node1"), mockJenkins);
+
+        // Then
+        assertThat(actual, empty());
+    }
+
+    private static Node mockNode(String nodeName, boolean disabled) {
+        final Node m = mock(Node.class, nodeName);
+        when(m.getNodeName()).thenReturn(nodeName);
+        if (disabled) {
+            when(m.getNodeProperty(DisablePrePostCleanNodeProperty.class))
+                    .thenReturn(new DisablePrePostCleanNodeProperty());
+        }
+        return m;
+    }
+
+    private static Jenkins mockJenkins(boolean disabled, Node... nodes) {
+        final Jenkins m = mock(Jenkins.class, "mockJenkins");
+        when(m.getNodeName()).thenReturn("");
+        when(m.getNodes()).thenReturn(Arrays.asList(nodes));
+        if (disabled) {
+            when(m.getNodeProperty(DisablePrePostCleanNodeProperty.class))
+                    .thenReturn(new DisablePrePostCleanNodeProperty());
+        }
+        return m;
+    }
+}
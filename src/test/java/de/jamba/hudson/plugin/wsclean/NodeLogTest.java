@@ -0,0 +1,70 @@
+package de.jamba.hudson.plugin.wsclean;
+
+import static org.hamcrest.Matchers.equalTo;
+import static org.junit.Assert.assertThat;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.verifyZeroInteractions;
+import static org.mockito.Mockito.when;
+
+import java.io.ByteArrayOutputStream;
+import java.io.PrintStream;
+import java.nio.charset.StandardCharsets;
+
+import org.junit.Test;
+
+import hudson.model.BuildListener;
+
+public class NodeLogTest {
+    @Test
+    public void flushGivenLinesLoggedThenWritesThemAllAtOnce() throws Exception {
+        // Given
+        final ByteArrayOutputStream buildLog = new ByteArrayOutputStream();
+        final BuildListener mockListener = mock(BuildListener.class);
+        when(mockListener.getLogger()).thenReturn(new PrintStream(buildLog, true, "UTF-8"));
+        final NodeLog instance = new NodeLog(mockListener);
+        instance.getLogger().println("Cleaning node1 folder /ws/a");
+        instance.getLogger().println("Cleaning node1 folder /ws/b");
+        final String actualBeforeFlush = new String(buildLog.toByteArray(), StandardCharsets.UTF_8);
+
+        // When
+        instance.flush();
+
+        // Then
+        final String actual = new String(buildLog.toByteArray(), StandardCharsets.UTF_8);
+        assertThat(actualBeforeFlush, equalTo(""));
+        assertThat(actual, equalTo(
+                "Cleaning node1 folder /ws/a" + System.lineSeparator() + "Cleaning node1 folder /ws/b"
+                        + System.lineSeparator()));
+    }
+
+    @Test
+    public void flushGivenAlreadyFlushedThenWritesNothingMore() throws Exception {
+        // Given
+        final ByteArrayOutputStream buildLog = new ByteArrayOutputStream();
+        final BuildListener mockListener = mock(BuildListener.class);
+        when(mockListener.getLogger()).thenReturn(new PrintStream(buildLog, true, "UTF-8"));
+        final NodeLog instance = new NodeLog(mockListener);
+        instance.getLogger().println("Cleaning on node1 was interrupted.");
+        instance.flush();
+
+        // When
+        instance.flush();
+
+        // Then
+        final String actual = new String(buildLog.toByteArray(), StandardCharsets.UTF_8);
+        assertThat(actual, equalTo("Cleaning on node1 was interrupted." + System.lineSeparator()));
+    }
+
+    @Test
+    public void flushGivenNothingLoggedThenLeavesBuildLogAlone() throws Exception {
+        // Given
+        final BuildListener mockListener = mock(BuildListener.class);
+        final NodeLog instance = new NodeLog(mockListener);
+
+        // When
+        instance.flush();
+
+        // Then
+        verifyZeroInteractions(mockListener);
+    }
+}
@@ -0,0 +1,290 @@
+package de.jamba.hudson.plugin.wsclean;
+
+import static org.hamcrest.Matchers.contains;
+import static org.hamcrest.Matchers.containsInAnyOrder;
+import static org.hamcrest.Matchers.is;
+import static org.hamcrest.Matchers.nullValue;
+import static org.junit.Assert.assertThat;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+import static org.mockito.Mockito.withSettings;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.regex.Pattern;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.ImmutableSet;
+
+import hudson.FilePath;
+import hudson.model.AbstractProject;
+import hudson.model.Computer;
+import hudson.model.Executor;
+import hudson.model.Node;
+import hudson.model.Queue;
+import hudson.model.Slave;
+import hudson.model.TaskListener;
+import hudson.model.TopLevelItem;
+import jenkins.model.Jenkins;
+
+public class OrphanWorkspaceSweeperTest {
+    private static final DeletionOptions DELETE_IN_PLACE = new DeletionOptions(false, ".trash", 1, 1);
+
+    @Rule
+    public TemporaryFolder tmp = new TemporaryFolder();
+
+    @Test
+    public void findOrphanNamesThenReturnsOldUnprotectedFolders() {
+        // Given
+        final long now = 1000000L;
+        final Map<String, Long> subfolders = ImmutableMap.<String, Long>builder() //
+                .put("jobA", 0L) //
+                .put("jobA@2", 0L) //
+                .put("jobA@tmp", 0L) //
+                .put("deletedJob", 0L) //
+                .put("deletedJob@2", 0L) //
+                .put("newFolder", now) //
+                .build();
+        final Set<String> protectedNames = ImmutableSet.of("jobA");
+
+        // When
+        final List<String> actual = OrphanWorkspaceSweeper.findOrphanNames(subfolders, protectedNames, now);
+
+        // Then
+        assertThat(actual, contains("deletedJob", "deletedJob@2"));
+    }
+
+    @Test
+    public void findProtectedNamesThenReturnsWorkspacesCustomWorkspacesAndTrash() {
+        // Given
+        final FilePath nodeRoot = new FilePath(new File("/agent"));
+        final FilePath root = nodeRoot.child("workspace");
+        final TopLevelItem jobA = mockJob("jobA", null);
+        final TopLevelItem jobB = mockJob("jobB", "workspace/shared/${BUILD_NUMBER}");
+        final TopLevelItem jobC = mockJob("jobC", "/somewhere/else");
+        final Node mockAgent = mock(Node.class);
+        when(mockAgent.getWorkspaceFor(jobA)).thenReturn(root.child("jobA"));
+        when(mockAgent.getWorkspaceFor(jobB)).thenReturn(root.child("folder/jobB"));
+        when(mockAgent.getWorkspaceFor(jobC)).thenReturn(root.child("jobC"));
+
+        // When
+        final Set<String> actual = OrphanWorkspaceSweeper.findProtectedNames(mockAgent, root, nodeRoot,
+                Arrays.asList(jobA, jobB, jobC), DELETE_IN_PLACE);
+
+        // Then
+        assertThat(actual, containsInAnyOrder("jobA", "folder", "shared", "jobC", ".trash"));
+    }
+
+    @Test
+    public void findProtectedNamesGivenCustomWorkspaceCouldBeAnythingThenReturnsNull() {
+        // Given
+        final FilePath nodeRoot = new FilePath(new File("/agent"));
+        final FilePath root = nodeRoot.child("workspace");
+        final TopLevelItem jobA = mockJob("jobA", "workspace/${JOB_NAME}");
+        final Node mockAgent = mock(Node.class);
+
+        // When
+        final Set<String> actual = OrphanWorkspaceSweeper.findProtectedNames(mockAgent, root, nodeRoot,
+                Arrays.asList(jobA), DELETE_IN_PLACE);
+
+        // Then
+        assertThat(actual, nullValue());
+    }
+
+    @Test
+    public void findProtectedNamesGivenVariablePartWayThroughFolderNameThenProtectsEverythingStartingWithIt() {
+        // Given
+        final FilePath nodeRoot = new FilePath(new File("/agent"));
+        final FilePath root = nodeRoot.child("workspace");
+        final TopLevelItem jobA = mockJob("jobA", "workspace/shared-${NODE_NAME}");
+        final TopLevelItem jobB = mockJob("jobB", "workspace/sub/b-${NODE_NAME}");
+        final TopLevelItem jobC = mockJob("jobC", "other-${NODE_NAME}");
+        final Node mockAgent = mock(Node.class);
+        final long now = 1000000L;
+        final Map<String, Long> subfolders = ImmutableMap.<String, Long>builder() //
+                .put("shared-agent1", 0L) //
+                .put("shared-agent1@2", 0L) //
+                .put("sub", 0L) //
+                .put("shared", 0L) //
+                .build();
+
+        // When
+        final Set<String> actual = OrphanWorkspaceSweeper.findProtectedNames(mockAgent, root, nodeRoot,
+                Arrays.asList(jobA, jobB, jobC), DELETE_IN_PLACE);
+        final List<String> actualOrphans = OrphanWorkspaceSweeper.findOrphanNames(subfolders, actual, now);
+
+        // Then
+        assertThat(actual, containsInAnyOrder("shared-" + OrphanWorkspaceSweeper.ANY_SUFFIX, "sub", ".trash"));
+        assertThat(actualOrphans, contains("shared"));
+    }
+
+    @Test
+    public void findProtectedNamesGivenVariablePartWayThroughFolderContainingRootThenReturnsNull() {
+        // Given
+        final FilePath nodeRoot = new FilePath(new File("/agent"));
+        final FilePath root = nodeRoot.child("workspace");
+        final TopLevelItem jobA = mockJob("jobA", "work${SUFFIX}");
+        final Node mockAgent = mock(Node.class);
+
+        // When
+        final Set<String> actual = OrphanWorkspaceSweeper.findProtectedNames(mockAgent, root, nodeRoot,
+                Arrays.asList(jobA), DELETE_IN_PLACE);
+
+        // Then
+        assertThat(actual, nullValue());
+    }
+
+    @Test
+    public void sweepThenDeletesOldOrphansOnly() throws Exception {
+        // Given
+        final File agentRoot = tmp.newFolder("agent");
+        final File wsRoot = new File(agentRoot, "workspace");
+        final File jobAWs = mkOldFolder(wsRoot, "jobA");
+        final File jobAWs2 = mkOldFolder(wsRoot, "jobA@2");
+        final File orphan1 = mkOldFolder(wsRoot, "deletedJob");
+        final File orphan2 = mkOldFolder(wsRoot, "renamedJob@tmp");
+        DeleteFoldersCallableTest.mkFile(orphan1, "sub/a.txt");
+        makeOld(orphan1);
+        final File recent = new File(wsRoot, "recent");
+        recent.mkdirs();
+        final TopLevelItem jobA = mockJob("jobA", null);
+        final Slave mockAgent = mock(Slave.class);
+        when(mockAgent.getNodeName()).thenReturn("agent1");
+        when(mockAgent.getRootPath()).thenReturn(new FilePath(agentRoot));
+        when(mockAgent.getWorkspaceRoot()).thenReturn(new FilePath(wsRoot));
+        when(mockAgent.getWorkspaceFor(jobA)).thenReturn(new FilePath(jobAWs));
+        final Jenkins mockJenkins = mock(Jenkins.class);
+        when(mockJenkins.getNodes()).thenReturn(Arrays.<Node>asList(mockAgent));
+        when(mockJenkins.getAllItems(TopLevelItem.class)).thenReturn(Arrays.asList(jobA));
+        final TaskListener mockListener = mock(TaskListener.class);
+        when(mockListener.getLogger()).thenReturn(System.out);
+        final OrphanWorkspaceSweeper instance = new OrphanWorkspaceSweeper();
+
+        // When
+        instance.sweep(mockJenkins, new Pattern[0], DELETE_IN_PLACE, 1, 0L, mockListener);
+
+        // Then
+        assertThat(jobAWs.isDirectory(), is(true));
+        assertThat(jobAWs2.isDirectory(), is(true));
+        assertThat(recent.isDirectory(), is(true));
+        assertThat(orphan1.exists(), is(false));
+        assertThat(orphan2.exists(), is(false));
+    }
+
+    @Test
+    public void sweepGivenNodeNameToSkipThenLeavesItAlone() throws Exception {
+        // Given
+        final File agentRoot = tmp.newFolder("agent");
+        final File wsRoot = new File(agentRoot, "workspace");
+        final File orphan = mkOldFolder(wsRoot, "deletedJob");
+        final Slave mockAgent = mock(Slave.class);
+        when(mockAgent.getNodeName()).thenReturn("agent1");
+        when(mockAgent.getRootPath()).thenReturn(new FilePath(agentRoot));
+        when(mockAgent.getWorkspaceRoot()).thenReturn(new FilePath(wsRoot));
+        final Jenkins mockJenkins = mock(Jenkins.class);
+        when(mockJenkins.getNodes()).thenReturn(Arrays.<Node>asList(mockAgent));
+        when(mockJenkins.getAllItems(TopLevelItem.class)).thenReturn(Collections.<TopLevelItem>emptyList());
+        final TaskListener mockListener = mock(TaskListener.class);
+        when(mockListener.getLogger()).thenReturn(System.out);
+        final OrphanWorkspaceSweeper instance = new OrphanWorkspaceSweeper();
+
+        // When
+        instance.sweep(mockJenkins, new Pattern[] { Pattern.compile("agent.*") }, DELETE_IN_PLACE, 1, 0L,
+                mockListener);
+
+        // Then
+        assertThat(orphan.isDirectory(), is(true));
+    }
+
+    @Test
+    public void findNamesInUseThenReturnsFoldersOfRunningBuilds() {
+        // Given
+        final FilePath root = new FilePath(new File("/agent/workspace"));
+        final Computer mockComputer = mockComputer(root.child("jobA@2"), null, root.child("jobB/sub"));
+
+        // When
+        final Set<String> actual = OrphanWorkspaceSweeper.findNamesInUse(mockComputer, "agent1", root);
+
+        // Then
+        assertThat(actual, containsInAnyOrder("jobA@2", "jobB"));
+    }
+
+    @Test
+    public void findNamesInUseGivenBuildWhoseWorkspaceWeCannotSeeThenReturnsNull() {
+        // Given
+        final FilePath root = new FilePath(new File("/agent/workspace"));
+        final Computer mockComputer = mockComputer(root.child("jobA"));
+        final Executor mockPipelineExecutor = mock(Executor.class);
+        when(mockPipelineExecutor.getCurrentExecutable()).thenReturn(mock(Queue.Executable.class));
+        mockComputer.getExecutors().add(mockPipelineExecutor);
+
+        // When
+        final Set<String> actual = OrphanWorkspaceSweeper.findNamesInUse(mockComputer, "agent1", root);
+
+        // Then
+        assertThat(actual, nullValue());
+    }
+
+    @Test
+    public void findNamesInUseGivenDeletionInProgressThenReturnsNull() {
+        // Given
+        final FilePath root = new FilePath(new File("/agent/workspace"));
+        final Computer mockComputer = mockComputer();
+        final WorkspaceDeletionBarrier barrier = WorkspaceDeletionBarrier.get();
+        barrier.enter("someJob", Collections.singleton("agent1"));
+        try {
+            // When
+            final Set<String> actualBusy = OrphanWorkspaceSweeper.findNamesInUse(mockComputer, "agent1", root);
+            final Set<String> actualOther = OrphanWorkspaceSweeper.findNamesInUse(mockComputer, "agent2", root);
+
+            // Then
+            assertThat(actualBusy, nullValue());
+            assertThat(actualOther, is(Collections.<String>emptySet()));
+        } finally {
+            barrier.exit("someJob", Collections.singleton("agent1"));
+        }
+    }
+
+    /** Gives the computer one executor per workspace, running a build there (or nothing, if it's null). */
+    private static Computer mockComputer(FilePath... workspaces) {
+        final Computer mockComputer = mock(Computer.class);
+        final List<Executor> mockExecutors = new ArrayList<>();
+        for (final FilePath ws : workspaces) {
+            final Executor mockExecutor = mock(Executor.class);
+            if (ws != null) {
+                when(mockExecutor.getCurrentExecutable()).thenReturn(mock(Queue.Executable.class));
+                when(mockExecutor.getCurrentWorkspace()).thenReturn(ws);
+            }
+            mockExecutors.add(mockExecutor);
+        }
+        when(mockComputer.getExecutors()).thenReturn(mockExecutors);
+        return mockComputer;
+    }
+
+    private static TopLevelItem mockJob(String name, String customWorkspace) {
+        final AbstractProject<?, ?> m = mock(AbstractProject.class,
+                withSettings().name(name).extraInterfaces(TopLevelItem.class));
+        when(m.getCustomWorkspace()).thenReturn(customWorkspace);
+        return (TopLevelItem) m;
+    }
+
+    private static File mkOldFolder(File parent, String name) {
+        final File f = new File(parent, name);
+        f.mkdirs();
+        makeOld(f);
+        return f;
+    }
+
+    private static void makeOld(File f) {
+        f.setLastModified(System.currentTimeMillis() - OrphanWorkspaceSweeper.MINIMUM_AGE_IN_MS * 2);
+    }
+}
@@ -0,0 +1,97 @@
+package de.jamba.hudson.plugin.wsclean;
+
+import static org.hamcrest.Matchers.is;
+import static org.hamcrest.Matchers.nullValue;
+import static org.junit.Assert.assertThat;
+
+import org.junit.Test;
+
+import com.google.common.collect.ImmutableList;
+
+public class PathFilterTest {
+    @Test
+    public void ofGivenNoGlobsThenReturnsNull() {
+        // Given
+        final ImmutableList<String> none = ImmutableList.of();
+
+        // When
+        final PathFilter actual = PathFilter.of(none, none);
+
+        // Then
+        assertThat(actual, nullValue());
+    }
+
+    @Test
+    public void isKeptGivenNameGlobThenMatchesAtAnyDepth() {
+        // Given
+        final PathFilter instance = new PathFilter(ImmutableList.of("node_modules", "*.keep"),
+                ImmutableList.<String> of());
+
+        // When
+        final boolean actualTop = instance.isKept("node_modules", "node_modules");
+        final boolean actualDeep = instance.isKept("web/app/node_modules", "node_modules");
+        final boolean actualWildcard = instance.isKept("a/b/data.keep", "data.keep");
+        final boolean actualOther = instance.isKept("web/node_modules_old", "node_modules_old");
+
+        // Then
+        assertThat(actualTop, is(true));
+        assertThat(actualDeep, is(true));
+        assertThat(actualWildcard, is(true));
+        assertThat(actualOther, is(false));
+    }
+
+    @Test
+    public void isKeptGivenPathGlobThenMatchesFromTheTop() {
+        // Given
+        final PathFilter instance = new PathFilter(ImmutableList.of("/vendor", "tools/*/cache", "**/dist"),
+                ImmutableList.<String> of());
+
+        // When
+        final boolean actualAnchored = instance.isKept("vendor", "vendor");
+        final boolean actualAnchoredDeeper = instance.isKept("lib/vendor", "vendor");
+        final boolean actualStar = instance.isKept("tools/gradle/cache", "cache");
+        final boolean actualStarTooDeep = instance.isKept("tools/a/b/cache", "cache");
+        final boolean actualDoubleStarTop = instance.isKept("dist", "dist");
+        final boolean actualDoubleStarDeep = instance.isKept("a/b/dist", "dist");
+
+        // Then
+        assertThat(actualAnchored, is(true));
+        assertThat(actualAnchoredDeeper, is(false));
+        assertThat(actualStar, is(true));
+        assertThat(actualStarTooDeep, is(false));
+        assertThat(actualDoubleStarTop, is(true));
+        assertThat(actualDoubleStarDeep, is(true));
+    }
+
+    @Test
+    public void isDeletedGivenDeleteGlobsThenTopIsNotInScope() {
+        // Given
+        final PathFilter instance = new PathFilter(ImmutableList.<String> of(), ImmutableList.of("target/", "*.log"));
+
+        // When
+        final boolean actualTopInScope = instance.isTopInDeleteScope();
+        final boolean actualTarget = instance.isDeleted("module/target", "target");
+        final boolean actualLog = instance.isDeleted("build.log", "build.log");
+        final boolean actualSource = instance.isDeleted("src", "src");
+
+        // Then
+        assertThat(actualTopInScope, is(false));
+        assertThat(actualTarget, is(true));
+        assertThat(actualLog, is(true));
+        assertThat(actualSource, is(false));
+    }
+
+    @Test
+    public void toRegexGivenSpecialCharactersThenTreatsThemLiterally() {
+        // Given
+        final String glob = "a+b.(c)";
+
+        // When
+        final boolean actualLiteral = PathFilter.toRegex(glob).matcher("a+b.(c)").matches();
+        final boolean actualOther = PathFilter.toRegex(glob).matcher("aab.(c)").matches();
+
+        // Then
+        assertThat(actualLiteral, is(true));
+        assertThat(actualOther, is(false));
+    }
+}
@@ -9,6 +9,7 @@ import static org.junit.Assert.assertThat;
 import static org.junit.Assert.fail;
 import static org.mockito.Matchers.any;
 import static org.mockito.Matchers.anyString;
+import static org.mockito.Matchers.eq;
 import static org.mockito.Mockito.doAnswer;
 import static org.mockito.Mockito.inOrder;
 import static org.mockito.Mockito.mock;
@@ -17,22 +18,27 @@ import static org.mockito.Mockito.verifyNoMoreInteractions;
 import static org.mockito.Mockito.when;
 import static org.mockito.Mockito.withSettings;
 
+import java.io.File;
 import java.io.IOException;
 import java.lang.reflect.Field;
 import java.util.Arrays;
 import java.util.List;
+import java.util.Map;
 import java.util.Set;
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
+import java.util.concurrent.CountDownLatch;
 
 import org.junit.AfterClass;
+import org.junit.Rule;
 import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
 import org.mockito.InOrder;
 import org.mockito.invocation.InvocationOnMock;
 import org.mockito.stubbing.Answer;
 
 import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
 import com.google.common.collect.ImmutableSet;
+import com.google.common.collect.Maps;
 import com.google.common.collect.Multimap;
 import com.google.common.collect.TreeMultimap;
 
@@ -43,8 +49,10 @@ import hudson.model.AbstractBuild;
 import hudson.model.AbstractProject;
 import hudson.model.BuildListener;
 import hudson.model.Executor;
+import hudson.model.Job;
 import hudson.model.Label;
 import hudson.model.Node;
+import hudson.model.Run;
 import hudson.model.TopLevelItem;
 import hudson.remoting.VirtualChannel;
 import hudson.tasks.BuildWrapper.Environment;
@@ -54,6 +62,11 @@ import jenkins.model.TestJenkins;
 
 @SuppressWarnings("rawtypes")
 public class PrePostCleanTest {
+    private static final DeletionOptions DEFAULT_DELETION_OPTIONS = new DeletionOptions(false, ".wsclean-trash", 1,
+            1);
+
+    @Rule
+    public TemporaryFolder tmp = new TemporaryFolder();
 
     @AfterClass
     public static void tearDownClass() {
@@ -118,6 +131,8 @@ public class PrePostCleanTest {
         when(mockNode4.getWorkspaceFor((TopLevelItem) mockProject)).thenReturn(null); // we're offline
         when(mockBuild.getBuiltOnStr()).thenReturn(node1Name);
         when(mockBuild.getProject()).thenReturn(mockProject);
+        when(mockBuild.getParent()).thenReturn(mockProject);
+        when(mockProject.getFullName()).thenReturn("mockProject");
         when(mockProject.getAssignedLabel()).thenReturn(mockAssignedLabel);
         when(mockAssignedLabel.getNodes()).thenReturn(setOfMockNodes);
         TestJenkins.setJenkinsInstance(mockJenkins);
@@ -134,12 +149,69 @@ public class PrePostCleanTest {
         // Then
         final InOrder inOrder = inOrder(instance.mock);
         // not expecting node1 to be cleaned as that's the current node
-        inOrder.verify(instance.mock).deleteWorkspaceOn(mockListener, node2Name, node2ws);
-        inOrder.verify(instance.mock).deleteWorkspaceOn(mockListener, node3Name, node3ws);
+        inOrder.verify(instance.mock).deleteWorkspacesOn(mockListener, node2Name, ImmutableList.of(node2ws));
+        inOrder.verify(instance.mock).deleteWorkspacesOn(mockListener, node3Name, ImmutableList.of(node3ws));
         // not expecting node4 to be cleaned as it's offline
         inOrder.verifyNoMoreInteractions();
     }
 
+    @Test
+    public void setUpGivenDetachedThenTeardownHandsOffCleanAndBarrierHoldsUntilDone() throws Exception {
+        // Given
+        final AbstractBuild mockBuild = mock(AbstractBuild.class, "mockBuild");
+        final Launcher mockLauncher = mock(Launcher.class);
+        final BuildListener mockListener = mock(BuildListener.class, "mockListener");
+        when(mockListener.getLogger()).thenReturn(System.out);
+        final AbstractProject mockProject = mock(AbstractProject.class,
+                withSettings().name("mockProject").extraInterfaces(TopLevelItem.class));
+        final Label mockAssignedLabel = mock(Label.class, "mockAssignedLabel");
+        final String jobName = "myDetachedJob";
+        final String node1Name = "nodeD1-current";
+        final String node2Name = "nodeD2";
+        final Jenkins mockJenkins = mockNode(Jenkins.class, "mockJenkins", "", true);
+        final Node mockNode1 = mockNode("mockNode1", node1Name, true);
+        final Node mockNode2 = mockNode("mockNode2", node2Name, true);
+        final String ws = "/workspaces/myDetachedBuild";
+        final FilePath node1ws = mockNode1.createPath(ws);
+        final FilePath node2ws = mockNode2.createPath(ws);
+        when(mockNode1.getWorkspaceFor((TopLevelItem) mockProject)).thenReturn(node1ws);
+        when(mockNode2.getWorkspaceFor((TopLevelItem) mockProject)).thenReturn(node2ws);
+        when(mockBuild.getBuiltOnStr()).thenReturn(node1Name);
+        when(mockBuild.getProject()).thenReturn(mockProject);
+        when(mockBuild.getParent()).thenReturn(mockProject);
+        when(mockProject.getFullName()).thenReturn(jobName);
+        when(mockProject.getAssignedLabel()).thenReturn(mockAssignedLabel);
+        when(mockAssignedLabel.getNodes()).thenReturn(ImmutableSet.of(mockNode1, mockNode2));
+        TestJenkins.setJenkinsInstance(mockJenkins);
+        whenJenkinsGetNode(mockJenkins, mockNode1, mockNode2);
+        final TestPrePostClean instance = new TestPrePostClean();
+        instance.setBefore(false);
+        instance.setDetached(true);
+        final CountDownLatch deletionMayFinish = new CountDownLatch(1);
+        doAnswer(new Answer<Void>() {
+            @Override
+            public Void answer(InvocationOnMock invocation) throws Throwable {
+                deletionMayFinish.await();
+                return null;
+            }
+        }).when(instance.mock).deleteWorkspacesOn(any(BuildListener.class), anyString(), any(List.class));
+        CommonConfigTest.stubConfig(mockJenkins, NodeSelection.LABEL_ONLY, true, true, null, 10000L);
+        final Environment env = instance.setUp(mockBuild, mockLauncher, mockListener);
+        final WorkspaceDeletionBarrier barrier = WorkspaceDeletionBarrier.get();
+
+        // When
+        env.tearDown(mockBuild, mockListener);
+
+        // Then
+        assertThat(barrier.isBusy(jobName, node2Name), is(true));
+        assertThat(barrier.isBusy(jobName, node1Name), is(false));
+        deletionMayFinish.countDown();
+        barrier.await(jobName, node2Name);
+        verify(instance.mock).deleteWorkspacesOn(any(BuildListener.class), eq(node2Name),
+                eq(ImmutableList.of(node2ws)));
+        verifyNoMoreInteractions(instance.mock);
+    }
+
     @Test
     public void setUpGivenBeforeIsTrueAndNotRoamingThenCleansOnlineMatchingNodesBeforeAndNotAfter() throws Exception {
         // Given
@@ -173,6 +245,8 @@ public class PrePostCleanTest {
         when(mockNode5.getWorkspaceFor((TopLevelItem) mockProject)).thenReturn(null); // we're offline
         when(mockBuild.getBuiltOnStr()).thenReturn(node1Name);
         when(mockBuild.getProject()).thenReturn(mockProject);
+        when(mockBuild.getParent()).thenReturn(mockProject);
+        when(mockProject.getFullName()).thenReturn("mockProject");
         when(mockProject.getAssignedLabel()).thenReturn(mockAssignedLabel);
         when(mockAssignedLabel.getNodes()).thenReturn(setOfMockNodes);
         TestJenkins.setJenkinsInstance(mockJenkins);
@@ -187,8 +261,8 @@ public class PrePostCleanTest {
         // Then
         final InOrder inOrder = inOrder(instance.mock);
         // not expecting node1 to be cleaned as that's the current node
-        inOrder.verify(instance.mock).deleteWorkspaceOn(mockListener, node2Name, node2ws);
-        inOrder.verify(instance.mock).deleteWorkspaceOn(mockListener, node3Name, node3ws);
+        inOrder.verify(instance.mock).deleteWorkspacesOn(mockListener, node2Name, ImmutableList.of(node2ws));
+        inOrder.verify(instance.mock).deleteWorkspacesOn(mockListener, node3Name, ImmutableList.of(node3ws));
         // not expecting node4 to be cleaned as it's offline
         // not expecting node5 to be cleaned as it's offline
         inOrder.verifyNoMoreInteractions();
@@ -207,6 +281,8 @@ public class PrePostCleanTest {
                 withSettings().name("mockProject").extraInterfaces(TopLevelItem.class));
         when(mockBuild.getBuiltOnStr()).thenReturn("someNode");
         when(mockBuild.getProject()).thenReturn(mockProject);
+        when(mockBuild.getParent()).thenReturn(mockProject);
+        when(mockProject.getFullName()).thenReturn("mockProject");
         when(mockProject.getAssignedLabel()).thenReturn(null); // roaming
         final TestPrePostClean instance = new TestPrePostClean();
         instance.setBefore(true);
@@ -279,6 +355,8 @@ public class PrePostCleanTest {
         final AbstractBuild mockCurrentBuild = mockBuild7;
         final AbstractProject mockProject = mock(AbstractProject.class, withSettings().name("mockProject"));
         when(mockCurrentBuild.getProject()).thenReturn(mockProject);
+        when(mockCurrentBuild.getParent()).thenReturn(mockProject);
+        when(mockProject.getFullName()).thenReturn("mockProject");
         when(mockProject.getBuilds()).thenReturn(RunList.fromRuns(listOfMockBuildHistory));
         final BuildListener mockListener = mock(BuildListener.class, "mockListener");
         when(mockListener.getLogger()).thenReturn(System.out);
@@ -291,16 +369,48 @@ public class PrePostCleanTest {
         instance.setUp(mockCurrentBuild, mockLauncher, mockListener);
 
         // Then
-        verify(instance.mock).deleteWorkspaceOn(mockListener, normalisedMasterName, masterNormalWs);
-        verify(instance.mock).deleteWorkspaceOn(mockListener, node3Name, node3NormalWs);
-        verify(instance.mock).deleteWorkspaceOn(mockListener, node3Name, node3WeirdWs);
-        verify(instance.mock).deleteWorkspaceOn(mockListener, node4Name, node4NormalWs);
+        verify(instance.mock).deleteWorkspacesOn(mockListener, normalisedMasterName,
+                ImmutableList.of(masterNormalWs));
+        verify(instance.mock).deleteWorkspacesOn(mockListener, node3Name,
+                ImmutableList.of(node3NormalWs, node3WeirdWs));
+        verify(instance.mock).deleteWorkspacesOn(mockListener, node4Name, ImmutableList.of(node4NormalWs));
+        verifyNoMoreInteractions(instance.mock);
+    }
+
+    @Test
+    public void deleteWorkspacesOnGivenFolderDeletedThenForgetsItsDeferralOnly() throws Exception {
+        // Given
+        final File folderToDelete = tmp.newFolder("ws");
+        final String otherFolder = new File(tmp.getRoot(), "otherWs").getPath();
+        final Job mockJob = mock(Job.class, "mockJob");
+        when(mockJob.getFullName()).thenReturn("mockJob");
+        final Run mockRun = mock(Run.class, "mockRun");
+        when(mockRun.getParent()).thenReturn(mockJob);
+        when(mockRun.getNumber()).thenReturn(2);
+        final BuildListener mockListener = mock(BuildListener.class, "mockListener");
+        when(mockListener.getLogger()).thenReturn(System.out);
+        final DeferredDeletionQueue queue = DeferredDeletionQueue.get();
+        final List<String> deferred = Arrays.asList(folderToDelete.getPath(), otherFolder);
+        queue.add("mockJob", 1, "", deferred);
+        try {
+            // When
+            final NodeOutcome actual = new PrePostClean().deleteWorkspacesOn(mockRun, mockListener, "master",
+                    ImmutableList.of(new FilePath(folderToDelete)), DEFAULT_DELETION_OPTIONS,
+                    new CleanupReport.Recorder());
+
+            // Then
+            assertThat(actual, equalTo(NodeOutcome.COMPLETED));
+            assertThat(folderToDelete.exists(), is(false));
+            assertThat(queue.getPendingFor("").keySet(), equalTo((Set<String>) ImmutableSet.of(otherFolder)));
+        } finally {
+            queue.remove("", deferred);
+        }
     }
 
     @Test
     public void deleteWssInSeriesGivenWorkspacesThenDeletesInOrder() throws InterruptedException, IOException {
         // Given
-        final AbstractBuild mockCurrentBuild = mock(AbstractBuild.class, "mockCurrentBuild");
+        final AbstractBuild mockCurrentBuild = mockCurrentBuild();
         final String masterName = "";
         final String normalizedMasterName = "master";
         final String node1Name = "nodeC1";
@@ -325,24 +435,35 @@ public class PrePostCleanTest {
         workspacesToBeRemoved.put(node2Name, ws1);
         workspacesToBeRemoved.put(node3Name, ws1);
 
+        final Map<String, NodeOutcome> outcomes = Maps.newHashMap();
+
         // When
         final TestPrePostClean instance = new TestPrePostClean();
-        instance.deleteWssInSeries(mockCurrentBuild, mockJenkins, workspacesToBeRemoved, mockListener);
+        final CleanupExecutor executor = new CleanupExecutor(1, 1);
+        try {
+            instance.deleteWssInSeries(mockCurrentBuild, mockJenkins, executor, workspacesToBeRemoved, mockListener,
+                    DEFAULT_DELETION_OPTIONS, outcomes, new CleanupReport.Recorder());
+        } finally {
+            executor.shutdownNow();
+        }
 
         // Then
         final InOrder inOrder = inOrder(instance.mock);
-        inOrder.verify(instance.mock).deleteWorkspaceOn(mockListener, normalizedMasterName, masterws2);
-        inOrder.verify(instance.mock).deleteWorkspaceOn(mockListener, node1Name, node1ws1);
-        inOrder.verify(instance.mock).deleteWorkspaceOn(mockListener, node1Name, node1ws2);
-        inOrder.verify(instance.mock).deleteWorkspaceOn(mockListener, node2Name, node2ws1);
+        inOrder.verify(instance.mock).deleteWorkspacesOn(mockListener, normalizedMasterName,
+                ImmutableList.of(masterws2));
+        inOrder.verify(instance.mock).deleteWorkspacesOn(mockListener, node1Name,
+                ImmutableList.of(node1ws1, node1ws2));
+        inOrder.verify(instance.mock).deleteWorkspacesOn(mockListener, node2Name, ImmutableList.of(node2ws1));
         inOrder.verifyNoMoreInteractions();
+        assertThat(outcomes, equalTo((Map<String, NodeOutcome>) ImmutableMap.of(masterName, NodeOutcome.COMPLETED,
+                node1Name, NodeOutcome.COMPLETED, node2Name, NodeOutcome.COMPLETED, node3Name, NodeOutcome.SKIPPED)));
     }
 
     @Test
     public void deleteWssInParallelGivenWorkspacesThenDeletesOnEachNodeInParallel()
             throws InterruptedException, IOException {
         // Given
-        final AbstractBuild mockCurrentBuild = mock(AbstractBuild.class, "mockCurrentBuild");
+        final AbstractBuild mockCurrentBuild = mockCurrentBuild();
         final String masterName = "";
         final String normalizedMasterName = "master";
         final String node1Name = "nodeD1";
@@ -370,10 +491,11 @@ public class PrePostCleanTest {
         doAnswer(new Answer<Void>() {
             @Override
             public Void answer(InvocationOnMock invocation) throws Throwable {
-                Thread.sleep(millisecondsRequiredToDeleteAWorkspace);
+                final List<?> workspaces = (List<?>) invocation.getArguments()[2];
+                Thread.sleep(millisecondsRequiredToDeleteAWorkspace * workspaces.size());
                 return null;
             }
-        }).when(instance.mock).deleteWorkspaceOn(any(), anyString(), any());
+        }).when(instance.mock).deleteWorkspacesOn(any(), anyString(), any());
         whenJenkinsGetNode(mockJenkins, mockNode1, mockNode2, mockNode4, mockNode5);
         final Multimap<String, String> workspacesToBeRemoved = TreeMultimap.create();
         workspacesToBeRemoved.put(masterName, ws2);
@@ -385,20 +507,19 @@ public class PrePostCleanTest {
         workspacesToBeRemoved.put(node5Name, ws2);
 
         // When
-        final ExecutorService parallelExecutor = Executors.newFixedThreadPool(6);
+        final CleanupExecutor parallelExecutor = new CleanupExecutor(6, 6);
         final long timestampBeforeDeletion = System.currentTimeMillis();
         instance.deleteWssInParallel(mockCurrentBuild, mockJenkins, parallelExecutor, workspacesToBeRemoved,
-                mockListener);
+                mockListener, DEFAULT_DELETION_OPTIONS, Maps.<String, NodeOutcome>newConcurrentMap(),
+                new CleanupReport.Recorder());
         final long timestampAfterDeletion = System.currentTimeMillis();
 
         // Then
-        verify(instance.mock).deleteWorkspaceOn(mockListener, normalizedMasterName, masterws2);
-        verify(instance.mock).deleteWorkspaceOn(mockListener, node1Name, node1ws1);
-        final InOrder inOrder = inOrder(instance.mock);
-        inOrder.verify(instance.mock).deleteWorkspaceOn(mockListener, node2Name, node2ws1);
-        inOrder.verify(instance.mock).deleteWorkspaceOn(mockListener, node2Name, node2ws2);
-        verify(instance.mock).deleteWorkspaceOn(mockListener, node4Name, node4ws1);
-        verify(instance.mock).deleteWorkspaceOn(mockListener, node5Name, node5ws2);
+        verify(instance.mock).deleteWorkspacesOn(mockListener, normalizedMasterName, ImmutableList.of(masterws2));
+        verify(instance.mock).deleteWorkspacesOn(mockListener, node1Name, ImmutableList.of(node1ws1));
+        verify(instance.mock).deleteWorkspacesOn(mockListener, node2Name, ImmutableList.of(node2ws1, node2ws2));
+        verify(instance.mock).deleteWorkspacesOn(mockListener, node4Name, ImmutableList.of(node4ws1));
+        verify(instance.mock).deleteWorkspacesOn(mockListener, node5Name, ImmutableList.of(node5ws2));
         verifyNoMoreInteractions(instance.mock);
         final long timeTakenForDeletions = timestampAfterDeletion - timestampBeforeDeletion;
         final long minTimeItCanTakeIsBothDeletionsOnNode2 = millisecondsRequiredToDeleteAWorkspace * 2;
@@ -408,11 +529,49 @@ public class PrePostCleanTest {
                 .and(lessThan(maxExpectedTimeItShouldTakeIsNotMuchMore))));
     }
 
+    @Test
+    public void deleteWssInParallelGivenNodesWithDifferentFatesThenRecordsEachOutcome() throws InterruptedException {
+        // Given
+        final AbstractBuild mockCurrentBuild = mockCurrentBuild();
+        final String node1Name = "nodeF1TooSlow";
+        final String node2Name = "nodeF2Healthy";
+        final String node3Name = "nodeF3Offline";
+        final String node4Name = "nodeF4Broken";
+        final String ws = "/Fabc";
+        final Node mockNode1 = mockNode("mockNode1", node1Name, true);
+        final Node mockNode2 = mockNode("mockNode2", node2Name, true);
+        final Node mockNode3 = mockNode("mockNode3", node3Name, false);
+        final Node mockNode4 = mockNode("mockNode4", node4Name, true);
+        final BuildListener mockListener = mock(BuildListener.class, "mockListener");
+        when(mockListener.getLogger()).thenReturn(System.out);
+        final TestPrePostClean instance = new TestPrePostClean();
+        when(instance.mock.deleteWorkspacesOn(mockListener, node1Name, ImmutableList.of(mockNode1.createPath(ws))))
+                .thenReturn(NodeOutcome.TIMED_OUT);
+        when(instance.mock.deleteWorkspacesOn(mockListener, node4Name, ImmutableList.of(mockNode4.createPath(ws))))
+                .thenReturn(NodeOutcome.FAILED);
+        final Jenkins mockJenkins = mock(Jenkins.class, "mockJenkins");
+        whenJenkinsGetNode(mockJenkins, mockNode1, mockNode2, mockNode3, mockNode4);
+        final Multimap<String, String> workspacesToBeRemoved = TreeMultimap.create();
+        workspacesToBeRemoved.put(node1Name, ws);
+        workspacesToBeRemoved.put(node2Name, ws);
+        workspacesToBeRemoved.put(node3Name, ws);
+        workspacesToBeRemoved.put(node4Name, ws);
+        final Map<String, NodeOutcome> outcomes = Maps.newConcurrentMap();
+
+        // When
+        instance.deleteWssInParallel(mockCurrentBuild, mockJenkins, new CleanupExecutor(6, 6), workspacesToBeRemoved,
+                mockListener, DEFAULT_DELETION_OPTIONS, outcomes, new CleanupReport.Recorder());
+
+        // Then
+        assertThat(outcomes, equalTo((Map<String, NodeOutcome>) ImmutableMap.of(node1Name, NodeOutcome.TIMED_OUT,
+                node2Name, NodeOutcome.COMPLETED, node3Name, NodeOutcome.SKIPPED, node4Name, NodeOutcome.FAILED)));
+    }
+
     @Test
     public void deleteWssInParallelGivenInterruptThenAbandonsAllDeletionsImmediately()
             throws InterruptedException, IOException {
         // Given
-        final AbstractBuild mockCurrentBuild = mock(AbstractBuild.class, "mockCurrentBuild");
+        final AbstractBuild mockCurrentBuild = mockCurrentBuild();
         final String node1Name = "nodeE1";
         final String node2Name = "nodeE2";
         final String node3Name = "nodeE3";
@@ -433,14 +592,14 @@ public class PrePostCleanTest {
                 Thread.sleep(timeEachDeletionWillRunForUnlessCancelled);
                 return null;
             }
-        }).when(instance.mock).deleteWorkspaceOn(mockListener, node1Name, node1ws);
+        }).when(instance.mock).deleteWorkspacesOn(mockListener, node1Name, ImmutableList.of(node1ws));
         doAnswer(new Answer<Void>() {
             @Override
             public Void answer(InvocationOnMock invocation) throws Throwable {
                 Thread.sleep(timeEachDeletionWillRunForUnlessCancelled);
                 return null;
             }
-        }).when(instance.mock).deleteWorkspaceOn(mockListener, node2Name, node2ws);
+        }).when(instance.mock).deleteWorkspacesOn(mockListener, node2Name, ImmutableList.of(node2ws));
         final Thread testThread = Thread.currentThread();
         doAnswer(new Answer<Void>() {
             @Override
@@ -450,7 +609,7 @@ public class PrePostCleanTest {
                 Thread.sleep(timeEachDeletionWillRunForUnlessCancelled);
                 return null;
             }
-        }).when(instance.mock).deleteWorkspaceOn(mockListener, node3Name, node3ws);
+        }).when(instance.mock).deleteWorkspacesOn(mockListener, node3Name, ImmutableList.of(node3ws));
         final Jenkins mockJenkins = mock(Jenkins.class, "mockJenkins");
         whenJenkinsGetNode(mockJenkins, mockNode1, mockNode2, mockNode3);
         final Multimap<String, String> workspacesToBeRemoved = TreeMultimap.create();
@@ -459,11 +618,12 @@ public class PrePostCleanTest {
         workspacesToBeRemoved.put(node3Name, ws);
 
         // When
-        final ExecutorService parallelExecutor = Executors.newFixedThreadPool(6);
+        final CleanupExecutor parallelExecutor = new CleanupExecutor(6, 6);
         final long timestampBeforeDeletion = System.currentTimeMillis();
         try {
             instance.deleteWssInParallel(mockCurrentBuild, mockJenkins, parallelExecutor, workspacesToBeRemoved,
-                    mockListener);
+                    mockListener, DEFAULT_DELETION_OPTIONS, Maps.<String, NodeOutcome>newConcurrentMap(),
+                    new CleanupReport.Recorder());
             fail("Expecting to be interrupted");
         } catch (InterruptedException ex) {
             // expected
@@ -475,6 +635,15 @@ public class PrePostCleanTest {
         assertThat(timeTakenForDeletions, lessThan(timeEachDeletionWillRunForUnlessCancelled));
     }
 
+    private static AbstractBuild mockCurrentBuild() {
+        final AbstractBuild m = mock(AbstractBuild.class, "mockCurrentBuild");
+        final AbstractProject mockProject = mock(AbstractProject.class, "mockProject");
+        when(m.getProject()).thenReturn(mockProject);
+        when(m.getParent()).thenReturn(mockProject);
+        when(mockProject.getFullName()).thenReturn("mockProject");
+        return m;
+    }
+
     private static AbstractBuild mockBuild(final String mockName, final Node builtOnNode, final String wsLocation,
             final boolean hasntStartedYet, final boolean hasExecutor)
             throws NoSuchFieldException, SecurityException, IllegalArgumentException, IllegalAccessException {
@@ -523,16 +692,22 @@ public class PrePostCleanTest {
     }
 
     private interface IMockableMethods {
-        void deleteWorkspaceOn(BuildListener listener, String nodeName, FilePath fp) throws InterruptedException;
+        NodeOutcome deleteWorkspacesOn(BuildListener listener, String nodeName, List<FilePath> fps)
+                throws InterruptedException;
     }
 
     class TestPrePostClean extends PrePostClean {
         final IMockableMethods mock = mock(IMockableMethods.class);
 
         @Override
-        void deleteWorkspaceOn(AbstractBuild<?, ?> build, BuildListener listener, String nodeName, FilePath fp)
+        NodeOutcome deleteWorkspacesOn(Run<?, ?> build, BuildListener listener, String nodeName,
+                List<FilePath> fps, DeletionOptions options, CleanupReport.Recorder report)
                 throws InterruptedException {
-            mock.deleteWorkspaceOn(listener, nodeName, fp);
+            // we're given each node's own log, but our tests expect the build's log
+            final BuildListener buildListener = listener instanceof NodeLog ? ((NodeLog) listener).getTarget()
+                    : listener;
+            final NodeOutcome outcome = mock.deleteWorkspacesOn(buildListener, nodeName, fps);
+            return outcome == null ? NodeOutcome.COMPLETED : outcome;
         }
     }
 }
@@ -0,0 +1,115 @@
+package de.jamba.hudson.plugin.wsclean;
+
+import static org.hamcrest.Matchers.both;
+import static org.hamcrest.Matchers.equalTo;
+import static org.hamcrest.Matchers.greaterThanOrEqualTo;
+import static org.hamcrest.Matchers.is;
+import static org.hamcrest.Matchers.lessThanOrEqualTo;
+import static org.junit.Assert.assertThat;
+
+import java.io.IOException;
+import java.nio.file.AccessDeniedException;
+import java.nio.file.FileSystemException;
+import java.nio.file.NoSuchFileException;
+import java.util.Random;
+
+import org.junit.Test;
+
+import hudson.remoting.RequestAbortedException;
+
+public class RetryPolicyTest {
+    @Test
+    public void getDelayBeforeRetryThenDoublesEachTimeWithJitterUpToTheLimit() {
+        // Given
+        final RetryPolicy instance = new RetryPolicy(10, 1000L, 5000L, new Random(1234L));
+
+        // When
+        for (int i = 0; i < 100; i++) {
+            final long actual1 = instance.getDelayBeforeRetry(1);
+            final long actual2 = instance.getDelayBeforeRetry(2);
+            final long actual3 = instance.getDelayBeforeRetry(3);
+            final long actual4 = instance.getDelayBeforeRetry(4);
+            final long actual50 = instance.getDelayBeforeRetry(50);
+
+            // Then
+            assertThat(actual1, is(both(greaterThanOrEqualTo(500L)).and(lessThanOrEqualTo(1000L))));
+            assertThat(actual2, is(both(greaterThanOrEqualTo(1000L)).and(lessThanOrEqualTo(2000L))));
+            assertThat(actual3, is(both(greaterThanOrEqualTo(2000L)).and(lessThanOrEqualTo(4000L))));
+            assertThat(actual4, is(both(greaterThanOrEqualTo(2500L)).and(lessThanOrEqualTo(5000L))));
+            assertThat(actual50, is(both(greaterThanOrEqualTo(2500L)).and(lessThanOrEqualTo(5000L))));
+        }
+    }
+
+    @Test
+    public void constructorGivenNegativeRetriesThenNeverRetries() {
+        // Given
+        final int maxRetries = -1;
+
+        // When
+        final RetryPolicy instance = RetryPolicy.upTo(maxRetries);
+
+        // Then
+        assertThat(instance.getMaxRetries(), equalTo(0));
+    }
+
+    @Test
+    public void isTransientGivenLockedFileThenReturnsTrue() {
+        // Given
+        final IOException problem = new IOException("Unable to delete",
+                new FileSystemException("a.txt", null, "The process cannot access the file"));
+
+        // When
+        final boolean actual = RetryPolicy.isTransient(problem);
+
+        // Then
+        assertThat(actual, is(true));
+    }
+
+    @Test
+    public void isTransientGivenAccessDeniedThenReturnsTrue() {
+        // Given
+        final IOException problem = new AccessDeniedException("a.txt");
+
+        // When
+        final boolean actual = RetryPolicy.isTransient(problem);
+
+        // Then
+        assertThat(actual, is(true));
+    }
+
+    @Test
+    public void isTransientGivenChannelProblemThenReturnsTrue() {
+        // Given
+        final RuntimeException problem = new RequestAbortedException(new IOException("channel went away"));
+
+        // When
+        final boolean actual = RetryPolicy.isTransient(problem);
+
+        // Then
+        assertThat(actual, is(true));
+    }
+
+    @Test
+    public void isTransientGivenMissingFileThenReturnsFalse() {
+        // Given
+        final IOException problem = new NoSuchFileException("a.txt");
+
+        // When
+        final boolean actual = RetryPolicy.isTransient(problem);
+
+        // Then
+        assertThat(actual, is(false));
+    }
+
+    @Test
+    public void isTransientGivenOtherProblemThenReturnsFalse() {
+        // Given
+        final IOException problem = new IOException("Disk on fire");
+
+        // When
+        final boolean actual = RetryPolicy.isTransient(problem);
+
+        // Then
+        assertThat(actual, is(false));
+    }
+}
@@ -0,0 +1,111 @@
+package de.jamba.hudson.plugin.wsclean;
+
+import static de.jamba.hudson.plugin.wsclean.DeleteFoldersCallableTest.mkFile;
+import static org.hamcrest.Matchers.equalTo;
+import static org.hamcrest.Matchers.nullValue;
+import static org.junit.Assert.assertThat;
+import static org.junit.Assert.fail;
+
+import java.io.File;
+import java.io.InterruptedIOException;
+import java.nio.file.Files;
+import java.util.List;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import com.google.common.collect.ImmutableList;
+
+public class StatFoldersCallableTest {
+    @Rule
+    public TemporaryFolder tmp = new TemporaryFolder();
+
+    @Test
+    public void callGivenMissingEmptyAndFullFoldersThenSaysWhichAreWorthDeleting() throws Exception {
+        // Given
+        final File wsMissing = new File(tmp.getRoot(), "missing");
+        final File wsEmpty = tmp.newFolder("empty");
+        final File wsFull = tmp.newFolder("full");
+        mkFile(wsFull, "sub/a.txt");
+        final StatFoldersCallable instance = new StatFoldersCallable(
+                ImmutableList.of(wsMissing.getPath(), wsEmpty.getPath(), wsFull.getPath()), 0L);
+
+        // When
+        final List<FolderStat> actual = instance.call();
+
+        // Then
+        assertThat(actual.size(), equalTo(3));
+        assertThat(actual.get(0).getFolder(), equalTo(wsMissing.getPath()));
+        assertThat(actual.get(0).getExists(), equalTo(false));
+        assertThat(actual.get(0).getReasonToSkip(0L), equalTo("it does not exist"));
+        assertThat(actual.get(1).getExists(), equalTo(true));
+        assertThat(actual.get(1).getEntryCount(), equalTo(0L));
+        assertThat(actual.get(1).getReasonToSkip(0L), equalTo("it is empty"));
+        assertThat(actual.get(2).getExists(), equalTo(true));
+        assertThat(actual.get(2).getReasonToSkip(0L), nullValue());
+    }
+
+    @Test
+    public void callGivenMinimumSizeThenCountsUntilItIsReached() throws Exception {
+        // Given
+        final File wsSmall = tmp.newFolder("small");
+        Files.write(mkFile(wsSmall, "a.txt").toPath(), new byte[100]);
+        final File wsBig = tmp.newFolder("big");
+        Files.write(mkFile(wsBig, "a.txt").toPath(), new byte[600]);
+        Files.write(mkFile(wsBig, "b.txt").toPath(), new byte[600]);
+        final StatFoldersCallable instance = new StatFoldersCallable(
+                ImmutableList.of(wsSmall.getPath(), wsBig.getPath()), 500L);
+
+        // When
+        final List<FolderStat> actual = instance.call();
+
+        // Then
+        assertThat(actual.get(0).getEntryCount(), equalTo(1L));
+        assertThat(actual.get(0).getSizeInBytes(), equalTo(100L));
+        assertThat(actual.get(0).getReasonToSkip(500L), equalTo("it holds less than 500 bytes"));
+        assertThat(actual.get(1).getEntryCount(), equalTo(1L));
+        assertThat(actual.get(1).getSizeInBytes(), equalTo(600L));
+        assertThat(actual.get(1).getReasonToSkip(500L), nullValue());
+    }
+
+    @Test
+    public void statAllGivenNoTimeLeftThenSaysFoldersAreIncompleteAndWorthDeleting() throws Exception {
+        // Given
+        final File wsMissing = new File(tmp.getRoot(), "missing");
+        final File wsFull = tmp.newFolder("full");
+        Files.write(mkFile(wsFull, "a.txt").toPath(), new byte[100]);
+        final StatFoldersCallable instance = new StatFoldersCallable(
+                ImmutableList.of(wsMissing.getPath(), wsFull.getPath()), Long.MAX_VALUE, 60000L);
+
+        // When
+        final List<FolderStat> actual = instance.statAll(System.currentTimeMillis() - 1L);
+
+        // Then
+        assertThat(actual.get(0).getReasonToSkip(500L), equalTo("it does not exist"));
+        assertThat(actual.get(1).isComplete(), equalTo(false));
+        assertThat(actual.get(1).getSizeInBytes(), equalTo(0L));
+        assertThat(actual.get(1).getReasonToSkip(500L), nullValue());
+    }
+
+    @Test
+    public void callGivenInterruptedThenStopsLooking() throws Exception {
+        // Given
+        final File ws = tmp.newFolder("ws");
+        mkFile(ws, "a.txt");
+        final StatFoldersCallable instance = new StatFoldersCallable(ImmutableList.of(ws.getPath()), Long.MAX_VALUE,
+                60000L);
+        Thread.currentThread().interrupt();
+
+        // When
+        try {
+            instance.call();
+            fail("Expected InterruptedIOException");
+        } catch (InterruptedIOException expected) {
+            // Then
+            assertThat(Thread.interrupted(), equalTo(true));
+        } finally {
+            Thread.interrupted();
+        }
+    }
+}
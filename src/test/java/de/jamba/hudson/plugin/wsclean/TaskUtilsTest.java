@@ -9,11 +9,16 @@ import static org.hamcrest.Matchers.*;
 
 import java.util.Collections;
 import java.util.List;
+import java.util.concurrent.BlockingQueue;
 import java.util.concurrent.Callable;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ExecutorCompletionService;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
 import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicLong;
 
 import org.junit.Test;
 
@@ -95,6 +100,20 @@ public class TaskUtilsTest {
         assertThat(actualDuration, lessThan(maxExpectedExecutionDurationInMs));
     }
 
+    @Test
+    public void runWithTimeoutGivenTaskQueuedBehindAnotherThenTimeoutStartsWhenItRuns() throws Exception {
+        // Given
+        final ExecutorService threadpool = Executors.newSingleThreadExecutor();
+        final long timeoutInMs = 200L;
+        threadpool.submit(mkTaskThatReturnsAfterDelay(0, timeoutInMs * 2));
+        final Integer expected = 123;
+        final Callable<Integer> task = mkTaskThatReturns(expected);
+        // When
+        final Integer actual = runWithTimeout(threadpool, timeoutInMs, task);
+        // Then
+        assertThat(actual, equalTo(expected));
+    }
+
     @Test
     public void runWithTimeoutGivenTaskThatTakesTooLongToReturnThenThrowsTimeout() throws Exception {
         // Given
@@ -174,10 +193,11 @@ public class TaskUtilsTest {
     public void waitUntilAllAreDoneGivenNothingThenReturnsImmediately() throws Exception {
         // Given
         final long maxExpectedExecutionDurationInMs = 100L;
-        final Iterable<Future<?>> tasks = Collections.emptyList();
+        final BlockingQueue<Future<Integer>> completionQueue = new LinkedBlockingQueue<>();
+        final List<Future<Integer>> tasks = Collections.emptyList();
         // When
         final long msBeforeRun = System.currentTimeMillis();
-        waitUntilAllAreDone(tasks);
+        waitUntilAllAreDone(completionQueue, tasks);
         final long msAfterRun = System.currentTimeMillis();
         // Then
         final long actualDuration = msAfterRun - msBeforeRun;
@@ -194,14 +214,17 @@ public class TaskUtilsTest {
         final Callable<Integer> task30 = mkTaskThatReturnsAfterDelay(123, 50L);
         final Callable<Integer> task50 = mkTaskThatReturnsAfterDelay(123, 40L);
         final Callable<Integer> task70 = mkTaskThatReturnsAfterDelay(123, minExpectedExecutionDurationInMs);
-        final List<Future<?>> tasks = Lists.newArrayList();
-        tasks.add(threadpool.submit(task10));
-        tasks.add(threadpool.submit(task30));
-        tasks.add(threadpool.submit(task50));
+        final BlockingQueue<Future<Integer>> completionQueue = new LinkedBlockingQueue<>();
+        final CompletionService<Integer> completionService = new ExecutorCompletionService<>(threadpool,
+                completionQueue);
+        final List<Future<Integer>> tasks = Lists.newArrayList();
+        tasks.add(completionService.submit(task10));
+        tasks.add(completionService.submit(task30));
+        tasks.add(completionService.submit(task50));
         final long msBeforeRun = System.currentTimeMillis();
-        tasks.add(threadpool.submit(task70));
+        tasks.add(completionService.submit(task70));
         // When
-        waitUntilAllAreDone(tasks);
+        waitUntilAllAreDone(completionQueue, tasks);
         final long msAfterRun = System.currentTimeMillis();
         // Then
         final long actualDuration = msAfterRun - msBeforeRun;
@@ -209,6 +232,59 @@ public class TaskUtilsTest {
         assertThat(actualDuration, greaterThanOrEqualTo(minExpectedExecutionDurationInMs));
     }
 
+    @Test
+    public void waitUntilAllAreDoneGivenSlowTasksThenReturnsPromptlyAfterLastCompletes() throws Exception {
+        // Given
+        final ExecutorService threadpool = Executors.newFixedThreadPool(3);
+        final long maxExpectedLatencyInMs = 50L;
+        final AtomicLong msWhenLastTaskCompleted = new AtomicLong();
+        final BlockingQueue<Future<Integer>> completionQueue = new LinkedBlockingQueue<>();
+        final CompletionService<Integer> completionService = new ExecutorCompletionService<>(threadpool,
+                completionQueue);
+        final List<Future<Integer>> tasks = Lists.newArrayList();
+        for (final long delayInMs : new long[] { 100L, 700L, 1300L }) {
+            final Callable<Integer> delayedTask = mkTaskThatReturnsAfterDelay(123, delayInMs);
+            tasks.add(completionService.submit(new Callable<Integer>() {
+                @Override
+                public Integer call() throws Exception {
+                    final Integer result = delayedTask.call();
+                    msWhenLastTaskCompleted.set(System.currentTimeMillis());
+                    return result;
+                }
+            }));
+        }
+        // When
+        waitUntilAllAreDone(completionQueue, tasks);
+        final long msWhenWeContinued = System.currentTimeMillis();
+        // Then
+        final long actualLatency = msWhenWeContinued - msWhenLastTaskCompleted.get();
+        assertThat(actualLatency, lessThan(maxExpectedLatencyInMs));
+    }
+
+    @Test
+    public void waitUntilAllAreDoneGivenInterruptThenCancelsAllTasks() throws Exception {
+        // Given
+        final ExecutorService threadpool = Executors.newFixedThreadPool(2);
+        final BlockingQueue<Future<Integer>> completionQueue = new LinkedBlockingQueue<>();
+        final CompletionService<Integer> completionService = new ExecutorCompletionService<>(threadpool,
+                completionQueue);
+        final List<Future<Integer>> tasks = Lists.newArrayList();
+        tasks.add(completionService.submit(mkTaskThatReturnsAfterDelay(123, 60000L)));
+        tasks.add(completionService.submit(mkTaskThatReturnsAfterDelay(123, 60000L)));
+        Thread.currentThread().interrupt();
+        // When
+        try {
+            waitUntilAllAreDone(completionQueue, tasks);
+            fail("Expecting to be interrupted");
+        } catch (InterruptedException expected) {
+            // expected
+        }
+        // Then
+        for (final Future<Integer> task : tasks) {
+            assertThat(task.isCancelled(), is(true));
+        }
+    }
+
     private static <T> Callable<T> mkTaskThatReturns(final T returnValue) {
         return new Callable<T>() {
             @Override
@@ -0,0 +1,27 @@
+package de.jamba.hudson.plugin.wsclean;
+
+import static org.hamcrest.Matchers.is;
+import static org.junit.Assert.assertThat;
+
+import org.junit.Test;
+
+public class TrashReaperTest {
+    @Test
+    public void isValidTrashFolderGivenFolderOfItsOwnThenAllowsIt() throws Exception {
+        assertThat(TrashReaper.isValidTrashFolder(".wsclean-trash"), is(true));
+        assertThat(TrashReaper.isValidTrashFolder("trash/wsclean"), is(true));
+        assertThat(TrashReaper.isValidTrashFolder("/var/wsclean-trash"), is(true));
+    }
+
+    @Test
+    public void isValidTrashFolderGivenSharedOrEmptyFolderThenRejectsIt() throws Exception {
+        assertThat(TrashReaper.isValidTrashFolder(null), is(false));
+        assertThat(TrashReaper.isValidTrashFolder(" "), is(false));
+        assertThat(TrashReaper.isValidTrashFolder("."), is(false));
+        assertThat(TrashReaper.isValidTrashFolder(".."), is(false));
+        assertThat(TrashReaper.isValidTrashFolder("../trash"), is(false));
+        assertThat(TrashReaper.isValidTrashFolder("trash/../.."), is(false));
+        assertThat(TrashReaper.isValidTrashFolder("/"), is(false));
+        assertThat(TrashReaper.isValidTrashFolder("/tmp/.."), is(false));
+    }
+}
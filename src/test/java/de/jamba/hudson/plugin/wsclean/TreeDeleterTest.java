@@ -0,0 +1,221 @@
+package de.jamba.hudson.plugin.wsclean;
+
+import static de.jamba.hudson.plugin.wsclean.DeleteFoldersCallableTest.mkFile;
+import static org.hamcrest.Matchers.arrayWithSize;
+import static org.hamcrest.Matchers.equalTo;
+import static org.hamcrest.Matchers.is;
+import static org.junit.Assert.assertThat;
+import static org.junit.Assert.fail;
+
+import java.io.File;
+import java.nio.file.Files;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import com.google.common.collect.ImmutableList;
+
+public class TreeDeleterTest {
+    @Rule
+    public TemporaryFolder tmp = new TemporaryFolder();
+
+    @Test
+    public void deleteContentsGivenBigTreeAndManyThreadsThenDeletesEverythingButTheFolder() throws Exception {
+        // Given
+        final File root = tmp.newFolder("root");
+        final long expected = mkTree(root);
+
+        // When
+        final long actual = TreeDeleter.deleteContents(root, 4).getFilesDeleted();
+
+        // Then
+        assertThat(actual, equalTo(expected));
+        assertThat(root.isDirectory(), is(true));
+        assertThat(root.list(), arrayWithSize(0));
+    }
+
+    @Test
+    public void deleteContentsGivenOneThreadThenDeletesEverythingButTheFolder() throws Exception {
+        // Given
+        final File root = tmp.newFolder("root");
+        final long expected = mkTree(root);
+
+        // When
+        final long actual = TreeDeleter.deleteContents(root, 1).getFilesDeleted();
+
+        // Then
+        assertThat(actual, equalTo(expected));
+        assertThat(root.isDirectory(), is(true));
+        assertThat(root.list(), arrayWithSize(0));
+    }
+
+    @Test
+    public void deleteRecursiveGivenTreeThenDeletesFolderToo() throws Exception {
+        // Given
+        final File root = tmp.newFolder("root");
+        final long expected = mkTree(root);
+
+        // When
+        final long actual = TreeDeleter.deleteRecursive(root, 2).getFilesDeleted();
+
+        // Then
+        assertThat(actual, equalTo(expected));
+        assertThat(root.exists(), is(false));
+    }
+
+    @Test
+    public void deleteContentsGivenDeadlineHasPassedThenGivesUpLeavingEverything() throws Exception {
+        // Given
+        final File root = tmp.newFolder("root");
+        mkTree(root);
+        final int expectedNumberOfChildren = root.list().length;
+        final long deadlineInThePast = System.currentTimeMillis() - 1L;
+
+        // When
+        try {
+            TreeDeleter.deleteContents(root, 2, deadlineInThePast);
+            fail("Expecting TimedOutException");
+        } catch (TreeDeleter.TimedOutException expected) {
+            // expected
+        }
+
+        // Then
+        assertThat(root.list(), arrayWithSize(expectedNumberOfChildren));
+    }
+
+    @Test
+    public void deleteContentsGivenCancelledThenGivesUpLeavingEverything() throws Exception {
+        // Given
+        final File root = tmp.newFolder("root");
+        mkTree(root);
+        final int expectedNumberOfChildren = root.list().length;
+        final TreeDeleter.Cancellation cancellation = new TreeDeleter.Cancellation();
+        cancellation.cancel();
+
+        // When
+        try {
+            TreeDeleter.deleteContents(root, 2, TreeDeleter.NO_DEADLINE, null, cancellation);
+            fail("Expecting CancelledException");
+        } catch (TreeDeleter.CancelledException expected) {
+            // expected
+        }
+
+        // Then
+        assertThat(root.list(), arrayWithSize(expectedNumberOfChildren));
+    }
+
+    @Test
+    public void deleteContentsGivenInterruptedThenCancelsAndStaysInterrupted() throws Exception {
+        // Given
+        final File root = tmp.newFolder("root");
+        mkTree(root);
+        final TreeDeleter.Cancellation cancellation = new TreeDeleter.Cancellation();
+        Thread.currentThread().interrupt();
+
+        // When
+        boolean actualInterrupted;
+        try {
+            TreeDeleter.deleteContents(root, 2, TreeDeleter.NO_DEADLINE, null, cancellation);
+            fail("Expecting CancelledException");
+        } catch (TreeDeleter.CancelledException expected) {
+            // expected
+        } finally {
+            actualInterrupted = Thread.interrupted(); // clears it too
+        }
+
+        // Then
+        assertThat(actualInterrupted, is(true));
+        assertThat(cancellation.isCancelled(), is(true));
+    }
+
+    @Test
+    public void deleteContentsGivenNonexistentFolderThenDoesNothing() throws Exception {
+        // Given
+        final File root = new File(tmp.getRoot(), "doesNotExist");
+
+        // When
+        final long actual = TreeDeleter.deleteContents(root, 2).getFilesDeleted();
+
+        // Then
+        assertThat(actual, equalTo(0L));
+        assertThat(root.exists(), is(false));
+    }
+
+    @Test
+    public void deleteContentsGivenFilesWithContentThenCountsTheirSize() throws Exception {
+        // Given
+        final File root = tmp.newFolder("root");
+        Files.write(mkFile(root, "a.bin").toPath(), new byte[100]);
+        Files.write(mkFile(root, "sub/b.bin").toPath(), new byte[23]);
+        mkFile(root, "sub/empty.bin");
+
+        // When
+        final TreeDeleter.Outcome actual = TreeDeleter.deleteContents(root, 2);
+
+        // Then
+        assertThat(actual.getFilesDeleted(), equalTo(3L));
+        assertThat(actual.getBytesDeleted(), equalTo(123L));
+    }
+
+    @Test
+    public void deleteContentsGivenKeepGlobsThenKeepsWhatMatchesAndTheFoldersAboveIt() throws Exception {
+        // Given
+        final File root = tmp.newFolder("root");
+        mkFile(root, ".git/HEAD");
+        mkFile(root, "web/node_modules/lib/index.js");
+        mkFile(root, "web/src/app.js");
+        mkFile(root, "build/out.o");
+        final PathFilter filter = new PathFilter(ImmutableList.of(".git", "node_modules"),
+                ImmutableList.<String> of());
+
+        // When
+        final TreeDeleter.Outcome actual = TreeDeleter.deleteContents(root, 2, TreeDeleter.NO_DEADLINE, filter);
+
+        // Then
+        assertThat(actual.getFilesDeleted(), equalTo(2L));
+        assertThat(new File(root, ".git/HEAD").isFile(), is(true));
+        assertThat(new File(root, "web/node_modules/lib/index.js").isFile(), is(true));
+        assertThat(new File(root, "web/src").exists(), is(false));
+        assertThat(new File(root, "build").exists(), is(false));
+    }
+
+    @Test
+    public void deleteContentsGivenDeleteGlobsThenOnlyDeletesWhatMatchesAndIsNotKept() throws Exception {
+        // Given
+        final File root = tmp.newFolder("root");
+        mkFile(root, "src/Main.java");
+        mkFile(root, "target/classes/Main.class");
+        mkFile(root, "target/cache/keep.bin");
+        mkFile(root, "module/target/Other.class");
+        final PathFilter filter = new PathFilter(ImmutableList.of("target/cache"), ImmutableList.of("target/"));
+
+        // When
+        final TreeDeleter.Outcome actual = TreeDeleter.deleteContents(root, 2, TreeDeleter.NO_DEADLINE, filter);
+
+        // Then
+        assertThat(actual.getFilesDeleted(), equalTo(2L));
+        assertThat(new File(root, "src/Main.java").isFile(), is(true));
+        assertThat(new File(root, "target/classes").exists(), is(false));
+        assertThat(new File(root, "target/cache/keep.bin").isFile(), is(true));
+        assertThat(new File(root, "module/target").exists(), is(false));
+    }
+
+    /** Makes a tree with lots of folders and one folder with lots of files. */
+    private static long mkTree(File root) throws Exception {
+        long filesCreated = 0L;
+        for (int i = 0; i < 10; i++) {
+            for (int j = 0; j < 5; j++) {
+                mkFile(root, "dir" + i + "/sub" + j + "/file.txt");
+                filesCreated++;
+            }
+            mkFile(root, "file" + i + ".txt");
+            filesCreated++;
+        }
+        for (int i = 0; i < 2500; i++) {
+            mkFile(root, "big/file" + i + ".txt");
+            filesCreated++;
+        }
+        return filesCreated;
+    }
+}
@@ -0,0 +1,88 @@
+package de.jamba.hudson.plugin.wsclean;
+
+import static org.hamcrest.Matchers.greaterThanOrEqualTo;
+import static org.hamcrest.Matchers.is;
+import static org.junit.Assert.assertThat;
+
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.Test;
+
+public class WorkspaceDeletionBarrierTest {
+    @Test
+    public void isBusyGivenEnteredThenTrueOnlyForThatJobAndNode() {
+        // Given
+        final WorkspaceDeletionBarrier instance = new WorkspaceDeletionBarrier();
+
+        // When
+        instance.enter("job1", Arrays.asList("node1", "node2"));
+
+        // Then
+        assertThat(instance.isBusy("job1", "node1"), is(true));
+        assertThat(instance.isBusy("job1", "node2"), is(true));
+        assertThat(instance.isBusy("job1", "node3"), is(false));
+        assertThat(instance.isBusy("job2", "node1"), is(false));
+    }
+
+    @Test
+    public void isBusyGivenEnteredTwiceAndExitedOnceThenStillBusy() {
+        // Given
+        final List<String> nodeNames = Arrays.asList("node1");
+        final WorkspaceDeletionBarrier instance = new WorkspaceDeletionBarrier();
+        instance.enter("job1", nodeNames);
+        instance.enter("job1", nodeNames);
+
+        // When
+        instance.exit("job1", nodeNames);
+
+        // Then
+        assertThat(instance.isBusy("job1", "node1"), is(true));
+        instance.exit("job1", nodeNames);
+        assertThat(instance.isBusy("job1", "node1"), is(false));
+    }
+
+    @Test
+    public void awaitGivenNotBusyThenReturnsImmediately() throws Exception {
+        // Given
+        final WorkspaceDeletionBarrier instance = new WorkspaceDeletionBarrier();
+        instance.enter("job1", Arrays.asList("node1"));
+
+        // When
+        instance.await("job1", "node2");
+
+        // Then
+        // we didn't block
+    }
+
+    @Test
+    public void awaitGivenBusyThenWaitsUntilExited() throws Exception {
+        // Given
+        final long delayBeforeExit = 500L;
+        final List<String> nodeNames = Arrays.asList("node1");
+        final WorkspaceDeletionBarrier instance = new WorkspaceDeletionBarrier();
+        instance.enter("job1", nodeNames);
+        final Thread exiter = new Thread() {
+            @Override
+            public void run() {
+                try {
+                    Thread.sleep(delayBeforeExit);
+                } catch (InterruptedException e) {
+                    // just exit early
+                }
+                instance.exit("job1", nodeNames);
+            }
+        };
+        final long timestampBefore = System.currentTimeMillis();
+        exiter.start();
+
+        // When
+        instance.await("job1", "node1");
+        final long timestampAfter = System.currentTimeMillis();
+
+        // Then
+        assertThat(timestampAfter - timestampBefore, greaterThanOrEqualTo(delayBeforeExit - 50L));
+        assertThat(instance.isBusy("job1", "node1"), is(false));
+        exiter.join();
+    }
+}
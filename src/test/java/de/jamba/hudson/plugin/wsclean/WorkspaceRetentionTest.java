@@ -0,0 +1,62 @@
+package de.jamba.hudson.plugin.wsclean;
+
+import static org.hamcrest.Matchers.contains;
+import static org.hamcrest.Matchers.empty;
+import static org.junit.Assert.assertThat;
+
+import java.util.List;
+
+import org.junit.Test;
+
+import com.google.common.collect.ImmutableList;
+
+public class WorkspaceRetentionTest {
+    private static final long MB = 1024L * 1024L;
+
+    @Test
+    public void leastRecentlyUsedFirstGivenIndexThenUnknownFirstThenOldestFirst() {
+        // Given
+        final WorkspaceUsageIndex index = new WorkspaceUsageIndex();
+        index.recordStarted("node1", "/ws/job", 7);
+        index.recordStarted("node1", "/ws/job@2", 3);
+        index.recordStarted("node1", "/ws/job@3", 5);
+        index.recordStarted("node2", "/ws/job@4", 1);
+
+        // When
+        final List<String> actual = WorkspaceRetention.leastRecentlyUsedFirst(index, "node1",
+                ImmutableList.of("/ws/job", "/ws/job@2", "/ws/job@3", "/ws/job@4"));
+
+        // Then
+        assertThat(actual, contains("/ws/job@4", "/ws/job@2", "/ws/job@3", "/ws/job"));
+    }
+
+    @Test
+    public void chooseEvictionsGivenOverBudgetThenEvictsOldestUntilTheRestFit() {
+        // Given
+        final List<FolderStat> leastRecentlyUsedFirst = ImmutableList.of(stat("/ws/oldest", 40L * MB),
+                stat("/ws/older", 30L * MB), stat("/ws/newer", 20L * MB), stat("/ws/newest", 10L * MB));
+
+        // When
+        final List<String> actual = WorkspaceRetention.chooseEvictions(leastRecentlyUsedFirst, 35L * MB);
+
+        // Then
+        assertThat(actual, contains("/ws/oldest", "/ws/older"));
+    }
+
+    @Test
+    public void chooseEvictionsGivenWithinBudgetThenEvictsNothing() {
+        // Given
+        final List<FolderStat> leastRecentlyUsedFirst = ImmutableList.of(stat("/ws/older", 30L * MB),
+                stat("/ws/newer", 20L * MB));
+
+        // When
+        final List<String> actual = WorkspaceRetention.chooseEvictions(leastRecentlyUsedFirst, 50L * MB);
+
+        // Then
+        assertThat(actual, empty());
+    }
+
+    private static FolderStat stat(String folder, long sizeInBytes) {
+        return new FolderStat(folder, true, 1L, sizeInBytes, 0L);
+    }
+}
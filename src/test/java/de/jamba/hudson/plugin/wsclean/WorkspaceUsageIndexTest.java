@@ -0,0 +1,204 @@
+package de.jamba.hudson.plugin.wsclean;
+
+import static org.hamcrest.Matchers.contains;
+import static org.hamcrest.Matchers.empty;
+import static org.hamcrest.Matchers.equalTo;
+import static org.junit.Assert.assertThat;
+import static org.mockito.Matchers.anyString;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+import java.lang.reflect.Field;
+import java.util.Arrays;
+import java.util.Set;
+
+import org.junit.Test;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableSetMultimap;
+import com.google.common.collect.Multimap;
+import com.google.common.collect.Sets;
+import com.google.common.collect.TreeMultimap;
+
+import hudson.FilePath;
+import hudson.model.AbstractBuild;
+import hudson.model.AbstractProject;
+import hudson.model.Node;
+import hudson.remoting.VirtualChannel;
+import hudson.util.RunList;
+import jenkins.model.Jenkins;
+
+public class WorkspaceUsageIndexTest {
+    @Test
+    public void findWorkspacesGivenStartedAndCompletedBuildsThenSaysWhatsInUse() throws Exception {
+        // Given
+        final String ws1 = "/ws/job";
+        final String ws2 = "/ws/job@2";
+        final Jenkins mockJenkins = mock(Jenkins.class, "mockJenkins");
+        final Node mockNode1 = mockNode(mockJenkins, "node1", true);
+        final Node mockNode2 = mockNode(mockJenkins, "node2", true);
+        mockNode(mockJenkins, "node3offline", false);
+        when(mockJenkins.createPath(anyString())).thenReturn(new FilePath((VirtualChannel) null, ws1));
+        final WorkspaceUsageIndex instance = new WorkspaceUsageIndex();
+        instance.recordStarted("", ws1, 1);
+        instance.recordStarted(mockNode1.getNodeName(), ws1, 2);
+        instance.recordStarted(mockNode1.getNodeName(), ws2, 3);
+        instance.recordStarted("node3offline", ws1, 4);
+        instance.recordStarted(mockNode2.getNodeName(), ws1, 5);
+        instance.recordStarted("node4deleted", ws1, 6);
+        instance.recordCompleted("", 1);
+        instance.recordCompleted(mockNode1.getNodeName(), 2);
+        instance.recordCompleted("node3offline", 4);
+        instance.recordCompleted("node4deleted", 6);
+        final Multimap<String, String> expectedCurrent = ImmutableSetMultimap.of("node1", ws2, "node2", ws1);
+        final Multimap<String, String> expectedPrevious = ImmutableSetMultimap.of("", ws1, "node1", ws1);
+        final Multimap<String, String> expectedOffline = ImmutableSetMultimap.of("node3offline", ws1);
+
+        // When
+        final Multimap<String, String> actualCurrent = TreeMultimap.create();
+        final Multimap<String, String> actualPrevious = TreeMultimap.create();
+        final Set<String> actualDead = Sets.newTreeSet();
+        final Multimap<String, String> actualOffline = TreeMultimap.create();
+        instance.findWorkspaces(mockJenkins, actualCurrent, actualPrevious, actualDead, actualOffline);
+
+        // Then
+        assertThat(actualCurrent, equalTo(expectedCurrent));
+        assertThat(actualPrevious, equalTo(expectedPrevious));
+        assertThat(actualDead, contains("node3offline", "node4deleted"));
+        assertThat(actualOffline, equalTo(expectedOffline));
+    }
+
+    @Test
+    public void isUsedSinceGivenLaterOrRunningBuildsThenReturnsTrue() throws Exception {
+        // Given
+        final String ws1 = "/ws/job";
+        final String ws2 = "/ws/job@2";
+        final WorkspaceUsageIndex instance = new WorkspaceUsageIndex();
+        instance.recordStarted("node1", ws1, 3);
+        instance.recordCompleted("node1", 3);
+        instance.recordStarted("node1", ws2, 4);
+
+        // When
+        final boolean actualUsedByLaterBuild = instance.isUsedSince("node1", ws1, 2);
+        final boolean actualNotUsedSince = instance.isUsedSince("node1", ws1, 3);
+        final boolean actualInUse = instance.isUsedSince("node1", ws2, 5);
+        final boolean actualNeverUsed = instance.isUsedSince("node2", ws1, 1);
+
+        // Then
+        assertThat(actualUsedByLaterBuild, equalTo(true));
+        assertThat(actualNotUsedSince, equalTo(false));
+        assertThat(actualInUse, equalTo(true));
+        assertThat(actualNeverUsed, equalTo(false));
+    }
+
+    @Test
+    public void findWorkspacesGivenNothingRecordedThenFindsNothing() throws Exception {
+        // Given
+        final Jenkins mockJenkins = mock(Jenkins.class, "mockJenkins");
+        final WorkspaceUsageIndex instance = new WorkspaceUsageIndex();
+
+        // When
+        final Multimap<String, String> actualCurrent = TreeMultimap.create();
+        final Multimap<String, String> actualPrevious = TreeMultimap.create();
+        final Set<String> actualDead = Sets.newTreeSet();
+        instance.findWorkspaces(mockJenkins, actualCurrent, actualPrevious, actualDead,
+                TreeMultimap.<String, String>create());
+
+        // Then
+        assertThat(actualCurrent.isEmpty(), equalTo(true));
+        assertThat(actualPrevious.isEmpty(), equalTo(true));
+        assertThat(actualDead, empty());
+    }
+
+    @Test
+    public void forgetWorkspacesGivenIdleAndInUseWorkspacesThenOnlyForgetsIdleOnes() throws Exception {
+        // Given
+        final String ws1 = "/ws/job";
+        final String ws2 = "/ws/job@2";
+        final WorkspaceUsageIndex instance = new WorkspaceUsageIndex();
+        instance.recordStarted("node1", ws1, 1);
+        instance.recordCompleted("node1", 1);
+        instance.recordStarted("node1", ws2, 2);
+
+        // When
+        final boolean actual = instance.forgetWorkspaces("node1", ImmutableList.of(ws1, ws2, "/ws/unknown"));
+
+        // Then
+        assertThat(actual, equalTo(true));
+        assertThat(instance.getLastBuildNumber("node1", ws1), equalTo(0));
+        assertThat(instance.getLastBuildNumber("node1", ws2), equalTo(2));
+    }
+
+    @Test
+    public void forgetNodeGivenNodeKnownThenForgetsAllItsWorkspaces() throws Exception {
+        // Given
+        final String ws1 = "/ws/job";
+        final WorkspaceUsageIndex instance = new WorkspaceUsageIndex();
+        instance.recordStarted("node1", ws1, 1);
+        instance.recordStarted("node2", ws1, 2);
+
+        // When
+        final boolean actualKnown = instance.forgetNode("node1");
+        final boolean actualUnknown = instance.forgetNode("node3");
+
+        // Then
+        assertThat(actualKnown, equalTo(true));
+        assertThat(actualUnknown, equalTo(false));
+        assertThat(instance.getLastBuildNumber("node1", ws1), equalTo(0));
+        assertThat(instance.getLastBuildNumber("node2", ws1), equalTo(2));
+    }
+
+    @Test
+    @SuppressWarnings({ "rawtypes", "unchecked" })
+    public void catchUpWithHistoryGivenBuildsWeDidNotRecordThenAddsThem() throws Exception {
+        // Given
+        final Jenkins mockJenkins = mock(Jenkins.class, "mockJenkins");
+        final Node mockNode = mockNode(mockJenkins, "node1", true);
+        final WorkspaceUsageIndex instance = new WorkspaceUsageIndex();
+        instance.recordStarted("node1", "/ws/job", 5);
+        instance.recordCompleted("node1", 5);
+        final AbstractBuild running = mockBuild(7, mockNode, "/ws/job@2", true);
+        final AbstractBuild finished = mockBuild(6, mockNode, "/ws/job", false);
+        final AbstractBuild alreadyKnown = mockBuild(5, mockNode, "/ws/alreadyKnown", false);
+        final AbstractProject mockProject = mock(AbstractProject.class, "mockProject");
+        when(mockProject.getBuilds()).thenReturn(RunList.fromRuns(Arrays.asList(running, finished, alreadyKnown)));
+
+        // When
+        instance.catchUpWithHistory(mockProject);
+
+        // Then
+        assertThat(instance.isUsedSince("node1", "/ws/job@2", 7), equalTo(true));
+        assertThat(instance.getLastBuildNumber("node1", "/ws/job"), equalTo(6));
+        assertThat(instance.getLastBuildNumber("node1", "/ws/alreadyKnown"), equalTo(0));
+    }
+
+    private static AbstractBuild<?, ?> mockBuild(int number, Node builtOn, String ws, boolean isBuilding)
+            throws Exception {
+        final AbstractBuild<?, ?> m = mock(AbstractBuild.class, "build" + number);
+        final Field wsField = AbstractBuild.class.getDeclaredField("workspace");
+        wsField.setAccessible(true);
+        wsField.set(m, ws);
+        when(m.getNumber()).thenReturn(number);
+        when(m.getBuiltOn()).thenReturn(builtOn);
+        when(m.getBuiltOnStr()).thenReturn(builtOn.getNodeName());
+        when(m.isBuilding()).thenReturn(isBuilding);
+        return m;
+    }
+
+    private static Node mockNode(Jenkins mockJenkins, String nodeName, boolean nodeIsOnline) {
+        final Node m = mock(Node.class, nodeName);
+        when(m.getNodeName()).thenReturn(nodeName);
+        if (nodeIsOnline) {
+            when(m.createPath(anyString())).thenAnswer(new Answer<FilePath>() {
+                @Override
+                public FilePath answer(InvocationOnMock invocation) throws Throwable {
+                    return new FilePath((VirtualChannel) null, (String) invocation.getArguments()[0]);
+                }
+            });
+        }
+        when(mockJenkins.getNode(nodeName)).thenReturn(m);
+        return m;
+    }
+}